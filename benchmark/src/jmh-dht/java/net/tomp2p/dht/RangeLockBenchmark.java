@@ -0,0 +1,84 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.dht;
+
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+
+/**
+ * Contention of {@link RangeLock} and {@link StripedRangeLock} with several
+ * threads that lock single keys of unrelated location keys, as
+ * {@link StorageLayer#get(Number640)} does. The write variants show the cost
+ * of the striping alone, the read variants also profit from read sharing.
+ *
+ * @author Thomas Bocek
+ *
+ */
+@State(Scope.Benchmark)
+@Threads(8)
+public class RangeLockBenchmark {
+
+	@Param({ "16", "1024" })
+	private int nrLocations;
+
+	private RangeLock<Number640> rangeLock;
+	private StripedRangeLock stripedRangeLock;
+	private Number640[] keys;
+
+	@Setup
+	public void setup() {
+		final Random rnd = new Random(42);
+		rangeLock = new RangeLock<Number640>();
+		stripedRangeLock = new StripedRangeLock();
+		keys = new Number640[nrLocations];
+		for (int i = 0; i < nrLocations; i++) {
+			keys[i] = new Number640(new Number160(rnd), Number160.ZERO, new Number160(rnd), Number160.ZERO);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Index {
+		private int index = new Random().nextInt(1 << 16);
+	}
+
+	@Benchmark
+	public void rangeLock(final Index index) {
+		final Number640 key = keys[index.index++ % keys.length];
+		rangeLock.lock(key, key).unlock();
+	}
+
+	@Benchmark
+	public void stripedWriteLock(final Index index) {
+		final Number640 key = keys[index.index++ % keys.length];
+		stripedRangeLock.writeLock(key, key).unlock();
+	}
+
+	@Benchmark
+	public void stripedReadLock(final Index index) {
+		final Number640 key = keys[index.index++ % keys.length];
+		stripedRangeLock.readLock(key, key).unlock();
+	}
+}
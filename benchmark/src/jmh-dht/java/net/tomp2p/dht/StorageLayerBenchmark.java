@@ -0,0 +1,89 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.dht;
+
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+
+/**
+ * Put and get on a {@link StorageLayer} backed by {@link StorageMemory}
+ * without protection. The keys are spread over a few location keys, as the
+ * range lock is taken per location and domain.
+ *
+ * @author Thomas Bocek
+ *
+ */
+@State(Scope.Thread)
+public class StorageLayerBenchmark {
+
+	@Param({ "1000", "100000" })
+	private int nrEntries;
+
+	private StorageMemory storage;
+	private StorageLayer storageLayer;
+	private Number640[] keys;
+	private Data data;
+	private int index = 0;
+
+	@Setup
+	public void setup() {
+		final Random rnd = new Random(42);
+		storage = new StorageMemory();
+		storageLayer = new StorageLayer(storage);
+		final Number160[] locationKeys = new Number160[16];
+		for (int i = 0; i < locationKeys.length; i++) {
+			locationKeys[i] = new Number160(rnd);
+		}
+		keys = new Number640[nrEntries];
+		final byte[] value = new byte[100];
+		rnd.nextBytes(value);
+		data = new Data(value);
+		for (int i = 0; i < nrEntries; i++) {
+			keys[i] = new Number640(locationKeys[i % locationKeys.length], Number160.ZERO, new Number160(rnd),
+					Number160.ZERO);
+			storageLayer.put(keys[i], data, null, false, false, false);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		storageLayer.close();
+	}
+
+	/**
+	 * Overwrites an existing entry, so the size of the storage stays the same.
+	 */
+	@Benchmark
+	public Enum<?> put() {
+		return storageLayer.put(keys[index++ % keys.length], data, null, false, false, false);
+	}
+
+	@Benchmark
+	public Data get() {
+		return storageLayer.get(keys[index++ % keys.length]);
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.synchronization;
+
+import java.util.List;
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Checksums and instructions of {@link RSync} for a value where a few bytes
+ * changed, which is the case the synchronization is made for.
+ *
+ * @author Thomas Bocek
+ *
+ */
+@State(Scope.Thread)
+public class RSyncBenchmark {
+
+	@Param({ "10000", "1000000" })
+	private int size;
+
+	@Param({ "700" })
+	private int blockSize;
+
+	private byte[] oldValue;
+	private byte[] newValue;
+	private List<Checksum> checksums;
+
+	@Setup
+	public void setup() {
+		final Random rnd = new Random(42);
+		oldValue = new byte[size];
+		rnd.nextBytes(oldValue);
+		newValue = oldValue.clone();
+		for (int i = 0; i < 10; i++) {
+			newValue[rnd.nextInt(size)]++;
+		}
+		checksums = RSync.checksums(oldValue, blockSize);
+	}
+
+	@Benchmark
+	public List<Checksum> checksums() {
+		return RSync.checksums(oldValue, blockSize);
+	}
+
+	@Benchmark
+	public List<Instruction> instructions() {
+		return RSync.instructions(newValue, checksums, blockSize);
+	}
+}
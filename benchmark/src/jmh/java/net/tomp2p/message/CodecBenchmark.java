@@ -0,0 +1,131 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.message;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import net.tomp2p.connection.DSASignatureFactory;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.storage.Data;
+
+/**
+ * Encoding and decoding of messages with different content types. The encoder
+ * consumes the content of a message, thus {@link #encode()} builds a new
+ * message in each call. Subtract {@link #build()} to get the cost of the
+ * encoder alone.
+ *
+ * @author Thomas Bocek
+ *
+ */
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+	@Param({ "empty", "keys", "neighbors", "dataMap", "buffer" })
+	private String content;
+
+	private final Encoder encoder = new Encoder(new DSASignatureFactory());
+	private final Decoder decoder = new Decoder(new DSASignatureFactory());
+
+	private PeerAddress sender;
+	private PeerAddress recipient;
+	private InetSocketAddress senderSocket;
+	private InetSocketAddress recipientSocket;
+	private List<PeerAddress> neighbors;
+	private NavigableMap<Number640, Data> dataMap;
+	private byte[] payload;
+
+	private ByteBuf encodeBuf;
+	private ByteBuf decodeBuf;
+	private byte[] encoded;
+
+	@Setup
+	public void setup() throws Exception {
+		final Random rnd = new Random(42);
+		final InetAddress inet = InetAddress.getByName("127.0.0.1");
+		sender = PeerAddress.create(new Number160(rnd), inet, 8002).withSkipIP(true);
+		recipient = PeerAddress.create(new Number160(rnd), inet, 8004);
+		senderSocket = new InetSocketAddress(inet, 8002);
+		recipientSocket = new InetSocketAddress(inet, 8004);
+		neighbors = new ArrayList<PeerAddress>();
+		for (int i = 0; i < 20; i++) {
+			neighbors.add(PeerAddress.create(new Number160(rnd), inet, 4000 + i));
+		}
+		dataMap = new TreeMap<Number640, Data>();
+		for (int i = 0; i < 10; i++) {
+			final byte[] value = new byte[100];
+			rnd.nextBytes(value);
+			dataMap.put(new Number640(rnd), new Data(value));
+		}
+		payload = new byte[1000];
+		rnd.nextBytes(payload);
+
+		encodeBuf = Unpooled.buffer(65536);
+		decodeBuf = Unpooled.buffer(65536);
+		encoder.write(encodeBuf, build(), null);
+		encoded = new byte[encodeBuf.readableBytes()];
+		encodeBuf.readBytes(encoded);
+	}
+
+	@Benchmark
+	public Message build() {
+		final Message message = new Message();
+		message.sender(sender).recipient(recipient).type(Message.Type.REQUEST_1).command((byte) 0);
+		if ("keys".equals(content)) {
+			message.key(Number160.ONE).key(Number160.MAX_VALUE).intValue(42).longValue(42L);
+		} else if ("neighbors".equals(content)) {
+			message.neighborsSet(new NeighborSet(-1, neighbors));
+		} else if ("dataMap".equals(content)) {
+			// encoding only reads from a duplicate of each buffer
+			message.setDataMap(new DataMap(dataMap));
+		} else if ("buffer".equals(content)) {
+			message.buffer(new Buffer(Unpooled.wrappedBuffer(payload)));
+		}
+		return message;
+	}
+
+	@Benchmark
+	public ByteBuf encode() throws Exception {
+		encodeBuf.clear();
+		encoder.write(encodeBuf, build(), null);
+		return encodeBuf;
+	}
+
+	@Benchmark
+	public Message decode() {
+		decodeBuf.clear();
+		decodeBuf.writeBytes(encoded);
+		decoder.decode(decodeBuf, recipientSocket, senderSocket);
+		return decoder.prepareFinish();
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.peers;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * XOR and compare of {@link Number160}, used for every distance calculation in
+ * the routing and the peer map.
+ *
+ * @author Thomas Bocek
+ *
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class Number160Benchmark {
+
+	private Number160 key1;
+	private Number160 key2;
+	private Number160 key3;
+
+	@Setup
+	public void setup() {
+		final Random rnd = new Random(42);
+		key1 = new Number160(rnd);
+		key2 = new Number160(rnd);
+		key3 = new Number160(rnd);
+	}
+
+	@Benchmark
+	public Number160 xor() {
+		return key1.xor(key2);
+	}
+
+	@Benchmark
+	public int compareTo() {
+		return key1.compareTo(key2);
+	}
+
+	@Benchmark
+	public int isKadCloser() {
+		return PeerMap.isKadCloser(key1, key2, key3);
+	}
+}
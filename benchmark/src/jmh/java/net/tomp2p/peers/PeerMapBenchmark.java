@@ -0,0 +1,97 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.peers;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Adding peers to and searching close peers in a filled {@link PeerMap}.
+ *
+ * @author Thomas Bocek
+ *
+ */
+@State(Scope.Thread)
+public class PeerMapBenchmark {
+
+	@Param({ "100", "1000", "10000" })
+	private int nrPeers;
+
+	private PeerMap peerMap;
+	private PeerAddress[] peers;
+	private Number160[] searchKeys;
+	private int index = 0;
+
+	@Setup
+	public void setup() throws UnknownHostException {
+		final Random rnd = new Random(42);
+		final PeerMapConfiguration conf = new PeerMapConfiguration(new Number160(rnd));
+		conf.setFixedVerifiedBagSizes(20).setFixedOverflowBagSizes(20);
+		conf.offlineCount(1000).offlineTimeout(60);
+		conf.addMapPeerFilter(new DefaultPeerFilter()).maintenance(new DefaultMaintenance(0, new int[] {}));
+		peerMap = new PeerMap(conf);
+		final InetAddress inet = InetAddress.getByName("127.0.0.1");
+		peers = new PeerAddress[nrPeers];
+		searchKeys = new Number160[1024];
+		for (int i = 0; i < nrPeers; i++) {
+			peers[i] = PeerAddress.create(new Number160(rnd), inet, 4000 + (i % 60000));
+			peerMap.peerFound(peers[i], null, null);
+		}
+		for (int i = 0; i < searchKeys.length; i++) {
+			searchKeys[i] = new Number160(rnd);
+		}
+	}
+
+	/**
+	 * Updates a peer that is already known, this is the common case, as every
+	 * message updates the map.
+	 */
+	@Benchmark
+	public boolean peerFound() {
+		final PeerAddress peer = peers[index++ % peers.length];
+		return peerMap.peerFound(peer, null, null);
+	}
+
+	/**
+	 * Same as above, but with third hand information.
+	 */
+	@Benchmark
+	public boolean peerFoundReferrer() {
+		final PeerAddress peer = peers[index++ % peers.length];
+		final PeerAddress referrer = peers[index % peers.length];
+		return peerMap.peerFound(peer, referrer, null);
+	}
+
+	@Benchmark
+	public NavigableSet<PeerStatistic> closePeers() {
+		return peerMap.closePeers(searchKeys[index++ & (searchKeys.length - 1)], 20);
+	}
+
+	@Benchmark
+	public List<PeerStatistic> closestPeers() {
+		return peerMap.closestPeers(searchKeys[index++ & (searchKeys.length - 1)], 20);
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.rpc;
+
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import net.tomp2p.peers.Number160;
+
+/**
+ * Add and contains of a {@link SimpleBloomFilter} with the sizes used for
+ * digests and the tracker, with and without the blocked mode.
+ *
+ * @author Thomas Bocek
+ *
+ */
+@State(Scope.Thread)
+public class SimpleBloomFilterBenchmark {
+
+	@Param({ "1000", "100000" })
+	private int expectedElements;
+
+	@Param({ "false", "true" })
+	private boolean blocked;
+
+	private SimpleBloomFilter<Number160> bloomFilter;
+	private Number160[] present;
+	private Number160[] absent;
+	private int index = 0;
+
+	@Setup
+	public void setup() {
+		final Random rnd = new Random(42);
+		bloomFilter = new SimpleBloomFilter<Number160>(0.01, expectedElements, blocked);
+		present = new Number160[expectedElements];
+		absent = new Number160[1024];
+		for (int i = 0; i < present.length; i++) {
+			present[i] = new Number160(rnd);
+			bloomFilter.add(present[i]);
+		}
+		for (int i = 0; i < absent.length; i++) {
+			absent[i] = new Number160(rnd);
+		}
+	}
+
+	/**
+	 * Adds elements that are already in the filter, thus the false positive
+	 * probability does not change during the run.
+	 */
+	@Benchmark
+	public boolean add() {
+		return bloomFilter.add(present[index++ % present.length]);
+	}
+
+	/**
+	 * Creates a digest of all elements, divide by expectedElements for the
+	 * cost per element.
+	 */
+	@Benchmark
+	public SimpleBloomFilter<Number160> build() {
+		final SimpleBloomFilter<Number160> digest = new SimpleBloomFilter<Number160>(0.01, expectedElements, blocked);
+		for (int i = 0; i < present.length; i++) {
+			digest.add(present[i]);
+		}
+		return digest;
+	}
+
+	@Benchmark
+	public boolean containsPresent() {
+		return bloomFilter.contains(present[index++ % present.length]);
+	}
+
+	@Benchmark
+	public boolean containsAbsent() {
+		return bloomFilter.contains(absent[index++ & (absent.length - 1)]);
+	}
+}
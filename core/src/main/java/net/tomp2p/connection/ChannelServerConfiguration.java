@@ -17,6 +17,7 @@
 package net.tomp2p.connection;
 
 import java.net.InetAddress;
+import java.util.concurrent.Executor;
 
 import lombok.Getter;
 import lombok.Setter;
@@ -46,6 +47,28 @@ public class ChannelServerConfiguration {
 	private Ports ports = new Ports(Ports.DEFAULT_PORT);
 	private int maxUDPIncomingConnections = 1000;
 	private InetAddress fromAddress = null;
+
+	//receive pipeline, 0 workers means decode and dispatch on the receive thread
+	private int dispatchWorkerThreads = 0;
+	private int dispatchQueueSize = 4096;
+	//non-blocking mode: selector loops serving all interfaces, 0 means one blocking thread per interface
+	private int selectorThreads = 0;
+	//resolution of the request timeouts
+	private int timerWheelTickMillis = 10;
+	//requests that wait for a response, further requests fail right away
+	private int maxPendingRequests = PendingRequests.DEFAULT_MAX_PENDING;
+	//pack small messages to the same peer into one datagram of at most this size, 0 means one datagram per message
+	private int bundleMtu = 0;
+	//split messages larger than this into fragments of this size, 0 means large messages are sent in one datagram
+	private int fragmentMtu = 0;
+	//the largest message that is sent or reassembled from fragments
+	private int maxFragmentedMessageSize = 1024 * 1024;
+	//the memory for messages that are partially received
+	private int fragmentReassemblyBytes = 16 * 1024 * 1024;
+	//the messages that are partially received, fragments of further messages are dropped
+	private int maxFragmentReassemblies = MessageFragmenter.DEFAULT_MAX_REASSEMBLIES;
+	//runs the listeners of the response futures, null means on the receive or timer thread that completes them
+	private Executor listenerExecutor = null;
 	
 	//private SctpDataCallback sctpCallback = null;
 }
@@ -34,6 +34,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.jdeferred.AlwaysCallback;
@@ -45,8 +46,7 @@ import org.slf4j.LoggerFactory;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufUtil;
-import io.netty.buffer.CompositeByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.PooledByteBufAllocator;
 import javassist.NotFoundException;
 import lombok.RequiredArgsConstructor;
 import lombok.experimental.Accessors;
@@ -72,7 +72,6 @@ import net.tomp2p.rpc.DispatchHandler;
 import net.tomp2p.rpc.RPC;
 import net.tomp2p.rpc.RPC.Commands;
 import net.tomp2p.utils.ConcurrentCacheMap;
-import net.tomp2p.utils.ExpirationHandler;
 import net.tomp2p.utils.Pair;
 
 /**
@@ -95,6 +94,15 @@ public final class ChannelTransceiver implements DiscoverNetworkListener {
 
 	private final ChannelServerConfiguration channelServerConfiguration;
 	private final Dispatcher dispatcher;
+	private final DispatchExecutor dispatchExecutor;
+	private final CodecPool codecPool;
+	//null if every message is sent in its own datagram
+	private final MessageBundler messageBundler;
+	private final MessageFragmenter messageFragmenter;
+	//non-blocking mode, null if we use one blocking thread per interface
+	private final SelectorLoop[] selectorLoops;
+	//channels are added by the network discovery, which may run concurrently
+	private final AtomicInteger nextSelectorLoop = new AtomicInteger();
 
 	private final DiscoverNetworks discoverNetworks;
 
@@ -107,13 +115,14 @@ public final class ChannelTransceiver implements DiscoverNetworkListener {
 	
 	private final PeerBean peerBean;
 	
-	final private ConcurrentCacheMap<MessageID, FutureDone<Message>> pendingMessages = new ConcurrentCacheMap<>(3, 10000);
+	final private PendingRequests pendingMessages;
 	//final private ConcurrentCacheMap<MessageID, FutureDone<SctpChannelFacade>> pendingFutures = new ConcurrentCacheMap<>(3, 10000);
 	
 	final private ConcurrentCacheMap<InetSocketAddress, SctpChannel> openConnections = new ConcurrentCacheMap<>(60, 10000);
 	
 	public static final int MAX_PORT = 65535;
 	public static final int MIN_DYN_PORT = 49152;
+	public static final int MAX_PACKET_SIZE = 65536;
 	
 	public volatile DatagramChannel sendingDatagramChannel;
 	
@@ -147,6 +156,32 @@ public final class ChannelTransceiver implements DiscoverNetworkListener {
 		this.channelServerConfiguration = channelServerConfiguration;
 		this.dispatcher = dispatcher;
 		this.peerBean = peerBean;
+		this.dispatchExecutor = new DispatchExecutor(channelServerConfiguration.dispatchWorkerThreads(),
+				channelServerConfiguration.dispatchQueueSize());
+		this.codecPool = new CodecPool(channelServerConfiguration.signatureFactory());
+		//replies are sent on the receive thread, long bursts are handed off to the dispatch workers
+		this.messageBundler = channelServerConfiguration.bundleMtu() > 0 ? new MessageBundler(
+				channelServerConfiguration.bundleMtu(), PooledByteBufAllocator.DEFAULT, dispatchExecutor,
+				MessageBundler.DEFAULT_MAX_DRAIN) : null;
+		//always reassemble, even if this peer does not fragment its own messages
+		this.messageFragmenter = new MessageFragmenter(PooledByteBufAllocator.DEFAULT,
+				channelServerConfiguration.maxFragmentedMessageSize(),
+				channelServerConfiguration.fragmentReassemblyBytes(),
+				channelServerConfiguration.maxFragmentReassemblies(), channelServerConfiguration.idleUDPMillis());
+		
+		final int nrSelectors = channelServerConfiguration.selectorThreads();
+		//with selector loops, the first loop advances the wheel, otherwise the wheel has its own thread
+		this.pendingMessages = new PendingRequests(channelServerConfiguration.timerWheelTickMillis(),
+				nrSelectors == 0, channelServerConfiguration.maxPendingRequests());
+		if (nrSelectors > 0) {
+			this.selectorLoops = new SelectorLoop[nrSelectors];
+			for (int i = 0; i < nrSelectors; i++) {
+				selectorLoops[i] = new SelectorLoop("TomP2P selector-" + i, i == 0 ? pendingMessages.timerWheel() : null);
+				selectorLoops[i].start();
+			}
+		} else {
+			this.selectorLoops = null;
+		}
 		
 		this.discoverNetworks = new DiscoverNetworks(5000, channelServerConfiguration.bindings(), timer);
 
@@ -157,15 +192,9 @@ public final class ChannelTransceiver implements DiscoverNetworkListener {
 		//now start a thread to check periodically for new interfaces
 		if (timer != null) {
 			discoverNetworks.start();
+			//drop partially received messages off the receive path
+			messageFragmenter.start(timer);
 		}
-		
-		pendingMessages.expirationHandler(new ExpirationHandler<FutureDone<Message>>() {
-			@Override
-			public void expired(FutureDone<Message> oldValue) {
-				LOG.debug("Timout occured for {}", oldValue);
-				oldValue.failed("Timeout occurred");
-			}
-		});
 	}
 
 	public DiscoverNetworks discoverNetworks() {
@@ -319,7 +348,9 @@ public final class ChannelTransceiver implements DiscoverNetworkListener {
 			datagramSocket.setReceiveBufferSize(2 * 1024 * 1024);
 			datagramSocket.setSendBufferSize(2 * 1024 * 1024);
 			datagramSocket.bind(listenAddresses);
-			datagramSocket.setSoTimeout(3 * 1000);
+			if (selectorLoops == null) {
+				datagramSocket.setSoTimeout(3 * 1000);
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 			LOG.debug("could not connect {}", listenAddresses);
@@ -336,8 +367,21 @@ public final class ChannelTransceiver implements DiscoverNetworkListener {
 				pendingMessages,
 				openConnections, 
 				peerBean, 
-				this);
-		serverThread.start();
+				this,
+				dispatchExecutor);
+		if (selectorLoops == null) {
+			serverThread.start();
+		} else {
+			//the thread is not started, the selector loop reads for it
+			try {
+				final int index = Math.floorMod(nextSelectorLoop.getAndIncrement(), selectorLoops.length);
+				selectorLoops[index].register(serverThread);
+			} catch (IOException e) {
+				LOG.debug("could not register {}", listenAddresses, e);
+				datagramChannel.socket().close();
+				return false;
+			}
+		}
 		channelsUDP.put(listenAddresses.getAddress(), serverThread);
 		return true;
 	}
@@ -350,15 +394,18 @@ public final class ChannelTransceiver implements DiscoverNetworkListener {
 		final InetSocketAddress listenAddresses;
 		//final private ByteBuffer buffer = ByteBuffer.allocate(65536);
 		final private ChannelServerConfiguration channelServerConfiguration;
-		final private Map<MessageID, FutureDone<Message>> pendingMessages;
+		final private PendingRequests pendingMessages;
 		final private ConcurrentCacheMap<InetSocketAddress, SctpChannel> openConnections;
 		final private PeerBean peerBean;
 		final private ChannelTransceiver serv;
-		final private byte[] buffer= new byte[65536];
+		final private DispatchExecutor dispatchExecutor;
+		private volatile InetSocketAddress localAddress;
 
 		@Override
 		public void run() {
+			final DatagramPacket packet = new DatagramPacket(new byte[0], 0);
 			while (datagramChannel.isOpen()) {
+				ByteBuf buf = null;
 				try {
 					LOG.debug("listening for incoming packets on {}", datagramChannel.socket().getLocalSocketAddress());
 					
@@ -368,117 +415,208 @@ public final class ChannelTransceiver implements DiscoverNetworkListener {
 					//buffer.flip();
 					//ByteBuf buf = Unpooled.wrappedBuffer(buffer);
 					
-					DatagramPacket packet = new DatagramPacket(buffer, 65536);
+					//the buffer is owned by the worker once handed over, so take a fresh one from the pool
+					buf = PooledByteBufAllocator.DEFAULT.heapBuffer(MAX_PACKET_SIZE, MAX_PACKET_SIZE);
+					packet.setData(buf.array(), buf.arrayOffset(), MAX_PACKET_SIZE);
 					datagramChannel.socket().receive(packet);
 					final InetSocketAddress remote = (InetSocketAddress) packet.getSocketAddress();
-					ByteBuf buf = Unpooled.wrappedBuffer(buffer, 0, packet.getLength());
-					packetCounterReceive.incrementAndGet();
-					//TODO: per channel counter
+					buf.writerIndex(packet.getLength());
 					
-					LOG.debug("got incoming data UDP:"+buf.readableBytes() + " from " + remote);
+					//from here on, the dispatch stage is responsible to release the buffer
+					final ByteBuf received = buf;
+					buf = null;
+					received(remote, received);
+
+				} catch (SocketTimeoutException s) {
+					//pending requests time out on their own, see PendingRequests
+					LOG.debug("nothingt came in...");
 					
-					final ProtocolType type = MessageHeaderCodec.peekProtocolType(buf.getByte(0));
-					if (buf.readableBytes() > 0 && type == ProtocolType.SCTP) {
-						
-						int remotePort = ChannelUtils.localSctpPort(peerBean.serverPeerAddress().ipv4Socket().createUDPSocket());
-						InetSocketAddress remoteSctpSocket = new InetSocketAddress(remote.getAddress(), remotePort);
-						
-						handleSCTP(remoteSctpSocket, buf);
+				} catch (ClosedChannelException e) {
+					LOG.debug("user shut down...");
+				}
+				catch (Throwable e) {
+					LOG.error("error in transceier loop", e);
+				} finally {
+					if (buf != null) {
+						buf.release();
+					}
+				}
+			}
+			LOG.debug("ending loop");
+		}
 
-					} else if (buf.readableBytes() > 0 && type == ProtocolType.UDP) {
+		/**
+		 * Hands over a received packet to the decode and dispatch stage. This
+		 * is called by the receive loop of this thread or by a
+		 * {@link SelectorLoop}. The buffer is released once processed.
+		 */
+		void received(final InetSocketAddress remote, final ByteBuf received) {
+			packetCounterReceive.incrementAndGet();
+			//TODO: per channel counter
+			LOG.debug("got incoming data UDP:"+received.readableBytes() + " from " + remote);
+			
+			if (dispatchExecutor.isInline()) {
+				try {
+					process(remote, received);
+				} catch (Throwable t) {
+					LOG.error("error in transceier loop", t);
+				} finally {
+					received.release();
+				}
+			} else {
+				final ByteBuf queuedBuf = compact(received);
+				final boolean queued = dispatchExecutor.execute(remote, new Runnable() {
+					@Override
+					public void run() {
+						try {
+							process(remote, queuedBuf);
+						} catch (Throwable t) {
+							LOG.error("error in dispatch worker", t);
+						} finally {
+							queuedBuf.release();
+						}
+					}
+				});
+				if (!queued) {
+					queuedBuf.release();
+				}
+			}
+		}
 
-						Message m = decodeMessage(remote, buf);
-						LOG.debug("Message decoded: {}", m);
-						
-						if(m.isAck()) {
-							dispatcher.dispatch(null, m, null, null); //ack, just update peermap
-							LOG.debug("ack received");
-							continue;
-						} else if(m.isRequest()) {
-							 
-							final Promise<SctpChannelFacade, Exception, Void> p;
-							if(m.sctp()) {
-								LOG.debug("got request for SCTP connection");
-								
-								int remotePort = ChannelUtils.localSctpPort(peerBean.serverPeerAddress().ipv4Socket().createUDPSocket());
-								if(m.relayed() && m.target()) {
-									InetSocketAddress remoteUdpSocket;
-									if(!m.peerSocket4AddressList().isEmpty()) {
-										remoteUdpSocket = m.peerSocket4Address(0).createUDPSocket();
-									} else if(!m.peerSocket6AddressList().isEmpty()) {
-										remoteUdpSocket = m.peerSocket6Address(0).createUDPSocket();
-									} else {
-										remoteUdpSocket = null; //TOOD: fail
-									}
-									InetSocketAddress remoteSctpSocket = new InetSocketAddress(remoteUdpSocket.getAddress(), remotePort);
-									int localSctpPort = ChannelUtils.localSctpPort(remoteUdpSocket);
-									p = connectSCTP(openConnections, datagramChannel, remoteSctpSocket, remoteUdpSocket, localSctpPort, m);
-								} else if(!m.relayed()) {
-									InetSocketAddress remoteSctpSocket = new InetSocketAddress(remote.getAddress(), remotePort);
-								
-									int localSctpPort = ChannelUtils.localSctpPort(remote);
-									p = connectSCTP(openConnections, datagramChannel, remoteSctpSocket, remote, localSctpPort, m);
-								} else {
-									p = null;
-								}
-							} else {
-								LOG.debug("no SCTP connection");
-								p = null;
-							}
-							Responder r = createResponder(remote, m);
-							dispatcher.dispatch(r, m, p, this);
-					
+		/**
+		 * The receive buffers are allocated for the largest datagram. A queued
+		 * packet would hold on to all of it, so small packets are copied into a
+		 * buffer of their size and the receive buffer is released.
+		 */
+		private static ByteBuf compact(final ByteBuf received) {
+			final int length = received.readableBytes();
+			if (received.capacity() <= 2 * length) {
+				return received;
+			}
+			try {
+				final ByteBuf copy = PooledByteBufAllocator.DEFAULT.heapBuffer(length, length);
+				copy.writeBytes(received);
+				return copy;
+			} finally {
+				received.release();
+			}
+		}
+
+		DatagramChannel datagramChannel() {
+			return datagramChannel;
+		}
+
+		/**
+		 * Decodes and dispatches one packet. Depending on the
+		 * {@link DispatchExecutor}, this runs on the receive thread or on a
+		 * worker thread.
+		 */
+		private void process(final InetSocketAddress remote, final ByteBuf buf) throws Exception {
+			if (buf.readableBytes() == 0) {
+				return;
+			}
+			final ProtocolType type = MessageHeaderCodec.peekProtocolType(buf.getByte(0));
+			if (type == ProtocolType.BUNDLE) {
+				final int nr = MessageBundler.unbundle(buf, new MessageBundler.MessageHandler() {
+					@Override
+					public void handle(final ByteBuf message) throws Exception {
+						// a bundle only contains UDP messages, never SCTP packets or other bundles
+						if (MessageHeaderCodec.peekProtocolType(message.getByte(message.readerIndex())) == ProtocolType.UDP) {
+							process(remote, message);
 						} else {
-							LOG.debug("peer isVerified: {}, I'm: {}", m.isVerified(), peerBean.serverPeerAddress());
-							if (!m.isVerified()) {
-								sendAck(m);
-							} else {
-								LOG.debug("no need for sending ACK");
-							}
-							
-							LOG.debug("looking for message with id {}, I'm {}", new MessageID(m), peerBean.serverPeerAddress());
-							FutureDone<Message> currentFuture = pendingMessages.remove(new MessageID(m));
+							LOG.warn("ignoring non UDP message in bundle from {}", remote);
+						}
+					}
+				});
+				LOG.debug("got a bundle with {} messages from {}", nr, remote);
+			} else if (type == ProtocolType.FRAGMENT) {
+				final ByteBuf message = serv.messageFragmenter.received(remote, buf);
+				if (message != null) {
+					try {
+						if (MessageHeaderCodec.peekProtocolType(message.getByte(message.readerIndex())) == ProtocolType.UDP) {
+							process(remote, message);
+						} else {
+							LOG.warn("ignoring non UDP message in fragments from {}", remote);
+						}
+					} finally {
+						message.release();
+					}
+				}
+			} else if (type == ProtocolType.SCTP) {
+				
+				int remotePort = ChannelUtils.localSctpPort(peerBean.serverPeerAddress().ipv4Socket().createUDPSocket());
+				InetSocketAddress remoteSctpSocket = new InetSocketAddress(remote.getAddress(), remotePort);
+				
+				handleSCTP(remoteSctpSocket, buf);
+
+			} else if (type == ProtocolType.UDP) {
+
+				Message m = decodeMessage(remote, buf);
+				LOG.debug("Message decoded: {}", m);
+				
+				if(m.isAck()) {
+					dispatcher.dispatch(null, m, null, null); //ack, just update peermap
+					LOG.debug("ack received");
+				} else if(m.isRequest()) {
+					 
+					final Promise<SctpChannelFacade, Exception, Void> p;
+					if(m.sctp()) {
+						LOG.debug("got request for SCTP connection");
 						
-							if(currentFuture != null) {
-								LOG.debug("message removed: {}",m);
-								currentFuture.done(m);
+						int remotePort = ChannelUtils.localSctpPort(peerBean.serverPeerAddress().ipv4Socket().createUDPSocket());
+						if(m.relayed() && m.target()) {
+							InetSocketAddress remoteUdpSocket;
+							if(!m.peerSocket4AddressList().isEmpty()) {
+								remoteUdpSocket = m.peerSocket4Address(0).createUDPSocket();
+							} else if(!m.peerSocket6AddressList().isEmpty()) {
+								remoteUdpSocket = m.peerSocket6Address(0).createUDPSocket();
 							} else {
-								LOG.warn("got response message without sending a request, ignoring... {}", m);
+								remoteUdpSocket = null; //TOOD: fail
 							}
+							InetSocketAddress remoteSctpSocket = new InetSocketAddress(remoteUdpSocket.getAddress(), remotePort);
+							int localSctpPort = ChannelUtils.localSctpPort(remoteUdpSocket);
+							p = connectSCTP(openConnections, datagramChannel, remoteSctpSocket, remoteUdpSocket, localSctpPort, m);
+						} else if(!m.relayed()) {
+							InetSocketAddress remoteSctpSocket = new InetSocketAddress(remote.getAddress(), remotePort);
+						
+							int localSctpPort = ChannelUtils.localSctpPort(remote);
+							p = connectSCTP(openConnections, datagramChannel, remoteSctpSocket, remote, localSctpPort, m);
+						} else {
+							p = null;
 						}
+					} else {
+						LOG.debug("no SCTP connection");
+						p = null;
 					}
-
-				} catch (SocketTimeoutException s) {
-					LOG.debug("nothingt came in...");
-					//fail all pending messages. TODO: this should be made separate
-					for(FutureDone<Message> future: pendingMessages.values()) {
-						future.failed("timeout");
+					Responder r = createResponder(remote, m);
+					dispatcher.dispatch(r, m, p, this);
+			
+				} else {
+					LOG.debug("peer isVerified: {}, I'm: {}", m.isVerified(), peerBean.serverPeerAddress());
+					if (!m.isVerified()) {
+						sendAck(m);
+					} else {
+						LOG.debug("no need for sending ACK");
 					}
-					pendingMessages.clear();
 					
-				} catch (ClosedChannelException e) {
-					LOG.debug("user shut down...");
-					for(FutureDone<Message> future: pendingMessages.values()) {
-						future.failed("user closed connection");
-					}
-					pendingMessages.clear();
-				}
-				catch (Throwable e) {
-					LOG.error("error in transceier loop", e);
-					for(FutureDone<Message> future: pendingMessages.values()) {
-						future.failed("error", e);
+					LOG.debug("looking for message with id {}, I'm {}", new MessageID(m), peerBean.serverPeerAddress());
+					FutureDone<Message> currentFuture = pendingMessages.remove(new MessageID(m));
+				
+					if(currentFuture != null) {
+						LOG.debug("message removed: {}",m);
+						currentFuture.done(m);
+					} else {
+						LOG.warn("got response message without sending a request, ignoring... {}", m);
 					}
-					pendingMessages.clear();
 				}
 			}
-			LOG.debug("ending loop");
 		}
 
 		private void sendAck(Message m) throws InvalidKeyException, SignatureException, IOException {
 			Message ackMessage = DispatchHandler.createAckMessage(m, Type.ACK, peerBean.serverPeerAddress());
 			//PeerAddress recipientAddress = m.recipient();
 			PeerAddress recipientAddress = peerBean.serverPeerAddress();
-			sendNetwork(datagramChannel, m.senderSocket(), ackMessage);
+			serv.sendNetwork(datagramChannel, m.senderSocket(), ackMessage);
 		}
 
 		private Responder createResponder(final InetSocketAddress remote, Message m) {
@@ -494,7 +632,7 @@ public final class ChannelTransceiver implements DiscoverNetworkListener {
 							LOG.debug("peer is unknown, request an ack: {}", m);
 						}
 						try {
-							sendNetwork(datagramChannel, remote, responseMessage);
+							serv.sendNetwork(datagramChannel, remote, responseMessage);
 						} catch (Exception e) {
 							// TODO Auto-generated catch block
 							e.printStackTrace();
@@ -514,15 +652,20 @@ public final class ChannelTransceiver implements DiscoverNetworkListener {
 		}
 
 		private Message decodeMessage(final InetSocketAddress remote, ByteBuf buf) {
-			DatagramSocket s = datagramChannel.socket();
-			InetSocketAddress local = new InetSocketAddress(s.getLocalAddress(), s.getLocalPort());
+			InetSocketAddress local = localAddress;
+			if (local == null) {
+				DatagramSocket s = datagramChannel.socket();
+				local = new InetSocketAddress(s.getLocalAddress(), s.getLocalPort());
+				localAddress = local;
+			}
 
-			Decoder decoder = new Decoder(new DSASignatureFactory());
+			//the decoder of this thread, it is reset by prepareFinish
+			Decoder decoder = serv.codecPool.decoder();
 			boolean finished = decoder.decode(buf, local, remote);
 			if (!finished) {
 				LOG.error("expecting always full packets!");
 			}
-			Message m = decoder.message();
+			Message m = decoder.prepareFinish();
 			return m;
 		}
 		
@@ -624,6 +767,14 @@ public final class ChannelTransceiver implements DiscoverNetworkListener {
 				}
 			}
 		}
+		if (selectorLoops != null) {
+			for (SelectorLoop selectorLoop : selectorLoops) {
+				selectorLoop.shutdown();
+			}
+		}
+		pendingMessages.shutdown();
+		dispatchExecutor.shutdown();
+		messageFragmenter.shutdown();
 		shutdownFuture().done();
 		return shutdownFuture();
 	}
@@ -641,12 +792,43 @@ public final class ChannelTransceiver implements DiscoverNetworkListener {
 		return send(message, sendingDatagramChannel);
 	}
 	
-	
+	/**
+	 * Sends a message with the timeout of the configuration for its command.
+	 * 
+	 * @param message
+	 *            The message to send
+	 * @param configuration
+	 *            The client-side configuration, may be null to use the default timeout
+	 * @return The future of the response and of the SCTP connection
+	 */
+	public Pair<FutureDone<Message>, FutureDone<SctpChannelFacade>> sendUDP(Message message, ConnectionConfiguration configuration) {
+		final int timeoutMillis = configuration == null ? -1 : configuration.requestTimeoutMillis(message.command());
+		return send(message, sendingDatagramChannel, timeoutMillis);
+	}
 	
 	public Pair<FutureDone<Message>, FutureDone<SctpChannelFacade>> send(Message message, DatagramChannel datagramChannel) {
+		return send(message, datagramChannel, -1);
+	}
+	
+	/**
+	 * Sends a message and, if its not an ack, waits for the response.
+	 * 
+	 * @param message
+	 *            The message to send
+	 * @param datagramChannel
+	 *            The channel to send the message with
+	 * @param requestTimeoutMillis
+	 *            The time to wait for a response, -1 for the default of the server
+	 * @return The future of the response and of the SCTP connection
+	 */
+	public Pair<FutureDone<Message>, FutureDone<SctpChannelFacade>> send(Message message, DatagramChannel datagramChannel,
+			int requestTimeoutMillis) {
 		
-		FutureDone<Message> futureMessage = new FutureDone<Message>();
+		final FutureDone<Message> futureMessage = new FutureDone<Message>();
 		FutureDone<SctpChannelFacade> futureSCTP = new FutureDone<>();
+		// the response is completed on the receive thread, keep user code off it
+		futureMessage.listenerExecutor(channelServerConfiguration.listenerExecutor());
+		futureSCTP.listenerExecutor(channelServerConfiguration.listenerExecutor());
 		
 		InetSocketAddress recipient = findRecipient(message);
 		InetSocketAddress firewalledRecipientSocket = recipient;
@@ -702,16 +884,34 @@ public final class ChannelTransceiver implements DiscoverNetworkListener {
 			}
 		}
 		
+		// if we send an ack, don't expect any incoming packets
+		final MessageID messageId = message.isAck() ? null : new MessageID(message);
 		try {
-			sendNetwork(datagramChannel, recipient, message);
-			// if we send an ack, don't expect any incoming packets
-			if (!message.isAck()) {
-				LOG.debug("pending message add: {} with id {}", message, new MessageID(message));
-				pendingMessages.put(new MessageID(message), futureMessage);
+			if (messageId != null) {
+				// register before sending, the response may be dispatched before send returns
+				final int timeoutMillis = requestTimeoutMillis > 0 ? requestTimeoutMillis : channelServerConfiguration.idleUDPMillis();
+				LOG.debug("pending message add: {} with id {}, timeout {}ms", message, messageId, timeoutMillis);
+				if (!pendingMessages.put(messageId, futureMessage, timeoutMillis)) {
+					//overloaded or shut down, the future has failed already
+					return Pair.create(futureMessage, futureSCTP);
+				}
 				LOG.debug("we have the following pending messages: {}", pendingMessages.keySet()); 
 			}
+			sendNetwork(datagramChannel, recipient, message, new MessageBundler.FailureListener() {
+				@Override
+				public void failed(final IOException e) {
+					//the bundle with this message was lost, don't wait for the timeout
+					if (messageId != null) {
+						pendingMessages.remove(messageId);
+					}
+					futureMessage.failed(e);
+				}
+			});
 		} catch (Throwable t) {
 			LOG.error("could not send", t);
+			if (messageId != null) {
+				pendingMessages.remove(messageId);
+			}
 			futureMessage.failed(t);
 		}
 		
@@ -779,17 +979,57 @@ public final class ChannelTransceiver implements DiscoverNetworkListener {
 		LOG.debug("SCTP init was requested, remote ({}): local: {}", recipientSctp, localSctpPort);
 	}
 	
-	private static void sendNetwork(DatagramChannel datagramChannel, final InetSocketAddress remote, Message m2)
+	private void sendNetwork(DatagramChannel datagramChannel, final InetSocketAddress remote, Message m2)
 			throws InvalidKeyException, SignatureException, IOException {
+		sendNetwork(datagramChannel, remote, m2, null);
+	}
+	
+	/**
+	 * Encodes and sends a message. Errors that happen on this thread are thrown, the listener is
+	 * called if a bundle with this message could not be sent later on.
+	 */
+	private void sendNetwork(DatagramChannel datagramChannel, final InetSocketAddress remote, Message m2,
+			MessageBundler.FailureListener listener) throws InvalidKeyException, SignatureException, IOException {
 		LOG.debug("peer isVerified: {}", m2.isVerified());
 
-		CompositeByteBuf buf2 = Unpooled.compositeBuffer();
-		Encoder encoder = new Encoder(new DSASignatureFactory());
-		encoder.write(buf2, m2, null);
-		packetCounterSend.incrementAndGet();
-				
-		LOG.debug("server out UDP {}: {} to {}", m2, ByteBufUtil.prettyHexDump(buf2), remote);
-		
-		datagramChannel.send(ChannelUtils.convert(buf2), remote);
+		//one contiguous pooled direct buffer, so the channel can send it without copying it first
+		final int fragmentMtu = channelServerConfiguration.fragmentMtu();
+		ByteBuf buf2 = fragmentMtu > 0 ? codecPool.packetBuffer(channelServerConfiguration.maxFragmentedMessageSize())
+				: codecPool.packetBuffer();
+		try {
+			Encoder encoder = codecPool.encoder();
+			encoder.write(buf2, m2, null);
+			packetCounterSend.incrementAndGet();
+			
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("server out UDP {}: {} to {}", m2, ByteBufUtil.prettyHexDump(buf2), remote);
+			}
+			
+			if (fragmentMtu > 0 && buf2.readableBytes() > fragmentMtu) {
+				final int nr = MessageFragmenter.send(datagramChannel, remote, m2.messageId(), buf2, fragmentMtu,
+						codecPool.allocator());
+				LOG.debug("sent message {} in {} fragments", m2, nr);
+				return;
+			}
+			
+			if (messageBundler != null) {
+				//the bundler releases the buffer once sent
+				final ByteBuf encoded = buf2;
+				buf2 = null;
+				messageBundler.send(datagramChannel, remote, encoded, listener);
+				return;
+			}
+			
+			final ByteBuffer out = ChannelUtils.convert(buf2);
+			final int length = out.remaining();
+			if (datagramChannel.send(out, remote) != length) {
+				//only happens in non-blocking mode if the send buffer is full
+				throw new IOException("send buffer full, could not send " + length + " bytes to " + remote);
+			}
+		} finally {
+			if (buf2 != null) {
+				buf2.release();
+			}
+		}
 	}
 }
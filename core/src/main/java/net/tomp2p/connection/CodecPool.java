@@ -0,0 +1,116 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.connection;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import net.tomp2p.message.Decoder;
+import net.tomp2p.message.Encoder;
+
+/**
+ * Reusable {@link Encoder} and {@link Decoder} instances, one per thread, and
+ * the pooled buffers for outgoing packets. An encoder and a decoder are only
+ * used for one message at a time, so a thread can reuse them as long as the
+ * decoder is reset with {@link Decoder#prepareFinish()} after each message.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class CodecPool {
+
+	/**
+	 * Most packets are smaller than this. Larger packets grow the buffer.
+	 */
+	public static final int INITIAL_PACKET_CAPACITY = 2048;
+
+	private final SignatureFactory signatureFactory;
+	private final ByteBufAllocator allocator;
+
+	private final ThreadLocal<Encoder> encoders = new ThreadLocal<Encoder>() {
+		@Override
+		protected Encoder initialValue() {
+			return new Encoder(signatureFactory);
+		}
+	};
+
+	private final ThreadLocal<Decoder> decoders = new ThreadLocal<Decoder>() {
+		@Override
+		protected Decoder initialValue() {
+			return new Decoder(signatureFactory);
+		}
+	};
+
+	/**
+	 * @param signatureFactory
+	 *            The signature factory for all encoders and decoders. It must be
+	 *            thread-safe.
+	 */
+	public CodecPool(final SignatureFactory signatureFactory) {
+		this(signatureFactory, PooledByteBufAllocator.DEFAULT);
+	}
+
+	public CodecPool(final SignatureFactory signatureFactory, final ByteBufAllocator allocator) {
+		this.signatureFactory = signatureFactory;
+		this.allocator = allocator;
+	}
+
+	/**
+	 * @return The encoder of the calling thread
+	 */
+	public Encoder encoder() {
+		return encoders.get();
+	}
+
+	/**
+	 * @return The decoder of the calling thread, reset it with
+	 *         {@link Decoder#prepareFinish()} once the message is decoded
+	 */
+	public Decoder decoder() {
+		return decoders.get();
+	}
+
+	/**
+	 * @return A pooled direct buffer for an outgoing packet, the caller must
+	 *         release it after sending
+	 */
+	public ByteBuf packetBuffer() {
+		return packetBuffer(ChannelTransceiver.MAX_PACKET_SIZE);
+	}
+
+	/**
+	 * @param maxCapacity
+	 *            The maximum size of the message, larger than a packet if the
+	 *            message is fragmented
+	 * @return A pooled direct buffer for an outgoing message, the caller must
+	 *         release it after sending
+	 */
+	public ByteBuf packetBuffer(final int maxCapacity) {
+		return allocator.directBuffer(INITIAL_PACKET_CAPACITY, maxCapacity);
+	}
+
+	/**
+	 * @return The allocator of the outgoing packets
+	 */
+	public ByteBufAllocator allocator() {
+		return allocator;
+	}
+
+	public SignatureFactory signatureFactory() {
+		return signatureFactory;
+	}
+}
@@ -6,4 +6,12 @@ public interface ConnectionConfiguration {
 	boolean sign();
 	boolean sctp();
 	KeyPair keyPair();
-}
\ No newline at end of file
+	
+	/**
+	 * @param command
+	 *            The command of the request, see {@link net.tomp2p.rpc.RPC.Commands}
+	 * @return The time in milliseconds to wait for a response to a request with
+	 *         this command, or -1 to use the default of the server
+	 */
+	int requestTimeoutMillis(int command);
+}
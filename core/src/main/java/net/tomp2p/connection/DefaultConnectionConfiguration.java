@@ -17,11 +17,14 @@
 package net.tomp2p.connection;
 
 import java.security.KeyPair;
+import java.util.HashMap;
+import java.util.Map;
 
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
 import lombok.experimental.Accessors;
+import net.tomp2p.rpc.RPC.Commands;
 
 /**
  * The connection configuration with the default settings.
@@ -36,4 +39,47 @@ public class DefaultConnectionConfiguration implements ConnectionConfiguration {
     @Getter @Setter private boolean sign = false;
     @Getter @Setter private boolean sctp = false;
     @Getter @Setter private KeyPair keyPair = null;
+    
+    private int requestTimeoutMillis = -1;
+    private Map<Integer, Integer> commandTimeoutMillis = null;
+    
+    /**
+     * Sets the time to wait for a response for all commands that have no timeout of their own.
+     * 
+     * @param requestTimeoutMillis
+     *            The timeout in milliseconds, -1 to use the default of the server
+     * @return This class
+     */
+    public DefaultConnectionConfiguration requestTimeoutMillis(final int requestTimeoutMillis) {
+    	this.requestTimeoutMillis = requestTimeoutMillis;
+    	return this;
+    }
+    
+    /**
+     * Sets the time to wait for a response for one command.
+     * 
+     * @param command
+     *            The command of the request
+     * @param requestTimeoutMillis
+     *            The timeout in milliseconds, -1 to use the default of the server
+     * @return This class
+     */
+    public DefaultConnectionConfiguration requestTimeoutMillis(final Commands command, final int requestTimeoutMillis) {
+    	if (commandTimeoutMillis == null) {
+    		commandTimeoutMillis = new HashMap<Integer, Integer>();
+    	}
+    	commandTimeoutMillis.put(Integer.valueOf(command.getNr()), Integer.valueOf(requestTimeoutMillis));
+    	return this;
+    }
+    
+    @Override
+    public int requestTimeoutMillis(final int command) {
+    	if (commandTimeoutMillis != null) {
+    		final Integer timeout = commandTimeoutMillis.get(Integer.valueOf(command));
+    		if (timeout != null) {
+    			return timeout.intValue();
+    		}
+    	}
+    	return requestTimeoutMillis;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.connection;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The decode and dispatch stage of the UDP receive pipeline. The receive loop
+ * only reads packets from the socket and hands them over to this executor. Each
+ * worker is a single thread with its own queue and a sender is always mapped to
+ * the same worker, thus packets of one sender (e.g. SCTP packets of one
+ * association) are processed in the order they arrived, while packets of
+ * different senders are processed in parallel.
+ * <p>
+ * With zero workers, the task is run on the calling thread, which is the
+ * behavior of the single threaded receive loop.
+ * </p>
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class DispatchExecutor {
+
+	private static final Logger LOG = LoggerFactory.getLogger(DispatchExecutor.class);
+
+	private static final AtomicInteger POOL_COUNTER = new AtomicInteger();
+
+	private final ExecutorService[] workers;
+
+	/**
+	 * Creates the worker threads.
+	 *
+	 * @param nrWorkers
+	 *            The number of worker threads, 0 means the tasks are run inline
+	 * @param queueSize
+	 *            The maximum number of packets that can wait in the queue of
+	 *            one worker
+	 */
+	public DispatchExecutor(final int nrWorkers, final int queueSize) {
+		if (nrWorkers < 0) {
+			throw new IllegalArgumentException("number of workers cannot be negative");
+		}
+		this.workers = new ExecutorService[nrWorkers];
+		final int pool = POOL_COUNTER.incrementAndGet();
+		for (int i = 0; i < nrWorkers; i++) {
+			final String name = "TomP2P dispatch-" + pool + "-" + i;
+			workers[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+						@Override
+						public Thread newThread(final Runnable runnable) {
+							final Thread thread = new Thread(runnable, name);
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+	}
+
+	/**
+	 * @return True if the tasks are run on the calling thread
+	 */
+	public boolean isInline() {
+		return workers.length == 0;
+	}
+
+	/**
+	 * Runs the task on the worker that is responsible for the sender.
+	 *
+	 * @param sender
+	 *            The sender of the packet, used to select the worker
+	 * @param task
+	 *            The decode and dispatch task
+	 * @return False if the task could not be queued, as the worker is overloaded
+	 *         or shut down. In that case the caller still owns the resources of
+	 *         the task.
+	 */
+	public boolean execute(final InetSocketAddress sender, final Runnable task) {
+		if (isInline()) {
+			task.run();
+			return true;
+		}
+		final int index = (sender.hashCode() & Integer.MAX_VALUE) % workers.length;
+		try {
+			workers[index].execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			LOG.warn("dispatch worker {} is overloaded, dropping packet from {}", index, sender);
+			return false;
+		}
+	}
+
+	/**
+	 * Stops all workers. Packets that are already queued are still processed.
+	 */
+	public void shutdown() {
+		for (ExecutorService worker : workers) {
+			worker.shutdown();
+		}
+	}
+}
@@ -17,17 +17,9 @@ package net.tomp2p.connection;
 
 import java.io.IOException;
 import java.nio.channels.DatagramChannel;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.SortedMap;
-import java.util.TreeMap;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import net.sctp4nat.core.SctpChannelFacade;
 import net.tomp2p.connection.PeerException.AbortCause;
@@ -38,7 +30,6 @@ import net.tomp2p.message.Message.Type;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number320;
 import net.tomp2p.peers.PeerAddress;
-import net.tomp2p.peers.PeerStatusListener;
 import net.tomp2p.rpc.DispatchHandler;
 import net.tomp2p.rpc.RPC;
 import net.tomp2p.rpc.RPC.Commands;
@@ -63,11 +54,10 @@ public class Dispatcher {
     private final int p2pID;
     private final PeerBean peerBeanMaster;
 
-    //use locks instead copy on write as testcases became really slow
-    final private ReentrantReadWriteLock reentrantReadWriteLock = new ReentrantReadWriteLock();
-    final private Lock readLock = reentrantReadWriteLock.readLock();
-    final private Lock writeLock = reentrantReadWriteLock.writeLock();
-    final private SortedMap<Number320, Map<Integer, DispatchHandler>> ioHandlers = new TreeMap<Number320, Map<Integer, DispatchHandler>>();
+    // copy on write, rebuilt only if handlers are registered or removed, the
+    // dispatch reads the current registry without locking
+    private final Object registryLock = new Object();
+    private volatile Registry registry = Registry.EMPTY;
     
 	/**
 	 * Map that stores requests that are not answered yet. Normally, the {@link RequestHandler} handles
@@ -113,20 +103,28 @@ public class Dispatcher {
      *            will receive these messages!
      */
     public void registerIoHandler(final Number160 peerId, final Number160 onBehalfOf, final DispatchHandler ioHandler, final int... names) {
-    	writeLock.lock();
-    	try {
-    		Map<Integer, DispatchHandler> types = ioHandlers.get(new Number320(peerId, onBehalfOf));
-    		if (types == null) {
-    			types = new HashMap<Integer, DispatchHandler>();
-    			ioHandlers.put(new Number320(peerId, onBehalfOf), types);
+    	for (final int name : names) {
+    		if (name < Byte.MIN_VALUE || name > 0xff) {
+    			throw new IllegalArgumentException("A command is one byte, got " + name);
     		}
-    		for (Integer name : names) {
-    			types.put(name, ioHandler);
+    	}
+    	synchronized (registryLock) {
+    		final Handlers old = registry.search(peerId, onBehalfOf);
+    		int length = old == null ? 0 : old.types.length;
+    		for (final int name : names) {
+    			length = Math.max(length, (name & 0xff) + 1);
+    		}
+    		final Handlers handlers = new Handlers(length);
+    		if (old != null) {
+    			System.arraycopy(old.types, 0, handlers.types, 0, old.types.length);
+    			System.arraycopy(old.names, 0, handlers.names, 0, old.names.length);
+    		}
+    		for (final int name : names) {
+    			handlers.types[name & 0xff] = ioHandler;
+    			handlers.names[name & 0xff] = name;
     		}
-    	} finally {
-    		writeLock.unlock();
+    		registry = registry.put(peerId, onBehalfOf, handlers);
     	}
-        
     }
 
     /**
@@ -138,22 +136,14 @@ public class Dispatcher {
      * 			  The ioHandler can be registered for the own use in behalf of another peer (e.g. in case of relay node).
      */
     public void removeIoHandler(final Number160 peerId, final Number160 onBehalfOf) {
-        writeLock.lock();
-    	try {
-    		ioHandlers.remove(new Number320(peerId, onBehalfOf));
-    	}  finally {
-    		writeLock.unlock();
+    	synchronized (registryLock) {
+    		registry = registry.remove(peerId, onBehalfOf);
     	}
     }
     
     public void removeIoHandler(final Number160 peerId) {
-    	writeLock.lock();
-    	try {
-    		Number320 min = new Number320(peerId, Number160.ZERO); 
-    		Number320 max = new Number320(peerId, Number160.MAX_VALUE);
-    		ioHandlers.subMap(min, max).clear();
-    	}  finally {
-    		writeLock.unlock();
+    	synchronized (registryLock) {
+    		registry = registry.remove(peerId);
     	}
     }
 
@@ -170,11 +160,7 @@ public class Dispatcher {
         if (message.version() != p2pID) {
             LOG.error("Wrong version. We are looking for {}, but we got {}. Received: {}.", p2pID,
                     message.version(), message);
-            synchronized (peerBeanMaster.peerStatusListeners()) {
-            	for (PeerStatusListener peerStatusListener : peerBeanMaster.peerStatusListeners()) {
-                   peerStatusListener.peerFailed(message.sender(), new PeerException(AbortCause.PEER_ERROR, "Wrong P2P version."));
-            	}
-            }
+            peerBeanMaster.notifyPeerFailed(message.sender(), new PeerException(AbortCause.PEER_ERROR, "Wrong P2P version."));
             return;
         }
         
@@ -199,28 +185,20 @@ public class Dispatcher {
     }
     
     /**
-     * This is rather a slow operation, but it is only called when log level set to warning
+     * Only called when log level set to warning
      */
     private void printWarnMessage(Message message) {
-    	final Collection<Integer> knownCommands = new HashSet<Integer>();
-    	
-    	readLock.lock();
-    	try {
-    		for(final Map.Entry<Number320, Map<Integer, DispatchHandler>> entry:ioHandlers.entrySet()) {
-    			knownCommands.addAll(entry.getValue().keySet());
-    		}
-    	} finally {
-    		readLock.unlock();
-    	}
-    	
-    	if(!knownCommands.contains(Integer.valueOf(message.command()))) {
+    	final Registry current = registry;
+    	if(!current.isKnown(message.command())) {
     		StringBuilder sb = new StringBuilder("known cmds");
-    		for(Integer integer:knownCommands) {
-    			sb.append(", ").append(Commands.find(integer.intValue()));
+    		for (int i = 0; i < current.commandCounts.length; i++) {
+    			if (current.commandCounts[i] > 0) {
+    				sb.append(", ").append(i < Commands.values().length ? Commands.find(i) : Integer.valueOf(i));
+    			}
     		}
     		LOG.warn("No handler found for {}. Did you register the RPC command {}? I have {}.", 
         		message, Commands.find(message.command()), sb);
-    	} else if(knownCommands.isEmpty()) {
+    	} else if(current.handlers.isEmpty()) {
     		LOG.debug("No handler found for {}. Probably we have shutdown this peer.", message);
     	}
     	else {
@@ -268,17 +246,7 @@ public class Dispatcher {
 	
 	//not relaying
 	public boolean isPrimaryTarget(final Number160 recipientID) {
-		readLock.lock();
-		final Map<Integer, DispatchHandler> ioHandlers;
-		try {
-			ioHandlers = search(recipientID, recipientID);
-		} finally {
-			readLock.unlock();
-		}
-		if(ioHandlers == null) {
-			return false;
-		}
-		return true;
+		return registry.search(recipientID, recipientID) != null;
 	}
 
     /**
@@ -293,21 +261,16 @@ public class Dispatcher {
      * @return The handler for the provided parameters or null, if none has been found.
      */
     public DispatchHandler searchHandler(final Number160 recipientID, final Number160 onBehalfOf, final int cmd) {
-		final Integer command = Integer.valueOf(cmd);
-		readLock.lock();
-		try {
-			final Map<Integer, DispatchHandler> types = search(recipientID, onBehalfOf);
-			if (types != null && types.containsKey(command)) {
-				return types.get(command);
-			} else {
-				// not registered
-				LOG.debug(
-						"Handler not found for type {} we are looking for the server with ID {} on behalf of {}",
-						RPC.Commands.values()[command], recipientID, onBehalfOf);
-				return null;
-			}
-		} finally {
-			readLock.unlock();
+		final Handlers handlers = registry.search(recipientID, onBehalfOf);
+		final int index = cmd & 0xff;
+		if (handlers != null && index < handlers.types.length && handlers.types[index] != null) {
+			return handlers.types[index];
+		} else {
+			// not registered
+			LOG.debug(
+					"Handler not found for type {} we are looking for the server with ID {} on behalf of {}",
+					cmd, recipientID, onBehalfOf);
+			return null;
 		}
     }
     
@@ -317,69 +280,150 @@ public class Dispatcher {
      * @return
      */
     public Map<Number320, DispatchHandler> searchHandler(final Integer command) {
-		readLock.lock();
-		try {
-			Map<Number320, DispatchHandler> result = new HashMap<Number320, DispatchHandler>();
-			for (Map.Entry<Number320, Map<Integer, DispatchHandler>> entry : ioHandlers.entrySet()) {
-				for (Map.Entry<Integer, DispatchHandler> entry2 : entry.getValue().entrySet()) {
-					DispatchHandler handler = entry.getValue().get(command);
-					if (handler != null && entry2.getKey().equals(command)) {
-						result.put(entry.getKey(), handler);
-					}
+		final Map<Number320, DispatchHandler> result = new HashMap<Number320, DispatchHandler>();
+		final int index = command.intValue() & 0xff;
+		for (final Map.Entry<Number160, Map<Number160, Handlers>> entry : registry.handlers.entrySet()) {
+			for (final Map.Entry<Number160, Handlers> entry2 : entry.getValue().entrySet()) {
+				final DispatchHandler[] types = entry2.getValue().types;
+				if (index < types.length && types[index] != null) {
+					result.put(new Number320(entry.getKey(), entry2.getKey()), types[index]);
 				}
 			}
-			return result;
-		} finally {
-			readLock.unlock();
 		}
+		return result;
     }
     
 	@SuppressWarnings("unchecked")
 	public <T> T searchHandler(Class<T> clazz, Number160 peerID, Number160 peerId2) {
-		readLock.lock();
-		try {
-			final Map<Integer, DispatchHandler> ioHandlers = search(peerID, peerId2);
-			if(ioHandlers == null) {
-				return null;
-			}
-			for (DispatchHandler handler : ioHandlers.values()) {
-				if (clazz.isInstance(handler)) {
-					return (T) handler;
-				}
-			}
+		final Handlers handlers = registry.search(peerID, peerId2);
+		if(handlers == null) {
 			return null;
-		} finally {
-			readLock.unlock();
 		}
+		for (DispatchHandler handler : handlers.types) {
+			if (clazz.isInstance(handler)) {
+				return (T) handler;
+			}
+		}
+		return null;
 	}
 	
+	/**
+	 * @return The handlers of a peer by the commands as they were registered
+	 */
 	public Map<Integer, DispatchHandler> searchHandler(Number160 peerId, Number160 onBehalfOf) {
-		readLock.lock();
-		try {
-			return new HashMap<Integer, DispatchHandler>(ioHandlers.get(new Number320(peerId, onBehalfOf)));
-		} finally {
-			readLock.unlock();
+		final Map<Integer, DispatchHandler> result = new HashMap<Integer, DispatchHandler>();
+		final Handlers handlers = registry.search(peerId, onBehalfOf);
+		if (handlers != null) {
+			for (int i = 0; i < handlers.types.length; i++) {
+				if (handlers.types[i] != null) {
+					result.put(handlers.names[i], handlers.types[i]);
+				}
+			}
 		}
+		return result;
 	}
 
-    /**
-     * 
-     * @param peerId
-     * 			  The id of the peer the get the dispatcher map
-     * @param onBehalfOf
-     * 			  The ioHandler can be registered for the own use of in behalf of another peer (e.g. in case of relay node).
-     * @return the map containing all dispatchers for each {@link Commands} type
-     */
-	private Map<Integer, DispatchHandler> search(Number160 peerId, Number160 onBehalfOf) {
-		return ioHandlers.get(new Number320(peerId, onBehalfOf));
+	public boolean responsibleFor(Number160 peerId) {
+		return registry.search(peerId, peerId) != null;
 	}
 
-	public boolean responsibleFor(Number160 peerId) {
-		readLock.lock();
-    	try {
-    		return ioHandlers.containsKey(new Number320(peerId, peerId));
-    	} finally {
-    		readLock.unlock();
-    	}
+	/**
+	 * The handlers of one peer, indexed by the command as an unsigned byte. The
+	 * command is also kept as it was registered, as a command above 127 may be
+	 * registered as a negative byte or as a positive int. Not modified once it
+	 * is in a registry.
+	 */
+	private static final class Handlers {
+		private final DispatchHandler[] types;
+		private final int[] names;
+
+		private Handlers(final int length) {
+			this.types = new DispatchHandler[length];
+			this.names = new int[length];
+		}
+	}
+
+	/**
+	 * An immutable snapshot of the registered handlers. The handlers are found by
+	 * the peer ID, then by the ID of the peer on whose behalf they are
+	 * registered, and then by the command as the index of an array.
+	 */
+	private static final class Registry {
+		private static final Registry EMPTY = new Registry(
+				Collections.<Number160, Map<Number160, Handlers>> emptyMap(), new int[256]);
+
+		private final Map<Number160, Map<Number160, Handlers>> handlers;
+		// the number of handler arrays with each command, only used for the
+		// log, updated with the changed arrays instead of a scan of all of them
+		private final int[] commandCounts;
+
+		private Registry(final Map<Number160, Map<Number160, Handlers>> handlers, final int[] commandCounts) {
+			this.handlers = handlers;
+			this.commandCounts = commandCounts;
+		}
+
+		private Handlers search(final Number160 peerId, final Number160 onBehalfOf) {
+			final Map<Number160, Handlers> onBehalfOfs = handlers.get(peerId);
+			return onBehalfOfs == null ? null : onBehalfOfs.get(onBehalfOf);
+		}
+
+		private boolean isKnown(final int command) {
+			return commandCounts[command & 0xff] > 0;
+		}
+
+		private static void count(final int[] commandCounts, final Handlers changed, final int delta) {
+			if (changed == null) {
+				return;
+			}
+			for (int i = 0; i < changed.types.length; i++) {
+				if (changed.types[i] != null) {
+					commandCounts[i] += delta;
+				}
+			}
+		}
+
+		private Registry put(final Number160 peerId, final Number160 onBehalfOf, final Handlers types) {
+			final Map<Number160, Map<Number160, Handlers>> copy = new HashMap<Number160, Map<Number160, Handlers>>(
+					handlers);
+			final Map<Number160, Handlers> old = handlers.get(peerId);
+			final Map<Number160, Handlers> onBehalfOfs = old == null ? new HashMap<Number160, Handlers>()
+					: new HashMap<Number160, Handlers>(old);
+			final int[] counts = commandCounts.clone();
+			count(counts, onBehalfOfs.put(onBehalfOf, types), -1);
+			count(counts, types, 1);
+			copy.put(peerId, onBehalfOfs);
+			return new Registry(copy, counts);
+		}
+
+		private Registry remove(final Number160 peerId, final Number160 onBehalfOf) {
+			final Map<Number160, Handlers> old = handlers.get(peerId);
+			if (old == null || !old.containsKey(onBehalfOf)) {
+				return this;
+			}
+			final Map<Number160, Map<Number160, Handlers>> copy = new HashMap<Number160, Map<Number160, Handlers>>(
+					handlers);
+			final Map<Number160, Handlers> onBehalfOfs = new HashMap<Number160, Handlers>(old);
+			final int[] counts = commandCounts.clone();
+			count(counts, onBehalfOfs.remove(onBehalfOf), -1);
+			if (onBehalfOfs.isEmpty()) {
+				copy.remove(peerId);
+			} else {
+				copy.put(peerId, onBehalfOfs);
+			}
+			return new Registry(copy, counts);
+		}
+
+		private Registry remove(final Number160 peerId) {
+			if (!handlers.containsKey(peerId)) {
+				return this;
+			}
+			final Map<Number160, Map<Number160, Handlers>> copy = new HashMap<Number160, Map<Number160, Handlers>>(
+					handlers);
+			final int[] counts = commandCounts.clone();
+			for (final Handlers removed : copy.remove(peerId).values()) {
+				count(counts, removed, -1);
+			}
+			return new Registry(copy, counts);
+		}
 	}
 }
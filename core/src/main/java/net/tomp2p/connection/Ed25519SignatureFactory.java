@@ -0,0 +1,306 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.connection;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+
+import net.tomp2p.message.Ed25519SignatureCodec;
+import net.tomp2p.message.SignatureCodec;
+import net.tomp2p.p2p.PeerBuilder;
+import net.tomp2p.utils.ConcurrentCacheMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The signature is done with Ed25519, which signs and verifies much faster
+ * than DSA or RSA and has 64 byte signatures. The algorithm is looked up by
+ * name, thus it is either provided by the JDK (15 or newer) or by a
+ * registered security provider, in which case the provider's algorithm name
+ * can be set.
+ * <p>
+ * The signature instances are kept per thread. A verifier stays initialized
+ * with its last public key, so verifying many entries of the same key does not
+ * set up the key each time. Successful verifications are cached by a hash of
+ * the public key, the signed data and the signature, so replicas of the same
+ * signed data are verified once.
+ * </p>
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class Ed25519SignatureFactory implements SignatureFactory {
+
+	private static final long serialVersionUID = 2812364581245470912L;
+	private static final Logger LOG = LoggerFactory.getLogger(Ed25519SignatureFactory.class);
+
+	public static final String ALGORITHM = "Ed25519";
+	public static final int DEFAULT_CACHE_SIZE = 16384;
+	// a verification does not expire, the time to live only makes room for new entries
+	private static final int CACHE_TIME_TO_LIVE_SECONDS = 60 * 60;
+
+	private final String algorithm;
+	private final int cacheSize;
+
+	private transient final ThreadLocal<Signature> signers;
+	private transient final ThreadLocal<Verifier> verifiers;
+	private transient final ThreadLocal<MessageDigest> digests;
+	// null if caching is disabled
+	private transient final ConcurrentCacheMap<ByteBuffer, Boolean> verified;
+
+	private static final class Verifier {
+		private final Signature signature;
+		private byte[] encodedKey;
+
+		private Verifier(final Signature signature) {
+			this.signature = signature;
+		}
+
+		private Signature init(final PublicKey publicKey, final byte[] encoded) throws InvalidKeyException {
+			if (encodedKey == null || !Arrays.equals(encodedKey, encoded)) {
+				// forget the key first, in case the init fails
+				encodedKey = null;
+				signature.initVerify(publicKey);
+				encodedKey = encoded;
+			}
+			return signature;
+		}
+	}
+
+	public Ed25519SignatureFactory() {
+		this(ALGORITHM, DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * @param algorithm
+	 *            The name of the algorithm for the signature, key factory and
+	 *            key pair generator
+	 * @param cacheSize
+	 *            The max. number of cached verifications, 0 disables the cache
+	 */
+	public Ed25519SignatureFactory(final String algorithm, final int cacheSize) {
+		this.algorithm = algorithm;
+		this.cacheSize = cacheSize;
+		this.signers = new ThreadLocal<Signature>() {
+			@Override
+			protected Signature initialValue() {
+				return signatureInstance();
+			}
+		};
+		this.verifiers = new ThreadLocal<Verifier>() {
+			@Override
+			protected Verifier initialValue() {
+				return new Verifier(signatureInstance());
+			}
+		};
+		this.digests = new ThreadLocal<MessageDigest>() {
+			@Override
+			protected MessageDigest initialValue() {
+				try {
+					return MessageDigest.getInstance("SHA-256");
+				} catch (NoSuchAlgorithmException e) {
+					LOG.error("could not find algorithm", e);
+					return null;
+				}
+			}
+		};
+		this.verified = cacheSize > 0 ? new ConcurrentCacheMap<ByteBuffer, Boolean>(CACHE_TIME_TO_LIVE_SECONDS,
+				cacheSize) : null;
+	}
+
+	/**
+	 * The thread locals and the cache are not serialized, create them again.
+	 */
+	private Object readResolve() {
+		return new Ed25519SignatureFactory(algorithm, cacheSize);
+	}
+
+	/**
+	 * @return A new key pair for this signature algorithm
+	 * @throws NoSuchAlgorithmException
+	 *             If no provider supports the algorithm
+	 */
+	public KeyPair generateKeyPair() throws NoSuchAlgorithmException {
+		return KeyPairGenerator.getInstance(algorithm).generateKeyPair();
+	}
+
+	/**
+	 * @return The signature mechanism
+	 */
+	private Signature signatureInstance() {
+		try {
+			return Signature.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			LOG.error("could not find algorithm", e);
+			return null;
+		}
+	}
+
+	@Override
+	public PublicKey decodePublicKey(final byte[] me) {
+		X509EncodedKeySpec pubKeySpec = new X509EncodedKeySpec(me);
+		try {
+			KeyFactory keyFactory = KeyFactory.getInstance(algorithm);
+			return keyFactory.generatePublic(pubKeySpec);
+		} catch (NoSuchAlgorithmException e) {
+			LOG.error("could not find algorithm", e);
+			return null;
+		} catch (InvalidKeySpecException e) {
+			LOG.error("wrong keyspec", e);
+			return null;
+		}
+	}
+
+	// decodes with header
+	@Override
+	public PublicKey decodePublicKey(ByteBuf buf) {
+		if (buf.readableBytes() < 2) {
+			return null;
+		}
+		int len = buf.getUnsignedShort(buf.readerIndex());
+
+		if (buf.readableBytes() - 2 < len) {
+			return null;
+		}
+		buf.skipBytes(2);
+
+		if (len <= 0) {
+			return PeerBuilder.EMPTY_PUBLIC_KEY;
+		}
+
+		byte me[] = new byte[len];
+		buf.readBytes(me);
+		return decodePublicKey(me);
+	}
+
+	@Override
+	public void encodePublicKey(PublicKey publicKey, ByteBuf buf) {
+		byte[] data = publicKey.getEncoded();
+		buf.writeShort(data.length);
+		buf.writeBytes(data);
+	}
+
+	@Override
+	public SignatureCodec sign(PrivateKey privateKey, ByteBuffer[] byteBuffers) throws InvalidKeyException,
+			SignatureException, IOException {
+		Signature signature = signers.get();
+		signature.initSign(privateKey);
+		int len = byteBuffers.length;
+		for (int i = 0; i < len; i++) {
+			ByteBuffer buffer = byteBuffers[i];
+			signature.update(buffer);
+		}
+
+		byte[] signatureData = signature.sign();
+		return new Ed25519SignatureCodec(signatureData);
+	}
+
+	@Override
+	public boolean verify(PublicKey publicKey, ByteBuffer[] byteBuffers, SignatureCodec signatureEncoded)
+			throws SignatureException, InvalidKeyException {
+		final byte[] encodedKey = publicKey.getEncoded();
+		final byte[] signatureReceived = signatureEncoded.encode();
+		final ByteBuffer cacheKey = verified == null ? null : cacheKey(encodedKey, byteBuffers, signatureReceived);
+		if (cacheKey != null && verified.get(cacheKey) != null) {
+			return true;
+		}
+		final Verifier verifier = verifiers.get();
+		final Signature signature = verifier.init(publicKey, encodedKey);
+		int len = byteBuffers.length;
+		for (int i = 0; i < len; i++) {
+			ByteBuffer buffer = byteBuffers[i];
+			signature.update(buffer);
+		}
+		final boolean valid;
+		try {
+			valid = signature.verify(signatureReceived);
+		} catch (SignatureException e) {
+			// the state of the signature is unknown, initialize it again next time
+			verifier.encodedKey = null;
+			throw e;
+		}
+		if (valid && cacheKey != null) {
+			verified.put(cacheKey, Boolean.TRUE);
+		}
+		return valid;
+	}
+
+	/**
+	 * The data and the signature are part of the key, a cached entry can only
+	 * be hit by exactly the same signed data.
+	 */
+	private ByteBuffer cacheKey(final byte[] encodedKey, final ByteBuffer[] byteBuffers,
+			final byte[] signatureReceived) {
+		final MessageDigest digest = digests.get();
+		if (digest == null) {
+			return null;
+		}
+		digest.update(encodedKey);
+		for (int i = 0; i < byteBuffers.length; i++) {
+			// the buffers are read again for the verification
+			digest.update(byteBuffers[i].duplicate());
+		}
+		digest.update(signatureReceived);
+		return ByteBuffer.wrap(digest.digest());
+	}
+
+	@Override
+	public Signature update(PublicKey receivedPublicKey, ByteBuffer[] byteBuffers) throws InvalidKeyException,
+			SignatureException {
+		// the decoder keeps this instance until the message is complete, so it cannot be shared
+		Signature signature = signatureInstance();
+		signature.initVerify(receivedPublicKey);
+		int arrayLength = byteBuffers.length;
+		for (int i = 0; i < arrayLength; i++) {
+			signature.update(byteBuffers[i]);
+		}
+		return signature;
+	}
+
+	@Override
+	public SignatureCodec signatureCodec(ByteBuf buf) {
+		return new Ed25519SignatureCodec(buf);
+	}
+
+	@Override
+	public int signatureSize() {
+		return Ed25519SignatureCodec.SIGNATURE_SIZE;
+	}
+
+	/**
+	 * @return The number of cached verifications, including expired ones
+	 */
+	public int cachedVerifications() {
+		return verified == null ? 0 : verified.size();
+	}
+}
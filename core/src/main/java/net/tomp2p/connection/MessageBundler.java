@@ -0,0 +1,362 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.connection;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import net.tomp2p.message.Message.ProtocolType;
+import net.tomp2p.utils.Pair;
+
+/**
+ * Packs encoded messages to the same destination into one datagram. The
+ * thread that queues a message into an empty queue sends it right away. While
+ * it is in the send call, other threads only queue their messages, and once it
+ * returns it sends all of them in as few datagrams as possible. Thus a single
+ * message is never delayed, but a burst of messages to one peer results in a
+ * few packets instead of one packet per message.
+ * <p>
+ * A bundle starts with one byte that has the protocol type
+ * {@link ProtocolType#BUNDLE}, followed by each message prefixed with its
+ * length as an unsigned short. A message that is alone in the queue or too
+ * large for a bundle is sent as is.
+ * </p>
+ * <p>
+ * Since the sending thread may be the receive thread that sends a reply, it
+ * sends at most a limited number of messages and then hands the rest of the
+ * queue over to the worker of the {@link DispatchExecutor} that is
+ * responsible for the destination. If a datagram cannot be sent, the
+ * {@link FailureListener} of each message in it is called, as the messages
+ * may belong to other threads.
+ * </p>
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class MessageBundler {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MessageBundler.class);
+
+	public static final byte BUNDLE_MARKER = (byte) (ProtocolType.BUNDLE.ordinal() << 6);
+	public static final int HEADER_SIZE = 1;
+	public static final int LENGTH_SIZE = 2;
+	public static final int DEFAULT_MAX_DRAIN = 64;
+
+	private final ConcurrentMap<Pair<DatagramChannel, InetSocketAddress>, Destination> destinations = new ConcurrentHashMap<Pair<DatagramChannel, InetSocketAddress>, Destination>();
+	private final int mtu;
+	private final ByteBufAllocator allocator;
+	private final DispatchExecutor handoff;
+	private final int maxDrain;
+
+	private static final class Queued {
+		private final ByteBuf encoded;
+		private final FailureListener listener;
+
+		private Queued(final ByteBuf encoded, final FailureListener listener) {
+			this.encoded = encoded;
+			this.listener = listener;
+		}
+	}
+
+	private static final class Destination {
+		private final Queue<Queued> queue = new ConcurrentLinkedQueue<Queued>();
+		// the messages that are queued and not yet sent, the thread that
+		// increments it from zero sends until it is zero again
+		private final AtomicInteger pending = new AtomicInteger();
+	}
+
+	/**
+	 * @param mtu
+	 *            The maximum size of a bundle, typically the path MTU minus
+	 *            the IP and UDP headers
+	 * @param allocator
+	 *            The allocator for the bundles
+	 */
+	public MessageBundler(final int mtu, final ByteBufAllocator allocator) {
+		this(mtu, allocator, null, DEFAULT_MAX_DRAIN);
+	}
+
+	/**
+	 * @param mtu
+	 *            The maximum size of a bundle, typically the path MTU minus
+	 *            the IP and UDP headers
+	 * @param allocator
+	 *            The allocator for the bundles
+	 * @param handoff
+	 *            The executor that sends the rest of a queue once a thread has
+	 *            sent maxDrain messages, null to send everything on the
+	 *            calling thread
+	 * @param maxDrain
+	 *            The number of messages a thread sends before it hands off
+	 */
+	public MessageBundler(final int mtu, final ByteBufAllocator allocator, final DispatchExecutor handoff,
+			final int maxDrain) {
+		if (mtu <= HEADER_SIZE + LENGTH_SIZE) {
+			throw new IllegalArgumentException("mtu too small for a bundle: " + mtu);
+		}
+		if (maxDrain <= 0) {
+			throw new IllegalArgumentException("maxDrain must be positive: " + maxDrain);
+		}
+		this.mtu = mtu;
+		this.allocator = allocator;
+		this.handoff = handoff;
+		this.maxDrain = maxDrain;
+	}
+
+	/**
+	 * Sends an encoded message, possibly together with other messages to the
+	 * same destination. The buffer is released once sent.
+	 *
+	 * @param datagramChannel
+	 *            The channel to send with
+	 * @param remote
+	 *            The destination
+	 * @param encoded
+	 *            The encoded message
+	 * @throws IOException
+	 *             If a message that is too large for a bundle could not be
+	 *             sent. Failures of bundles are logged.
+	 */
+	public void send(final DatagramChannel datagramChannel, final InetSocketAddress remote, final ByteBuf encoded)
+			throws IOException {
+		send(datagramChannel, remote, encoded, null);
+	}
+
+	/**
+	 * Sends an encoded message, possibly together with other messages to the
+	 * same destination. The buffer is released once sent.
+	 *
+	 * @param datagramChannel
+	 *            The channel to send with
+	 * @param remote
+	 *            The destination
+	 * @param encoded
+	 *            The encoded message
+	 * @param listener
+	 *            Called if the datagram with this message could not be sent,
+	 *            possibly on another thread, or null
+	 * @throws IOException
+	 *             If a message that is too large for a bundle could not be
+	 *             sent. In this case the listener is not called.
+	 */
+	public void send(final DatagramChannel datagramChannel, final InetSocketAddress remote, final ByteBuf encoded,
+			final FailureListener listener) throws IOException {
+		if (encoded.readableBytes() + HEADER_SIZE + LENGTH_SIZE > mtu) {
+			try {
+				sendNetwork(datagramChannel, remote, encoded);
+			} finally {
+				encoded.release();
+			}
+			return;
+		}
+		final Pair<DatagramChannel, InetSocketAddress> key = Pair.create(datagramChannel, remote);
+		Destination destination = destinations.get(key);
+		if (destination == null) {
+			final Destination newDestination = new Destination();
+			destination = destinations.putIfAbsent(key, newDestination);
+			if (destination == null) {
+				destination = newDestination;
+			}
+		}
+		// queue before counting, so every counted message is in the queue
+		destination.queue.add(new Queued(encoded, listener));
+		if (destination.pending.getAndIncrement() != 0) {
+			// the sending thread picks it up
+			return;
+		}
+		drain(key, destination, 1);
+	}
+
+	/**
+	 * Sends the queue of a destination until it is empty or until maxDrain
+	 * messages are sent and the rest could be handed off. Only the thread that
+	 * owns the destination, i.e., the one that incremented pending from zero or
+	 * the task it handed off to, calls this method.
+	 */
+	private void drain(final Pair<DatagramChannel, InetSocketAddress> key, final Destination destination,
+			final int pending) {
+		int left = pending;
+		int drained = 0;
+		while (left > 0) {
+			if (drained >= maxDrain) {
+				if (handOff(key, destination, left)) {
+					return;
+				}
+				// no worker available, keep sending on this thread
+				drained = 0;
+			}
+			final int sent = flush(key.element0(), key.element1(), destination.queue, left);
+			drained += sent;
+			left = destination.pending.addAndGet(-sent);
+		}
+		// an idle destination is removed, a racing sender creates a new one
+		if (destination.queue.isEmpty()) {
+			destinations.remove(key, destination);
+		}
+	}
+
+	private boolean handOff(final Pair<DatagramChannel, InetSocketAddress> key, final Destination destination,
+			final int pending) {
+		if (handoff == null || handoff.isInline()) {
+			return false;
+		}
+		LOG.debug("handing off {} messages to {}", pending, key.element1());
+		return handoff.execute(key.element1(), new Runnable() {
+			@Override
+			public void run() {
+				drain(key, destination, pending);
+			}
+		});
+	}
+
+	/**
+	 * Sends up to max messages of the queue, as many as fit into one datagram.
+	 *
+	 * @return The number of messages taken from the queue
+	 */
+	private int flush(final DatagramChannel datagramChannel, final InetSocketAddress remote,
+			final Queue<Queued> queue, final int max) {
+		int taken = 0;
+		List<FailureListener> listeners = null;
+		ByteBuf bundle = null;
+		ByteBuf single = null;
+		try {
+			while (taken < max) {
+				final Queued next = queue.peek();
+				if (next == null) {
+					break;
+				}
+				final int size = (bundle != null ? bundle.readableBytes()
+						: single != null ? HEADER_SIZE + LENGTH_SIZE + single.readableBytes() : HEADER_SIZE)
+						+ LENGTH_SIZE + next.encoded.readableBytes();
+				if (size > mtu) {
+					break;
+				}
+				queue.poll();
+				taken++;
+				if (next.listener != null) {
+					if (listeners == null) {
+						listeners = new ArrayList<FailureListener>(1);
+					}
+					listeners.add(next.listener);
+				}
+				if (single == null && bundle == null) {
+					single = next.encoded;
+					continue;
+				}
+				if (bundle == null) {
+					bundle = allocator.directBuffer(mtu, mtu);
+					bundle.writeByte(BUNDLE_MARKER);
+					append(bundle, single);
+					single = null;
+				}
+				append(bundle, next.encoded);
+			}
+			if (bundle != null) {
+				sendNetwork(datagramChannel, remote, bundle);
+			} else if (single != null) {
+				sendNetwork(datagramChannel, remote, single);
+			}
+		} catch (IOException e) {
+			LOG.warn("could not send {} messages to {}", taken, remote, e);
+			if (listeners != null) {
+				for (FailureListener listener : listeners) {
+					listener.failed(e);
+				}
+			}
+		} finally {
+			if (bundle != null) {
+				bundle.release();
+			}
+			if (single != null) {
+				single.release();
+			}
+		}
+		return taken;
+	}
+
+	private static void append(final ByteBuf bundle, final ByteBuf message) {
+		try {
+			bundle.writeShort(message.readableBytes());
+			bundle.writeBytes(message);
+		} finally {
+			message.release();
+		}
+	}
+
+	private static void sendNetwork(final DatagramChannel datagramChannel, final InetSocketAddress remote,
+			final ByteBuf buf) throws IOException {
+		final ByteBuffer out = ChannelUtils.convert(buf);
+		final int length = out.remaining();
+		if (datagramChannel.send(out, remote) != length) {
+			// only happens in non-blocking mode if the send buffer is full
+			throw new IOException("send buffer full, could not send " + length + " bytes to " + remote);
+		}
+	}
+
+	/**
+	 * Splits a received bundle into its messages.
+	 *
+	 * @param bundle
+	 *            The received datagram, starting with the bundle marker
+	 * @param handler
+	 *            Called for each message with a slice of the bundle
+	 * @return The number of messages in the bundle
+	 */
+	public static int unbundle(final ByteBuf bundle, final MessageHandler handler) throws Exception {
+		bundle.skipBytes(HEADER_SIZE);
+		int counter = 0;
+		while (bundle.readableBytes() >= LENGTH_SIZE) {
+			final int length = bundle.readUnsignedShort();
+			if (length > bundle.readableBytes()) {
+				LOG.warn("truncated bundle, {} bytes announced but only {} left", length, bundle.readableBytes());
+				break;
+			}
+			handler.handle(bundle.readSlice(length));
+			counter++;
+		}
+		return counter;
+	}
+
+	/**
+	 * Handles one message of a bundle.
+	 */
+	public interface MessageHandler {
+		void handle(ByteBuf message) throws Exception;
+	}
+
+	/**
+	 * Notified if a queued message could not be sent.
+	 */
+	public interface FailureListener {
+		void failed(IOException e);
+	}
+}
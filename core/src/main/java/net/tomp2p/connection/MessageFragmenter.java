@@ -0,0 +1,437 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.connection;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import net.tomp2p.message.Message.ProtocolType;
+import net.tomp2p.utils.Pair;
+
+/**
+ * Splits encoded messages that are larger than one datagram into fragments
+ * and reassembles them on the receiving side, so that medium sized messages
+ * can be sent over UDP without setting up an SCTP association.
+ * <p>
+ * A fragment starts with one byte that has the protocol type
+ * {@link ProtocolType#FRAGMENT}, followed by the message id (int), the index
+ * of the fragment (unsigned short) and the number of fragments (unsigned
+ * short). The fragments of a message are identified by the message id and the
+ * address of the sender. They are kept as separate buffers and joined in a
+ * {@link CompositeByteBuf}, which the decoder reads like a single packet.
+ * </p>
+ * <p>
+ * Partially received messages are dropped after a timeout or if they would
+ * exceed the memory limit. A lost fragment cannot be requested again, the
+ * request times out as any lost UDP message would.
+ * </p>
+ * <p>
+ * The fragment header is not authenticated, thus the first fragment of a
+ * message may announce any number of fragments. A count that is larger than
+ * the largest message split into fragments of the smallest allowed size is
+ * rejected, the bookkeeping of a message is charged to the reassembly memory
+ * and the number of pending messages is limited.
+ * </p>
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class MessageFragmenter {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MessageFragmenter.class);
+
+	public static final byte FRAGMENT_MARKER = (byte) (ProtocolType.FRAGMENT.ordinal() << 6);
+	public static final int HEADER_SIZE = 9;
+	public static final int MAX_FRAGMENTS = 65535;
+	// the minimum IPv4 datagram size every host accepts, minus the IP and UDP headers
+	public static final int MIN_MTU = 576 - 28;
+	public static final int MIN_PAYLOAD = MIN_MTU - HEADER_SIZE;
+	public static final int DEFAULT_MAX_REASSEMBLIES = 1024;
+	// the estimated memory of a reassembly without its fragments and of one fragment slot
+	private static final int REASSEMBLY_OVERHEAD = 64;
+	private static final int SLOT_OVERHEAD = 8;
+
+	private final ConcurrentMap<Pair<InetSocketAddress, Integer>, Reassembly> reassemblies = new ConcurrentHashMap<Pair<InetSocketAddress, Integer>, Reassembly>();
+	private final AtomicLong reservedBytes = new AtomicLong();
+	private final AtomicInteger reassemblyCount = new AtomicInteger();
+	private final ByteBufAllocator allocator;
+	private final int maxMessageSize;
+	private final int maxFragments;
+	private final long maxReassemblyBytes;
+	private final int maxReassemblies;
+	private final long timeoutMillis;
+	private volatile ScheduledFuture<?> scheduledFuture;
+
+	private static final class Reassembly {
+		private final int count;
+		private final long overhead;
+		private final long created = System.currentTimeMillis();
+		// null once completed or dropped
+		private ByteBuf[] fragments;
+		private int received = 0;
+		private int size = 0;
+		// set once completed or dropped, a dropped message stays in the map
+		// until it times out, so its remaining fragments are ignored
+		private boolean done = false;
+
+		private Reassembly(final int count, final long overhead) {
+			this.count = count;
+			this.overhead = overhead;
+			this.fragments = new ByteBuf[count];
+		}
+	}
+
+	/**
+	 * @param allocator
+	 *            The allocator for the reassembled messages
+	 * @param maxMessageSize
+	 *            The largest message that is reassembled
+	 * @param maxReassemblyBytes
+	 *            The memory for all partially received messages
+	 * @param timeoutMillis
+	 *            The time after which a partially received message is dropped
+	 */
+	public MessageFragmenter(final ByteBufAllocator allocator, final int maxMessageSize,
+			final long maxReassemblyBytes, final long timeoutMillis) {
+		this(allocator, maxMessageSize, maxReassemblyBytes, DEFAULT_MAX_REASSEMBLIES, timeoutMillis);
+	}
+
+	/**
+	 * @param allocator
+	 *            The allocator for the reassembled messages
+	 * @param maxMessageSize
+	 *            The largest message that is reassembled
+	 * @param maxReassemblyBytes
+	 *            The memory for all partially received messages
+	 * @param maxReassemblies
+	 *            The number of messages that are partially received or
+	 *            dropped but not yet expired
+	 * @param timeoutMillis
+	 *            The time after which a partially received message is dropped
+	 */
+	public MessageFragmenter(final ByteBufAllocator allocator, final int maxMessageSize,
+			final long maxReassemblyBytes, final int maxReassemblies, final long timeoutMillis) {
+		this.allocator = allocator;
+		this.maxMessageSize = maxMessageSize;
+		this.maxFragments = (int) Math.min(MAX_FRAGMENTS, (maxMessageSize + (long) MIN_PAYLOAD - 1) / MIN_PAYLOAD);
+		this.maxReassemblyBytes = maxReassemblyBytes;
+		this.maxReassemblies = maxReassemblies;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Starts to drop the partially received messages that timed out
+	 * periodically.
+	 *
+	 * @param timer
+	 *            The timer that runs {@link #expire()}
+	 * @return This class
+	 */
+	public MessageFragmenter start(final ScheduledExecutorService timer) {
+		final long intervalMillis = Math.max(1, timeoutMillis);
+		scheduledFuture = timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					expire();
+				} catch (Throwable t) {
+					// an exception would cancel the periodic task
+					LOG.error("could not expire fragments", t);
+				}
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		return this;
+	}
+
+	/**
+	 * Sends an encoded message in fragments.
+	 *
+	 * @param datagramChannel
+	 *            The channel to send with
+	 * @param remote
+	 *            The destination
+	 * @param messageId
+	 *            The id of the message, it identifies the fragments together
+	 *            with the address of the sender
+	 * @param encoded
+	 *            The encoded message, it is not released
+	 * @param mtu
+	 *            The maximum size of a fragment including its header, at least
+	 *            {@link #MIN_MTU}
+	 * @param allocator
+	 *            The allocator for the datagram buffer
+	 * @return The number of fragments sent
+	 * @throws IOException
+	 *             If a fragment could not be sent
+	 */
+	public static int send(final DatagramChannel datagramChannel, final InetSocketAddress remote,
+			final int messageId, final ByteBuf encoded, final int mtu, final ByteBufAllocator allocator)
+			throws IOException {
+		if (mtu < MIN_MTU) {
+			// the receiver would reject the fragment count
+			throw new IllegalArgumentException("mtu too small for a fragment: " + mtu);
+		}
+		final int payload = mtu - HEADER_SIZE;
+		final int length = encoded.readableBytes();
+		final int count = (length + payload - 1) / payload;
+		if (count > MAX_FRAGMENTS) {
+			throw new IOException("message too large for " + MAX_FRAGMENTS + " fragments: " + length);
+		}
+		final ByteBuf datagram = allocator.directBuffer(mtu, mtu);
+		try {
+			int offset = encoded.readerIndex();
+			for (int i = 0; i < count; i++) {
+				final int size = Math.min(payload, length - (i * payload));
+				datagram.clear();
+				datagram.writeByte(FRAGMENT_MARKER);
+				datagram.writeInt(messageId);
+				datagram.writeShort(i);
+				datagram.writeShort(count);
+				datagram.writeBytes(encoded, offset, size);
+				offset += size;
+				final ByteBuffer out = datagram.nioBuffer();
+				if (datagramChannel.send(out, remote) != datagram.readableBytes()) {
+					// only happens in non-blocking mode if the send buffer is full
+					throw new IOException("send buffer full, could not send fragment " + i + " of " + count
+							+ " to " + remote);
+				}
+			}
+			return count;
+		} finally {
+			datagram.release();
+		}
+	}
+
+	/**
+	 * Adds a received fragment.
+	 *
+	 * @param remote
+	 *            The sender of the fragment
+	 * @param fragment
+	 *            The received datagram, starting with the fragment marker. The
+	 *            caller keeps the ownership, the data is retained if needed.
+	 * @return The reassembled message if this was the last missing fragment,
+	 *         otherwise null. The caller must release it.
+	 */
+	public ByteBuf received(final InetSocketAddress remote, final ByteBuf fragment) {
+		if (fragment.readableBytes() < HEADER_SIZE) {
+			LOG.warn("fragment too short from {}", remote);
+			return null;
+		}
+		fragment.skipBytes(1);
+		final int messageId = fragment.readInt();
+		final int index = fragment.readUnsignedShort();
+		final int count = fragment.readUnsignedShort();
+		if (count == 0 || index >= count || count > maxFragments) {
+			LOG.warn("invalid fragment {} of {} from {}", index, count, remote);
+			return null;
+		}
+
+		final Pair<InetSocketAddress, Integer> key = Pair.create(remote, messageId);
+		Reassembly reassembly = reassemblies.get(key);
+		if (reassembly == null) {
+			final Reassembly newReassembly = reserve(count);
+			if (newReassembly == null) {
+				LOG.warn("dropping message {} from {}, too many pending messages or out of reassembly memory",
+						messageId, remote);
+				return null;
+			}
+			reassembly = reassemblies.putIfAbsent(key, newReassembly);
+			if (reassembly == null) {
+				reassembly = newReassembly;
+			} else {
+				unreserve(newReassembly);
+			}
+		}
+
+		synchronized (reassembly) {
+			if (reassembly.done || reassembly.count != count || reassembly.fragments[index] != null) {
+				// late, duplicate or inconsistent
+				return null;
+			}
+			final int length = fragment.readableBytes();
+			if (reassembly.size + length > maxMessageSize
+					|| reservedBytes.addAndGet(length) > maxReassemblyBytes) {
+				if (reassembly.size + length <= maxMessageSize) {
+					reservedBytes.addAndGet(-length);
+				}
+				LOG.warn("dropping message {} from {}, too large or out of reassembly memory", messageId, remote);
+				release(reassembly);
+				return null;
+			}
+			reassembly.fragments[index] = retain(fragment);
+			reassembly.size += length;
+			reassembly.received++;
+			if (reassembly.received < count) {
+				return null;
+			}
+			reassembly.done = true;
+			if (reassemblies.remove(key, reassembly)) {
+				reassemblyCount.decrementAndGet();
+			}
+			reservedBytes.addAndGet(-reassembly.size - reassembly.overhead);
+			final CompositeByteBuf message = allocator.compositeBuffer(count);
+			message.addComponents(true, reassembly.fragments);
+			reassembly.fragments = null;
+			return message;
+		}
+	}
+
+	/**
+	 * Charges a new reassembly to the limits, before its slot array is
+	 * allocated.
+	 *
+	 * @return The reassembly or null if a limit is exceeded
+	 */
+	private Reassembly reserve(final int count) {
+		if (reassemblyCount.incrementAndGet() > maxReassemblies) {
+			reassemblyCount.decrementAndGet();
+			return null;
+		}
+		final long overhead = REASSEMBLY_OVERHEAD + (long) count * SLOT_OVERHEAD;
+		if (reservedBytes.addAndGet(overhead) > maxReassemblyBytes) {
+			reservedBytes.addAndGet(-overhead);
+			reassemblyCount.decrementAndGet();
+			return null;
+		}
+		return new Reassembly(count, overhead);
+	}
+
+	/**
+	 * Undoes {@link #reserve(int)} for a reassembly that was never added.
+	 */
+	private void unreserve(final Reassembly reassembly) {
+		reservedBytes.addAndGet(-reassembly.overhead);
+		reassemblyCount.decrementAndGet();
+	}
+
+	/**
+	 * The receive buffers are allocated for the largest datagram, holding on
+	 * to one for each small fragment would waste most of the reassembly
+	 * memory. Such fragments are copied once into a buffer of their size, large
+	 * fragments are kept without copying.
+	 */
+	private ByteBuf retain(final ByteBuf fragment) {
+		final int length = fragment.readableBytes();
+		final ByteBuf backing = fragment.unwrap() == null ? fragment : fragment.unwrap();
+		if (backing.capacity() > 2 * length) {
+			final ByteBuf copy = allocator.heapBuffer(length, length);
+			copy.writeBytes(fragment);
+			return copy;
+		}
+		return fragment.readRetainedSlice(length);
+	}
+
+	/**
+	 * Releases the fragments and the slot array of a reassembly. The caller
+	 * holds the lock of the reassembly. A dropped reassembly stays in the map
+	 * until it expires and only counts against the number of reassemblies.
+	 */
+	private void release(final Reassembly reassembly) {
+		reassembly.done = true;
+		reservedBytes.addAndGet(-reassembly.size - reassembly.overhead);
+		reassembly.size = 0;
+		for (final ByteBuf fragment : reassembly.fragments) {
+			if (fragment != null) {
+				fragment.release();
+			}
+		}
+		reassembly.fragments = null;
+	}
+
+	/**
+	 * Drops all partially received messages that are older than the timeout.
+	 *
+	 * @return The number of dropped incomplete messages
+	 */
+	public int expire() {
+		final long now = System.currentTimeMillis();
+		int counter = 0;
+		for (final Iterator<Map.Entry<Pair<InetSocketAddress, Integer>, Reassembly>> iterator = reassemblies
+				.entrySet().iterator(); iterator.hasNext();) {
+			final Map.Entry<Pair<InetSocketAddress, Integer>, Reassembly> entry = iterator.next();
+			final Reassembly reassembly = entry.getValue();
+			if (now - reassembly.created > timeoutMillis) {
+				synchronized (reassembly) {
+					if (!reassembly.done) {
+						LOG.debug("dropping incomplete message {}, {} of {} fragments received",
+								entry.getKey(), reassembly.received, reassembly.count);
+						release(reassembly);
+						counter++;
+					}
+					if (reassemblies.remove(entry.getKey(), reassembly)) {
+						reassemblyCount.decrementAndGet();
+					}
+				}
+			}
+		}
+		return counter;
+	}
+
+	/**
+	 * Stops the periodic expiry and drops all partially received messages.
+	 */
+	public void shutdown() {
+		final ScheduledFuture<?> tmp = scheduledFuture;
+		if (tmp != null) {
+			tmp.cancel(false);
+		}
+		for (final Map.Entry<Pair<InetSocketAddress, Integer>, Reassembly> entry : reassemblies.entrySet()) {
+			synchronized (entry.getValue()) {
+				if (!entry.getValue().done) {
+					release(entry.getValue());
+				}
+				if (reassemblies.remove(entry.getKey(), entry.getValue())) {
+					reassemblyCount.decrementAndGet();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The number of messages that are partially received or dropped
+	 *         but not yet expired
+	 */
+	public int pending() {
+		return reassemblies.size();
+	}
+
+	/**
+	 * @return The bytes held by partially received messages, including their
+	 *         bookkeeping
+	 */
+	public long reservedBytes() {
+		return reservedBytes.get();
+	}
+}
@@ -16,9 +16,9 @@
 package net.tomp2p.connection;
 
 import java.security.KeyPair;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
@@ -31,8 +31,10 @@ import net.tomp2p.peers.PeerMap;
 import net.tomp2p.peers.PeerStatusListener;
 import net.tomp2p.peers.RTT;
 import net.tomp2p.rpc.BloomfilterFactory;
+import net.tomp2p.storage.ObjectSerializer;
 import net.tomp2p.storage.DigestStorage;
 import net.tomp2p.storage.DigestTracker;
+import net.tomp2p.storage.JavaObjectSerializer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,7 +51,8 @@ public class PeerBean {
 
     private static final Logger LOG = LoggerFactory.getLogger(PeerBean.class);
     
-    @Getter final private List<PeerStatusListener> peerStatusListeners = new ArrayList<PeerStatusListener>(1);
+    // read on every message, changed only at startup
+    @Getter final private List<PeerStatusListener> peerStatusListeners = new CopyOnWriteArrayList<PeerStatusListener>();
     
     @Getter @Setter private KeyPair keyPair;
     @Getter @Setter private PeerAddress serverPeerAddress;
@@ -59,19 +62,63 @@ public class PeerBean {
     @Getter @Setter private DigestStorage digestStorage;
     @Getter @Setter private DigestTracker digestTracker;
     @Getter @Setter private NATHandler natHandler;
+    // encodes the objects of the put and add builders
+    @Getter @Setter private ObjectSerializer objectSerializer = JavaObjectSerializer.INSTANCE;
+    // if set, status events are coalesced and applied on the timer thread
+    @Getter @Setter private PeerStatusBatcher peerStatusBatcher;
 
     //This map is used for all open PeerConnections which are meant to stay open. {@link Number160} = peer ID.
 
+    /**
+     * Reports that a peer is online to all {@link PeerStatusListener}s. If a {@link PeerStatusBatcher} is set, the
+     * event is applied later together with the other events of this peer.
+     *
+     * @param sender The peer that is online
+     * @param reporter The peer that reported it, null for first hand information
+     * @param roundTripTime The measured round-trip time or null
+     * @return This class
+     */
     public PeerBean notifyPeerFound(PeerAddress sender, PeerAddress reporter,
             RTT roundTripTime) {
-        synchronized (peerStatusListeners) {
-            for (PeerStatusListener peerStatusListener : peerStatusListeners) {
-                peerStatusListener.peerFound(sender, reporter, roundTripTime);
-            }
+        final PeerStatusBatcher batcher = peerStatusBatcher;
+        if (batcher != null) {
+            batcher.peerFound(sender, reporter, roundTripTime);
+        } else {
+            deliverPeerFound(sender, reporter, roundTripTime);
+        }
+        return this;
+    }
+
+    /**
+     * Reports that a peer failed to all {@link PeerStatusListener}s. If a {@link PeerStatusBatcher} is set, the event
+     * is applied later together with the other events of this peer.
+     *
+     * @param remotePeer The peer that failed
+     * @param exception The reason why the peer failed
+     * @return This class
+     */
+    public PeerBean notifyPeerFailed(PeerAddress remotePeer, PeerException exception) {
+        final PeerStatusBatcher batcher = peerStatusBatcher;
+        if (batcher != null) {
+            batcher.peerFailed(remotePeer, exception);
+        } else {
+            deliverPeerFailed(remotePeer, exception);
         }
         return this;
     }
 
+    void deliverPeerFound(PeerAddress sender, PeerAddress reporter, RTT roundTripTime) {
+        for (PeerStatusListener peerStatusListener : peerStatusListeners) {
+            peerStatusListener.peerFound(sender, reporter, roundTripTime);
+        }
+    }
+
+    void deliverPeerFailed(PeerAddress remotePeer, PeerException exception) {
+        for (PeerStatusListener peerStatusListener : peerStatusListeners) {
+            peerStatusListener.peerFailed(remotePeer, exception);
+        }
+    }
+
     /**
      * Adds a PeerStatusListener to this peer.
      *
@@ -79,9 +126,7 @@ public class PeerBean {
      * @return This class
      */
     public PeerBean addPeerStatusListener(final PeerStatusListener peerStatusListener) {
-        synchronized (peerStatusListeners) {
-            peerStatusListeners.add(peerStatusListener);
-        }
+        peerStatusListeners.add(peerStatusListener);
         return this;
     }
 
@@ -92,9 +137,7 @@ public class PeerBean {
      * @return This class
      */
     public PeerBean removePeerStatusListener(final PeerStatusListener peerStatusListener) {
-        synchronized (peerStatusListeners) {
-            peerStatusListeners.remove(peerStatusListener);
-        }
+        peerStatusListeners.remove(peerStatusListener);
         return this;
     }
 
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.connection;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerStatusListener;
+import net.tomp2p.peers.RTT;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the liveness events of peers and applies them to the
+ * {@link PeerStatusListener}s of a {@link PeerBean} in one pass on the timer
+ * thread. Within one window, the events of a peer are merged:
+ * <ul>
+ * <li>A failure replaces any found, and a first hand found replaces a
+ * failure, as in the order they happened. Repeated failures are counted, so
+ * that a peer fails as often as it was reported.</li>
+ * <li>A third hand found never replaces a pending first hand found or a
+ * failure, as it is weaker information.</li>
+ * <li>Every found with a round-trip time is kept and applied in the order it
+ * happened, so no measurement is lost. A found without a round-trip time is
+ * only kept if it changes from first to third hand or vice versa.</li>
+ * </ul>
+ * Thus, a peer that sends many messages within a window costs one map update
+ * per measurement instead of one per message.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class PeerStatusBatcher implements PeerStatusListener {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PeerStatusBatcher.class);
+
+	private final PeerBean peerBean;
+	private final Map<Number160, Event> pending = new ConcurrentHashMap<Number160, Event>();
+	private volatile ScheduledFuture<?> scheduledFuture;
+
+	public PeerStatusBatcher(final PeerBean peerBean) {
+		this.peerBean = peerBean;
+	}
+
+	/**
+	 * Starts to apply the collected events periodically.
+	 *
+	 * @param timer
+	 *            The timer that applies the events
+	 * @param windowMillis
+	 *            The time in which events for the same peer are merged
+	 * @return This class
+	 */
+	public PeerStatusBatcher start(final ScheduledExecutorService timer, final int windowMillis) {
+		scheduledFuture = timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flush();
+				} catch (Throwable t) {
+					// an exception would cancel the periodic task
+					LOG.error("could not apply peer status events", t);
+				}
+			}
+		}, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+		return this;
+	}
+
+	/**
+	 * Stops the periodic task and applies the remaining events.
+	 */
+	public void shutdown() {
+		final ScheduledFuture<?> tmp = scheduledFuture;
+		if (tmp != null) {
+			tmp.cancel(false);
+		}
+		flush();
+	}
+
+	@Override
+	public boolean peerFound(final PeerAddress remotePeer, final PeerAddress referrer, final RTT roundTripTime) {
+		merge(remotePeer.peerId(), new Event(remotePeer, referrer, roundTripTime, null));
+		return true;
+	}
+
+	@Override
+	public boolean peerFailed(final PeerAddress remotePeer, final PeerException exception) {
+		merge(remotePeer.peerId(), new Event(remotePeer, null, null, exception));
+		return true;
+	}
+
+	private void merge(final Number160 peerId, final Event event) {
+		while (true) {
+			final Event old = pending.get(peerId);
+			if (old == null) {
+				if (pending.putIfAbsent(peerId, event) == null) {
+					return;
+				}
+			} else {
+				final Event merged = old.merge(event);
+				if (merged == old || pending.replace(peerId, old, merged)) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Applies all collected events to the listeners.
+	 *
+	 * @return The number of peers with applied events
+	 */
+	public int flush() {
+		int counter = 0;
+		for (final Map.Entry<Number160, Event> entry : pending.entrySet()) {
+			final Event event = entry.getValue();
+			if (!pending.remove(entry.getKey(), event)) {
+				// changed meanwhile, applied in the next round
+				continue;
+			}
+			if (event.exception != null) {
+				// a forced failure removes the peer at once, a timeout counts towards the offline count
+				final int failures = event.exception.abortCause() == PeerException.AbortCause.TIMEOUT ? event.failures
+						: 1;
+				for (int i = 0; i < failures; i++) {
+					peerBean.deliverPeerFailed(event.remotePeer, event.exception);
+				}
+			} else {
+				// the founds are linked with the latest first, apply them in the order they happened
+				final Found[] founds = new Found[event.founds];
+				Found found = event.found;
+				for (int i = founds.length - 1; i >= 0; i--) {
+					founds[i] = found;
+					found = found.earlier;
+				}
+				for (final Found next : founds) {
+					peerBean.deliverPeerFound(event.remotePeer, next.referrer, next.roundTripTime);
+				}
+			}
+			counter++;
+		}
+		return counter;
+	}
+
+	/**
+	 * @return The number of peers with pending events
+	 */
+	public int pending() {
+		return pending.size();
+	}
+
+	/**
+	 * A found of one window, linked to the found before it.
+	 */
+	private static final class Found {
+		private final PeerAddress referrer;
+		private final RTT roundTripTime;
+		private final Found earlier;
+
+		private Found(final PeerAddress referrer, final RTT roundTripTime, final Found earlier) {
+			this.referrer = referrer;
+			this.roundTripTime = roundTripTime;
+			this.earlier = earlier;
+		}
+
+		private boolean isFirstHand() {
+			return referrer == null;
+		}
+	}
+
+	/**
+	 * The merged events of a peer, either its founds or its failures. An event
+	 * is immutable, a merge creates a new one.
+	 */
+	private static final class Event {
+		private final PeerAddress remotePeer;
+		// the latest found, null for a failure
+		private final Found found;
+		private final int founds;
+		private final PeerException exception;
+		private final int failures;
+
+		private Event(final PeerAddress remotePeer, final PeerAddress referrer, final RTT roundTripTime,
+				final PeerException exception) {
+			this(remotePeer, exception == null ? new Found(referrer, roundTripTime, null) : null,
+					exception == null ? 1 : 0, exception, exception == null ? 0 : 1);
+		}
+
+		private Event(final PeerAddress remotePeer, final Found found, final int founds,
+				final PeerException exception, final int failures) {
+			this.remotePeer = remotePeer;
+			this.found = found;
+			this.founds = founds;
+			this.exception = exception;
+			this.failures = failures;
+		}
+
+		private boolean isFirstHand() {
+			return exception == null && found.isFirstHand();
+		}
+
+		/**
+		 * @param newer
+		 *            A single event that happened after this one
+		 * @return The merged event, this if nothing changed
+		 */
+		private Event merge(final Event newer) {
+			if (newer.exception != null) {
+				return new Event(newer.remotePeer, null, 0, newer.exception, exception != null ? failures + 1 : 1);
+			}
+			if (!newer.isFirstHand() && (exception != null || isFirstHand())) {
+				// third hand information is weaker
+				return this;
+			}
+			if (exception != null) {
+				return newer;
+			}
+			if (newer.found.roundTripTime == null && newer.isFirstHand() == isFirstHand()) {
+				// nothing to measure, the pending founds already report the peer
+				return new Event(newer.remotePeer, found, founds, null, 0);
+			}
+			return new Event(newer.remotePeer, new Found(newer.found.referrer, newer.found.roundTripTime, found),
+					founds + 1, null, 0);
+		}
+	}
+}
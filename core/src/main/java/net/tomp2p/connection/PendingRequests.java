@@ -0,0 +1,250 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.connection;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.message.Message;
+import net.tomp2p.message.MessageID;
+import net.tomp2p.utils.TimerWheel;
+
+/**
+ * Keeps track of requests that wait for a response. Each request has its own
+ * timeout in a {@link TimerWheel}, which fails the request as soon as it
+ * expires. A response cancels the timeout. Thus, an idle socket or an error
+ * while decoding a packet does not affect any other request.
+ * <p>
+ * The wheel is either advanced by a {@link SelectorLoop} or, with blocking
+ * sockets, by a thread owned by this class, which stops on {@link #shutdown()}.
+ * The number of pending requests is limited, a request beyond the limit fails
+ * right away instead of growing the map without bounds.
+ * </p>
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class PendingRequests {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PendingRequests.class);
+
+	private static final int WHEEL_SIZE = 512;
+	public static final int DEFAULT_MAX_PENDING = 10000;
+
+	private final Map<MessageID, Pending> pending = new ConcurrentHashMap<MessageID, Pending>();
+	// the size of a ConcurrentHashMap is not exact, so count the entries
+	private final AtomicInteger counter = new AtomicInteger();
+	private final int maxPending;
+	private final TimerWheel timerWheel;
+	private final Thread ticker;
+	private volatile boolean running = true;
+
+	/**
+	 * Creates the tracker with the default limit of pending requests.
+	 *
+	 * @param tickMillis
+	 *            The resolution of the timeouts
+	 * @param ownThread
+	 *            True if this class should advance the wheel with its own
+	 *            thread, false if {@link #timerWheel()} is advanced by someone
+	 *            else, e.g. a selector loop
+	 */
+	public PendingRequests(final long tickMillis, final boolean ownThread) {
+		this(tickMillis, ownThread, DEFAULT_MAX_PENDING);
+	}
+
+	/**
+	 * Creates the tracker.
+	 *
+	 * @param tickMillis
+	 *            The resolution of the timeouts
+	 * @param ownThread
+	 *            True if this class should advance the wheel with its own
+	 *            thread, false if {@link #timerWheel()} is advanced by someone
+	 *            else, e.g. a selector loop
+	 * @param maxPending
+	 *            The max. number of requests that wait for a response
+	 */
+	public PendingRequests(final long tickMillis, final boolean ownThread, final int maxPending) {
+		this.maxPending = maxPending;
+		this.timerWheel = new TimerWheel(tickMillis, WHEEL_SIZE);
+		if (ownThread) {
+			this.ticker = new Thread("TomP2P timeout") {
+				@Override
+				public void run() {
+					while (running) {
+						try {
+							Thread.sleep(timerWheel.tickMillis());
+						} catch (InterruptedException e) {
+							// only interrupted on shutdown
+							break;
+						}
+						timerWheel.advance(System.currentTimeMillis());
+					}
+					LOG.debug("timeout thread stopped");
+				}
+			};
+			ticker.setDaemon(true);
+			ticker.start();
+		} else {
+			this.ticker = null;
+		}
+	}
+
+	/**
+	 * @return The wheel that drives the timeouts
+	 */
+	public TimerWheel timerWheel() {
+		return timerWheel;
+	}
+
+	/**
+	 * Adds a request that waits for a response.
+	 *
+	 * @param messageId
+	 *            The id of the request
+	 * @param future
+	 *            The future that is completed with the response
+	 * @param timeoutMillis
+	 *            The time after which the future fails if there is no response
+	 * @return False if the future failed right away, because there are too
+	 *         many pending requests or the tracker is shut down. The request
+	 *         must not be sent in this case.
+	 */
+	public boolean put(final MessageID messageId, final FutureDone<Message> future, final long timeoutMillis) {
+		if (!running) {
+			future.failed("user closed connection");
+			return false;
+		}
+		if (counter.incrementAndGet() > maxPending) {
+			counter.decrementAndGet();
+			LOG.warn("too many pending requests ({}), dropping request {}", maxPending, messageId);
+			future.failed("Too many pending requests");
+			return false;
+		}
+		final Pending entry = new Pending(future);
+		final Pending old = pending.put(messageId, entry);
+		if (old != null) {
+			counter.decrementAndGet();
+			LOG.warn("duplicate message id {}, the older request will not get a response", messageId);
+			if (old.timeout != null) {
+				old.timeout.cancel();
+			}
+		}
+		entry.timeout = timerWheel.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (pending.remove(messageId, entry)) {
+					counter.decrementAndGet();
+					LOG.debug("Timout occured for {}", messageId);
+					entry.future.failed("Timeout occurred");
+				}
+			}
+		}, timeoutMillis);
+		if (!running && pending.remove(messageId, entry)) {
+			// shut down concurrently, failAll may have missed this entry
+			counter.decrementAndGet();
+			entry.timeout.cancel();
+			future.failed("user closed connection");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Removes a request once its response arrived.
+	 *
+	 * @param messageId
+	 *            The id of the response
+	 * @return The future of the request or null if there is no such request or
+	 *         it timed out already
+	 */
+	public FutureDone<Message> remove(final MessageID messageId) {
+		final Pending entry = pending.remove(messageId);
+		if (entry == null) {
+			return null;
+		}
+		counter.decrementAndGet();
+		// the timeout is set right after the put, a response cannot be faster
+		// in practice, but if so, the timeout finds no entry and does nothing
+		if (entry.timeout != null) {
+			entry.timeout.cancel();
+		}
+		return entry.future;
+	}
+
+	/**
+	 * @return The number of requests waiting for a response
+	 */
+	public int size() {
+		return counter.get();
+	}
+
+	/**
+	 * @return The ids of the requests waiting for a response
+	 */
+	public Set<MessageID> keySet() {
+		return pending.keySet();
+	}
+
+	/**
+	 * Fails all requests, used on shutdown.
+	 *
+	 * @param reason
+	 *            The reason for the failure
+	 */
+	public void failAll(final String reason) {
+		for (MessageID messageId : pending.keySet()) {
+			final FutureDone<Message> future = remove(messageId);
+			if (future != null) {
+				future.failed(reason);
+			}
+		}
+	}
+
+	/**
+	 * Fails all requests and stops the thread that advances the wheel. New
+	 * requests fail right away.
+	 */
+	public void shutdown() {
+		running = false;
+		if (ticker != null) {
+			ticker.interrupt();
+			try {
+				ticker.join(timerWheel.tickMillis() * 10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		failAll("user closed connection");
+	}
+
+	private static final class Pending {
+		private final FutureDone<Message> future;
+		private volatile TimerWheel.Timeout timeout;
+
+		private Pending(final FutureDone<Message> future) {
+			this.future = future;
+		}
+	}
+}
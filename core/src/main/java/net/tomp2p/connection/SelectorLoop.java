@@ -0,0 +1,174 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.connection;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import net.tomp2p.connection.ChannelTransceiver.ServerThread;
+import net.tomp2p.utils.TimerWheel;
+
+/**
+ * A non-blocking event loop that serves any number of {@link DatagramChannel}s
+ * with one {@link Selector}. This replaces the blocking receive threads, one
+ * per interface, of {@link ServerThread}. Since a non-blocking receive never
+ * times out, timeouts are driven by a {@link TimerWheel}, which is advanced
+ * after each select.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class SelectorLoop extends Thread {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SelectorLoop.class);
+
+	private final Selector selector;
+	private final TimerWheel timerWheel;
+	private final Queue<ServerThread> newChannels = new ConcurrentLinkedQueue<ServerThread>();
+	private volatile boolean running = true;
+
+	/**
+	 * Opens the selector.
+	 *
+	 * @param name
+	 *            The name of the thread
+	 * @param timerWheel
+	 *            The timer wheel to advance, or null if another loop advances
+	 *            it
+	 * @throws IOException
+	 *             If the selector cannot be opened
+	 */
+	public SelectorLoop(final String name, final TimerWheel timerWheel) throws IOException {
+		super(name);
+		setDaemon(true);
+		this.selector = Selector.open();
+		this.timerWheel = timerWheel;
+	}
+
+	/**
+	 * Registers a channel with this loop. The channel is switched to
+	 * non-blocking mode and registered by the loop thread, as registering while
+	 * the loop is in select would block.
+	 *
+	 * @param serverThread
+	 *            The handler of the channel, its thread is never started
+	 * @throws IOException
+	 *             If the channel cannot be set to non-blocking
+	 */
+	public void register(final ServerThread serverThread) throws IOException {
+		serverThread.datagramChannel().configureBlocking(false);
+		newChannels.add(serverThread);
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		final long selectMillis = timerWheel == null ? 0 : timerWheel.tickMillis();
+		while (running) {
+			try {
+				registerNewChannels();
+				selector.select(selectMillis);
+				final Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+				while (iterator.hasNext()) {
+					final SelectionKey key = iterator.next();
+					iterator.remove();
+					if (key.isValid() && key.isReadable()) {
+						read(key);
+					}
+				}
+				if (timerWheel != null) {
+					timerWheel.advance(System.currentTimeMillis());
+				}
+			} catch (ClosedSelectorException e) {
+				LOG.debug("selector closed");
+				break;
+			} catch (Throwable t) {
+				LOG.error("error in selector loop", t);
+			}
+		}
+		LOG.debug("ending selector loop");
+	}
+
+	private void registerNewChannels() {
+		ServerThread serverThread;
+		while ((serverThread = newChannels.poll()) != null) {
+			try {
+				serverThread.datagramChannel().register(selector, SelectionKey.OP_READ, serverThread);
+				LOG.debug("listening for incoming packets on {}", serverThread.listenAddresses);
+			} catch (IOException e) {
+				LOG.warn("could not register channel {}", serverThread.listenAddresses, e);
+			}
+		}
+	}
+
+	/**
+	 * Drains all datagrams that are ready on this channel.
+	 */
+	private static void read(final SelectionKey key) {
+		final ServerThread serverThread = (ServerThread) key.attachment();
+		final DatagramChannel datagramChannel = (DatagramChannel) key.channel();
+		while (true) {
+			final ByteBuf buf = PooledByteBufAllocator.DEFAULT.heapBuffer(ChannelTransceiver.MAX_PACKET_SIZE,
+					ChannelTransceiver.MAX_PACKET_SIZE);
+			final InetSocketAddress remote;
+			try {
+				final ByteBuffer nioBuffer = buf.internalNioBuffer(0, ChannelTransceiver.MAX_PACKET_SIZE);
+				final int position = nioBuffer.position();
+				remote = (InetSocketAddress) datagramChannel.receive(nioBuffer);
+				if (remote == null) {
+					// nothing left to read
+					buf.release();
+					return;
+				}
+				buf.writerIndex(nioBuffer.position() - position);
+			} catch (IOException e) {
+				LOG.debug("could not read from {}", serverThread.listenAddresses, e);
+				buf.release();
+				key.cancel();
+				return;
+			}
+			// the server thread takes over the buffer
+			serverThread.received(remote, buf);
+		}
+	}
+
+	/**
+	 * Stops the loop and closes the selector. The channels are closed by the
+	 * caller.
+	 */
+	public void shutdown() {
+		running = false;
+		try {
+			selector.close();
+		} catch (IOException e) {
+			LOG.debug("could not close selector", e);
+		}
+	}
+}
@@ -19,8 +19,11 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import net.tomp2p.connection.ConnectionBean;
 
@@ -30,6 +33,12 @@ import org.slf4j.LoggerFactory;
 /**
  * The base for all BaseFuture implementations. Be aware of possible deadlocks. Never await from a listener. This class
  * is heavily inspired by MINA and Netty.
+ * <p>
+ * The completion is a compare-and-set of a single state field, thus {@link #isCompleted()} does not lock. The
+ * listener list is only allocated if more than one listener is added before the future completes. The listeners run
+ * on the thread that completes the future, unless an executor is set with {@link #listenerExecutor(Executor)}, e.g.
+ * a thread pool or an executor for virtual threads.
+ * </p>
  * 
  * @param <K>
  *            The class that extends BaseFuture and is used to return back the type for method calls. E.g, if K is
@@ -39,20 +48,30 @@ import org.slf4j.LoggerFactory;
 public abstract class BaseFutureImpl<K extends BaseFuture> implements BaseFuture {
     private static final Logger LOG = LoggerFactory.getLogger(BaseFutureImpl.class);
 
-    // Listeners that gets notified if the future finished
-    private final List<BaseFutureListener<? extends BaseFuture>> listeners = 
-            new ArrayList<BaseFutureListener<? extends BaseFuture>>(1);
+    private static final int STATE_INIT = 0;
+    private static final int STATE_COMPLETED = 1;
+    private static final int STATE_NOTIFIED = 2;
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static final AtomicIntegerFieldUpdater<BaseFutureImpl<?>> STATE = (AtomicIntegerFieldUpdater) AtomicIntegerFieldUpdater
+            .newUpdater(BaseFutureImpl.class, "state");
+
+    // Listeners that gets notified if the future finished, null, a single
+    // listener or a list of listeners. Modified under lock until completed.
+    private Object listeners = null;
 
     // While a future is running, the process may add cancellations for faster
     // cancel operations, e.g. cancel connection attempt
     private volatile Cancel cancel = null;
 
-    private final CountDownLatch listenersFinished = new CountDownLatch(1);
+    // null to run the listeners on the completing thread
+    private volatile Executor listenerExecutor = null;
 
     protected final Object lock;
 
-    // set the ready flag if operation completed
-    protected boolean completed = false;
+    // set to completed if operation completed, and to notified once the
+    // listeners have been called
+    private volatile int state = STATE_INIT;
 
     // by default false, change in case of success. An unfinished operation is
     // always set to failed
@@ -89,7 +108,7 @@ public abstract class BaseFutureImpl<K extends BaseFuture> implements BaseFuture
     public K await() throws InterruptedException {
         synchronized (lock) {
             checkDeadlock();
-            while (!completed) {
+            while (state == STATE_INIT) {
                 lock.wait();
             }
         }
@@ -100,7 +119,7 @@ public abstract class BaseFutureImpl<K extends BaseFuture> implements BaseFuture
     public K awaitUninterruptibly() {
         synchronized (lock) {
             checkDeadlock();
-            while (!completed) {
+            while (state == STATE_INIT) {
                 try {
                     lock.wait();
                 } catch (final InterruptedException e) {
@@ -139,11 +158,14 @@ public abstract class BaseFutureImpl<K extends BaseFuture> implements BaseFuture
     private boolean await0(final long timeoutMillis, final boolean interrupt) throws InterruptedException {
         final long startTime = (timeoutMillis <= 0) ? 0 : System.currentTimeMillis();
         long waitTime = timeoutMillis;
+        if (isCompleted()) {
+            return true;
+        }
         synchronized (lock) {
-            if (completed) {
-                return completed;
+            if (isCompleted()) {
+                return true;
             } else if (waitTime <= 0) {
-                return completed;
+                return false;
             }
             checkDeadlock();
             while (true) {
@@ -154,12 +176,12 @@ public abstract class BaseFutureImpl<K extends BaseFuture> implements BaseFuture
                         throw e;
                     }
                 }
-                if (completed) {
+                if (isCompleted()) {
                     return true;
                 } else {
                     waitTime = timeoutMillis - (System.currentTimeMillis() - startTime);
                     if (waitTime <= 0) {
-                        return completed;
+                        return false;
                     }
                 }
             }
@@ -168,15 +190,13 @@ public abstract class BaseFutureImpl<K extends BaseFuture> implements BaseFuture
 
     @Override
     public boolean isCompleted() {
-        synchronized (lock) {
-            return completed;
-        }
+        return state != STATE_INIT;
     }
 
     @Override
     public boolean isSuccess() {
         synchronized (lock) {
-            return completed && (type == FutureType.OK);
+            return isCompleted() && (type == FutureType.OK);
         }
     }
 
@@ -184,14 +204,14 @@ public abstract class BaseFutureImpl<K extends BaseFuture> implements BaseFuture
     public boolean isFailed() {
         synchronized (lock) {
             // failed means failed or canceled
-            return completed && (type != FutureType.OK);
+            return isCompleted() && (type != FutureType.OK);
         }
     }
     
     @Override
     public boolean isCanceled() {
         synchronized (lock) {
-            return completed && (type == FutureType.CANCEL);
+            return isCompleted() && (type == FutureType.CANCEL);
         }
     }
 
@@ -243,7 +263,7 @@ public abstract class BaseFutureImpl<K extends BaseFuture> implements BaseFuture
     public String failedReason() {
         final StringBuffer sb = new StringBuffer("Future (compl/canc):");
         synchronized (lock) {
-            sb.append(completed).append("/")
+            sb.append(isCompleted()).append("/")
             	.append(", ").append(type.name())
             	.append(", ").append(reason);
             return sb.toString();
@@ -263,8 +283,7 @@ public abstract class BaseFutureImpl<K extends BaseFuture> implements BaseFuture
      * @return True if notified. It will notify if completed is not set yet.
      */
     protected boolean completedAndNotify() {
-        if (!completed) {
-            completed = true;
+        if (STATE.compareAndSet(this, STATE_INIT, STATE_COMPLETED)) {
             lock.notifyAll();
             return true;
         } else {
@@ -274,66 +293,120 @@ public abstract class BaseFutureImpl<K extends BaseFuture> implements BaseFuture
 
     @Override
     public K awaitListeners() throws InterruptedException {
-    	boolean wait = false;
     	synchronized (lock) {
             checkDeadlock();
-            while (!completed) {
+            // the listeners are set to null once they are notified
+            while (state == STATE_INIT || (state == STATE_COMPLETED && listeners != null)) {
                 lock.wait();
             }
-            if(listeners.size() > 0) {
-    			wait = true;
-    		}
         }
-    	if(wait) {
-    		listenersFinished.await();
-    	}
     	return self;
     }
     
     @Override
     public K awaitListenersUninterruptibly() {
-    	boolean wait = false;
     	synchronized (lock) {
             checkDeadlock();
-            while (!completed) {
+            while (state == STATE_INIT || (state == STATE_COMPLETED && listeners != null)) {
                 try {
                     lock.wait();
                 } catch (final InterruptedException e) {
                    LOG.debug("interrupted, but ignoring", e);
                 }
             }
-            if(listeners.size() > 0) {
-    			wait = true;
-    		}   
         }
-    	while(wait) {
-    		try {
-    			listenersFinished.await();
-    			wait = false;
-    		} catch (InterruptedException e) {
-                LOG.debug("interrupted, but ignoring", e);
-            }
-    	}
     	return self;
     }
     
     @Override
+    @SuppressWarnings("unchecked")
     public K addListener(final BaseFutureListener<? extends BaseFuture> listener) {
         boolean notifyNow = false;
         synchronized (lock) {
-            if (completed) {
+            if (isCompleted()) {
                 notifyNow = true;
+            } else if (listeners == null) {
+                listeners = listener;
+            } else if (listeners instanceof List) {
+                ((List<BaseFutureListener<? extends BaseFuture>>) listeners).add(listener);
             } else {
-                listeners.add(listener);
+                final List<BaseFutureListener<? extends BaseFuture>> list = new ArrayList<BaseFutureListener<? extends BaseFuture>>(2);
+                list.add((BaseFutureListener<? extends BaseFuture>) listeners);
+                list.add(listener);
+                listeners = list;
             }
         }
         // called only once
         if (notifyNow) {
-            callOperationComplete(listener);
+            final Executor executor = listenerExecutor;
+            if (executor == null) {
+                callOperationComplete(listener);
+            } else {
+                execute(executor, new Runnable() {
+                    @Override
+                    public void run() {
+                        callOperationComplete(listener);
+                    }
+                });
+            }
         }
         return self;
     }
 
+    /**
+     * Sets the executor that runs the listeners of this future. By default, the listeners run on the thread that
+     * completes the future, which may be an I/O thread. Listeners that are added after the future completed run on
+     * this executor as well. If the executor rejects the listeners, they run on the calling thread.
+     * 
+     * @param listenerExecutor
+     *            The executor for the listeners or null to run them on the completing thread
+     * @return This class
+     */
+    public K listenerExecutor(final Executor listenerExecutor) {
+        this.listenerExecutor = listenerExecutor;
+        return self;
+    }
+
+    /**
+     * @return The executor that runs the listeners or null if they run on the completing thread
+     */
+    public Executor listenerExecutor() {
+        return listenerExecutor;
+    }
+
+    private static void execute(final Executor executor, final Runnable runnable) {
+        try {
+            executor.execute(runnable);
+        } catch (final RejectedExecutionException e) {
+            LOG.warn("listener executor rejected the listeners, running them now", e);
+            runnable.run();
+        }
+    }
+
+    /**
+     * Returns a {@link CompletableFuture} that completes with this future if it succeeds. If this future fails, it
+     * completes exceptionally with a {@link FutureFailedException}, or a {@link CancellationException} if this future
+     * was canceled. Canceling the returned future does not cancel this future.
+     * 
+     * @return A new CompletableFuture that completes once this future completes
+     */
+    public CompletableFuture<K> toCompletableFuture() {
+        final CompletableFuture<K> completableFuture = new CompletableFuture<K>();
+        addListener(new BaseFutureAdapter<K>() {
+            @Override
+            public void operationComplete(final K future) throws Exception {
+                if (future.isSuccess()) {
+                    completableFuture.complete(future);
+                } else if (future.isCanceled()) {
+                    completableFuture.completeExceptionally(new CancellationException(future.failedReason()));
+                } else {
+                    completableFuture.completeExceptionally(new FutureFailedException(future));
+                }
+            }
+        });
+        return completableFuture;
+    }
+
     /**
      * Call operation complete or call fail listener. If the fail listener fails, its printed as a stack trace.
      * 
@@ -371,6 +444,26 @@ public abstract class BaseFutureImpl<K extends BaseFuture> implements BaseFuture
      * Always call this from outside synchronized(lock)!
      */
     protected void notifyListeners() {
+        if (listeners == null) {
+            // nothing to run, and listeners added from now on are called directly
+            STATE.compareAndSet(this, STATE_COMPLETED, STATE_NOTIFIED);
+            return;
+        }
+        final Executor executor = listenerExecutor;
+        if (executor == null) {
+            notifyListeners0();
+        } else {
+            execute(executor, new Runnable() {
+                @Override
+                public void run() {
+                    notifyListeners0();
+                }
+            });
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void notifyListeners0() {
         // if this is synchronized, it will deadlock, so do not lock this!
         // There won't be any visibility problem or concurrent modification
         // because 'ready' flag will be checked against both addListener and
@@ -381,21 +474,36 @@ public abstract class BaseFutureImpl<K extends BaseFuture> implements BaseFuture
         //    Hence any listener list modification happens-before this method.
         // 2) This method is called only when 'done' is true.  Once 'done'
         //    becomes true, the listener list is never modified - see add/removeListener()
-        for (final BaseFutureListener<? extends BaseFuture> listener : listeners) {
-            callOperationComplete(listener);
+        final Object tmp = listeners;
+        if (tmp instanceof List) {
+            for (final BaseFutureListener<? extends BaseFuture> listener : (List<BaseFutureListener<? extends BaseFuture>>) tmp) {
+                callOperationComplete(listener);
+            }
+        } else if (tmp != null) {
+            callOperationComplete((BaseFutureListener<? extends BaseFuture>) tmp);
         }
-        
-        listeners.clear();
-        listenersFinished.countDown();
         // all events are one time events. It cannot happen that you get
         // notified twice
+        STATE.compareAndSet(this, STATE_COMPLETED, STATE_NOTIFIED);
+        if (tmp != null) {
+            synchronized (lock) {
+                listeners = null;
+                // wake up awaitListeners()
+                lock.notifyAll();
+            }
+        }
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public K removeListener(final BaseFutureListener<? extends BaseFuture> listener) {
         synchronized (lock) {
-            if (!completed) {
-                listeners.remove(listener);
+            if (!isCompleted()) {
+                if (listeners == listener) {
+                    listeners = null;
+                } else if (listeners instanceof List) {
+                    ((List<BaseFutureListener<? extends BaseFuture>>) listeners).remove(listener);
+                }
             }
         }
         return self;
@@ -404,7 +512,7 @@ public abstract class BaseFutureImpl<K extends BaseFuture> implements BaseFuture
     @Override
     public K setCancel(final Cancel cancel) {
     	synchronized (lock) {
-            if (!completed) {
+            if (!isCompleted()) {
             	this.cancel = cancel;
             }
     	}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.futures;
+
+/**
+ * The exception of a {@link java.util.concurrent.CompletableFuture} that was
+ * created with {@link BaseFutureImpl#toCompletableFuture()} if the future
+ * failed. The message is the reason of the failure.
+ * 
+ * @author Thomas Bocek
+ */
+public class FutureFailedException extends RuntimeException {
+    private static final long serialVersionUID = -2165393412583574541L;
+
+    private final transient BaseFuture future;
+
+    public FutureFailedException(final BaseFuture future) {
+        super(future.failedReason());
+        this.future = future;
+    }
+
+    /**
+     * @return The future that failed
+     */
+    public BaseFuture future() {
+        return future;
+    }
+}
@@ -99,7 +99,7 @@ public class FutureForkJoin<K extends BaseFuture> extends BaseFutureImpl<FutureF
     private void join() {
         for (int i = 0; i < nrFutures; i++) {
             synchronized (lock) {
-                if (completed) {
+                if (isCompleted()) {
                     return;
                 }
             }
@@ -151,7 +151,7 @@ public class FutureForkJoin<K extends BaseFuture> extends BaseFutureImpl<FutureF
         synchronized (lock) {
             // this if statement is very important. If the future is finished, then any subsequent evaluation, which
             // will happen as we add the listener in the join, must not set the future to null!
-            if (completed) {
+            if (isCompleted()) {
                 return;
             }
             // add the future that we have evaluated
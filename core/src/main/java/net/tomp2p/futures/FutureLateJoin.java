@@ -77,7 +77,7 @@ public class FutureLateJoin<K extends BaseFuture> extends BaseFutureImpl<FutureL
      */
     public boolean add(final K future) {
         synchronized (lock) {
-            if (completed) {
+            if (isCompleted()) {
                 return false;
             }
             futuresSubmitted.add(future);
@@ -86,7 +86,7 @@ public class FutureLateJoin<K extends BaseFuture> extends BaseFutureImpl<FutureL
                 public void operationComplete(final K future) throws Exception {
                     boolean done = false;
                     synchronized (lock) {
-                        if (!completed) {
+                        if (!isCompleted()) {
                             if (future.isSuccess()) {
                                 successCount++;
                                 lastSuccessFuture = future;
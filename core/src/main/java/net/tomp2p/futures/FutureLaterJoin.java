@@ -60,7 +60,7 @@ public class FutureLaterJoin<K extends BaseFuture> extends BaseFutureImpl<Future
      */
     public boolean add(final K future) {
         synchronized (lock) {
-            if (completed) {
+            if (isCompleted()) {
                 return false;
             }
             futureCount++;
@@ -69,7 +69,7 @@ public class FutureLaterJoin<K extends BaseFuture> extends BaseFutureImpl<Future
                 public void operationComplete(K future) throws Exception {
                     boolean done = false;
                     synchronized (lock) {
-                        if (!completed) {
+                        if (!isCompleted()) {
                             if (future.isSuccess()) {
                                 successCount++;
                                 lastSuccessFuture = future;
@@ -111,7 +111,7 @@ public class FutureResponse extends BaseFutureImpl<FutureResponse> {
 
     /*public boolean responseLater(final Message responseMessage) {
         synchronized (lock) {
-            if(completed) {
+            if(isCompleted()) {
             	if(responseMessage != null) {
             		responseMessage.release();
             	}
@@ -137,7 +137,7 @@ public class FutureResponse extends BaseFutureImpl<FutureResponse> {
         PrintWriter printWriter = new PrintWriter(stringWriter);
         cause.printStackTrace(printWriter);
         synchronized (lock) {
-            if(completed) {
+            if(isCompleted()) {
                 return false;
             }
             responseLater = true;
@@ -149,7 +149,7 @@ public class FutureResponse extends BaseFutureImpl<FutureResponse> {
     
     public FutureResponse responseNow() {
         synchronized (lock) {
-        	if (!responseLater && !completed) {
+        	if (!responseLater && !isCompleted()) {
         		failed("No future set beforehand, probably an early shutdown / timeout, or use setFailedLater() or setResponseLater()");
         		return this;
         	}
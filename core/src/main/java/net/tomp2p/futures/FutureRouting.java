@@ -180,7 +180,7 @@ public class FutureRouting extends BaseFutureImpl<FutureRouting> {
     @Override
     public String failedReason() {
         synchronized (lock) {
-            return "FutureRouting -> complete:" + completed + ", type:" + type.toString() + ", direct:"
+            return "FutureRouting -> complete:" + isCompleted() + ", type:" + type.toString() + ", direct:"
                     + directHits.size() + ", neighbors:" + potentialHits.size();
         }
     }
@@ -1,7 +1,9 @@
 package net.tomp2p.futures;
 
 import java.util.List;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 public class Futures {
 
@@ -170,4 +172,26 @@ public class Futures {
 
         return futureDone;
     }
+
+    /**
+     * Adapts a {@link CompletionStage} to a future. The reverse is {@link BaseFutureImpl#toCompletableFuture()}.
+     * 
+     * @param completionStage
+     *            The stage that completes the returned future
+     * @return A future that is done with the result of the stage or failed with its exception
+     */
+    public static <K> FutureDone<K> whenComplete(final CompletionStage<K> completionStage) {
+        final FutureDone<K> futureDone = new FutureDone<K>();
+        completionStage.whenComplete(new BiConsumer<K, Throwable>() {
+            @Override
+            public void accept(final K result, final Throwable t) {
+                if (t != null) {
+                    futureDone.failed(t);
+                } else {
+                    futureDone.done(result);
+                }
+            }
+        });
+        return futureDone;
+    }
 }
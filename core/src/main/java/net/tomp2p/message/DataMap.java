@@ -1,9 +1,17 @@
 package net.tomp2p.message;
 
+import java.security.InvalidKeyException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.TreeMap;
 
+import net.tomp2p.connection.SignatureFactory;
+import net.tomp2p.p2p.PeerBuilder;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number640;
 import net.tomp2p.storage.Data;
@@ -104,6 +112,56 @@ public class DataMap {
         return retVal;
     }
 
+    /**
+     * Verifies the signatures of all signed entries in one pass. The entries are grouped by public key and the
+     * entries of one key are verified one after the other, so a signature factory that keeps its verifier
+     * initialized with the last key, such as the Ed25519SignatureFactory, sets up each key only once.
+     * 
+     * @param publicKey
+     *            The public key for entries that do not carry their own, typically the key of the message. May be
+     *            null.
+     * @param signatureFactory
+     *            The signature factory that was used to sign the entries
+     * @return The keys of the signed entries that have no public key or an invalid signature
+     * @throws InvalidKeyException
+     *             If a public key is not valid for the signature factory
+     * @throws SignatureException
+     *             If a signature could not be processed
+     */
+    public List<Number640> verify(final PublicKey publicKey, final SignatureFactory signatureFactory)
+            throws InvalidKeyException, SignatureException {
+        final List<Number640> failed = new ArrayList<Number640>();
+        final Map<PublicKey, List<Map.Entry<Number640, Data>>> byKey = new LinkedHashMap<PublicKey, List<Map.Entry<Number640, Data>>>();
+        for (final Map.Entry<Number640, Data> entry : convert(this).entrySet()) {
+            final Data data = entry.getValue();
+            if (data == null || !data.isSigned()) {
+                continue;
+            }
+            PublicKey entryKey = data.publicKey();
+            if (entryKey == null || entryKey == PeerBuilder.EMPTY_PUBLIC_KEY) {
+                entryKey = publicKey;
+            }
+            if (entryKey == null || entryKey == PeerBuilder.EMPTY_PUBLIC_KEY || data.signature() == null) {
+                failed.add(entry.getKey());
+                continue;
+            }
+            List<Map.Entry<Number640, Data>> entries = byKey.get(entryKey);
+            if (entries == null) {
+                entries = new ArrayList<Map.Entry<Number640, Data>>();
+                byKey.put(entryKey, entries);
+            }
+            entries.add(entry);
+        }
+        for (final Map.Entry<PublicKey, List<Map.Entry<Number640, Data>>> group : byKey.entrySet()) {
+            for (final Map.Entry<Number640, Data> entry : group.getValue()) {
+                if (!entry.getValue().verify(group.getKey(), signatureFactory)) {
+                    failed.add(entry.getKey());
+                }
+            }
+        }
+        return failed;
+    }
+
     private static NavigableMap<Number640, Data> convert(final DataMap d) {
         final NavigableMap<Number640, Data> dataMap3;
         if (d.dataMapConvert != null) {
@@ -577,9 +577,16 @@ public class Decoder {
 		data = null;
 		keyMap640KeysSize = -1;
 		keyMap640Keys = null;
+		keyMapByteSize = -1;
+		keyMapByte = null;
 		bufferSize = -1;
 		bufferTransferred = 0;
 		buffer = null;
+		trackerDataSize = -1;
+		trackerData = null;
+		currentTrackerData = null;
+		key = null;
+		lastContent = null;
 		signature = null;
 		return ret;
 	}
@@ -0,0 +1,70 @@
+package net.tomp2p.message;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class Ed25519SignatureCodec implements SignatureCodec {
+
+	// R and S, 32 bytes each
+	public static final int SIGNATURE_SIZE = 64;
+	private final byte[] encodedData;
+
+	/**
+	 * Create a signature codec using an already existing signature (encoded)
+	 * 
+	 * @param encodedData the encoded signature
+	 * @throws IOException
+	 */
+	public Ed25519SignatureCodec(byte[] encodedData) throws IOException {
+		if (encodedData.length != signatureSize()) {
+			throw new IOException("Ed25519 signature has size " + signatureSize() + " received: " + encodedData.length);
+		}
+		this.encodedData = encodedData;
+	}
+
+	/**
+	 * Create a signature codec from a buffer
+	 * 
+	 * @param buf the buffer containing the signature at its reader index
+	 */
+	public Ed25519SignatureCodec(ByteBuf buf) {
+		encodedData = new byte[signatureSize()];
+		buf.readBytes(encodedData);
+	}
+
+	@Override
+	public byte[] encode() {
+		// no decoding necessary
+		return encodedData;
+	}
+
+	@Override
+	public SignatureCodec write(ByteBuf buf) {
+		buf.writeBytes(encodedData);
+		return this;
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(encodedData);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof Ed25519SignatureCodec)) {
+			return false;
+		}
+		if (obj == this) {
+			return true;
+		}
+		Ed25519SignatureCodec s = (Ed25519SignatureCodec) obj;
+		return Arrays.equals(s.encodedData, encodedData);
+	}
+
+	@Override
+	public int signatureSize() {
+		return SIGNATURE_SIZE;
+	}
+}
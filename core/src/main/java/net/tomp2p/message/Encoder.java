@@ -1,6 +1,6 @@
 package net.tomp2p.message;
 
-import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.ByteBuf;
 import java.io.IOException;
 import java.security.InvalidKeyException;
 import java.security.PublicKey;
@@ -37,7 +37,7 @@ public class Encoder {
         this.signatureFactory = signatureFactory;
     }
 
-    public boolean write(final CompositeByteBuf buf, final Message message, SignatureCodec signatureCodec) throws InvalidKeyException,
+    public boolean write(final ByteBuf buf, final Message message, SignatureCodec signatureCodec) throws InvalidKeyException,
             SignatureException, IOException {
 
         this.message = message;
@@ -64,7 +64,7 @@ public class Encoder {
         return done;
     }
 
-    private boolean loop(CompositeByteBuf buf) throws InvalidKeyException, SignatureException, IOException {
+    private boolean loop(ByteBuf buf) throws InvalidKeyException, SignatureException, IOException {
         MessageContentIndex next;
         while ((next = message.contentReferences().peek()) != null) {
         	final int start = buf.writerIndex();
@@ -216,7 +216,7 @@ public class Encoder {
         return true;
     }
 
-	private void encodeData(CompositeByteBuf buf, Data data, boolean isConvertMeta, boolean isReply, boolean isReplicaSend) throws InvalidKeyException, SignatureException, IOException {
+	private void encodeData(ByteBuf buf, Data data, boolean isConvertMeta, boolean isReply, boolean isReplicaSend) throws InvalidKeyException, SignatureException, IOException {
 		Data filteredData = dataFilterTTL.filter(data, isConvertMeta, isReply);
 		filteredData.encodeHeader(buf, signatureFactory);
 		filteredData.encodeBuffer(buf);
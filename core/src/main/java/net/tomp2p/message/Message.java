@@ -66,7 +66,11 @@ public class Message {
         PUBLIC_KEY, PEER_SOCKET4, PEER_SOCKET6
     };
     
-    public enum ProtocolType {UDP, SCTP};
+    /**
+     * 2 bit. A BUNDLE is a datagram that carries several UDP messages, see MessageBundler. A FRAGMENT is a part of a
+     * UDP message that is too large for one datagram, see MessageFragmenter.
+     */
+    public enum ProtocolType {UDP, SCTP, BUNDLE, FRAGMENT};
 
     /**
      * 1 x 4 bit.
@@ -635,6 +639,27 @@ public class Message {
     public boolean relayed() {
         return (options & 16) > 0;
     }
+
+    /**
+     * @param blockedBloomFilter
+     *            True if the sender understands bloom filters in the blocked mode. Older peers ignore this option.
+     * @return This class
+     */
+    public Message blockedBloomFilter(boolean blockedBloomFilter) {
+        if (blockedBloomFilter) {
+            options |= 32;
+        } else {
+            options &= ~32;
+        }
+        return this;
+    }
+
+    /**
+     * @return True if the sender understands bloom filters in the blocked mode
+     */
+    public boolean isBlockedBloomFilter() {
+        return (options & 32) > 0;
+    }
     
     
 
@@ -94,7 +94,8 @@ public final class MessageHeaderCodec {
     }
     
     public static ProtocolType peekProtocolType(byte version) {
-    	return ProtocolType.values()[version >>> 6];
+    	// mask first, a negative byte would be sign extended
+    	return ProtocolType.values()[(version & 0xff) >>> 6];
     }
 
     /**
@@ -23,6 +23,8 @@ import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import net.tomp2p.connection.ChannelTransceiver;
 import net.tomp2p.connection.PeerBean;
@@ -49,20 +51,24 @@ import org.slf4j.LoggerFactory;
 /**
  * Handles routing of nodes to other nodes.
  * 
- * TODO: add timing constraints for the routing. This would allow for slow routing requests to have a chance to report
- * the neighbors.
- * 
  * @author Thomas Bocek
  */
 public class DistributedRouting {
     private static final Logger LOG = LoggerFactory.getLogger(DistributedRouting.class);
 
+    // a peer that did not reply within this percentile of its RTTs is likely slow
+    private static final int SLOW_RESPONSE_PERCENTILE = 95;
+
+    private static final PeerStatisticComparator PROXIMITY_COMPARATOR = new RTTPeerStatisticComparator();
+
     private final NeighborRPC neighbors;
 
     private final PeerBean peerBean;
 
     private final Random rnd;
 
+    private volatile RoutingCache routingCache;
+
     /**
      * The routing process involves multiple RPCs, mostly UDP based.
      * 
@@ -124,7 +130,7 @@ public class DistributedRouting {
     }
     
     public FutureRouting quit(final RoutingBuilder routingBuilder) {
-    	Collection<PeerStatistic> startPeers = peerBean.peerMap().closePeers(routingBuilder.locationKey(),
+    	Collection<PeerStatistic> startPeers = peerBean.peerMap().neighbors(routingBuilder.locationKey(),
                 routingBuilder.parallel() * 2);
         return routing(startPeers, routingBuilder, Type.REQUEST_4);
     }
@@ -142,10 +148,61 @@ public class DistributedRouting {
      * @return a FutureRouting object, is set to complete if the route has been found
      */
     public FutureRouting route(final RoutingBuilder routingBuilder, final Type type) {
+        final Number160 locationKey = routingBuilder.locationKey();
+        final RoutingCache cache = routingBuilder.isCachedRouting() && locationKey != null ? routingCache : null;
+        if (cache != null) {
+            final NavigableSet<PeerAddress> cached = cache.get(locationKey);
+            if (cached != null) {
+                if (type == Type.REQUEST_1) {
+                    // the closest peers do not depend on the content, no need to route
+                    LOG.debug("Use cached routing result for {}.", locationKey);
+                    final FutureRouting futureRouting = new FutureRouting();
+                    futureRouting.neighbors(new TreeMap<PeerAddress, DigestInfo>(cached.comparator()), cached,
+                            new TreeSet<PeerAddress>(cached.comparator()), false, false);
+                    return futureRouting;
+                }
+                // we need the digests, ask the cached peers first
+                cached.remove(peerBean.serverPeerAddress());
+                return cacheResult(locationKey, routing(peerMap().getPeerStatistics(cached), routingBuilder, type),
+                        cache);
+            }
+        }
         // for bad distribution, use large NO_NEW_INFORMATION
-        Collection<PeerStatistic> startPeers = peerBean.peerMap().closePeers(routingBuilder.locationKey(),
+        Collection<PeerStatistic> startPeers = peerBean.peerMap().neighbors(locationKey,
                 routingBuilder.parallel() * 2);
-        return routing(startPeers, routingBuilder, type);
+        final FutureRouting futureRouting = routing(startPeers, routingBuilder, type);
+        return cache == null ? futureRouting : cacheResult(locationKey, futureRouting, cache);
+    }
+
+    private static FutureRouting cacheResult(final Number160 locationKey, final FutureRouting futureRouting,
+            final RoutingCache cache) {
+        futureRouting.addListener(new BaseFutureAdapter<FutureRouting>() {
+            @Override
+            public void operationComplete(final FutureRouting future) throws Exception {
+                // we are always in the potential hits, only cache if other peers replied
+                if (future.isSuccess() && future.potentialHits().size() > 1) {
+                    cache.put(locationKey, future.potentialHits());
+                }
+            }
+        });
+        return futureRouting;
+    }
+
+    /**
+     * @return The cache for routing results or null if routing results are not cached
+     */
+    public RoutingCache routingCache() {
+        return routingCache;
+    }
+
+    /**
+     * @param routingCache
+     *            The cache for routing results, null to disable it
+     * @return This class
+     */
+    public DistributedRouting routingCache(final RoutingCache routingCache) {
+        this.routingCache = routingCache;
+        return this;
     }
 
     /**
@@ -161,17 +218,9 @@ public class DistributedRouting {
             throw new IllegalArgumentException("Some nodes/addresses need to be specified.");
         }
         boolean randomSearch = routingBuilder.locationKey() == null;
-        //
-        final Comparator<PeerStatistic> statisticComparator;
-        final Comparator<PeerAddress> addressComparator;
-        if (randomSearch) {
-            statisticComparator = peerMap().createStatisticComparator(peerMap().self());
-            addressComparator = PeerMap.createXORAddressComparator(peerMap().self());
-        } else {
-            statisticComparator = peerMap().createStatisticComparator(routingBuilder.locationKey());
-            addressComparator = PeerMap.createXORAddressComparator(routingBuilder.locationKey());
-        }
-        final UpdatableTreeSet<PeerStatistic> queueToAsk = new UpdatableTreeSet<PeerStatistic>(statisticComparator);
+        final Comparator<PeerAddress> addressComparator = PeerMap.createXORAddressComparator(randomSearch ? peerMap()
+                .self() : routingBuilder.locationKey());
+        final UpdatableTreeSet<PeerStatistic> queueToAsk = createQueueToAsk(peerMap(), routingBuilder);
         // we can reuse the comparator
         final SortedSet<PeerAddress> alreadyAsked = new TreeSet<PeerAddress>(addressComparator);
         // as presented by Kazuyuki Shudo at AIMS 2009, its better to ask random
@@ -249,6 +298,28 @@ public class DistributedRouting {
         return futureRouting;
     }
 
+    /**
+     * Creates the empty queue of the peers to ask. With proximity routing, the peers are sorted by their distance class
+     * to the key first and by their RTT within a distance class, as they all make the same progress.
+     * 
+     * @param peerMap
+     *            The peer map that provides the default comparator
+     * @param routingBuilder
+     *            All relevant information for the routing process
+     * @return The queue, sorted with the closest or fastest peer first
+     */
+    static UpdatableTreeSet<PeerStatistic> createQueueToAsk(final PeerMap peerMap, final RoutingBuilder routingBuilder) {
+        final Comparator<PeerStatistic> statisticComparator;
+        if (routingBuilder.locationKey() == null) {
+            statisticComparator = peerMap.createStatisticComparator(peerMap.self());
+        } else if (routingBuilder.isProximityRouting()) {
+            statisticComparator = PROXIMITY_COMPARATOR.getComparator(routingBuilder.locationKey());
+        } else {
+            statisticComparator = peerMap.createStatisticComparator(routingBuilder.locationKey());
+        }
+        return new UpdatableTreeSet<PeerStatistic>(statisticComparator);
+    }
+
     /**
      * Looks for a route to the given locationKey, performing recursively. Since this method is not called concurrently,
      * but sequentially, no synchronization is necessary.
@@ -264,6 +335,14 @@ public class DistributedRouting {
         final boolean randomSearch = routingBuilder.locationKey() == null;
         int active = 0;
         for (int i = 0; i < routingMechanism.parallel(); i++) {
+            if (routingMechanism.futureResponse(i) != null) {
+                LOG.debug("Activity on {}.", i);
+                active++;
+            }
+        }
+        // in adaptive mode, not all slots are used
+        final int currentParallel = routingMechanism.currentParallel();
+        for (int i = 0; i < routingMechanism.parallel() && active < currentParallel; i++) {
             if (routingMechanism.futureResponse(i) == null && !routingMechanism.isStopCreatingNewFutures()) {
                 final PeerAddress next;
                 if (randomSearch) {
@@ -279,15 +358,14 @@ public class DistributedRouting {
                     final Number160 locationKey2 = randomSearch ? next.peerId().xor(Number160.MAX_VALUE)
                             : routingBuilder.locationKey();
                     routingBuilder.locationKey(locationKey2);
-                     
-                    
-                    //routingMechanism.futureResponse(i, neighbors.closeNeighbors(next,
-                    //        routingBuilder.searchValues(), type, channelCreator, routingBuilder));
+
+                    final FutureResponse futureResponse = closeNeighbors(next, routingBuilder, type);
+                    routingMechanism.futureResponse(i, futureResponse);
+                    if ((routingBuilder.isHedgeRequests() || routingBuilder.isAdaptiveParallel()) && !randomSearch) {
+                        watchResponse(futureResponse, next, routingBuilder, routingMechanism, type);
+                    }
                     LOG.debug("get close neighbors: {} on {}", next, i);
                 }
-            } else if (routingMechanism.futureResponse(i) != null) {
-                LOG.debug("Activity on {}.", i);
-                active++;
             }
         }
         if (active == 0) {
@@ -343,6 +421,77 @@ public class DistributedRouting {
         });
     }
 
+    private FutureResponse closeNeighbors(final PeerAddress next, final RoutingBuilder routingBuilder,
+            final Type type) {
+        return neighbors.closeNeighborsResponse(next, routingBuilder.searchValues(), type, routingBuilder);
+    }
+
+    /**
+     * Reports a slow response if the asked peer does not reply within its 95th percentile RTT. In adaptive mode, the
+     * routing then uses one more slot from the next round on. With hedged requests, the next peer in the queue is
+     * asked right away as well. The first reply completes the future response of the slot, so the routing continues
+     * with the faster peer. A peer without RTT measurements is not watched.
+     *
+     * @param futureResponse
+     *            The future response of the slot
+     * @param asked
+     *            The peer that was asked
+     * @param routingBuilder
+     *            All relevant information for the routing process
+     * @param routingMechanism
+     *            The routing mechanism that provides the next peer
+     * @param type
+     *            The type of the routing
+     */
+    private void watchResponse(final FutureResponse futureResponse, final PeerAddress asked,
+            final RoutingBuilder routingBuilder, final RoutingMechanism routingMechanism, final Type type) {
+        final PeerStatistic peerStatistic = peerMap().getPeerStatistic(asked);
+        final long delay = peerStatistic == null ? -1 : peerStatistic.getPercentileRTT(SLOW_RESPONSE_PERCENTILE);
+        if (delay <= 0) {
+            return;
+        }
+        final ScheduledFuture<?> scheduledFuture = neighbors.connectionBean().timer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (futureResponse.isCompleted() || routingMechanism.isStopCreatingNewFutures()) {
+                    return;
+                }
+                routingMechanism.slowResponse();
+                if (!routingBuilder.isHedgeRequests()) {
+                    LOG.debug("{} did not reply within {} ms.", asked, delay);
+                    return;
+                }
+                final PeerAddress next = routingMechanism.pollFirstInQueueToAsk();
+                if (next == null) {
+                    return;
+                }
+                routingMechanism.addToAlreadyAsked(next);
+                LOG.debug("{} did not reply within {} ms, ask {} as well.", asked, delay, next);
+                final FutureResponse hedgeResponse = closeNeighbors(next, routingBuilder, type);
+                hedgeResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+                    @Override
+                    public void operationComplete(final FutureResponse future) throws Exception {
+                        if (future.isSuccess()) {
+                            futureResponse.response(future.responseMessage());
+                        }
+                    }
+                });
+                futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+                    @Override
+                    public void operationComplete(final FutureResponse future) throws Exception {
+                        hedgeResponse.cancel();
+                    }
+                });
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+            @Override
+            public void operationComplete(final FutureResponse future) throws Exception {
+                scheduledFuture.cancel(false);
+            }
+        });
+    }
+
     public PeerMap peerMap() {
         return peerBean.peerMap();
     }
@@ -36,9 +36,11 @@ import net.tomp2p.connection.DSASignatureFactory;
 import net.tomp2p.connection.DefaultSendBehavior;
 import net.tomp2p.connection.PeerBean;
 import net.tomp2p.connection.PeerCreator;
+import net.tomp2p.connection.PeerStatusBatcher;
 import net.tomp2p.connection.Ports;
 import net.tomp2p.connection.SendBehavior;
 import net.tomp2p.futures.BaseFuture;
+import net.tomp2p.futures.FutureDone;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.PeerMap;
 import net.tomp2p.peers.PeerMapConfiguration;
@@ -49,6 +51,7 @@ import net.tomp2p.rpc.DirectDataRPC;
 import net.tomp2p.rpc.NeighborRPC;
 import net.tomp2p.rpc.PingRPC;
 import net.tomp2p.rpc.QuitRPC;
+import net.tomp2p.storage.ObjectSerializer;
 import net.tomp2p.utils.Utils;
 
 /**
@@ -106,11 +109,15 @@ public class PeerBuilder {
 
 	private BroadcastHandler broadcastHandler;
 	private BloomfilterFactory bloomfilterFactory;
+	private ObjectSerializer objectSerializer;
 	private ScheduledExecutorService scheduledExecutorService = null;
 	private MaintenanceTask maintenanceTask = null;
 	private Random random = null;
 	private List<PeerInit> toInitialize = new ArrayList<PeerInit>(1);
 	private SendBehavior sendBehavior;
+	// 0 applies peer status events right away
+	private int peerStatusBatchMillis = 0;
+	private RoutingCache routingCache = null;
 
 	// enable / disable RPC/P2P/other
 	@Getter @Setter
@@ -198,6 +205,19 @@ public class PeerBuilder {
 		
 		ConnectionBean connectionBean = peerCreator.connectionBean();
 
+		if (peerStatusBatchMillis > 0) {
+			final PeerStatusBatcher peerStatusBatcher = new PeerStatusBatcher(peerBean).start(
+					connectionBean.timer(), peerStatusBatchMillis);
+			peerBean.peerStatusBatcher(peerStatusBatcher);
+			peer.addShutdownListener(new Shutdown() {
+				@Override
+				public BaseFuture shutdown() {
+					peerStatusBatcher.shutdown();
+					return FutureDone.SUCCESS;
+				}
+			});
+		}
+
 		peerBean.peerMap(peerMap);
 		peerBean.keyPair(keyPair);
 
@@ -205,6 +225,10 @@ public class PeerBuilder {
 			peerBean.bloomfilterFactory(new DefaultBloomfilterFactory());
 		}
 
+		if (objectSerializer != null) {
+			peerBean.objectSerializer(objectSerializer);
+		}
+
 		if (broadcastHandler == null) {
 			broadcastHandler = new StructuredBroadcastHandler();
 		}
@@ -240,6 +264,10 @@ public class PeerBuilder {
 		
 		if (isEnableRouting() && isEnableNeighborRPC()) {
 			DistributedRouting routing = new DistributedRouting(peerBean, peer.neighborRPC());
+			if (routingCache != null) {
+				routing.routingCache(routingCache);
+				peerMap.addPeerMapChangeListener(routingCache);
+			}
 			peer.distributedRouting(routing);
 		}
 
@@ -357,6 +385,23 @@ public class PeerBuilder {
 		return this;
 	}
 
+	public ObjectSerializer objectSerializer() {
+		return objectSerializer;
+	}
+
+	/**
+	 * @param objectSerializer
+	 *            The serializer for objects that are stored with the put and
+	 *            add builders and decoded from the results of get and remove,
+	 *            all peers need a compatible one. The default is Java
+	 *            serialization.
+	 * @return This class
+	 */
+	public PeerBuilder objectSerializer(ObjectSerializer objectSerializer) {
+		this.objectSerializer = objectSerializer;
+		return this;
+	}
+
 	public MaintenanceTask maintenanceTask() {
 		return maintenanceTask;
 	}
@@ -387,6 +432,41 @@ public class PeerBuilder {
 		return this;
 	}
 
+	public int peerStatusBatchMillis() {
+		return peerStatusBatchMillis;
+	}
+
+	/**
+	 * Coalesces the peer found and peer failed events of the dispatch path and
+	 * applies them to the peer map once per window. Only the last relevant
+	 * event per peer is applied.
+	 * 
+	 * @param peerStatusBatchMillis
+	 *            The window in milliseconds, 0 to apply each event right away
+	 * @return This class
+	 */
+	public PeerBuilder peerStatusBatchMillis(int peerStatusBatchMillis) {
+		this.peerStatusBatchMillis = peerStatusBatchMillis;
+		return this;
+	}
+
+	public RoutingCache routingCache() {
+		return routingCache;
+	}
+
+	/**
+	 * Caches the closest peers of recent routings, so that repeated lookups
+	 * of the same key with cached routing enabled skip or shorten the routing.
+	 * 
+	 * @param routingCache
+	 *            The cache, null to disable it
+	 * @return This class
+	 */
+	public PeerBuilder routingCache(RoutingCache routingCache) {
+		this.routingCache = routingCache;
+		return this;
+	}
+
 	public ScheduledExecutorService timer() {
 		return scheduledExecutorService;
 	}
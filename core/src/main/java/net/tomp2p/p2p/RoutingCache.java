@@ -0,0 +1,238 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.p2p;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiFunction;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerMap;
+import net.tomp2p.peers.PeerMapChangeListener;
+import net.tomp2p.peers.PeerStatistic;
+import net.tomp2p.utils.ConcurrentCacheMap;
+import net.tomp2p.utils.ExpirationHandler;
+
+/**
+ * Caches the closest peers that replied during a routing to a location key, so
+ * that the next routing to the same key can be skipped or started with these
+ * peers. An entry expires after its time-to-live and is removed as soon as one
+ * of its peers is removed from the peer map. For the latter, an index maps
+ * each peer to the keys of the entries it appears in. The index may keep keys
+ * of entries that were evicted or replaced, thus an entry is checked before
+ * it is removed, and the keys of a peer are pruned once they outnumber the
+ * entries.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class RoutingCache implements PeerMapChangeListener {
+
+	public static final int DEFAULT_TIME_TO_LIVE_SECONDS = 10;
+	public static final int DEFAULT_MAX_ENTRIES = 4096;
+
+	private final ConcurrentCacheMap<Number160, Entry> cache;
+
+	// peer id -> location keys of the entries with this peer
+	private final ConcurrentMap<Number160, Set<Number160>> index = new ConcurrentHashMap<Number160, Set<Number160>>();
+
+	private final int maxEntries;
+
+	public RoutingCache() {
+		this(DEFAULT_TIME_TO_LIVE_SECONDS, DEFAULT_MAX_ENTRIES);
+	}
+
+	/**
+	 * @param timeToLiveSeconds
+	 *            The time a routing result is valid
+	 * @param maxEntries
+	 *            The max. number of location keys, the least recently used
+	 *            is replaced
+	 */
+	public RoutingCache(final int timeToLiveSeconds, final int maxEntries) {
+		this.maxEntries = maxEntries;
+		// a routing result does not get younger by reading it
+		this.cache = new ConcurrentCacheMap<Number160, Entry>(timeToLiveSeconds, maxEntries, false);
+		this.cache.expirationHandler(new ExpirationHandler<Entry>() {
+			@Override
+			public void expired(final Entry oldValue) {
+				unindex(oldValue);
+			}
+		});
+	}
+
+	/**
+	 * Stores the result of a routing.
+	 *
+	 * @param locationKey
+	 *            The key of the routing
+	 * @param peers
+	 *            The peers that replied during the routing, closest first
+	 */
+	public void put(final Number160 locationKey, final Collection<PeerAddress> peers) {
+		if (peers.isEmpty()) {
+			return;
+		}
+		final Entry entry = new Entry(locationKey, peers.toArray(new PeerAddress[peers.size()]));
+		for (final PeerAddress peerAddress : entry.peers) {
+			index(peerAddress.peerId(), locationKey);
+		}
+		final Entry old = cache.put(locationKey, entry);
+		if (old != null) {
+			unindex(old);
+		}
+	}
+
+	/**
+	 * @param locationKey
+	 *            The key of the routing
+	 * @return A new set with the cached peers sorted by distance to the key or
+	 *         null if nothing is cached
+	 */
+	public NavigableSet<PeerAddress> get(final Number160 locationKey) {
+		final Entry entry = cache.get(locationKey);
+		if (entry == null) {
+			return null;
+		}
+		final NavigableSet<PeerAddress> result = new TreeSet<PeerAddress>(
+				PeerMap.createXORAddressComparator(locationKey));
+		for (final PeerAddress peerAddress : entry.peers) {
+			result.add(peerAddress);
+		}
+		return result;
+	}
+
+	/**
+	 * Removes the cached result of a key.
+	 *
+	 * @param locationKey
+	 *            The key of the routing
+	 */
+	public void invalidate(final Number160 locationKey) {
+		final Entry old = cache.remove(locationKey);
+		if (old != null) {
+			unindex(old);
+		}
+	}
+
+	/**
+	 * @return The number of cached keys, including expired ones
+	 */
+	public int size() {
+		return cache.size();
+	}
+
+	@Override
+	public void peerInserted(final PeerAddress peerAddress, final boolean verified) {
+		// a closer peer is found by the next routing after the entry expired
+	}
+
+	@Override
+	public void peerRemoved(final PeerAddress peerAddress, final PeerStatistic storedPeerAddress) {
+		final Number160 peerId = peerAddress.peerId();
+		final Set<Number160> locationKeys = index.remove(peerId);
+		if (locationKeys == null) {
+			return;
+		}
+		for (final Number160 locationKey : locationKeys) {
+			final Entry entry = cache.get(locationKey);
+			// the key may belong to a newer result without this peer
+			if (entry != null && entry.contains(peerId) && cache.remove(locationKey, entry)) {
+				unindex(entry);
+			}
+		}
+	}
+
+	@Override
+	public void peerUpdated(final PeerAddress peerAddress, final PeerStatistic storedPeerAddress) {
+		// the cached address may be outdated, but the peer is still there
+	}
+
+	/**
+	 * @return The number of peers in the index
+	 */
+	int indexSize() {
+		return index.size();
+	}
+
+	private void index(final Number160 peerId, final Number160 locationKey) {
+		// the set is changed while the index holds the peer, so a racing
+		// unindex cannot remove it in between
+		index.compute(peerId, new BiFunction<Number160, Set<Number160>, Set<Number160>>() {
+			@Override
+			public Set<Number160> apply(final Number160 id, final Set<Number160> oldKeys) {
+				final Set<Number160> locationKeys = oldKeys != null ? oldKeys : Collections
+						.newSetFromMap(new ConcurrentHashMap<Number160, Boolean>());
+				locationKeys.add(locationKey);
+				if (locationKeys.size() > maxEntries) {
+					// evicted entries are not reported, remove their keys, the
+					// new key is not in the cache yet
+					for (final Iterator<Number160> iterator = locationKeys.iterator(); iterator.hasNext();) {
+						final Number160 next = iterator.next();
+						if (!next.equals(locationKey) && !cache.containsKey(next)) {
+							iterator.remove();
+						}
+					}
+				}
+				return locationKeys;
+			}
+		});
+	}
+
+	private void unindex(final Entry entry) {
+		// a newer result for the same key keeps its peers indexed
+		final Entry current = cache.get(entry.locationKey);
+		for (final PeerAddress peerAddress : entry.peers) {
+			if (current != null && current != entry && current.contains(peerAddress.peerId())) {
+				continue;
+			}
+			index.computeIfPresent(peerAddress.peerId(), new BiFunction<Number160, Set<Number160>, Set<Number160>>() {
+				@Override
+				public Set<Number160> apply(final Number160 id, final Set<Number160> locationKeys) {
+					locationKeys.remove(entry.locationKey);
+					return locationKeys.isEmpty() ? null : locationKeys;
+				}
+			});
+		}
+	}
+
+	private static final class Entry {
+		private final Number160 locationKey;
+		private final PeerAddress[] peers;
+
+		private Entry(final Number160 locationKey, final PeerAddress[] peers) {
+			this.locationKey = locationKey;
+			this.peers = peers;
+		}
+
+		private boolean contains(final Number160 peerId) {
+			for (final PeerAddress peerAddress : peers) {
+				if (peerAddress.peerId().equals(peerId)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
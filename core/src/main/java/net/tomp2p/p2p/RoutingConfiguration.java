@@ -28,6 +28,12 @@ public class RoutingConfiguration {
 
     final private boolean forceTCP;
 
+    final private boolean proximityRouting;
+
+    final private boolean hedgeRequests;
+
+    final private boolean adaptiveParallel;
+
     public RoutingConfiguration(int maxNoNewInfoDiff, int maxFailures, int parallel) {
         this(Integer.MAX_VALUE, maxNoNewInfoDiff, maxFailures, 20, parallel);
     }
@@ -60,6 +66,36 @@ public class RoutingConfiguration {
      */
     public RoutingConfiguration(final int maxDirectHits, final int maxNoNewInfoDiff, final int maxFailures,
             final int maxSuccess, final int parallel, final boolean forceTCP) {
+        this(maxDirectHits, maxNoNewInfoDiff, maxFailures, maxSuccess, parallel, forceTCP, false, false, false);
+    }
+
+    /**
+     * Sets the routing configuration, its stop conditions, the proximity neighbor selection and the parallelism.
+     * 
+     * @param maxDirectHits
+     *            Number of direct hits (d)
+     * @param maxNoNewInfoDiff
+     *            Number of no new information (n)
+     * @param maxFailures
+     *            Number of failures (f)
+     * @param maxSuccess
+     *            Number of success (s)
+     * @param parallel
+     *            Number of parallel requests (p)
+     * @param forceTCP
+     *            Flag to indicate that routing should be done with TCP instead of UDP
+     * @param proximityRouting
+     *            Flag to ask the peers with the lowest RTT first among the peers in the same distance class to the key
+     * @param hedgeRequests
+     *            Flag to ask the next peer as well if a peer does not reply within its 95th percentile RTT
+     * @param adaptiveParallel
+     *            Flag to start with one request and use up to p parallel requests only while responses are slow,
+     *            fail or bring no closer peers. A response is slow if it takes longer than the 95th percentile RTT
+     *            of the peer
+     */
+    public RoutingConfiguration(final int maxDirectHits, final int maxNoNewInfoDiff, final int maxFailures,
+            final int maxSuccess, final int parallel, final boolean forceTCP, final boolean proximityRouting,
+            final boolean hedgeRequests, final boolean adaptiveParallel) {
         if (maxDirectHits < 0 || maxNoNewInfoDiff < 0 || maxFailures < 0 || parallel < 0) {
             throw new IllegalArgumentException("Some arguments need to be larger than or equals to zero.");
         }
@@ -69,6 +105,9 @@ public class RoutingConfiguration {
         this.maxSuccess = maxSuccess;
         this.parallel = parallel;
         this.forceTCP = forceTCP;
+        this.proximityRouting = proximityRouting;
+        this.hedgeRequests = hedgeRequests;
+        this.adaptiveParallel = adaptiveParallel;
     }
 
     /**
@@ -127,4 +166,16 @@ public class RoutingConfiguration {
     public boolean isForceTCP() {
         return forceTCP;
     }
+
+    public boolean isProximityRouting() {
+        return proximityRouting;
+    }
+
+    public boolean isHedgeRequests() {
+        return hedgeRequests;
+    }
+
+    public boolean isAdaptiveParallel() {
+        return adaptiveParallel;
+    }
 }
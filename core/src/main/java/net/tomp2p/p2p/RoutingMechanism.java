@@ -57,6 +57,9 @@ public class RoutingMechanism {
     private int maxFailures;
     private int maxSuccess;
     private boolean stopCreatingNewFutures;
+    private boolean adaptiveParallel;
+    // the number of slots in use, guarded by this
+    private int currentParallel;
 
     /**
      * Creates the routing mechanism. Make sure to set the max* fields.
@@ -71,6 +74,7 @@ public class RoutingMechanism {
         this.futureResponses = futureResponses;
         this.futureRoutingResponse = futureRoutingResponse;
         this.peerMapFilters = peerMapFilters;
+        this.currentParallel = futureResponses.length();
     }
     
     public FutureRouting futureRoutingResponse() {
@@ -84,6 +88,54 @@ public class RoutingMechanism {
         return futureResponses.length();
     }
 
+    /**
+     * In adaptive mode, the routing starts with one request. It uses one more slot, up to {@link #parallel()}, if a
+     * response is slow, fails or brings no closer peers, and one slot less if a response brings closer peers, as the
+     * routing then converges.
+     *
+     * @param adaptiveParallel
+     *            True to adapt the number of parallel requests
+     * @return This class
+     */
+    public RoutingMechanism adaptiveParallel(final boolean adaptiveParallel) {
+        synchronized (this) {
+            this.adaptiveParallel = adaptiveParallel;
+            this.currentParallel = adaptiveParallel ? Math.min(1, parallel()) : parallel();
+        }
+        return this;
+    }
+
+    /**
+     * @return The number of requests that should run in parallel now
+     */
+    public int currentParallel() {
+        synchronized (this) {
+            return currentParallel;
+        }
+    }
+
+    /**
+     * Reports that a peer did not reply within its usual RTT. In adaptive mode, one more slot is used from the next
+     * round on.
+     */
+    public void slowResponse() {
+        synchronized (this) {
+            widen();
+        }
+    }
+
+    private void widen() {
+        if (adaptiveParallel && currentParallel < parallel()) {
+            currentParallel++;
+        }
+    }
+
+    private void narrow() {
+        if (adaptiveParallel && currentParallel > 1) {
+            currentParallel--;
+        }
+    }
+
     /**
      * @return True if we should stop creating more futures, false otherwise
      */
@@ -279,7 +331,10 @@ public class RoutingMechanism {
     }
 
     public boolean evaluateFailed() {
-        return (++nrFailures) > maxFailures();
+        synchronized (this) {
+            widen();
+            return (++nrFailures) > maxFailures();
+        }
     }
 
     public boolean evaluateSuccess(PeerAddress remotePeer, DigestInfo digestBean,
@@ -306,6 +361,11 @@ public class RoutingMechanism {
                 // continue
                 finished = false;
                 stopCreatingNewFutures = false;
+                if (nrNoNewInfo == 0) {
+                    narrow();
+                } else {
+                    widen();
+                }
             }
         }
         return finished;
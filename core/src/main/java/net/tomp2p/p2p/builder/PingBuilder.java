@@ -93,6 +93,20 @@ public class PingBuilder {
         return this;
     }
 
+    public ConnectionConfiguration connectionConfiguration() {
+        return connectionConfiguration;
+    }
+
+    /**
+     * @param connectionConfiguration
+     *            The configuration with the timeout of the ping command
+     * @return This class
+     */
+    public PingBuilder connectionConfiguration(ConnectionConfiguration connectionConfiguration) {
+        this.connectionConfiguration = connectionConfiguration;
+        return this;
+    }
+
     public FuturePing start() {
         if (peer.isShutdown()) {
             return FUTURE_PING_SHUTDOWN;
@@ -153,7 +167,7 @@ public class PingBuilder {
 	private FuturePing ping(PeerAddress peerAddress) {
 		final FuturePing futurePing = new FuturePing();
 
-		Pair<FutureDone<Message>, FutureDone<SctpChannelFacade>> p = peer.pingRPC().pingUDP(peerAddress);
+		Pair<FutureDone<Message>, FutureDone<SctpChannelFacade>> p = peer.pingRPC().pingUDP(peerAddress, connectionConfiguration);
 					addPingListener(futurePing, p.element0());
 				
 
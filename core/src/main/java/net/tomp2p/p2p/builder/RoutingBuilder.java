@@ -37,6 +37,10 @@ public class RoutingBuilder extends DefaultConnectionConfiguration {
     private boolean isBootstrap;
     private boolean isForceRoutingOnlyToSelf;
     private boolean isRoutingToOthers;
+    private boolean isProximityRouting;
+    private boolean isHedgeRequests;
+    private boolean isAdaptiveParallel;
+    private boolean isCachedRouting;
 
     public Number160 locationKey() {
         return locationKey;
@@ -107,6 +111,50 @@ public class RoutingBuilder extends DefaultConnectionConfiguration {
         this.isForceRoutingOnlyToSelf = isForceRoutingOnlyToSelf;
     }
 
+    /**
+     * @return True if peers in the same distance class to the key are asked in the order of their RTT
+     */
+    public boolean isProximityRouting() {
+        return isProximityRouting;
+    }
+
+    public void proximityRouting(boolean isProximityRouting) {
+        this.isProximityRouting = isProximityRouting;
+    }
+
+    /**
+     * @return True if the next peer is asked as well when a peer does not reply within its 95th percentile RTT
+     */
+    public boolean isHedgeRequests() {
+        return isHedgeRequests;
+    }
+
+    public void hedgeRequests(boolean isHedgeRequests) {
+        this.isHedgeRequests = isHedgeRequests;
+    }
+
+    /**
+     * @return True if the number of parallel requests adapts to the progress of the routing, with parallel as maximum
+     */
+    public boolean isAdaptiveParallel() {
+        return isAdaptiveParallel;
+    }
+
+    public void adaptiveParallel(boolean isAdaptiveParallel) {
+        this.isAdaptiveParallel = isAdaptiveParallel;
+    }
+
+    /**
+     * @return True if a cached routing result for the location key may replace or shorten the routing
+     */
+    public boolean isCachedRouting() {
+        return isCachedRouting;
+    }
+
+    public void cachedRouting(boolean isCachedRouting) {
+        this.isCachedRouting = isCachedRouting;
+    }
+
     public void locationKey(Number160 locationKey) {
         this.locationKey = locationKey;
     }
@@ -193,6 +241,7 @@ public class RoutingBuilder extends DefaultConnectionConfiguration {
         routingMechanism.maxFailures(maxFailures());
         routingMechanism.maxNoNewInfo(maxNoNewInfo());
         routingMechanism.maxSuccess(maxSuccess());
+        routingMechanism.adaptiveParallel(isAdaptiveParallel());
         return routingMechanism;
     }
 
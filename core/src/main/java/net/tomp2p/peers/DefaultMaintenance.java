@@ -39,7 +39,7 @@ public class DefaultMaintenance implements Maintenance {
     private final int peerUrgency;
     private final int[] intervalSeconds;
 
-    private final List<Map<Number160, PeerStatistic>> peerMapVerified;
+    private final PeerMap peerMap;
     private final List<Map<Number160, PeerStatistic>> peerMapNonVerified;
     private final ConcurrentCacheMap<Number160, PeerAddress> offlineMap;
     private final ConcurrentCacheMap<Number160, PeerAddress> shutdownMap;
@@ -48,8 +48,8 @@ public class DefaultMaintenance implements Maintenance {
     /**
      * Creates a new maintenance class with the verified and non verified map.
      * 
-     * @param peerMapVerified
-     *            The verified map
+     * @param peerMap
+     *            The peer map with the verified peers
      * @param peerMapNonVerified
      *            The non-verified map
      * @param offlineMap
@@ -63,13 +63,13 @@ public class DefaultMaintenance implements Maintenance {
      *            The number of intervals to test a peer. The longer a peer is available the less often we need to check
      * 
      */
-    private DefaultMaintenance(final List<Map<Number160, PeerStatistic>> peerMapVerified,
+    private DefaultMaintenance(final PeerMap peerMap,
             final List<Map<Number160, PeerStatistic>> peerMapNonVerified,
             final ConcurrentCacheMap<Number160, PeerAddress> offlineMap, 
             final ConcurrentCacheMap<Number160, PeerAddress> shutdownMap, 
             final ConcurrentCacheMap<Number160, PeerAddress> exceptionMap, final int peerUrgency,
             final int[] intervalSeconds) {
-        this.peerMapVerified = peerMapVerified;
+        this.peerMap = peerMap;
         this.peerMapNonVerified = peerMapNonVerified;
         this.offlineMap = offlineMap;
         this.shutdownMap = shutdownMap;
@@ -89,7 +89,7 @@ public class DefaultMaintenance implements Maintenance {
      *            The number of intervals to test a peer. The longer a peer is available the less often we need to check
      */
     public DefaultMaintenance(final int peerUrgency, final int[] intervalSeconds) {
-        this.peerMapVerified = null;
+        this.peerMap = null;
         this.peerMapNonVerified = null;
         this.offlineMap = null;
         this.shutdownMap = null;
@@ -99,12 +99,12 @@ public class DefaultMaintenance implements Maintenance {
     }
 
     @Override
-    public Maintenance init(final List<Map<Number160, PeerStatistic>> peerMapVerified,
+    public Maintenance init(final PeerMap peerMap,
             final List<Map<Number160, PeerStatistic>> peerMapNonVerified,
             final ConcurrentCacheMap<Number160, PeerAddress> offlineMap, 
             final ConcurrentCacheMap<Number160, PeerAddress> shutdownMap, 
             final ConcurrentCacheMap<Number160, PeerAddress> exceptionMap) {
-        return new DefaultMaintenance(peerMapVerified, peerMapNonVerified, offlineMap, shutdownMap, exceptionMap, peerUrgency,
+        return new DefaultMaintenance(peerMap, peerMapNonVerified, offlineMap, shutdownMap, exceptionMap, peerUrgency,
                 intervalSeconds);
     }
 
@@ -117,19 +117,17 @@ public class DefaultMaintenance implements Maintenance {
      * @return The next most important peer to check if it is still alive.
      */
     public PeerStatistic nextForMaintenance(Collection<PeerAddress> notInterestedAddresses) {
-        if (peerMapVerified == null || peerMapNonVerified == null || offlineMap == null 
+        if (peerMap == null || peerMapNonVerified == null || offlineMap == null 
                 || shutdownMap == null || exceptionMap == null) {
             throw new IllegalArgumentException("Did not initialize some of the maintenance maps.");
         }
+        final PeerMapSnapshot snapshot = peerMap.snapshot();
         int peersBefore = 0;
         for (int i = 0; i < Number160.BITS; i++) {
-            final Map<Number160, PeerStatistic> mapVerified = peerMapVerified.get(i);
-            boolean urgent = false;
-            synchronized (mapVerified) {
-                final int size = mapVerified.size();
-                peersBefore += size;
-                urgent = isUrgent(i, size, peersBefore);
-            }
+            final List<PeerStatistic> mapVerified = snapshot.bag(i);
+            final int size = mapVerified.size();
+            peersBefore += size;
+            final boolean urgent = isUrgent(i, size, peersBefore);
             if (urgent) {
                 final Map<Number160, PeerStatistic> mapNonVerified = peerMapNonVerified.get(i);
                 final PeerStatistic readyForMaintenance = next(mapNonVerified);
@@ -158,10 +156,14 @@ public class DefaultMaintenance implements Maintenance {
      */
     private PeerStatistic next(final Map<Number160, PeerStatistic> map) {
         synchronized (map) {
-            for (PeerStatistic peerStatistic : map.values()) {
-                if (needMaintenance(peerStatistic, intervalSeconds)) {
-                    return peerStatistic;
-                }
+            return next(map.values());
+        }
+    }
+
+    private PeerStatistic next(final Collection<PeerStatistic> peerStatistics) {
+        for (PeerStatistic peerStatistic : peerStatistics) {
+            if (needMaintenance(peerStatistic, intervalSeconds)) {
+                return peerStatistic;
             }
         }
         return null;
@@ -34,8 +34,8 @@ public interface Maintenance {
     /**
      * Initializes the maintenance class. This may result in a new class
      * 
-     * @param peerMapVerified
-     *            The map with the bags of verified peers
+     * @param peerMap
+     *            The peer map, its verified peers are read from {@link PeerMap#snapshot()}
      * @param peerMapNonVerified
      *            The map with the bags of non verified peers
      * @param offlineMap
@@ -44,7 +44,7 @@ public interface Maintenance {
      * @param exceptionMap The map with the peers that caused an exception
      * @return The same or a new maintenance class
      */
-    Maintenance init(List<Map<Number160, PeerStatistic>> peerMapVerified,
+    Maintenance init(PeerMap peerMap,
             List<Map<Number160, PeerStatistic>> peerMapNonVerified,
             ConcurrentCacheMap<Number160, PeerAddress> offlineMap, 
             ConcurrentCacheMap<Number160, PeerAddress> shutdownMap, ConcurrentCacheMap<Number160, PeerAddress> exceptionMap);
@@ -15,6 +15,10 @@
  */
 package net.tomp2p.peers;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.util.Random;
 
 import io.netty.buffer.ByteBuf;
@@ -23,7 +27,9 @@ import net.tomp2p.utils.Utils;
 
 /**
  * This class represents a 160 bit number. This class is preferred over BigInteger as we always have 160bit, and thus,
- * methods can be optimized.
+ * methods can be optimized. The number is stored in an int and two longs instead of an int[5], so an instance is one
+ * object of 32 bytes instead of two objects of 56 bytes, and xor, compare and the distance bit length do not allocate
+ * or follow pointers.
  * 
  * @author Thomas Bocek
  */
@@ -53,8 +59,13 @@ public final class Number160 extends Number implements Comparable<Number160> {
 
     public static final int CHARS_PER_INT = 8;
 
-    // backing integer array
-    private final int[] val;
+    // the most significant 32 bits, then 64 bits each. They are only assigned in the constructors and readObject.
+    private transient int hi;
+    private transient long mid;
+    private transient long lo;
+
+    // the serialized form is still the int[5] of older versions, as it is used for stored keys
+    private static final ObjectStreamField[] serialPersistentFields = { new ObjectStreamField("val", int[].class) };
 
     // constants
     public static final Number160 ZERO = new Number160(0);
@@ -67,7 +78,13 @@ public final class Number160 extends Number implements Comparable<Number160> {
      * Create a Key with value 0.
      */
     public Number160() {
-        this.val = new int[INT_ARRAY_SIZE];
+    }
+
+    // private, as new Number160(1, 2, 3) would otherwise no longer mean the int array {0, 0, 1, 2, 3}
+    private Number160(final int hi, final long mid, final long lo) {
+        this.hi = hi;
+        this.mid = mid;
+        this.lo = lo;
     }
 
     /**
@@ -81,11 +98,12 @@ public final class Number160 extends Number implements Comparable<Number160> {
         if (val.length > INT_ARRAY_SIZE) {
             throw new IllegalArgumentException(String.format("Can only deal with arrays of size smaller or equal to %s. Provided array has %s length.", INT_ARRAY_SIZE, val.length));
         }
-        this.val = new int[INT_ARRAY_SIZE];
+        final int[] tmp = new int[INT_ARRAY_SIZE];
         final int len = val.length;
         for (int i = len - 1, j = INT_ARRAY_SIZE - 1; i >= 0; i--, j--) {
-            this.val[j] = val[i];
+            tmp[j] = val[i];
         }
+        set(tmp);
     }
 
     /**
@@ -103,11 +121,11 @@ public final class Number160 extends Number implements Comparable<Number160> {
             throw new IllegalArgumentException(val
                     + " is not in hexadecimal form. Decimal form is not supported yet");
         }
-        this.val = new int[INT_ARRAY_SIZE];
+        final int[] ints = new int[INT_ARRAY_SIZE];
         final char[] tmp = val.toCharArray();
         final int len = tmp.length;
         for (int i = STRING_LENGTH - len, j = 2; i < (STRING_LENGTH - 2); i++, j++) {
-            this.val[i >> 3] <<= 4;
+            ints[i >> 3] <<= 4;
 
             int digit = Character.digit(tmp[j], 16);
             if (digit < 0) {
@@ -115,8 +133,9 @@ public final class Number160 extends Number implements Comparable<Number160> {
                         + "\". The range is [0-9a-f]");
             }
             // += or |= does not matter here
-            this.val[i >> 3] += digit & CHAR_MASK;
+            ints[i >> 3] += digit & CHAR_MASK;
         }
+        set(ints);
     }
 
     /**
@@ -126,8 +145,7 @@ public final class Number160 extends Number implements Comparable<Number160> {
      *            integer value
      */
     public Number160(final int val) {
-        this.val = new int[INT_ARRAY_SIZE];
-        this.val[INT_ARRAY_SIZE - 1] = val;
+        this.lo = val & LONG_MASK;
     }
 
     /**
@@ -137,9 +155,7 @@ public final class Number160 extends Number implements Comparable<Number160> {
      *            long value
      */
     public Number160(final long val) {
-        this.val = new int[INT_ARRAY_SIZE];
-        this.val[INT_ARRAY_SIZE - 1] = (int) val;
-        this.val[INT_ARRAY_SIZE - 2] = (int) (val >> Integer.SIZE);
+        this.lo = val;
     }
 
     /**
@@ -166,11 +182,12 @@ public final class Number160 extends Number implements Comparable<Number160> {
         if (length > BYTE_ARRAY_SIZE) {
             throw new IllegalArgumentException(String.format("Can only deal with byte arrays of size smaller or equal to %s. Provided array has %s length.", BYTE_ARRAY_SIZE, length));
         }
-        this.val = new int[INT_ARRAY_SIZE];
+        final int[] tmp = new int[INT_ARRAY_SIZE];
         for (int i = length + offset - 1, j = BYTE_ARRAY_SIZE - 1, k = 0; i >= offset; i--, j--, k++) {
             // += or |= does not matter here
-            this.val[j >> 2] |= (val[i] & BYTE_MASK) << ((k % 4) << 3);
+            tmp[j >> 2] |= (val[i] & BYTE_MASK) << ((k % 4) << 3);
         }
+        set(tmp);
     }
 
     /**
@@ -181,10 +198,10 @@ public final class Number160 extends Number implements Comparable<Number160> {
      *            can be set to make the random values repeatable.
      */
     public Number160(final Random random) {
-        this.val = new int[INT_ARRAY_SIZE];
-        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            this.val[i] = random.nextInt();
-        }
+        // same order of random numbers as with an int[5]
+        this.hi = random.nextInt();
+        this.mid = toLong(random.nextInt(), random.nextInt());
+        this.lo = toLong(random.nextInt(), random.nextInt());
     }
 
     /**
@@ -196,26 +213,23 @@ public final class Number160 extends Number implements Comparable<Number160> {
      *            The rest will be filled with this number
      */
     public Number160(final long timestamp, Number160 number96) {
-        this.val = new int[INT_ARRAY_SIZE];
-        this.val[0] = (int) (timestamp >> Integer.SIZE);
-        this.val[1] = (int) timestamp;
-        this.val[2] = number96.val[2];
-        this.val[3] = number96.val[3];
-        this.val[4] = number96.val[4];
+        this.hi = (int) (timestamp >> Integer.SIZE);
+        this.mid = ((timestamp & LONG_MASK) << Integer.SIZE) | (number96.mid & LONG_MASK);
+        this.lo = number96.lo;
     }
 
     /**
      * @return The first (most significant) 64bits
      */
     public long timestamp() {
-        return ((this.val[0] & LONG_MASK) << Integer.SIZE) + (this.val[1] & LONG_MASK);
+        return ((this.hi & LONG_MASK) << Integer.SIZE) + (this.mid >>> Integer.SIZE);
     }
     
     /**
      * @return The lower (least significant) 96 bits
      */
     public Number160 number96() {
-        return new Number160(0, 0, this.val[2], this.val[3], this.val[4]);
+        return new Number160(0, this.mid & LONG_MASK, this.lo);
     }
 
     /**
@@ -226,26 +240,84 @@ public final class Number160 extends Number implements Comparable<Number160> {
      * @return A new key with the result of the xor operation
      */
     public Number160 xor(final Number160 key) {
-        final int[] result = new int[INT_ARRAY_SIZE];
-        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            result[i] = this.val[i] ^ key.val[i];
-        }
-        return new Number160(result);
+        return new Number160(this.hi ^ key.hi, this.mid ^ key.mid, this.lo ^ key.lo);
+    }
+
+    /**
+     * Create a Key from its packed form, see {@link #hi()}, {@link #mid()} and {@link #lo()}.
+     * 
+     * @param hi
+     *            The most significant 32 bits
+     * @param mid
+     *            The next 64 bits
+     * @param lo
+     *            The least significant 64 bits
+     * @return The new key
+     */
+    public static Number160 createPacked(final int hi, final long mid, final long lo) {
+        return new Number160(hi, mid, lo);
+    }
+
+    /**
+     * Same as xor(key).bitLength(), but without creating the xor result.
+     * 
+     * @param key
+     *            The second operand for the xor operation
+     * @return The bits used to represent the xor distance
+     */
+    public int xorBitLength(final Number160 key) {
+        return bitLength(this.hi ^ key.hi, this.mid ^ key.mid, this.lo ^ key.lo);
     }
 
     /**
-     * Returns a copy of the backing array, which is always of size 5.
+     * Same as xor(key1).compareTo(xor(key2)), but without creating the xor results. This is the Kademlia distance
+     * comparison.
      * 
-     * @return a copy of the backing array
+     * @param key1
+     *            The first key
+     * @param key2
+     *            The second key
+     * @return -1 if key1 is closer to this number, 1 if key2 is closer, 0 if both are equal
+     */
+    public int compareXor(final Number160 key1, final Number160 key2) {
+        return compare(this.hi ^ key1.hi, this.mid ^ key1.mid, this.lo ^ key1.lo, this.hi ^ key2.hi,
+                this.mid ^ key2.mid, this.lo ^ key2.lo);
+    }
+
+    /**
+     * Returns a copy of the number as int array, which is always of size 5.
+     * 
+     * @return a copy of the number as int array
      */
     public int[] toIntArray() {
         final int[] retVal = new int[INT_ARRAY_SIZE];
         for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            retVal[i] = this.val[i];
+            retVal[i] = intAt(i);
         }
         return retVal;
     }
 
+    /**
+     * @return The most significant 32 bits
+     */
+    public int hi() {
+        return hi;
+    }
+
+    /**
+     * @return The 64 bits after the most significant 32 bits
+     */
+    public long mid() {
+        return mid;
+    }
+
+    /**
+     * @return The least significant 64 bits
+     */
+    public long lo() {
+        return lo;
+    }
+
     /**
      * Fills the byte array with this number.
      * 
@@ -263,10 +335,11 @@ public final class Number160 extends Number implements Comparable<Number160> {
         for (int i = 0; i < INT_ARRAY_SIZE; i++) {
             // multiply by four
             final int idx = offset + (i << 2);
-            me[idx] = (byte) (val[i] >> 24);
-            me[idx + 1] = (byte) (val[i] >> 16);
-            me[idx + 2] = (byte) (val[i] >> 8);
-            me[idx + 3] = (byte) (val[i]);
+            final int val = intAt(i);
+            me[idx] = (byte) (val >> 24);
+            me[idx + 1] = (byte) (val >> 16);
+            me[idx + 2] = (byte) (val >> 8);
+            me[idx + 3] = (byte) (val);
         }
         return offset + BYTE_ARRAY_SIZE;
     }
@@ -293,8 +366,9 @@ public final class Number160 extends Number implements Comparable<Number160> {
         boolean removeZero = removeLeadingZero;
         final StringBuilder sb = new StringBuilder("0x");
         for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            toHex(val[i], removeZero, sb);
-            if (removeZero && val[i] != 0) {
+            final int val = intAt(i);
+            toHex(val, removeZero, sb);
+            if (removeZero && val != 0) {
                 removeZero = false;
             }
         }
@@ -307,12 +381,7 @@ public final class Number160 extends Number implements Comparable<Number160> {
      * @return True if this number is zero, false otherwise
      */
     public boolean isZero() {
-        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            if (this.val[i] != 0) {
-                return false;
-            }
-        }
-        return true;
+        return hi == 0 && mid == 0 && lo == 0;
     }
 
     /**
@@ -321,15 +390,17 @@ public final class Number160 extends Number implements Comparable<Number160> {
      * @return The bits used
      */
     public int bitLength() {
-        int bits = 0;
-        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            if (this.val[i] != 0) {
-                bits += Integer.SIZE - Integer.numberOfLeadingZeros(this.val[i]);
-                bits += Integer.SIZE * (INT_ARRAY_SIZE - ++i);
-                break;
-            }
+        return bitLength(hi, mid, lo);
+    }
+
+    private static int bitLength(final int hi, final long mid, final long lo) {
+        if (hi != 0) {
+            return BITS - Integer.numberOfLeadingZeros(hi);
+        } else if (mid != 0) {
+            return (Long.SIZE * 2) - Long.numberOfLeadingZeros(mid);
+        } else {
+            return Long.SIZE - Long.numberOfLeadingZeros(lo);
         }
-        return bits;
     }
 
     @Override
@@ -342,7 +413,7 @@ public final class Number160 extends Number implements Comparable<Number160> {
         double d = 0;
         for (int i = 0; i < INT_ARRAY_SIZE; i++) {
             d *= LONG_MASK + 1;
-            d += this.val[i] & LONG_MASK;
+            d += intAt(i) & LONG_MASK;
         }
         return d;
     }
@@ -354,7 +425,7 @@ public final class Number160 extends Number implements Comparable<Number160> {
 
     @Override
     public int intValue() {
-        return this.val[INT_ARRAY_SIZE - 1];
+        return (int) lo;
     }
 
     /**
@@ -365,25 +436,62 @@ public final class Number160 extends Number implements Comparable<Number160> {
      * @return the long of the unsigned int
      */
     long unsignedInt(final int pos) {
-        return this.val[pos] & LONG_MASK;
+        return intAt(pos) & LONG_MASK;
+    }
+
+    /**
+     * @param pos
+     *            The position as in an int[5], 0 is the most significant
+     * @return The 32 bits at this position
+     */
+    private int intAt(final int pos) {
+        switch (pos) {
+        case 0:
+            return hi;
+        case 1:
+            return (int) (mid >>> Integer.SIZE);
+        case 2:
+            return (int) mid;
+        case 3:
+            return (int) (lo >>> Integer.SIZE);
+        case 4:
+            return (int) lo;
+        default:
+            throw new IndexOutOfBoundsException("position " + pos);
+        }
+    }
+
+    private void set(final int[] val) {
+        this.hi = val[0];
+        this.mid = toLong(val[1], val[2]);
+        this.lo = toLong(val[3], val[4]);
+    }
+
+    private static long toLong(final int high, final int low) {
+        return ((long) high << Integer.SIZE) | (low & LONG_MASK);
     }
 
     @Override
     public long longValue() {
-        return ((this.val[INT_ARRAY_SIZE - 1] & LONG_MASK) << Integer.SIZE)
-                + (this.val[INT_ARRAY_SIZE - 2] & LONG_MASK);
+        // the two least significant ints, swapped as it always was
+        return ((lo & LONG_MASK) << Integer.SIZE) + (lo >>> Integer.SIZE);
     }
 
     @Override
     public int compareTo(final Number160 o) {
-        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            long b1 = val[i] & LONG_MASK;
-            long b2 = o.val[i] & LONG_MASK;
-            if (b1 < b2) {
-                return -1;
-            } else if (b1 > b2) {
-                return 1;
-            }
+        return compare(hi, mid, lo, o.hi, o.mid, o.lo);
+    }
+
+    static int compare(final int hi1, final long mid1, final long lo1, final int hi2, final long mid2,
+            final long lo2) {
+        if (hi1 != hi2) {
+            return Integer.compareUnsigned(hi1, hi2) < 0 ? -1 : 1;
+        }
+        if (mid1 != mid2) {
+            return Long.compareUnsigned(mid1, mid2) < 0 ? -1 : 1;
+        }
+        if (lo1 != lo2) {
+            return Long.compareUnsigned(lo1, lo2) < 0 ? -1 : 1;
         }
         return 0;
     }
@@ -397,21 +505,38 @@ public final class Number160 extends Number implements Comparable<Number160> {
             return true;
         }
         final Number160 key = (Number160) obj;
-        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            if (key.val[i] != val[i]) {
-                return false;
-            }
-        }
-        return true;
+        return key.hi == hi && key.mid == mid && key.lo == lo;
     }
 
     @Override
     public int hashCode() {
-        int hashCode = 0;
-        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            hashCode = (int) (31 * hashCode + (val[i] & LONG_MASK));
+        return hashCode(hi, mid, lo);
+    }
+
+    /**
+     * The same hash code as with an int[5], used by Number640 for its packed keys.
+     */
+    static int hashCode(final int hi, final long mid, final long lo) {
+        int hashCode = (int) (hi & LONG_MASK);
+        hashCode = (int) (31 * hashCode + (mid >>> Integer.SIZE));
+        hashCode = (int) (31 * hashCode + (mid & LONG_MASK));
+        hashCode = (int) (31 * hashCode + (lo >>> Integer.SIZE));
+        return (int) (31 * hashCode + (lo & LONG_MASK));
+    }
+
+    private void writeObject(final ObjectOutputStream out) throws IOException {
+        final ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("val", toIntArray());
+        out.writeFields();
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+        final ObjectInputStream.GetField fields = in.readFields();
+        final int[] val = (int[]) fields.get("val", null);
+        if (val == null || val.length != INT_ARRAY_SIZE) {
+            throw new IOException("invalid serialized Number160");
         }
-        return hashCode;
+        set(val);
     }
 
     /**
@@ -482,7 +607,7 @@ public final class Number160 extends Number implements Comparable<Number160> {
 	}
 
 	public static Number160 decode(ByteBuf buf) {
-		return new Number160(buf.readInt(), buf.readInt(), buf.readInt(), buf.readInt(), buf.readInt());
+		return new Number160(buf.readInt(), buf.readLong(), buf.readLong());
 	}
 
 	public int encode(byte[] me, int offset) {
@@ -490,7 +615,7 @@ public final class Number160 extends Number implements Comparable<Number160> {
 	}
 
 	public Number160 encode(ByteBuf buf) {
-		buf.writeInt(val[0]).writeInt(val[1]).writeInt(val[2]).writeInt(val[3]).writeInt(val[4]);
+		buf.writeInt(hi).writeLong(mid).writeLong(lo);
 		return this;
 	}
 }
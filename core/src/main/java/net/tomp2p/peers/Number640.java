@@ -16,10 +16,16 @@
 
 package net.tomp2p.peers;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.util.Random;
 
 /**
- * This class stores the location, domain, content and version keys.
+ * This class stores the location, domain, content and version keys. The four keys are packed into primitive fields
+ * of this object, so a stored key is one object instead of five, and compareTo, equals and hashCode do not follow
+ * pointers. The accessors for the single keys create a {@link Number160} on each call.
  * 
  * @author Thomas Bocek
  * 
@@ -30,14 +36,25 @@ public final class Number640 extends Number implements Comparable<Number640> {
 	public static final Number640 ZERO = new Number640(Number480.ZERO, Number160.ZERO);
 	
 	public static final int BYTE_ARRAY_SIZE = Number160.BYTE_ARRAY_SIZE * 4;
-	
-    private final Number160 locationKey;
 
-    private final Number160 domainKey;
+    // the serialized form is still the four Number160 of older versions, as it is used for stored keys
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("locationKey", Number160.class), new ObjectStreamField("domainKey", Number160.class),
+            new ObjectStreamField("contentKey", Number160.class), new ObjectStreamField("versionKey", Number160.class) };
 
-    private final Number160 contentKey;
-    
-    private final Number160 versionKey;
+    // the packed keys, see Number160. They are only assigned in the constructors and readObject.
+    private transient int locationHi;
+    private transient long locationMid;
+    private transient long locationLo;
+    private transient int domainHi;
+    private transient long domainMid;
+    private transient long domainLo;
+    private transient int contentHi;
+    private transient long contentMid;
+    private transient long contentLo;
+    private transient int versionHi;
+    private transient long versionMid;
+    private transient long versionLo;
 
     /**
      * Creates a new Number640 key from given location, domain, content and version keys.
@@ -52,22 +69,52 @@ public final class Number640 extends Number implements Comparable<Number640> {
      * 			  The version key
      */
     public Number640(final Number160 locationKey, final Number160 domainKey, final Number160 contentKey, final Number160 versionKey) {
+        set(locationKey, domainKey, contentKey, versionKey);
+    }
+
+    private void set(final Number160 locationKey, final Number160 domainKey, final Number160 contentKey, final Number160 versionKey) {
         if (locationKey == null) {
             throw new RuntimeException("locationKey cannot be null");
         }
-        this.locationKey = locationKey;
+        this.locationHi = locationKey.hi();
+        this.locationMid = locationKey.mid();
+        this.locationLo = locationKey.lo();
         if (domainKey == null) {
             throw new RuntimeException("domainKey cannot be null");
         }
-        this.domainKey = domainKey;
+        this.domainHi = domainKey.hi();
+        this.domainMid = domainKey.mid();
+        this.domainLo = domainKey.lo();
         if (contentKey == null) {
             throw new RuntimeException("contentKey cannot be null");
         }
-        this.contentKey = contentKey;
+        this.contentHi = contentKey.hi();
+        this.contentMid = contentKey.mid();
+        this.contentLo = contentKey.lo();
         if (versionKey == null) {
             throw new RuntimeException("versionKey cannot be null");
         }
-        this.versionKey = versionKey;
+        this.versionHi = versionKey.hi();
+        this.versionMid = versionKey.mid();
+        this.versionLo = versionKey.lo();
+    }
+
+    /**
+     * Copies the location and domain key and sets the content and the version key.
+     */
+    private Number640(final Number640 key, final Number160 contentKey, final Number160 versionKey) {
+        this.locationHi = key.locationHi;
+        this.locationMid = key.locationMid;
+        this.locationLo = key.locationLo;
+        this.domainHi = key.domainHi;
+        this.domainMid = key.domainMid;
+        this.domainLo = key.domainLo;
+        this.contentHi = contentKey.hi();
+        this.contentMid = contentKey.mid();
+        this.contentLo = contentKey.lo();
+        this.versionHi = versionKey.hi();
+        this.versionMid = versionKey.mid();
+        this.versionLo = versionKey.lo();
     }
 
     /**
@@ -110,33 +157,56 @@ public final class Number640 extends Number implements Comparable<Number640> {
      * @return The location key
      */
     public Number160 locationKey() {
-        return locationKey;
+        return Number160.createPacked(locationHi, locationMid, locationLo);
     }
 
     /**
      * @return The domain key
      */
     public Number160 domainKey() {
-        return domainKey;
+        return Number160.createPacked(domainHi, domainMid, domainLo);
     }
 
     /**
      * @return The content key
      */
     public Number160 contentKey() {
-        return contentKey;
+        return Number160.createPacked(contentHi, contentMid, contentLo);
     }
     
     /**
      * @return The version key
      */
     public Number160 versionKey() {
-        return versionKey;
+        return Number160.createPacked(versionHi, versionMid, versionLo);
+    }
+
+    /**
+     * Same as locationKey().equals(o.locationKey()), but without creating the location keys.
+     * 
+     * @param o
+     *            The other key
+     * @return True if both keys have the same location key
+     */
+    public boolean sameLocationKey(final Number640 o) {
+        return locationHi == o.locationHi && locationMid == o.locationMid && locationLo == o.locationLo;
+    }
+
+    /**
+     * Same as locationKey().hashCode(), but without creating the location key.
+     * 
+     * @return The hash code of the location key
+     */
+    public int locationKeyHashCode() {
+        return Number160.hashCode(locationHi, locationMid, locationLo);
     }
 
     @Override
     public int hashCode() {
-        return locationKey.hashCode() ^ domainKey.hashCode() ^ contentKey.hashCode() ^ versionKey.hashCode();
+        return Number160.hashCode(locationHi, locationMid, locationLo)
+                ^ Number160.hashCode(domainHi, domainMid, domainLo)
+                ^ Number160.hashCode(contentHi, contentMid, contentLo)
+                ^ Number160.hashCode(versionHi, versionMid, versionLo);
     }
 
     @Override
@@ -148,50 +218,66 @@ public final class Number640 extends Number implements Comparable<Number640> {
             return true;
         }
         Number640 cmp = (Number640) obj;
-        
-        boolean t1 = locationKey.equals(cmp.locationKey);
-        boolean t2 = domainKey.equals(cmp.domainKey);
-        boolean t3 = contentKey.equals(cmp.contentKey);
-        boolean t4 = versionKey.equals(cmp.versionKey);
-        
-        return t1 && t2 && t3 && t4;
+        return sameLocationKey(cmp) 
+                && domainHi == cmp.domainHi && domainMid == cmp.domainMid && domainLo == cmp.domainLo
+                && contentHi == cmp.contentHi && contentMid == cmp.contentMid && contentLo == cmp.contentLo
+                && versionHi == cmp.versionHi && versionMid == cmp.versionMid && versionLo == cmp.versionLo;
     }
 
     @Override
     public int compareTo(final Number640 o) {
-        int diff = locationKey.compareTo(o.locationKey);
+        int diff = Number160.compare(locationHi, locationMid, locationLo, o.locationHi, o.locationMid, o.locationLo);
         if (diff != 0) {
             return diff;
         }
-        diff = domainKey.compareTo(o.domainKey);
+        diff = Number160.compare(domainHi, domainMid, domainLo, o.domainHi, o.domainMid, o.domainLo);
         if (diff != 0) {
             return diff;
         }
-        diff = contentKey.compareTo(o.contentKey);
+        diff = Number160.compare(contentHi, contentMid, contentLo, o.contentHi, o.contentMid, o.contentLo);
         if (diff != 0) {
             return diff;
         }
-        return versionKey.compareTo(o.versionKey);
+        return Number160.compare(versionHi, versionMid, versionLo, o.versionHi, o.versionMid, o.versionLo);
+    }
+
+    private void writeObject(final ObjectOutputStream out) throws IOException {
+        final ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("locationKey", locationKey());
+        fields.put("domainKey", domainKey());
+        fields.put("contentKey", contentKey());
+        fields.put("versionKey", versionKey());
+        out.writeFields();
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+        final ObjectInputStream.GetField fields = in.readFields();
+        try {
+            set((Number160) fields.get("locationKey", null), (Number160) fields.get("domainKey", null),
+                    (Number160) fields.get("contentKey", null), (Number160) fields.get("versionKey", null));
+        } catch (RuntimeException e) {
+            throw new IOException("invalid serialized Number640", e);
+        }
     }
 
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder("[");
-        sb.append(locationKey.toString()).append(",");
-        sb.append(domainKey.toString()).append(",");
-        sb.append(contentKey.toString()).append(",");
-        sb.append(versionKey.toString()).append("]");
+        sb.append(locationKey().toString()).append(",");
+        sb.append(domainKey().toString()).append(",");
+        sb.append(contentKey().toString()).append(",");
+        sb.append(versionKey().toString()).append("]");
         return sb.toString();
     }
 
     @Override
     public int intValue() {
-        return contentKey.intValue();
+        return (int) contentLo;
     }
 
     @Override
     public long longValue() {
-        return contentKey.longValue();
+        return contentKey().longValue();
     }
 
     @Override
@@ -201,33 +287,33 @@ public final class Number640 extends Number implements Comparable<Number640> {
 
     @Override
     public double doubleValue() {
-        return (locationKey.doubleValue() * Math.pow(2, Number160.BITS * 3))
-                + (domainKey.doubleValue() * Math.pow(2, Number160.BITS * 2)) 
-                + (contentKey.doubleValue() * Math.pow(2, Number160.BITS))
-                + versionKey.doubleValue();
+        return (locationKey().doubleValue() * Math.pow(2, Number160.BITS * 3))
+                + (domainKey().doubleValue() * Math.pow(2, Number160.BITS * 2)) 
+                + (contentKey().doubleValue() * Math.pow(2, Number160.BITS))
+                + versionKey().doubleValue();
     }
     
     public Number640 minVersionKey() {
-        return new Number640(locationKey, domainKey, contentKey, Number160.ZERO);
+        return new Number640(this, contentKey(), Number160.ZERO);
     }
     
     public Number640 minContentKey() {
-        return new Number640(locationKey, domainKey, Number160.ZERO, Number160.ZERO);
+        return new Number640(this, Number160.ZERO, Number160.ZERO);
     }
     
     public Number640 maxVersionKey() {
-        return new Number640(locationKey, domainKey, contentKey, Number160.MAX_VALUE);
+        return new Number640(this, contentKey(), Number160.MAX_VALUE);
     }
     
     public Number640 maxContentKey() {
-        return new Number640(locationKey, domainKey, Number160.MAX_VALUE, Number160.MAX_VALUE);
+        return new Number640(this, Number160.MAX_VALUE, Number160.MAX_VALUE);
     }
     
     public Number320 locationAndDomainKey() {
-        return new Number320(locationKey, domainKey);
+        return new Number320(locationKey(), domainKey());
     }
     
     public Number480 locationAndDomainAndContentKey() {
-        return new Number480(locationKey, domainKey, contentKey);
+        return new Number480(locationKey(), domainKey(), contentKey());
     }
 }
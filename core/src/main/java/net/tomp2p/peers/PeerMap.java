@@ -27,6 +27,9 @@ import java.util.NavigableSet;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
 
 import net.tomp2p.connection.PeerException;
 import net.tomp2p.connection.PeerException.AbortCause;
@@ -62,6 +65,15 @@ public class PeerMap implements PeerStatusListener, Maintainable {
     // the storage for the peers that are not verified or overflown
     private final List<Map<Number160, PeerStatistic>> peerMapOverflow;
 
+    // the verified bags for readers, republished by the writer that changed bags
+    private final AtomicReference<PeerMapSnapshot> snapshot = new AtomicReference<PeerMapSnapshot>(
+            PeerMapSnapshot.empty());
+
+    // the bags that changed since the last snapshot, 1 if changed
+    private final AtomicIntegerArray changedBags = new AtomicIntegerArray(Number160.BITS);
+    private final AtomicBoolean changed = new AtomicBoolean(false);
+    private final AtomicBoolean publishing = new AtomicBoolean(false);
+
     private final ConcurrentCacheMap<Number160, PeerAddress> offlineMap;
     private final ConcurrentCacheMap<Number160, PeerAddress> shutdownMap;
     private final ConcurrentCacheMap<Number160, PeerAddress> exceptionMap;
@@ -76,6 +88,9 @@ public class PeerMap implements PeerStatusListener, Maintainable {
 
     private final Maintenance maintenance;
 
+    // return exactly the requested number of neighbors instead of whole bags
+    private final boolean exactNeighbors;
+
     private PeerStatisticComparator peerStatisticComparator;
     
     private final ConcurrentCacheSet<PeerAddress> knownPeers = new ConcurrentCacheSet<>(24 * 60 * 60, 10000);
@@ -108,9 +123,10 @@ public class PeerMap implements PeerStatusListener, Maintainable {
                 peerMapConfiguration.shutdownTimeout(), totalNumberOfVerifiedBags());
         this.exceptionMap = new ConcurrentCacheMap<Number160, PeerAddress>(
                 peerMapConfiguration.exceptionTimeout(), totalNumberOfVerifiedBags());
-        this.maintenance = peerMapConfiguration.maintenance().init(peerMapVerified, peerMapOverflow,
+        this.maintenance = peerMapConfiguration.maintenance().init(this, peerMapOverflow,
                 offlineMap, shutdownMap, exceptionMap);
         this.peerStatisticComparator = peerMapConfiguration.getPeerStatisticComparator();
+        this.exactNeighbors = peerMapConfiguration.isExactNeighbors();
     }
 
     private int totalNumberOfVerifiedBags() {
@@ -231,13 +247,68 @@ public class PeerMap implements PeerStatusListener, Maintainable {
      * @return the total number of peers
      */
     public int size() {
-        int size = 0;
-        for (Map<Number160, PeerStatistic> map : peerMapVerified) {
+        return snapshot().size();
+    }
+
+    /**
+     * Returns the current verified bags without locking. Use this for several reads that need to see the same
+     * routing table. The snapshot is published by the thread that changed the bags, so reading it never copies.
+     * 
+     * @return The current snapshot of the verified bags
+     */
+    public PeerMapSnapshot snapshot() {
+        return snapshot.get();
+    }
+
+    /**
+     * Marks a bag as changed. The caller must have changed the bag while holding its lock.
+     * 
+     * @param classMember
+     *            The number of the changed bag
+     */
+    private void changed(final int classMember) {
+        changedBags.set(classMember, 1);
+        changed.set(true);
+    }
+
+    /**
+     * Publishes the changed bags after a peer was inserted into or removed from the verified map. The caller must not
+     * hold the lock of a bag. If another thread is publishing, the bags are only marked, and that thread publishes
+     * them before it stops. Thus, many concurrent changes coalesce into a few copies.
+     */
+    private void publishChanges() {
+        while (changed.get() && publishing.compareAndSet(false, true)) {
+            try {
+                // reset before the bags are read, a change during the copy is published in the next round
+                changed.set(false);
+                publish();
+            } finally {
+                publishing.set(false);
+            }
+        }
+    }
+
+    /**
+     * Publishes a new snapshot with all changed bags. Only one thread publishes at a time, so a newer copy of a bag
+     * cannot be overwritten by an older one.
+     */
+    private void publish() {
+        PeerStatistic[][] bags = null;
+        for (int i = 0; i < Number160.BITS; i++) {
+            if (changedBags.getAndSet(i, 0) == 0) {
+                continue;
+            }
+            if (bags == null) {
+                bags = new PeerStatistic[Number160.BITS][];
+            }
+            final Map<Number160, PeerStatistic> map = peerMapVerified.get(i);
             synchronized (map) {
-                size += map.size();
+                bags[i] = map.values().toArray(new PeerStatistic[map.size()]);
             }
         }
-        return size;
+        if (bags != null) {
+            snapshot.set(snapshot.get().withBags(bags));
+        }
     }
 
     /**
@@ -341,21 +412,27 @@ public class PeerMap implements PeerStatusListener, Maintainable {
             if (firstHand) {
                 final Map<Number160, PeerStatistic> map = peerMapVerified.get(classMember);
                 boolean inserted = false;
+                boolean added = false;
                 synchronized (map) {
                     // check again, now we are synchronized
                     if (map.containsKey(remotePeer.peerId())) {
-                        return peerFound(remotePeer, referrer, roundTripTime);
-                    }
-                    if (map.size() < bagSizesVerified[classMember]) {
+                        added = true;
+                    } else if (map.size() < bagSizesVerified[classMember]) {
                         final PeerStatistic peerStatistic = new PeerStatistic(remotePeer);
                         peerStatistic.successfullyChecked();
                         peerStatistic.addRTT(roundTripTime);
                         map.put(remotePeer.peerId(), peerStatistic);
+                        changed(classMember);
                         inserted = true;
                     }
                 }
+                if (added) {
+                    // added meanwhile, update it without holding the lock of the bag, as listeners may read the map
+                    return peerFound(remotePeer, referrer, roundTripTime);
+                }
 
                 if (inserted) {
+                    publishChanges();
                     // if we inserted into the verified map, remove it from the non-verified map
                     final Map<Number160, PeerStatistic> mapOverflow = peerMapOverflow.get(classMember);
                     synchronized (mapOverflow) {
@@ -430,10 +507,12 @@ public class PeerMap implements PeerStatusListener, Maintainable {
                 synchronized (tmp) {
                     peerStatistic = tmp.remove(remotePeer.peerId());
                     if (peerStatistic != null) {
+                        changed(classMember);
                         removed = true;
                     }
                 }
                 if (removed) {
+                    publishChanges();
                     notifyRemove(remotePeer, peerStatistic);
                     return true;
                 }
@@ -463,10 +542,7 @@ public class PeerMap implements PeerStatusListener, Maintainable {
             // -1 means we searched for ourself and we never are our neighbor
             return false;
         }
-        final Map<Number160, PeerStatistic> tmp = peerMapVerified.get(classMember);
-        synchronized (tmp) {
-            return tmp.containsKey(peerAddress.peerId());
-        }
+        return snapshot().get(classMember, peerAddress.peerId()) != null;
     }
 
     /**
@@ -503,7 +579,7 @@ public class PeerMap implements PeerStatusListener, Maintainable {
         }
 
         // Try to find PeerStatistic in verified Map
-        peerStatistic = peerMapVerified().get(classMember).get(peerAddress.peerId());
+        peerStatistic = snapshot().get(classMember, peerAddress.peerId());
 
         // If that failed, look in the overflow map
         if (peerStatistic == null) {
@@ -534,7 +610,34 @@ public class PeerMap implements PeerStatusListener, Maintainable {
      * @return A sorted set with close peers first in this set. Use set.first() to get the closest peer
      */
     public NavigableSet<PeerStatistic> closePeers(final Number160 id, final int atLeast) {
-    	return closePeers(self, id, atLeast, peerMapVerified, peerStatisticComparator.getComparator(id));
+        final Comparator<PeerStatistic> comparator = peerStatisticComparator.getComparator(id);
+        final NavigableSet<PeerStatistic> set = new TreeSet<PeerStatistic>(
+                comparator == null ? createXORStatisticComparator(id) : comparator);
+        final PeerMapSnapshot current = snapshot();
+        final int classMember = classMember(self, id);
+        // same order of bags as below, but without locks
+        if (classMember == -1) {
+            for (int j = 0; j < Number160.BITS; j++) {
+                if (fillSet(atLeast, set, current.bag(j))) {
+                    return set;
+                }
+            }
+            return set;
+        }
+        if (fillSet(atLeast, set, current.bag(classMember))) {
+            return set;
+        }
+        boolean last = false;
+        for (int i = 0; i < classMember; i++) {
+            last = fillSet(atLeast, set, current.bag(i));
+        }
+        if (last) {
+            return set;
+        }
+        for (int i = classMember + 1; i < Number160.BITS; i++) {
+            fillSet(atLeast, set, current.bag(i));
+        }
+        return set;
     }
 
     public static NavigableSet<PeerStatistic> closePeers(final Number160 self, final Number160 other,
@@ -578,19 +681,62 @@ public class PeerMap implements PeerStatusListener, Maintainable {
         return set;
     }
     
+    /**
+     * Returns the closest peers to a given key by XOR distance, sorted with the closest peer first. Unlike
+     * {@link #closePeers(Number160, int)}, this returns exactly the requested number of peers if there are enough and
+     * the configured {@link PeerStatisticComparator} is not used. It does not create a set or comparator, so it is
+     * cheap enough for every neighbor request. This method is thread-safe.
+     * 
+     * @param id
+     *            The key that should be close to the keys in the map
+     * @param nr
+     *            The number of peers to return
+     * @return A list with the closest peer first
+     */
+    public List<PeerStatistic> closestPeers(final Number160 id, final int nr) {
+        final PeerStatistic[] result = new PeerStatistic[nr];
+        final int size = snapshot().closestPeers(self, id, result);
+        final List<PeerStatistic> list = new ArrayList<PeerStatistic>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(result[i]);
+        }
+        return list;
+    }
+
+    /**
+     * Returns the peers used to answer a neighbor request or to start a routing. By default, these are at least the
+     * requested number of peers, as whole bags are added, sorted with the configured {@link PeerStatisticComparator}.
+     * Unlike {@link #closePeers(Number160, int)}, no bags are added once there are enough peers, and the peers are
+     * sorted in an array taken from the snapshot instead of a sorted set. If exact neighbors are enabled in the
+     * {@link PeerMapConfiguration}, this is {@link #closestPeers(Number160, int)}: exactly the requested number of
+     * peers, sorted by XOR distance only. This method is thread-safe.
+     * 
+     * @param id
+     *            The key that should be close to the keys in the map
+     * @param atLeast
+     *            The number we want to find at least
+     * @return The close peers, with the closest peer first
+     */
+    public Collection<PeerStatistic> neighbors(final Number160 id, final int atLeast) {
+        if (exactNeighbors) {
+            return closestPeers(id, atLeast);
+        }
+        final Comparator<PeerStatistic> comparator = peerStatisticComparator.getComparator(id);
+        return snapshot().closePeers(self, id, atLeast,
+                comparator == null ? createXORStatisticComparator(id) : comparator);
+    }
+
     @Override
     public String toString() {
         final StringBuilder sb = new StringBuilder("I'm node ");
         sb.append(self()).append("\n");
+        final PeerMapSnapshot current = snapshot();
         for (int i = 0; i < Number160.BITS; i++) {
-            final Map<Number160, PeerStatistic> tmp = peerMapVerified.get(i);
-            synchronized (tmp) {
-                if (tmp.size() > 0) {
-                    sb.append("class:").append(i).append("->\n");
-                    for (final PeerStatistic node : tmp.values()) {
-                        sb.append("node:").append(node.peerAddress()).append(",");
+            if (current.bagSize(i) > 0) {
+                sb.append("class:").append(i).append("->\n");
+                for (final PeerStatistic node : current.bag(i)) {
+                    sb.append("node:").append(node.peerAddress()).append(",");
 
-                    }
                 }
             }
         }
@@ -612,12 +758,11 @@ public class PeerMap implements PeerStatusListener, Maintainable {
      * @return All neighbors
      */
     public List<PeerAddress> all() {
-        final List<PeerAddress> all = new ArrayList<PeerAddress>();
-        for (final Map<Number160, PeerStatistic> map : peerMapVerified) {
-            synchronized (map) {
-                for (PeerStatistic peerStatistic : map.values()) {
-                    all.add(peerStatistic.peerAddress());
-                }
+        final PeerMapSnapshot current = snapshot();
+        final List<PeerAddress> all = new ArrayList<PeerAddress>(current.size());
+        for (int i = 0; i < Number160.BITS; i++) {
+            for (PeerStatistic peerStatistic : current.bag(i)) {
+                all.add(peerStatistic.peerAddress());
             }
         }
         return all;
@@ -633,25 +778,23 @@ public class PeerMap implements PeerStatusListener, Maintainable {
     		return all();
     	}
     	final List<PeerAddress> fromEachBag = new ArrayList<PeerAddress>();
-    	
-    	int bucketCounter = 0;
-    	for (final Map<Number160, PeerStatistic> map : peerMapVerified) {
-    		if(++bucketCounter > maxBucket) {
-				break;
-			}
-    		synchronized (map) {
-    			int neighborCounter = 0;
-    			for (PeerStatistic peerStatistic : map.values()) {
-    				if(++neighborCounter > nrNeighbors) {
-    					break;
-    				}
-    				fromEachBag.add(peerStatistic.peerAddress());
+    	final PeerMapSnapshot current = snapshot();
+    	for (int i = 0; i < Number160.BITS && i < maxBucket; i++) {
+    		int neighborCounter = 0;
+    		for (PeerStatistic peerStatistic : current.bag(i)) {
+    			if(++neighborCounter > nrNeighbors) {
+    				break;
     			}
+    			fromEachBag.add(peerStatistic.peerAddress());
     		}
     	}
 	    return fromEachBag;
     }
     
+    /**
+     * @return The live bags of the verified peers, each bag must be locked while used. For reading, use
+     *         {@link #snapshot()} instead
+     */
     public List<Map<Number160, PeerStatistic>> peerMapVerified() {
     	return peerMapVerified;
     }
@@ -726,11 +869,11 @@ public class PeerMap implements PeerStatusListener, Maintainable {
      * @return -1 if first peer is closer, 1 otherwise, 0 if both are equal
      */
     public static int isKadCloser(final Number160 id, final PeerAddress rn, final PeerAddress rn2) {
-        return distance(id, rn.peerId()).compareTo(distance(id, rn2.peerId()));
+        return id.compareXor(rn.peerId(), rn2.peerId());
     }
     
     public static int isKadCloser(final Number160 id, final Number160 rn, final Number160 rn2) {
-        return distance(id, rn).compareTo(distance(id, rn2));
+        return id.compareXor(rn, rn2);
     }
 
     /**
@@ -819,7 +962,7 @@ public class PeerMap implements PeerStatusListener, Maintainable {
      * @return The bit difference and -1 if they are equal
      */
     public static int classMember(final Number160 id1, final Number160 id2) {
-        return distance(id1, id2).bitLength() - 1;
+        return id1.xorBitLength(id2) - 1;
     }
 
     /**
@@ -914,6 +1057,12 @@ public class PeerMap implements PeerStatusListener, Maintainable {
         return set.size() >= atLeast;
     }
 
+    private static boolean fillSet(final int atLeast, final SortedSet<PeerStatistic> set,
+            final List<PeerStatistic> bag) {
+        set.addAll(bag);
+        return set.size() >= atLeast;
+    }
+
 	public int bagSizeVerified(int bag) {
 	    return bagSizesVerified[bag];
     }
@@ -923,15 +1072,7 @@ public class PeerMap implements PeerStatusListener, Maintainable {
     }
 
 	public int nrFilledBags() {
-		int counter = 0;
-		for (final Map<Number160, PeerStatistic> map : peerMapVerified) {
-            synchronized (map) {
-            	if(map.size() > 0) {
-            		counter++;
-            	}
-            }
-        }
-		return counter;
+		return snapshot().nrFilledBags();
 	}
 
 	public boolean checkPeer(PeerAddress sender) {
@@ -40,6 +40,7 @@ public class PeerMapConfiguration {
     private Collection<PeerMapFilter> peerMapFilters = new ArrayList<PeerMapFilter>(2);
     private Maintenance maintenance;
     private PeerStatisticComparator peerStatisticComparator;
+    private boolean exactNeighbors = false;
 
     /**
      * Constructor with reasonable defaults.
@@ -312,4 +313,25 @@ public class PeerMapConfiguration {
         this.peerStatisticComparator = peerStatisticComparator;
         return this;
     }
+
+    /**
+     * @return True if neighbor requests and the start of a routing return exactly the requested number of peers by
+     *         XOR distance. False (default) returns at least the requested number, filling whole bags and sorting
+     *         them with the configured {@link PeerStatisticComparator}.
+     */
+    public boolean isExactNeighbors() {
+        return exactNeighbors;
+    }
+
+    /**
+     * @param exactNeighbors
+     *            True if neighbor requests and the start of a routing should return exactly the requested number of
+     *            peers by XOR distance, without the configured {@link PeerStatisticComparator}. This avoids sorting
+     *            whole bags on every request
+     * @return this class
+     */
+    public PeerMapConfiguration setExactNeighbors(final boolean exactNeighbors) {
+        this.exactNeighbors = exactNeighbors;
+        return this;
+    }
 }
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.peers;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An immutable view of the verified bags of a {@link PeerMap}. A reader gets the
+ * current snapshot without locking and sees a consistent routing table, no
+ * matter how many peers are found or fail meanwhile. The thread that
+ * inserts or removes a peer in the {@link PeerMap} publishes a new snapshot
+ * with a higher version, only the changed bags are copied. Changes made while
+ * another thread publishes are published together by that thread.
+ * <p>
+ * The {@link PeerStatistic} objects are shared with the {@link PeerMap}, thus
+ * their RTT and check times may change after the snapshot was taken.
+ * </p>
+ *
+ * @author Thomas Bocek
+ *
+ */
+public final class PeerMapSnapshot {
+
+    private static final PeerStatistic[] EMPTY_BAG = new PeerStatistic[0];
+
+    private final long version;
+    private final PeerStatistic[][] bags;
+    private final int size;
+
+    private PeerMapSnapshot(final long version, final PeerStatistic[][] bags, final int size) {
+        this.version = version;
+        this.bags = bags;
+        this.size = size;
+    }
+
+    /**
+     * @return A snapshot without any peers
+     */
+    public static PeerMapSnapshot empty() {
+        final PeerStatistic[][] bags = new PeerStatistic[Number160.BITS][];
+        Arrays.fill(bags, EMPTY_BAG);
+        return new PeerMapSnapshot(0, bags, 0);
+    }
+
+    /**
+     * Creates the next version of this snapshot with the changed bags replaced. Only the array of bags is copied,
+     * once for all changes.
+     *
+     * @param changed
+     *            The peers of each changed bag, null for an unchanged bag. The arrays must not be changed afterwards
+     * @return The new snapshot
+     */
+    PeerMapSnapshot withBags(final PeerStatistic[][] changed) {
+        final PeerStatistic[][] copy = bags.clone();
+        int newSize = size;
+        for (int i = 0; i < Number160.BITS; i++) {
+            final PeerStatistic[] peers = changed[i];
+            if (peers != null) {
+                copy[i] = peers.length == 0 ? EMPTY_BAG : peers;
+                newSize += peers.length - bags[i].length;
+            }
+        }
+        return new PeerMapSnapshot(version + 1, copy, newSize);
+    }
+
+    /**
+     * @return The version, which increases with every new snapshot
+     */
+    public long version() {
+        return version;
+    }
+
+    /**
+     * @return The number of peers in all bags
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param bag
+     *            The number of the bag, 0 is the closest bag
+     * @return The peers in this bag
+     */
+    public List<PeerStatistic> bag(final int bag) {
+        return Collections.unmodifiableList(Arrays.asList(bags[bag]));
+    }
+
+    /**
+     * @param bag
+     *            The number of the bag, 0 is the closest bag
+     * @return The number of peers in this bag
+     */
+    public int bagSize(final int bag) {
+        return bags[bag].length;
+    }
+
+    /**
+     * @return The number of bags with at least one peer
+     */
+    public int nrFilledBags() {
+        int counter = 0;
+        for (final PeerStatistic[] bag : bags) {
+            if (bag.length > 0) {
+                counter++;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Looks up a peer in one bag. A bag is small, so this is a linear search.
+     *
+     * @param bag
+     *            The number of the bag where the peer is supposed to be
+     * @param peerId
+     *            The id of the peer
+     * @return The statistic of the peer or null if it is not in this bag
+     */
+    public PeerStatistic get(final int bag, final Number160 peerId) {
+        for (final PeerStatistic peerStatistic : bags[bag]) {
+            if (peerStatistic.peerAddress().peerId().equals(peerId)) {
+                return peerStatistic;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns at least the requested number of peers close to a given key, sorted with the given comparator. As in
+     * {@link PeerMap#closePeers(Number160, int)}, whole bags are added in the order of their distance to the key, but
+     * only until the requested number is reached. The bags are counted first, so the peers are copied once into an
+     * array of the right size and sorted once.
+     *
+     * @param self
+     *            The id of the owner of the bags
+     * @param id
+     *            The key that should be close to the returned peers
+     * @param atLeast
+     *            The number of peers to find at least
+     * @param comparator
+     *            The order of the returned peers
+     * @return The close peers, sorted with the comparator
+     */
+    public List<PeerStatistic> closePeers(final Number160 self, final Number160 id, final int atLeast,
+            final Comparator<PeerStatistic> comparator) {
+        final int classMember = PeerMap.classMember(self, id);
+        int size = 0;
+        // the bags 0 to classMember-1 are one distance class, either all or none of them are added
+        boolean lower = false;
+        // the last bag above classMember that is added
+        int upper = classMember;
+        if (classMember >= 0) {
+            size = bags[classMember].length;
+            if (size < atLeast) {
+                lower = true;
+                for (int i = 0; i < classMember; i++) {
+                    size += bags[i].length;
+                }
+            }
+        }
+        while (size < atLeast && upper < Number160.BITS - 1) {
+            upper++;
+            size += bags[upper].length;
+        }
+        final PeerStatistic[] peers = new PeerStatistic[size];
+        int index = 0;
+        if (classMember >= 0) {
+            index = copy(bags[classMember], peers, index);
+            if (lower) {
+                for (int i = 0; i < classMember; i++) {
+                    index = copy(bags[i], peers, index);
+                }
+            }
+        }
+        for (int i = classMember + 1; i <= upper; i++) {
+            index = copy(bags[i], peers, index);
+        }
+        Arrays.sort(peers, comparator);
+        return Arrays.asList(peers);
+    }
+
+    private static int copy(final PeerStatistic[] bag, final PeerStatistic[] peers, final int index) {
+        System.arraycopy(bag, 0, peers, index, bag.length);
+        return index + bag.length;
+    }
+
+    /**
+     * Fills the array with the closest peers to a given key by XOR distance, the closest peer first.
+     * <p>
+     * The bags are already sorted by distance to the key: with c as the bag of the key, all peers in bag c are closer
+     * than the peers in bags 0 to c-1, which share one distance class, and those are closer than the peers in bag c+1,
+     * c+2 and so on. Thus, we only visit bags until one distance class completes the result and keep the best peers
+     * with a bounded insertion.
+     * </p>
+     *
+     * @param self
+     *            The id of the owner of the bags
+     * @param id
+     *            The key that should be close to the returned peers
+     * @param result
+     *            The array to fill, its length is the number of peers to find
+     * @return The number of peers in the array
+     */
+    public int closestPeers(final Number160 self, final Number160 id, final PeerStatistic[] result) {
+        if (result.length == 0) {
+            return 0;
+        }
+        final int classMember = PeerMap.classMember(self, id);
+        int size = 0;
+        if (classMember >= 0) {
+            size = select(id, bags[classMember], result, size);
+            if (size == result.length) {
+                return size;
+            }
+            for (int i = 0; i < classMember; i++) {
+                size = select(id, bags[i], result, size);
+            }
+            if (size == result.length) {
+                return size;
+            }
+        }
+        for (int i = classMember + 1; i < Number160.BITS; i++) {
+            size = select(id, bags[i], result, size);
+            if (size == result.length) {
+                return size;
+            }
+        }
+        return size;
+    }
+
+    private static int select(final Number160 id, final PeerStatistic[] bag, final PeerStatistic[] result, int size) {
+        for (final PeerStatistic peerStatistic : bag) {
+            size = insert(id, peerStatistic, result, size);
+        }
+        return size;
+    }
+
+    private static int insert(final Number160 id, final PeerStatistic peerStatistic, final PeerStatistic[] result,
+            final int size) {
+        final Number160 peerId = peerStatistic.peerAddress().peerId();
+        final int max = result.length;
+        if (size == max && id.compareXor(peerId, result[max - 1].peerAddress().peerId()) >= 0) {
+            return size;
+        }
+        // binary search for the position, the ids in a snapshot are unique
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (id.compareXor(result[mid].peerAddress().peerId(), peerId) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        final int moved = Math.min(size, max - 1) - low;
+        if (moved > 0) {
+            System.arraycopy(result, low, result, low + 1, moved);
+        }
+        result[low] = peerStatistic;
+        return size < max ? size + 1 : size;
+    }
+}
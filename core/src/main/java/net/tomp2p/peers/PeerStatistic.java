@@ -15,6 +15,7 @@
  */
 package net.tomp2p.peers;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -228,6 +229,28 @@ public class PeerStatistic {
         return sum / rttCache.size();
     }
 
+    /**
+     * Get a percentile of the last 5 RTTs by the nearest rank. With only a few
+     * measurements, a high percentile is the slowest of them.
+     *
+     * @param percentile
+     *            The percentile between 1 and 100
+     * @return The RTT in milliseconds or -1 if cache is empty.
+     */
+    public long getPercentileRTT(int percentile) {
+        final Object[] rtts = rttCache.toArray();
+        if (rtts.length == 0)
+            return -1;
+
+        final long[] sorted = new long[rtts.length];
+        for (int i = 0; i < rtts.length; i++) {
+            sorted[i] = ((RTT) rtts[i]).getRtt();
+        }
+        Arrays.sort(sorted);
+        final int rank = (int) Math.ceil(percentile / 100d * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+
     /**
      * How many RTT measurements are in the cache
      *
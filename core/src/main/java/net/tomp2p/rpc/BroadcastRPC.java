@@ -58,7 +58,7 @@ public class BroadcastRPC extends DispatchHandler {
         if (broadcastBuilder.dataMap() != null) {
             message.setDataMap(new DataMap(broadcastBuilder.dataMap()));
         }
-        return connectionBean().channelServer().sendUDP(message);
+        return connectionBean().channelServer().sendUDP(message, configuration);
 
     }
 
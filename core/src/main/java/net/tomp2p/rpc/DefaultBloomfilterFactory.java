@@ -4,19 +4,44 @@ import net.tomp2p.peers.Number160;
 
 public class DefaultBloomfilterFactory  implements BloomfilterFactory {
 
+    private final boolean blocked;
+
+    public DefaultBloomfilterFactory() {
+        this(false);
+    }
+
+    /**
+     * @param blocked
+     *            True to create the bloom filters in the blocked mode, which
+     *            is faster for large digests. Peers that are older than the
+     *            blocked mode treat every element as contained in such a
+     *            filter, thus the storage RPC only replies with blocked filters
+     *            to requesters that announce the blocked mode in their request.
+     */
+    public DefaultBloomfilterFactory(final boolean blocked) {
+        this.blocked = blocked;
+    }
+
+    /**
+     * @return True if the bloom filters are created in the blocked mode
+     */
+    public boolean isBlocked() {
+        return blocked;
+    }
+
     @Override
     public SimpleBloomFilter<Number160> createContentKeyBloomFilter() {
-        return new SimpleBloomFilter<Number160>(0.01d, 1000);
+        return new SimpleBloomFilter<Number160>(0.01d, 1000, blocked);
     }
 
     @Override
     public SimpleBloomFilter<Number160> createVersionKeyBloomFilter() {
-        return new SimpleBloomFilter<Number160>(0.01d, 1000);
+        return new SimpleBloomFilter<Number160>(0.01d, 1000, blocked);
     }
     
     @Override
     public SimpleBloomFilter<Number160> createContentBloomFilter() {
-        return new SimpleBloomFilter<Number160>(0.01d, 1000);
+        return new SimpleBloomFilter<Number160>(0.01d, 1000, blocked);
     }
 
 }
@@ -60,7 +60,7 @@ public class DirectDataRPC extends DispatchHandler {
 		}
 		// TODO: this flag comes from the sendirectbuilder
 		message.sctp(true);
-		return connectionBean().channelServer().sendUDP(message);
+		return connectionBean().channelServer().sendUDP(message, conf);
 	}
 
 	@Override
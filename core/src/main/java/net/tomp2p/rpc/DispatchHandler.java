@@ -25,7 +25,6 @@ import net.tomp2p.message.Message;
 import net.tomp2p.message.Message.Type;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.PeerAddress;
-import net.tomp2p.peers.PeerStatusListener;
 
 import org.jdeferred.Promise;
 import org.slf4j.Logger;
@@ -188,11 +187,7 @@ public abstract class DispatchHandler {
         try {
             handleResponse(responder, requestMessage, sign, p, sender);
         } catch (Throwable e) {
-        	synchronized (peerBean.peerStatusListeners()) {
-        		for (PeerStatusListener peerStatusListener : peerBean.peerStatusListeners()) {
-					peerStatusListener.peerFailed(requestMessage.sender(), new PeerException(e));
-				}
-        	}
+        	peerBean.notifyPeerFailed(requestMessage.sender(), new PeerException(e));
         	LOG.error("Exception in custom handler.", e);
         }
     }
@@ -21,7 +21,6 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.NavigableSet;
 
 import net.sctp4nat.core.SctpChannelFacade;
 import net.tomp2p.connection.ChannelSender;
@@ -44,7 +43,7 @@ import net.tomp2p.peers.Number320;
 import net.tomp2p.peers.Number640;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.peers.PeerStatistic;
-import net.tomp2p.peers.PeerStatusListener;
+import net.tomp2p.peers.RTT;
 import net.tomp2p.utils.Pair;
 import net.tomp2p.utils.Triple;
 
@@ -112,6 +111,34 @@ public class NeighborRPC extends DispatchHandler {
      */
     public Pair<FutureDone<Message>, FutureDone<SctpChannelFacade>> closeNeighbors(final PeerAddress remotePeer, final SearchValues searchValues,
             final Type type, final ConnectionConfiguration configuration) {
+        return send(createNeighborMessage(remotePeer, searchValues, type), null, configuration);
+    }
+
+    /**
+     * Requests close neighbors from the remote peer, as {@link #closeNeighbors(PeerAddress, SearchValues, Type,
+     * ConnectionConfiguration)}, but reports the reply with a {@link FutureResponse} that measures the round-trip time.
+     * The routing keeps one future response per parallel request.
+     * 
+     * @param remotePeer
+     *            The remote peer to send this request to
+     * @param searchValues
+     *            The values to search for in the storage
+     * @param type
+     *            The type of the neighbor request
+     * @param configuration
+     *            The client-side connection configuration
+     * @return The future response, completed with the reply or failed if the request failed
+     */
+    public FutureResponse closeNeighborsResponse(final PeerAddress remotePeer, final SearchValues searchValues,
+            final Type type, final ConnectionConfiguration configuration) {
+        final Message message = createNeighborMessage(remotePeer, searchValues, type);
+        final FutureResponse futureResponse = new FutureResponse(message);
+        send(message, futureResponse, configuration);
+        return futureResponse;
+    }
+
+    private Message createNeighborMessage(final PeerAddress remotePeer, final SearchValues searchValues,
+            final Type type) {
         Message message = createMessage(remotePeer, RPC.Commands.NEIGHBOR.getNr(), type);
         if (!message.isRequest()) {
             throw new IllegalArgumentException("The type must be a request");
@@ -139,30 +166,46 @@ public class NeighborRPC extends DispatchHandler {
         	}
         }
         LOG.debug("Ask remote peer for neighbors with msg {}", message);
-        return send(message, configuration);
+        return message;
     }
 
-    private Pair<FutureDone<Message>, FutureDone<SctpChannelFacade>> send(final Message message, final ConnectionConfiguration configuration) {
-        final FutureResponse futureResponse = new FutureResponse(message);
-        futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+    /**
+     * Sends the neighbor request and reports the neighbors in the reply as third hand information.
+     * 
+     * @param futureResponse
+     *            Completed with the reply if not null
+     */
+    private Pair<FutureDone<Message>, FutureDone<SctpChannelFacade>> send(final Message message,
+            final FutureResponse futureResponse, final ConnectionConfiguration configuration) {
+        final RTT roundTripTime = futureResponse == null ? new RTT() : futureResponse.getRoundTripTime();
+        roundTripTime.beginTimeMeasurement(true);
+        final Pair<FutureDone<Message>, FutureDone<SctpChannelFacade>> pair = connectionBean().channelServer()
+                .sendUDP(message, configuration);
+        pair.element0().addListener(new BaseFutureAdapter<FutureDone<Message>>() {
             @Override
-            public void operationComplete(FutureResponse future) throws Exception {
+            public void operationComplete(FutureDone<Message> future) throws Exception {
+                roundTripTime.stopTimeMeasurement();
                 if(future.isSuccess()) {
-                    Message response = future.responseMessage();
+                    Message response = future.object();
                     if(response != null) {
                         NeighborSet ns = response.neighborsSet(0);
                         if(ns!=null) {
                             for(PeerAddress neighbor:ns.neighbors()) {
                                 // Notify, that we found this peer. RTT is from the reporter and therefore only an estimate.
-                                peerBean().notifyPeerFound(neighbor, response.sender(), futureResponse.getRoundTripTime().setEstimated());
+                                peerBean().notifyPeerFound(neighbor, response.sender(),
+                                        new RTT(roundTripTime.getRtt(), roundTripTime.isUDP()).setEstimated());
                             }
                         }
                     }
+                    if (futureResponse != null) {
+                        futureResponse.response(response);
+                    }
+                } else if (futureResponse != null) {
+                    futureResponse.failed(future);
                 }
             }
         });
-        
-        return connectionBean().channelServer().sendUDP(message);
+        return pair;
     }
 
     @Override
@@ -251,11 +294,7 @@ public class NeighborRPC extends DispatchHandler {
                 responseMessage.intValue(digestInfo.size());
             } 
             else if (message.type() == Type.REQUEST_4) {
-            	synchronized (peerBean().peerStatusListeners()) {
-            		for (PeerStatusListener peerStatusListener : peerBean().peerStatusListeners()) {
-    					peerStatusListener.peerFailed(message.sender(), new PeerException(AbortCause.SHUTDOWN, "shutdown"));
-    				}
-            	}
+            	peerBean().notifyPeerFailed(message.sender(), new PeerException(AbortCause.SHUTDOWN, "shutdown"));
             }
               
         }
@@ -266,12 +305,11 @@ public class NeighborRPC extends DispatchHandler {
      * TODO: explain why protected method here.
      */
     protected List<PeerAddress> getNeighbors(Number160 id, int atLeast) {
-        NavigableSet<PeerStatistic> closePeers = peerBean().peerMap().closePeers(id, atLeast);
+        final Collection<PeerStatistic> closePeers = peerBean().peerMap().neighbors(id, atLeast);
 
-        ArrayList<PeerAddress> result = new ArrayList<PeerAddress>();
+        ArrayList<PeerAddress> result = new ArrayList<PeerAddress>(closePeers.size());
         for (PeerStatistic ps : closePeers) {
             result.add(ps.peerAddress());
-
         }
         return result;
     }
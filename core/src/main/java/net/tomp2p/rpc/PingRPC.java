@@ -95,21 +95,32 @@ public class PingRPC extends DispatchHandler {
 		}
 	}
 
+	/**
+	 * Ping a UDP peer with the default timeout.
+	 * 
+	 * @param remotePeer
+	 *            The destination peer
+	 * @return The future that will be triggered when we receive an answer or something fails.
+	 */
+	public Pair<FutureDone<Message>, FutureDone<SctpChannelFacade>> pingUDP(final PeerAddress remotePeer) {
+		return pingUDP(remotePeer, null);
+	}
+
 	/**
 	 * Ping a UDP peer.
 	 * 
 	 * @param remotePeer
 	 *            The destination peer
-	 * @param channelCreator
-	 *            The channel creator where we create a UPD channel
 	 * @param configuration
-	 *
+	 *            The configuration with the timeout for the ping command, null
+	 *            for the default timeout
 	 * @return The future that will be triggered when we receive an answer or something fails.
 	 */
-	public Pair<FutureDone<Message>, FutureDone<SctpChannelFacade>> pingUDP(final PeerAddress remotePeer) {
+	public Pair<FutureDone<Message>, FutureDone<SctpChannelFacade>> pingUDP(final PeerAddress remotePeer,
+			final ConnectionConfiguration configuration) {
 		LOG.debug("Pinging UDP the remote peer {}.", remotePeer);
 		Message message = createHandler(remotePeer, Type.REQUEST_1);
-		return connectionBean().channelServer().sendUDP(message);
+		return connectionBean().channelServer().sendUDP(message, configuration);
 	}
 
 	/**
@@ -117,14 +128,28 @@ public class PingRPC extends DispatchHandler {
 	 * 
 	 * @param remotePeer
 	 *            The destination peer
-	 * @param channelCreator
-	 *            The channel creator where we create a UPD channel
 	 * @return The future that will be triggered when we receive an answer or
 	 *         something fails.
 	 */
 	public Pair<FutureDone<Message>, FutureDone<SctpChannelFacade>> fireUDP(final PeerAddress remotePeer) {
+		return fireUDP(remotePeer, null);
+	}
+
+	/**
+	 * Ping a UDP peer, but don't expect an answer.
+	 * 
+	 * @param remotePeer
+	 *            The destination peer
+	 * @param configuration
+	 *            The configuration with the timeout for the ping command, null
+	 *            for the default timeout
+	 * @return The future that will be triggered when we receive an answer or
+	 *         something fails.
+	 */
+	public Pair<FutureDone<Message>, FutureDone<SctpChannelFacade>> fireUDP(final PeerAddress remotePeer,
+			final ConnectionConfiguration configuration) {
 		final Message message = createHandler(remotePeer, Type.REQUEST_FF_1);
-		return connectionBean().channelServer().sendUDP(message);
+		return connectionBean().channelServer().sendUDP(message, configuration);
 	}
 
 	/**
@@ -138,7 +163,7 @@ public class PingRPC extends DispatchHandler {
 	 */
 	public Pair<FutureDone<Message>, FutureDone<SctpChannelFacade>> pingUDPDiscover(final PeerAddress remotePeer, final ConnectionConfiguration configuration) {
 		final Message message = createDiscoverHandler(remotePeer);
-		return connectionBean().channelServer().sendUDP(message);
+		return connectionBean().channelServer().sendUDP(message, configuration);
 	}
 
 	/**
@@ -153,7 +178,7 @@ public class PingRPC extends DispatchHandler {
 	 */
 	public Pair<FutureDone<Message>, FutureDone<SctpChannelFacade>> pingUDPProbe(final PeerAddress remotePeer, final ConnectionConfiguration configuration) {
 		final Message message = createMessage(remotePeer, RPC.Commands.PING.getNr(), Type.REQUEST_3);
-		return connectionBean().channelServer().sendUDP(message);
+		return connectionBean().channelServer().sendUDP(message, configuration);
 	}
 
 	/**
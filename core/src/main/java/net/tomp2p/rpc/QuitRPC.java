@@ -97,7 +97,7 @@ public class QuitRPC extends DispatchHandler {
 			message.publicKeyAndSign(shutdownBuilder.keyPair());
 		}
 		LOG.debug("send QUIT message {}.", message);
-		return connectionBean().channelServer().sendUDP(message);
+		return connectionBean().channelServer().sendUDP(message, shutdownBuilder);
 	}
 
 	@Override
@@ -106,11 +106,7 @@ public class QuitRPC extends DispatchHandler {
 			throw new IllegalArgumentException("Message content is wrong for this handler.");
 		}
 		LOG.debug("received QUIT message {}", message);
-		synchronized (peerBean().peerStatusListeners()) {
-			for (PeerStatusListener peerStatusListener : peerBean().peerStatusListeners()) {
-				peerStatusListener.peerFailed(message.sender(), new PeerException(AbortCause.SHUTDOWN, "shutdown"));
-			}
-		}
+		peerBean().notifyPeerFailed(message.sender(), new PeerException(AbortCause.SHUTDOWN, "shutdown"));
 		r.response(null);
 	}
 }
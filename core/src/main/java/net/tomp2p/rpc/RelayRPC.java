@@ -14,6 +14,7 @@ import org.slf4j.LoggerFactory;
 import net.sctp4nat.core.SctpChannelFacade;
 import net.tomp2p.connection.ChannelSender;
 import net.tomp2p.connection.ClientChannel;
+import net.tomp2p.connection.ConnectionConfiguration;
 import net.tomp2p.connection.Dispatcher;
 import net.tomp2p.connection.Responder;
 import net.tomp2p.connection.SignatureFactory;
@@ -75,10 +76,20 @@ public class RelayRPC extends DispatchHandler {
 	
 	public Pair<FutureDone<Message>, FutureDone<SctpChannelFacade>> sendSetupMessage(
 			final PeerAddress candidate) {
+		return sendSetupMessage(candidate, null);
+	}
+	
+	/**
+	 * @param configuration
+	 *            The configuration with the timeout for the relay command,
+	 *            null for the default timeout
+	 */
+	public Pair<FutureDone<Message>, FutureDone<SctpChannelFacade>> sendSetupMessage(
+			final PeerAddress candidate, final ConnectionConfiguration configuration) {
 		
 		final Message message = createMessage(candidate, RPC.Commands.RELAY.getNr(), Type.REQUEST_1);
 		message.keepAlive(true);
-		return connectionBean().channelServer().sendUDP(message);
+		return connectionBean().channelServer().sendUDP(message, configuration);
 		
 	}
 	
@@ -87,13 +98,27 @@ public class RelayRPC extends DispatchHandler {
 			final List<Map<Number160, 
 			PeerStatistic>> map, 
 			final ClientChannel channel) {
+		return sendPeerMap(relayPeer, map, channel, null);
+	}
+	
+	/**
+	 * @param configuration
+	 *            The configuration with the timeout for the relay command,
+	 *            null for the default timeout
+	 */
+	public Pair<FutureDone<Message>, FutureDone<SctpChannelFacade>> sendPeerMap(
+			final PeerAddress relayPeer, 
+			final List<Map<Number160, 
+			PeerStatistic>> map, 
+			final ClientChannel channel,
+			final ConnectionConfiguration configuration) {
 		
 		final Message message = createMessage(relayPeer, RPC.Commands.RELAY.getNr(), Type.REQUEST_2);
 
 		NeighborSet ns = new NeighborSet(5, RelayUtils.flatten(map));
 		message.neighborsSet(ns);
 		LOG.debug("send neighbors " + ns);
-		return connectionBean().channelServer().sendUDP(message);
+		return connectionBean().channelServer().sendUDP(message, configuration);
 	}
 	
 	@Override
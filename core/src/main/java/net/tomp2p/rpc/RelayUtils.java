@@ -14,6 +14,7 @@ import java.security.SignatureException;
 import java.security.spec.InvalidKeySpecException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -32,6 +33,7 @@ import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.peers.PeerMap;
 import net.tomp2p.peers.PeerMapConfiguration;
+import net.tomp2p.peers.PeerMapSnapshot;
 import net.tomp2p.peers.PeerStatistic;
 //import net.tomp2p.storage.AlternativeCompositeByteBuf;
 
@@ -53,7 +55,16 @@ public class RelayUtils {
 			LOG.debug("found peer in unflatten for relaying, {}", peerAddress);
 			peerMap.peerFound(peerAddress, null, null);
 		}
-		return peerMap.peerMapVerified();
+		final PeerMapSnapshot snapshot = peerMap.snapshot();
+		final List<Map<Number160, PeerStatistic>> result = new ArrayList<Map<Number160, PeerStatistic>>(Number160.BITS);
+		for (int i = 0; i < Number160.BITS; i++) {
+			final Map<Number160, PeerStatistic> bag = new HashMap<Number160, PeerStatistic>();
+			for (PeerStatistic peerStatistic : snapshot.bag(i)) {
+				bag.put(peerStatistic.peerAddress().peerId(), peerStatistic);
+			}
+			result.add(bag);
+		}
+		return result;
 	}
 
 	public static Collection<PeerAddress> flatten(List<Map<Number160, PeerStatistic>> maps) {
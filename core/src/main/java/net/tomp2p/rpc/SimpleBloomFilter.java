@@ -25,6 +25,8 @@ import java.util.Iterator;
 import java.util.Random;
 import java.util.Set;
 
+import net.tomp2p.peers.Number160;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -39,7 +41,19 @@ import org.slf4j.LoggerFactory;
  * @author Ian Clarke <ian@uprizer.com>
  * @author Thomas Bocek <tom@tomp2p.net> Added methods to get and create a
  *         SimpleBloomFilter from existing data. The data can be either a BitSet
- *         or a bye[].
+ *         or a bye[]. Added the blocked mode: all k bits of an element are in
+ *         one block of 512 bits (a cache line) and the positions are derived
+ *         from the bits of the element, without creating a java.util.Random.
+ *         For a {@link Number160} all 160 bits are used, other elements are
+ *         reduced to their hash code. The encoding is the same, the blocked
+ *         mode is flagged in the top bit of the expected elements. A peer that
+ *         does not know the flag ends up with k <= 0, thus its contains()
+ *         returns true for every element. For a filter that selects entries
+ *         this returns too much, but for a filter that excludes entries, such
+ *         as a get that is not bloomFilterAnd or a digest that is compared to
+ *         local keys, it drops everything. A blocked filter must therefore
+ *         only be sent to a peer that is known to support the blocked mode,
+ *         see {@link net.tomp2p.message.Message#isBlockedBloomFilter()}.
  * @param <E>
  *            The type of object the BloomFilter should contain
  */
@@ -55,8 +69,20 @@ public class SimpleBloomFilter<E> implements Set<E>, Serializable {
 
 	public static final int SIZE_HEADER = SIZE_HEADER_LENGTH + SIZE_HEADER_ELEMENTS;
 
+	/**
+	 * The bits of one block in the blocked mode, 64 bytes are one cache line.
+	 */
+	public static final int BLOCK_BITS = 512;
+
+	private static final int BLOCKED_FLAG = 0x80000000;
+
 	private final int k;
 
+	private final boolean blocked;
+
+	// only used in the blocked mode
+	private final int blocks, blockBits;
+
 	private final BitSet bitSet;
 
 	private final int byteArraySize, bitArraySize, expectedElements;
@@ -79,8 +105,27 @@ public class SimpleBloomFilter<E> implements Set<E>, Serializable {
 		this(byteArraySize, expectedElements, new BitSet(byteArraySize * Byte.SIZE));
 	}
 
-	// inspired by https://github.com/magnuss/java-bloomfilter
 	public SimpleBloomFilter(final double falsePositiveProbability, final int expectedElements) {
+		this(falsePositiveProbability, expectedElements, false);
+	}
+
+	/**
+	 * Construct an empty SimpleBloomFilter for a false positive probability.
+	 * 
+	 * @param falsePositiveProbability
+	 *            The probability that contains() returns true for an element
+	 *            that was not added. In the blocked mode, the probability is
+	 *            slightly higher, as the bits are not evenly distributed
+	 *            over the blocks.
+	 * @param expectedElements
+	 *            The typical number of items you expect to be added to the
+	 *            SimpleBloomFilter (often called 'n').
+	 * @param blocked
+	 *            True for the blocked mode, see the class description
+	 */
+	// inspired by https://github.com/magnuss/java-bloomfilter
+	public SimpleBloomFilter(final double falsePositiveProbability, final int expectedElements,
+	        final boolean blocked) {
 		final double c = Math.ceil(-(Math.log(falsePositiveProbability) / Math.log(2.0))) / Math.log(2.0);
 		this.expectedElements = expectedElements;
 		int tmpBitArraySize = (int) Math.ceil(c * expectedElements);
@@ -91,6 +136,9 @@ public class SimpleBloomFilter<E> implements Set<E>, Serializable {
 		// a byte
 		this.k = (int) Math.ceil(hf);
 		this.bitSet = new BitSet(bitArraySize);
+		this.blocked = blocked;
+		this.blocks = blocks(bitArraySize);
+		this.blockBits = blockBits(bitArraySize);
 	}
 
 	/**
@@ -102,8 +150,12 @@ public class SimpleBloomFilter<E> implements Set<E>, Serializable {
 	public SimpleBloomFilter(final ByteBuf channelBuffer) {
 		this.byteArraySize = channelBuffer.readUnsignedShort() - (SIZE_HEADER_ELEMENTS + SIZE_HEADER_LENGTH);
 		this.bitArraySize = byteArraySize * Byte.SIZE;
-		int expectedElements = channelBuffer.readInt();
+		final int expectedElementsAndFlag = channelBuffer.readInt();
+		final int expectedElements = expectedElementsAndFlag & ~BLOCKED_FLAG;
 		this.expectedElements = expectedElements;
+		this.blocked = (expectedElementsAndFlag & BLOCKED_FLAG) != 0;
+		this.blocks = blocks(bitArraySize);
+		this.blockBits = blockBits(bitArraySize);
 		double hf = (bitArraySize / (double) expectedElements) * Math.log(2.0);
 		this.k = (int) Math.ceil(hf);
 		if (byteArraySize > 0) {
@@ -132,6 +184,18 @@ public class SimpleBloomFilter<E> implements Set<E>, Serializable {
 	 *            The data that will be used in the backing BitSet
 	 */
 	public SimpleBloomFilter(final int byteArraySize, final int expectedElements, final BitSet bitSet) {
+		this(byteArraySize, expectedElements, bitSet, false);
+	}
+
+	/**
+	 * Constructs a SimpleBloomFilter out of existing data, see
+	 * {@link #SimpleBloomFilter(int, int, BitSet)}.
+	 * 
+	 * @param blocked
+	 *            True if the data was created in the blocked mode
+	 */
+	public SimpleBloomFilter(final int byteArraySize, final int expectedElements, final BitSet bitSet,
+	        final boolean blocked) {
 		this.byteArraySize = byteArraySize;
 		this.bitArraySize = byteArraySize * Byte.SIZE;
 		this.expectedElements = expectedElements;
@@ -143,6 +207,25 @@ public class SimpleBloomFilter<E> implements Set<E>, Serializable {
 			        expectedElements / Math.log(2.0));
 		}
 		this.bitSet = bitSet;
+		this.blocked = blocked;
+		this.blocks = blocks(bitArraySize);
+		this.blockBits = blockBits(bitArraySize);
+	}
+
+	private static int blocks(final int bitArraySize) {
+		return Math.max(1, bitArraySize / BLOCK_BITS);
+	}
+
+	// a filter smaller than a block is one block, the bits after the last full block are not used
+	private static int blockBits(final int bitArraySize) {
+		return bitArraySize < BLOCK_BITS ? bitArraySize : BLOCK_BITS;
+	}
+
+	/**
+	 * @return True if this filter uses the blocked mode
+	 */
+	public boolean isBlocked() {
+		return blocked;
 	}
 
 	/**
@@ -174,6 +257,20 @@ public class SimpleBloomFilter<E> implements Set<E>, Serializable {
 	 */
 	@Override
 	public boolean add(final E o) {
+		if (blocked) {
+			if (blockBits == 0) {
+				return false;
+			}
+			final long hash = hash64(o);
+			final int base = block(hash) * blockBits;
+			int position = (int) hash;
+			final int step = (int) (hash >>> 32) | 1;
+			for (int x = 0; x < k; x++) {
+				bitSet.set(base + offset(position), true);
+				position += step;
+			}
+			return false;
+		}
 		Random r = new Random(o.hashCode());
 		for (int x = 0; x < k; x++) {
 			bitSet.set(r.nextInt(bitArraySize), true);
@@ -181,6 +278,40 @@ public class SimpleBloomFilter<E> implements Set<E>, Serializable {
 		return false;
 	}
 
+	/**
+	 * Mixes all bits of the element into 64 bits. A {@link Number160} is
+	 * mostly a SHA-1 hash, but keys like new Number160(1) are not, so the bits
+	 * are mixed with the finalizer of MurmurHash3.
+	 */
+	private static long hash64(final Object o) {
+		if (o instanceof Number160) {
+			final Number160 number160 = (Number160) o;
+			return mix64(number160.lo() ^ mix64(number160.mid() ^ mix64(number160.hi())));
+		}
+		return mix64(o.hashCode());
+	}
+
+	private static long mix64(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	// the upper bits select the block, the lower bits the positions inside
+	private int block(final long hash) {
+		return (int) (((hash >>> 40) * blocks) >>> 24);
+	}
+
+	private int offset(final int position) {
+		if (blockBits == BLOCK_BITS) {
+			return position & (BLOCK_BITS - 1);
+		}
+		return (position & Integer.MAX_VALUE) % blockBits;
+	}
+
 	/**
 	 * @param c
 	 *            The elements to add
@@ -216,6 +347,22 @@ public class SimpleBloomFilter<E> implements Set<E>, Serializable {
 		if(isVoid()) {
 			return false;
 		}
+		if (blocked) {
+			if (blockBits == 0) {
+				return true;
+			}
+			final long hash = hash64(o);
+			final int base = block(hash) * blockBits;
+			int position = (int) hash;
+			final int step = (int) (hash >>> 32) | 1;
+			for (int x = 0; x < k; x++) {
+				if (!bitSet.get(base + offset(position))) {
+					return false;
+				}
+				position += step;
+			}
+			return true;
+		}
 		Random r = new Random(o.hashCode());
 		for (int x = 0; x < k; x++) {
 			if (!bitSet.get(r.nextInt(bitArraySize))) {
@@ -363,7 +510,7 @@ public class SimpleBloomFilter<E> implements Set<E>, Serializable {
 	 */
 	public void encode(final ByteBuf buf) {
 		buf.writeShort(byteArraySize + SIZE_HEADER_ELEMENTS + SIZE_HEADER_LENGTH);
-		buf.writeInt(expectedElements);
+		buf.writeInt(blocked ? expectedElements | BLOCKED_FLAG : expectedElements);
 		byte[] tmp = RPCUtils.toByteArray(bitSet);
 		int currentByteArraySize = tmp.length;
 		buf.writeBytes(tmp);
@@ -379,9 +526,12 @@ public class SimpleBloomFilter<E> implements Set<E>, Serializable {
 		if (toMerge.bitArraySize != bitArraySize) {
 			throw new RuntimeException("The two bloomfilters must have the same size.");
 		}
+		if (toMerge.blocked != blocked) {
+			throw new RuntimeException("The two bloomfilters must have the same mode.");
+		}
 		BitSet mergedBitSet = (BitSet) bitSet.clone();
 		mergedBitSet.or(toMerge.bitSet);
-		return new SimpleBloomFilter<E>(bitArraySize, expectedElements, mergedBitSet);
+		return new SimpleBloomFilter<E>(byteArraySize, expectedElements, mergedBitSet, blocked);
 	}
 
 	@Override
@@ -395,7 +545,7 @@ public class SimpleBloomFilter<E> implements Set<E>, Serializable {
 		@SuppressWarnings("unchecked")
 		SimpleBloomFilter<E> o = (SimpleBloomFilter<E>) obj;
 		return o.k == k && o.bitArraySize == bitArraySize && expectedElements == o.expectedElements
-		        && bitSet.equals(o.bitSet);
+		        && blocked == o.blocked && bitSet.equals(o.bitSet);
 	}
 
 	@Override
@@ -406,6 +556,7 @@ public class SimpleBloomFilter<E> implements Set<E>, Serializable {
 		hash = magic * hash + k;
 		hash = magic * hash + expectedElements;
 		hash = magic * hash + bitArraySize;
+		hash = magic * hash + (blocked ? 1 : 0);
 		return hash;
 	}
 
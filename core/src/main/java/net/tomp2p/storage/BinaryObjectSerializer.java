@@ -0,0 +1,563 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.storage;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.utils.Utils;
+
+/**
+ * A schema-less binary serializer. Each value starts with a one byte tag,
+ * numbers are written as variable length integers. The following types are
+ * written without reflection: null, the boxed primitives, String, byte[],
+ * {@link Number160}, {@link ArrayList}, {@link HashSet} and {@link HashMap}.
+ * <p>
+ * Other classes have to be registered. A registered class is written as its
+ * registration ID followed by its non-static, non-transient fields, sorted by
+ * the class hierarchy and the field name. It needs a constructor without
+ * arguments, which may be private. The registration IDs have to be the same on
+ * all peers, thus register the classes in the same order or with explicit IDs.
+ * The object graph has to be a tree, shared references are written twice and
+ * cycles are rejected.
+ * </p>
+ * <p>
+ * Objects of classes that are neither built in nor registered are written with
+ * Java serialization. Payloads that were written with Java serialization, e.g.
+ * by a peer with the {@link JavaObjectSerializer}, are decoded as well.
+ * </p>
+ *
+ * @author Thomas Bocek
+ */
+public class BinaryObjectSerializer implements ObjectSerializer {
+
+	// the first byte, Java serialization starts with 0xAC
+	private static final byte FORMAT = (byte) 0xB1;
+	private static final byte JAVA_MAGIC_0 = (byte) 0xAC;
+	private static final byte JAVA_MAGIC_1 = (byte) 0xED;
+
+	private static final byte NULL = 0;
+	private static final byte TRUE = 1;
+	private static final byte FALSE = 2;
+	private static final byte BYTE = 3;
+	private static final byte SHORT = 4;
+	private static final byte INT = 5;
+	private static final byte LONG = 6;
+	private static final byte FLOAT = 7;
+	private static final byte DOUBLE = 8;
+	private static final byte CHAR = 9;
+	private static final byte STRING = 10;
+	private static final byte BYTES = 11;
+	private static final byte NUMBER160 = 12;
+	private static final byte LIST = 13;
+	private static final byte SET = 14;
+	private static final byte MAP = 15;
+	private static final byte REGISTERED = 16;
+	private static final byte JAVA = 17;
+
+	private static final int MAX_DEPTH = 256;
+	// do not keep large buffers per thread
+	private static final int MAX_CACHED_BUFFER = 64 * 1024;
+
+	private final Map<Class<?>, Registration> registrations = new ConcurrentHashMap<Class<?>, Registration>();
+	private volatile Registration[] registrationsById = new Registration[0];
+
+	private final ThreadLocal<Output> outputs = new ThreadLocal<Output>() {
+		@Override
+		protected Output initialValue() {
+			return new Output();
+		}
+	};
+
+	/**
+	 * Registers a class with the next free ID.
+	 *
+	 * @param clazz
+	 *            The class to register
+	 * @return This class
+	 */
+	public BinaryObjectSerializer register(final Class<?> clazz) {
+		synchronized (registrations) {
+			return register(clazz, registrationsById.length);
+		}
+	}
+
+	/**
+	 * Registers a class with an ID.
+	 *
+	 * @param clazz
+	 *            The class to register
+	 * @param id
+	 *            The ID that is written instead of the class name
+	 * @return This class
+	 */
+	public BinaryObjectSerializer register(final Class<?> clazz, final int id) {
+		if (id < 0) {
+			throw new IllegalArgumentException("the ID must not be negative: " + id);
+		}
+		final Registration registration = new Registration(clazz, id);
+		synchronized (registrations) {
+			if (id < registrationsById.length && registrationsById[id] != null) {
+				throw new IllegalArgumentException("ID " + id + " is already used by " + registrationsById[id].clazz);
+			}
+			if (registrations.containsKey(clazz)) {
+				throw new IllegalArgumentException(clazz + " is already registered");
+			}
+			final Registration[] tmp = Arrays.copyOf(registrationsById, Math.max(registrationsById.length, id + 1));
+			tmp[id] = registration;
+			registrationsById = tmp;
+			registrations.put(clazz, registration);
+		}
+		return this;
+	}
+
+	@Override
+	public byte[] encode(final Object object) throws IOException {
+		final Output output = outputs.get();
+		try {
+			output.writeByte(FORMAT);
+			writeValue(output, object, 0);
+			return Arrays.copyOf(output.buf, output.pos);
+		} finally {
+			output.reset();
+		}
+	}
+
+	@Override
+	public Object decode(final ByteBuf buffer) throws ClassNotFoundException, IOException {
+		if (buffer.readableBytes() >= 2 && buffer.getByte(buffer.readerIndex()) == JAVA_MAGIC_0
+				&& buffer.getByte(buffer.readerIndex() + 1) == JAVA_MAGIC_1) {
+			return Utils.decodeJavaObject(buffer);
+		}
+		if (!buffer.isReadable() || buffer.readByte() != FORMAT) {
+			throw new IOException("not encoded with the binary or the Java serializer");
+		}
+		try {
+			return readValue(buffer, 0);
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("truncated data", e);
+		}
+	}
+
+	private void writeValue(final Output output, final Object object, final int depth) throws IOException {
+		if (depth > MAX_DEPTH) {
+			throw new IOException("object graph too deep or cyclic");
+		}
+		if (object == null) {
+			output.writeByte(NULL);
+			return;
+		}
+		final Class<?> clazz = object.getClass();
+		if (clazz == String.class) {
+			final byte[] bytes = ((String) object).getBytes(StandardCharsets.UTF_8);
+			output.writeByte(STRING);
+			output.writeVarInt(bytes.length);
+			output.writeBytes(bytes);
+		} else if (clazz == Integer.class) {
+			output.writeByte(INT);
+			output.writeVarLong(zigZag((Integer) object));
+		} else if (clazz == Long.class) {
+			output.writeByte(LONG);
+			output.writeVarLong(zigZag((Long) object));
+		} else if (clazz == byte[].class) {
+			final byte[] bytes = (byte[]) object;
+			output.writeByte(BYTES);
+			output.writeVarInt(bytes.length);
+			output.writeBytes(bytes);
+		} else if (clazz == Boolean.class) {
+			output.writeByte((Boolean) object ? TRUE : FALSE);
+		} else if (clazz == Number160.class) {
+			output.writeByte(NUMBER160);
+			output.writeBytes(((Number160) object).toByteArray());
+		} else if (clazz == Byte.class) {
+			output.writeByte(BYTE);
+			output.writeByte((Byte) object);
+		} else if (clazz == Short.class) {
+			output.writeByte(SHORT);
+			output.writeVarLong(zigZag((Short) object));
+		} else if (clazz == Character.class) {
+			output.writeByte(CHAR);
+			output.writeVarLong((Character) object);
+		} else if (clazz == Float.class) {
+			output.writeByte(FLOAT);
+			output.writeInt(Float.floatToRawIntBits((Float) object));
+		} else if (clazz == Double.class) {
+			output.writeByte(DOUBLE);
+			output.writeLong(Double.doubleToRawLongBits((Double) object));
+		} else if (clazz == ArrayList.class) {
+			output.writeByte(LIST);
+			writeCollection(output, (Collection<?>) object, depth);
+		} else if (clazz == HashSet.class) {
+			output.writeByte(SET);
+			writeCollection(output, (Collection<?>) object, depth);
+		} else if (clazz == HashMap.class) {
+			final Map<?, ?> map = (Map<?, ?>) object;
+			output.writeByte(MAP);
+			output.writeVarInt(map.size());
+			for (final Map.Entry<?, ?> entry : map.entrySet()) {
+				writeValue(output, entry.getKey(), depth + 1);
+				writeValue(output, entry.getValue(), depth + 1);
+			}
+		} else {
+			final Registration registration = registrations.get(clazz);
+			if (registration != null) {
+				output.writeByte(REGISTERED);
+				output.writeVarInt(registration.id);
+				registration.write(this, output, object, depth);
+			} else {
+				final byte[] bytes = Utils.encodeJavaObject(object);
+				output.writeByte(JAVA);
+				output.writeVarInt(bytes.length);
+				output.writeBytes(bytes);
+			}
+		}
+	}
+
+	private void writeCollection(final Output output, final Collection<?> collection, final int depth)
+			throws IOException {
+		output.writeVarInt(collection.size());
+		for (final Object element : collection) {
+			writeValue(output, element, depth + 1);
+		}
+	}
+
+	private Object readValue(final ByteBuf buffer, final int depth) throws ClassNotFoundException, IOException {
+		if (depth > MAX_DEPTH) {
+			throw new IOException("object graph too deep");
+		}
+		final byte tag = buffer.readByte();
+		switch (tag) {
+		case NULL:
+			return null;
+		case TRUE:
+			return Boolean.TRUE;
+		case FALSE:
+			return Boolean.FALSE;
+		case BYTE:
+			return buffer.readByte();
+		case SHORT:
+			return (short) unZigZag(readVarLong(buffer));
+		case INT:
+			return (int) unZigZag(readVarLong(buffer));
+		case LONG:
+			return unZigZag(readVarLong(buffer));
+		case FLOAT:
+			return Float.intBitsToFloat(buffer.readInt());
+		case DOUBLE:
+			return Double.longBitsToDouble(buffer.readLong());
+		case CHAR:
+			return (char) readVarLong(buffer);
+		case STRING: {
+			final int length = readLength(buffer);
+			final String string = buffer.toString(buffer.readerIndex(), length, StandardCharsets.UTF_8);
+			buffer.skipBytes(length);
+			return string;
+		}
+		case BYTES: {
+			final byte[] bytes = new byte[readLength(buffer)];
+			buffer.readBytes(bytes);
+			return bytes;
+		}
+		case NUMBER160: {
+			final byte[] bytes = new byte[Number160.BYTE_ARRAY_SIZE];
+			buffer.readBytes(bytes);
+			return new Number160(bytes);
+		}
+		case LIST: {
+			final int size = readLength(buffer);
+			final List<Object> list = new ArrayList<Object>(size);
+			for (int i = 0; i < size; i++) {
+				list.add(readValue(buffer, depth + 1));
+			}
+			return list;
+		}
+		case SET: {
+			final int size = readLength(buffer);
+			final HashSet<Object> set = new HashSet<Object>(capacity(size));
+			for (int i = 0; i < size; i++) {
+				set.add(readValue(buffer, depth + 1));
+			}
+			return set;
+		}
+		case MAP: {
+			final int size = readLength(buffer);
+			final HashMap<Object, Object> map = new HashMap<Object, Object>(capacity(size));
+			for (int i = 0; i < size; i++) {
+				map.put(readValue(buffer, depth + 1), readValue(buffer, depth + 1));
+			}
+			return map;
+		}
+		case REGISTERED: {
+			final int id = (int) readVarLong(buffer);
+			final Registration[] tmp = registrationsById;
+			if (id < 0 || id >= tmp.length || tmp[id] == null) {
+				throw new ClassNotFoundException("no class registered with ID " + id);
+			}
+			return tmp[id].read(this, buffer, depth);
+		}
+		case JAVA:
+			return Utils.decodeJavaObject(buffer.readSlice(readLength(buffer)));
+		default:
+			throw new IOException("unknown tag " + tag);
+		}
+	}
+
+	private static int readLength(final ByteBuf buffer) throws IOException {
+		final long length = readVarLong(buffer);
+		// a length is never longer than the remaining bytes, this also limits allocations
+		if (length < 0 || length > buffer.readableBytes()) {
+			throw new IOException("invalid length " + length);
+		}
+		return (int) length;
+	}
+
+	private static int capacity(final int size) {
+		return Math.max(16, (int) (size / 0.75f) + 1);
+	}
+
+	private static long zigZag(final long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unZigZag(final long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static long readVarLong(final ByteBuf buffer) throws IOException {
+		long result = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			final byte b = buffer.readByte();
+			result |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return result;
+			}
+		}
+		throw new IOException("malformed variable length integer");
+	}
+
+	/**
+	 * A growing byte array that is reused by its thread.
+	 */
+	private static final class Output {
+		private byte[] buf = new byte[256];
+		private int pos = 0;
+
+		private void ensure(final int length) {
+			if (pos + length > buf.length) {
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + length));
+			}
+		}
+
+		private void reset() {
+			pos = 0;
+			if (buf.length > MAX_CACHED_BUFFER) {
+				buf = new byte[256];
+			}
+		}
+
+		private void writeByte(final int value) {
+			ensure(1);
+			buf[pos++] = (byte) value;
+		}
+
+		private void writeBytes(final byte[] bytes) {
+			ensure(bytes.length);
+			System.arraycopy(bytes, 0, buf, pos, bytes.length);
+			pos += bytes.length;
+		}
+
+		private void writeInt(final int value) {
+			ensure(4);
+			buf[pos++] = (byte) (value >>> 24);
+			buf[pos++] = (byte) (value >>> 16);
+			buf[pos++] = (byte) (value >>> 8);
+			buf[pos++] = (byte) value;
+		}
+
+		private void writeLong(final long value) {
+			writeInt((int) (value >>> 32));
+			writeInt((int) value);
+		}
+
+		private void writeVarInt(final int value) {
+			writeVarLong(value & 0xffffffffL);
+		}
+
+		private void writeVarLong(long value) {
+			ensure(10);
+			while ((value & ~0x7fL) != 0) {
+				buf[pos++] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			buf[pos++] = (byte) value;
+		}
+	}
+
+	/**
+	 * The fields of a registered class, looked up once.
+	 */
+	private static final class Registration {
+		private final Class<?> clazz;
+		private final int id;
+		private final Constructor<?> constructor;
+		private final Field[] fields;
+		private final Object[] enumConstants;
+
+		private Registration(final Class<?> clazz, final int id) {
+			this.clazz = clazz;
+			this.id = id;
+			this.enumConstants = clazz.getEnumConstants();
+			if (enumConstants != null) {
+				this.constructor = null;
+				this.fields = new Field[0];
+				return;
+			}
+			try {
+				this.constructor = clazz.getDeclaredConstructor();
+				constructor.setAccessible(true);
+			} catch (NoSuchMethodException e) {
+				throw new IllegalArgumentException(clazz + " needs a constructor without arguments", e);
+			} catch (RuntimeException e) {
+				throw new IllegalArgumentException(clazz + " cannot be accessed", e);
+			}
+			final List<Field> list = new ArrayList<Field>();
+			final List<Class<?>> hierarchy = new ArrayList<Class<?>>();
+			for (Class<?> current = clazz; current != null && current != Object.class; current = current
+					.getSuperclass()) {
+				hierarchy.add(0, current);
+			}
+			for (final Class<?> current : hierarchy) {
+				final Field[] declared = current.getDeclaredFields();
+				// the order of getDeclaredFields() is not specified
+				Arrays.sort(declared, new Comparator<Field>() {
+					@Override
+					public int compare(final Field f1, final Field f2) {
+						return f1.getName().compareTo(f2.getName());
+					}
+				});
+				for (final Field field : declared) {
+					final int modifiers = field.getModifiers();
+					if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+						continue;
+					}
+					try {
+						field.setAccessible(true);
+					} catch (RuntimeException e) {
+						throw new IllegalArgumentException(field + " cannot be accessed", e);
+					}
+					list.add(field);
+				}
+			}
+			this.fields = list.toArray(new Field[list.size()]);
+		}
+
+		private void write(final BinaryObjectSerializer serializer, final Output output, final Object object,
+				final int depth) throws IOException {
+			if (enumConstants != null) {
+				output.writeVarInt(((Enum<?>) object).ordinal());
+				return;
+			}
+			try {
+				for (final Field field : fields) {
+					final Class<?> type = field.getType();
+					if (!type.isPrimitive()) {
+						serializer.writeValue(output, field.get(object), depth + 1);
+					} else if (type == int.class) {
+						output.writeVarLong(zigZag(field.getInt(object)));
+					} else if (type == long.class) {
+						output.writeVarLong(zigZag(field.getLong(object)));
+					} else if (type == boolean.class) {
+						output.writeByte(field.getBoolean(object) ? 1 : 0);
+					} else if (type == byte.class) {
+						output.writeByte(field.getByte(object));
+					} else if (type == short.class) {
+						output.writeVarLong(zigZag(field.getShort(object)));
+					} else if (type == char.class) {
+						output.writeVarLong(field.getChar(object));
+					} else if (type == float.class) {
+						output.writeInt(Float.floatToRawIntBits(field.getFloat(object)));
+					} else {
+						output.writeLong(Double.doubleToRawLongBits(field.getDouble(object)));
+					}
+				}
+			} catch (IllegalAccessException e) {
+				throw new IOException("cannot read " + clazz, e);
+			}
+		}
+
+		private Object read(final BinaryObjectSerializer serializer, final ByteBuf buffer, final int depth)
+				throws ClassNotFoundException, IOException {
+			if (enumConstants != null) {
+				final int ordinal = (int) readVarLong(buffer);
+				if (ordinal < 0 || ordinal >= enumConstants.length) {
+					throw new IOException("unknown constant " + ordinal + " of " + clazz);
+				}
+				return enumConstants[ordinal];
+			}
+			try {
+				final Object object = constructor.newInstance();
+				for (final Field field : fields) {
+					final Class<?> type = field.getType();
+					if (!type.isPrimitive()) {
+						field.set(object, serializer.readValue(buffer, depth + 1));
+					} else if (type == int.class) {
+						field.setInt(object, (int) unZigZag(readVarLong(buffer)));
+					} else if (type == long.class) {
+						field.setLong(object, unZigZag(readVarLong(buffer)));
+					} else if (type == boolean.class) {
+						field.setBoolean(object, buffer.readByte() != 0);
+					} else if (type == byte.class) {
+						field.setByte(object, buffer.readByte());
+					} else if (type == short.class) {
+						field.setShort(object, (short) unZigZag(readVarLong(buffer)));
+					} else if (type == char.class) {
+						field.setChar(object, (char) readVarLong(buffer));
+					} else if (type == float.class) {
+						field.setFloat(object, Float.intBitsToFloat(buffer.readInt()));
+					} else {
+						field.setDouble(object, Double.longBitsToDouble(buffer.readLong()));
+					}
+				}
+				return object;
+			} catch (InstantiationException e) {
+				throw new IOException("cannot create " + clazz, e);
+			} catch (IllegalAccessException e) {
+				throw new IOException("cannot create " + clazz, e);
+			} catch (InvocationTargetException e) {
+				throw new IOException("cannot create " + clazz, e.getCause());
+			} catch (IllegalArgumentException e) {
+				// a value of the wrong type for a field
+				throw new IOException("cannot set the fields of " + clazz, e);
+			}
+		}
+	}
+}
@@ -16,7 +16,6 @@
 package net.tomp2p.storage;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
 
 import java.io.IOException;
@@ -84,6 +83,7 @@ public class Data {
 	// never serialized over the network in this object
 	private long validFromMillis;
 	private SignatureFactory signatureFactory;
+	private ObjectSerializer objectSerializer;
 	private Number160 hash;
 	private boolean meta;
 	
@@ -121,6 +121,14 @@ public class Data {
 	 *            The length, depending on the header values.
 	 */
 	public Data(final int header, final int length) {
+		this(header, length, null);
+	}
+
+	/**
+	 * Creates a Data object with the given payload, or an empty payload if the
+	 * buffer is null.
+	 */
+	private Data(final int header, final int length, final ByteBuf buffer) {
 		this.publicKeyFlag = hasPublicKey(header);
 		this.flag1 = isFlag1(header);
 		this.flag2 = isFlag2(header);
@@ -138,7 +146,7 @@ public class Data {
 		}
 
 		this.length = length;
-		this.buffer = Unpooled.buffer(length);
+		this.buffer = buffer == null ? Unpooled.buffer(length) : buffer;
 		this.validFromMillis = System.currentTimeMillis();
 	}
 
@@ -146,6 +154,20 @@ public class Data {
 		this(Utils.encodeJavaObject(object));
 	}
 
+	/**
+	 * @param object
+	 *            The object to store
+	 * @param objectSerializer
+	 *            The serializer that encodes the object, {@link #object()}
+	 *            decodes with it
+	 * @throws IOException
+	 *             If the object cannot be encoded
+	 */
+	public Data(final Object object, final ObjectSerializer objectSerializer) throws IOException {
+		this(objectSerializer.encode(object));
+		this.objectSerializer = objectSerializer;
+	}
+
 	public Data(final byte[] buffer) {
 		this(buffer, 0, buffer.length);
 	}
@@ -200,6 +222,28 @@ public class Data {
 	 * @return The data object, may be partially filled
 	 */
 	public static Data decodeHeader(final ByteBuf buf, final SignatureFactory signatureFactory) {
+		return decodeHeader(buf, signatureFactory, false);
+	}
+
+	/**
+	 * Decodes a complete data object (header, payload and signature) without
+	 * copying the payload. The payload of the returned data object is a slice
+	 * of the buffer, so the buffer must not be modified or freed as long as
+	 * the data object is in use.
+	 * 
+	 * @param buf
+	 *            The buffer with the complete data object
+	 * @return The data object
+	 */
+	public static Data decodeSlice(final ByteBuf buf, final SignatureFactory signatureFactory) {
+		final Data data = decodeHeader(buf, signatureFactory, true);
+		if (data == null || !data.decodeDone(buf, signatureFactory)) {
+			throw new IllegalArgumentException("Incomplete data object.");
+		}
+		return data;
+	}
+
+	private static Data decodeHeader(final ByteBuf buf, final SignatureFactory signatureFactory, final boolean slice) {
 		// 2 is the smallest packet size, we could start if we know 1 byte to
 		// decode the header, but we always need
 		// a second byte. Thus, we are waiting for at least 2 bytes.
@@ -300,7 +344,7 @@ public class Data {
 		}
 		
 		// now, we have read the header and the length
-		final Data data = new Data(header, length);
+		final Data data = new Data(header, length, slice ? buf.readSlice(length) : null);
 		data.ttlSeconds = ttl;
 		data.basedOnSet = basedOn;
 		data.publicKey = publicKey;
@@ -430,7 +474,7 @@ public class Data {
 		}
 	}
 	
-	public boolean encodeBuffer(final CompositeByteBuf buf) {
+	public boolean encodeBuffer(final ByteBuf buf) {
             //buf.setBytes(buf.writerIndex(), buffer);
             buf.writeBytes(buffer.duplicate());
             return true;
@@ -469,8 +513,21 @@ public class Data {
 		return buffer.duplicate();
 	}
 
+	/**
+	 * @return The object decoded with the serializer of this data, see
+	 *         {@link #objectSerializer(ObjectSerializer)}
+	 */
 	public Object object() throws ClassNotFoundException, IOException {
-		return Utils.decodeJavaObject(buffer.duplicate());
+		return objectSerializer().decode(buffer.duplicate());
+	}
+
+	/**
+	 * @param objectSerializer
+	 *            The serializer that encoded the object
+	 * @return The decoded object
+	 */
+	public Object object(final ObjectSerializer objectSerializer) throws ClassNotFoundException, IOException {
+		return objectSerializer.decode(buffer.duplicate());
 	}
 
 	public long validFromMillis() {
@@ -605,6 +662,31 @@ public class Data {
 		return this;
 	}
 
+	/**
+	 * @return The serializer that {@link #object()} uses, Java serialization
+	 *         if none is set
+	 */
+	public ObjectSerializer objectSerializer() {
+		if (objectSerializer == null) {
+			return JavaObjectSerializer.INSTANCE;
+		} else {
+			return objectSerializer;
+		}
+	}
+
+	/**
+	 * Sets the serializer for {@link #object()}. It is not sent over the
+	 * network, a get sets the serializer of the peer on the received data.
+	 * 
+	 * @param objectSerializer
+	 *            The serializer that encoded the object
+	 * @return This class
+	 */
+	public Data objectSerializer(ObjectSerializer objectSerializer) {
+		this.objectSerializer = objectSerializer;
+		return this;
+	}
+
 	public boolean isProtectedEntry() {
 		return protectedEntry;
 	}
@@ -748,6 +830,7 @@ public class Data {
 		data.privateKey = privateKey;
 		data.validFromMillis = validFromMillis;
 		data.prepareFlag = prepareFlag;
+		data.objectSerializer = objectSerializer;
 		return data;
 	}
 	
@@ -769,6 +852,7 @@ public class Data {
 		data.privateKey = privateKey;
 		data.validFromMillis = validFromMillis;
 		data.prepareFlag = prepareFlag;
+		data.objectSerializer = objectSerializer;
 		return data;
 	}
 
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.storage;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+
+/**
+ * Converts objects to the payload of {@link Data} and back. The serializer of a
+ * peer is set with {@link net.tomp2p.p2p.PeerBuilder#objectSerializer(ObjectSerializer)}.
+ * Implementations must be thread-safe.
+ * 
+ * @author Thomas Bocek
+ */
+public interface ObjectSerializer {
+
+	/**
+	 * @param object
+	 *            The object to encode
+	 * @return The encoded object
+	 * @throws IOException
+	 *             If the object cannot be encoded
+	 */
+	byte[] encode(Object object) throws IOException;
+
+	/**
+	 * @param buffer
+	 *            The encoded object, the reader index is moved
+	 * @return The decoded object
+	 * @throws ClassNotFoundException
+	 *             If the class of the object is unknown
+	 * @throws IOException
+	 *             If the object cannot be decoded
+	 */
+	Object decode(ByteBuf buffer) throws ClassNotFoundException, IOException;
+}
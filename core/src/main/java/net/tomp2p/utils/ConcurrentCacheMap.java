@@ -15,29 +15,54 @@
  */
 package net.tomp2p.utils;
 
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import net.tomp2p.message.MessageID;
-
 /**
- * A map with expiration and more or less LRU. Since the maps are separated in segments, the LRU is done for each
- * segment. A segment is chosen based on the hash of the key. If one segments is more loaded than another, then an entry
- * of the loaded segment may get evicted before an entry used least recently from an other segment. The expiration is
- * done best effort. There is no thread checking for timed out entries since the cache has a fixed size. Once an entry
- * times out, it remains in the map until it either is accessed or evicted. A test showed that for the default entry
- * size of 1024, this map has a size of 967 if 1024 items are inserted. This is due to the segmentation and hashing.
- * 
+ * A map with expiration and more or less LRU. The entries are stored in a
+ * {@link ConcurrentHashMap}, thus reads do not lock and {@link #size()} does
+ * not iterate. The eviction is done with the CLOCK algorithm: a read marks an
+ * entry as referenced, and if the map is full, the oldest entry that was not
+ * referenced since the last pass is evicted. Referenced entries get a second
+ * chance.
+ * <p>
+ * Every entry is scheduled in a {@link TimerWheel} that is shared by all maps
+ * and advanced by one daemon thread. Expired entries are removed by this thread
+ * within {@link #TICK_MILLIS} after their expiration. Until then, an expired
+ * entry is invisible to the get and put methods, but it is still counted by
+ * {@link #size()}. The {@link ExpirationHandler} is neither called on this
+ * thread nor on the thread that accesses the map, but on the handler executor,
+ * one value at a time per map, so a slow handler does not delay the
+ * expiration of other maps.
+ * </p>
+ * <p>
+ * An entry is its own timeout in the wheel and its own link in the clock, so a
+ * put allocates nothing but the entry and the node of the underlying map.
+ * </p>
+ *
  * @author Thomas Bocek
  * @param <K>
  *            the type of the key
@@ -47,11 +72,6 @@ import net.tomp2p.message.MessageID;
 public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
     private static final Logger LOGGER = LoggerFactory.getLogger(ConcurrentCacheMap.class);
 
-    /**
-     * Number of segments that can be accessed concurrently.
-     */
-    public static final int SEGMENT_NR = 16;
-
     /**
      * Max. number of entries that the map can hold until the least recently used gets replaced
      */
@@ -62,29 +82,76 @@ public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
      */
     public static final int DEFAULT_TIME_TO_LIVE = 60;
 
-    private final CacheMap<K, ExpiringObject>[] segments;
+    /**
+     * The resolution of the expiration.
+     */
+    public static final long TICK_MILLIS = 50;
+
+    private static final int WHEEL_SIZE = 1024;
+
+    private static final ExecutorService HANDLER_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "ConcurrentCacheMap-handler");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final ConcurrentHashMap<K, Node> map = new ConcurrentHashMap<K, Node>();
+
+    // the clock for the eviction, a queue of nodes linked by nextInClock that
+    // any thread adds to, but only the thread that holds evicting polls. Removed
+    // entries stay until they are polled or purged.
+    private final Node clockStub = new Node();
+    private final AtomicReference<Node> clockTail = new AtomicReference<Node>(clockStub);
+    private Node clockHead = clockStub;
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final AtomicInteger removedInClock = new AtomicInteger();
+
+    // the values for the expiration handler, the thread that increments
+    // expiredPending from zero hands the queue to the executor
+    private final Queue<V> expiredValues = new ConcurrentLinkedQueue<V>();
+    private final AtomicInteger expiredPending = new AtomicInteger();
+    private final Runnable expiredDrain = new Runnable() {
+        @Override
+        public void run() {
+            do {
+                final V value = expiredValues.poll();
+                final ExpirationHandler<V> handler = expirationHandler;
+                if (handler != null) {
+                    try {
+                        handler.expired(value);
+                    } catch (Throwable t) {
+                        LOGGER.warn("expiration handler threw an exception", t);
+                    }
+                }
+            } while (expiredPending.decrementAndGet() > 0);
+        }
+    };
+
+    private final long timeToLiveMillis;
 
-    private final int timeToLiveSeconds;
+    private final int maxEntries;
 
     private final boolean refreshTimeout;
 
     private final AtomicInteger removedCounter = new AtomicInteger();
-    
-    private ExpirationHandler<V> expirationHandler;
-    private final Object expirationHandlerLock = new Object();
+
+    private volatile ExpirationHandler<V> expirationHandler;
+
+    private volatile Executor handlerExecutor = HANDLER_EXECUTOR;
 
     /**
-     * Creates a new instance of ConcurrentCacheMap using the default values and a {@link CacheMap} for the internal
-     * data structure.
+     * Creates a new instance of ConcurrentCacheMap using the default values.
      */
     public ConcurrentCacheMap() {
         this(DEFAULT_TIME_TO_LIVE, MAX_ENTRIES, true);
     }
 
     /**
-     * Creates a new instance of ConcurrentCacheMap using the supplied values and a {@link CacheMap} for the internal
-     * data structure.
-     * 
+     * Creates a new instance of ConcurrentCacheMap using the supplied values.
+     *
      * @param timeToLiveSeconds
      *            The time-to-live value (seconds)
      * @param maxEntries
@@ -95,9 +162,8 @@ public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
     }
 
     /**
-     * Creates a new instance of ConcurrentCacheMap using the supplied values and a {@link CacheMap} for the internal
-     * data structure.
-     * 
+     * Creates a new instance of ConcurrentCacheMap using the supplied values.
+     *
      * @param timeToLiveSeconds
      *            The time-to-live value (seconds)
      * @param maxEntries
@@ -105,116 +171,96 @@ public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
      * @param refreshTimeout
      *            If set to true, timeout will be reset in case of {@link #putIfAbsent(Object, Object)}
      */
-    @SuppressWarnings("unchecked")
     public ConcurrentCacheMap(final int timeToLiveSeconds, final int maxEntries, final boolean refreshTimeout) {
-        this.segments = new CacheMap[SEGMENT_NR];
-        final int maxEntriesPerSegment = maxEntries / SEGMENT_NR;
-        for (int i = 0; i < SEGMENT_NR; i++) {
-        	// set updateOnInsert to true, since it should behave as a regular map
-            segments[i] = new CacheMap<K, ExpiringObject>(maxEntriesPerSegment, true);
-        }
-        this.timeToLiveSeconds = timeToLiveSeconds;
+        this.timeToLiveMillis = TimeUnit.MILLISECONDS.convert(timeToLiveSeconds, TimeUnit.SECONDS);
+        this.maxEntries = maxEntries;
         this.refreshTimeout = refreshTimeout;
     }
-    
+
     public ConcurrentCacheMap<K, V> expirationHandler(ExpirationHandler<V> expirationHandler) {
-    	synchronized (expirationHandlerLock) {
-    		this.expirationHandler = expirationHandler;			
-		}
+    	this.expirationHandler = expirationHandler;
     	return this;
     }
-    
-    public ExpirationHandler expirationHandler() {
+
+    public ExpirationHandler<V> expirationHandler() {
     	return expirationHandler;
     }
 
     /**
-     * Returns the segment based on the key.
-     * 
-     * @param key
-     *            The key where the hash code identifies the segment
-     * @return The cache map that corresponds to this segment
+     * @param handlerExecutor
+     *            The executor that calls the expiration handler, by default a
+     *            pool of daemon threads that is shared by all maps
+     * @return This class
      */
-    private CacheMap<K, ExpiringObject> segment(final Object key) {
-    	return segments[(key.hashCode() & Integer.MAX_VALUE) % SEGMENT_NR];
+    public ConcurrentCacheMap<K, V> handlerExecutor(final Executor handlerExecutor) {
+        this.handlerExecutor = handlerExecutor;
+        return this;
+    }
+
+    public Executor handlerExecutor() {
+        return handlerExecutor;
     }
 
     @Override
     public V put(final K key, final V value) {
-        final ExpiringObject newValue = new ExpiringObject(value, System.currentTimeMillis());
-        final CacheMap<K, ExpiringObject> segment = segment(key);
-        ExpiringObject oldValue;
-        synchronized (segment) {
-            oldValue = segment.put(key, newValue);
-        }
+        final Node newValue = new Node(key, value);
+        final Node oldValue = map.put(key, newValue);
+        added(newValue);
         if (oldValue == null) {
             return null;
         }
-        if(oldValue.isExpired()) {
-        	LOGGER.debug("Removed in expire: {}.", oldValue.getValue());
-            removedCounter.incrementAndGet();
-        	synchronized (expirationHandlerLock) {
-        		if(expirationHandler != null) {
-        			expirationHandler.expired(oldValue.getValue());
-        		}
-			}
-        	return null;
+        removed(oldValue);
+        if (oldValue.isOutdated()) {
+            expired(oldValue);
+            return null;
         }
-        return oldValue.getValue();
+        return oldValue.value;
     }
 
     @Override
     /**
-     * This does not reset the timer!
+     * This does not reset the timer, unless refreshTimeout is set!
      */
     public V putIfAbsent(final K key, final V value) {
-        final CacheMap<K, ExpiringObject> segment = segment(key);
-        final ExpiringObject newValue = new ExpiringObject(value, System.currentTimeMillis());
-        ExpiringObject oldValue = null;
-        synchronized (segment) {
-            if (!segment.containsKey(key)) {
-                oldValue = segment.put(key, newValue);
+        Node newValue = null;
+        while (true) {
+            final Node oldValue = map.get(key);
+            if (newValue == null && (oldValue == null || oldValue.isOutdated())) {
+                newValue = new Node(key, value);
+            }
+            if (oldValue == null) {
+                if (map.putIfAbsent(key, newValue) == null) {
+                    added(newValue);
+                    return null;
+                }
+            } else if (oldValue.isOutdated()) {
+                if (map.replace(key, oldValue, newValue)) {
+                    added(newValue);
+                    removed(oldValue);
+                    expired(oldValue);
+                    return null;
+                }
             } else {
-                oldValue = segment.get(key);
-                if (oldValue.isExpired()) {
-                    segment.put(key, newValue);
-                } else if (refreshTimeout) {
-                    oldValue = new ExpiringObject(oldValue.getValue(), System.currentTimeMillis());
-                    segment.put(key, oldValue);
+                if (refreshTimeout) {
+                    oldValue.expirationMillis = System.currentTimeMillis() + timeToLiveMillis;
                 }
+                oldValue.reference();
+                return oldValue.value;
             }
+            // changed in the meantime, try again
         }
-        if (oldValue == null) {
-            return null;
-        }
-        if (oldValue.isExpired()) {
-        	LOGGER.debug("Removed in expire: {}.", oldValue.getValue());
-            removedCounter.incrementAndGet();
-        	synchronized (expirationHandlerLock) {
-        		if(expirationHandler != null) {
-        			expirationHandler.expired(oldValue.getValue());
-        		}
-			}
-            return null;
-        }
-        
-        return oldValue.getValue();
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public V get(final Object key) {
-        final CacheMap<K, ExpiringObject> segment = segment(key);
-        final ExpiringObject oldValue;
-        synchronized (segment) {
-            oldValue = segment.get(key);
-        }
+        final Node oldValue = map.get(key);
         if (oldValue != null) {
-            if (expire(segment, (K) key, oldValue)) {
+            if (expire(oldValue)) {
                 return null;
             } else {
-                LOGGER.debug("Get found. Key: {}. Value: {}.", key, oldValue.getValue());
-                return oldValue.getValue();
+                LOGGER.debug("Get found. Key: {}. Value: {}.", key, oldValue.value);
+                oldValue.reference();
+                return oldValue.value;
             }
         }
         LOGGER.debug("Get not found. Key: {}.", key);
@@ -223,105 +269,69 @@ public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
 
     @Override
     public V remove(final Object key) {
-        final CacheMap<K, ExpiringObject> segment = segment(key);
-        final ExpiringObject oldValue;
-        synchronized (segment) {
-            oldValue = segment.remove(key);
-        }
+        final Node oldValue = map.remove(key);
         if (oldValue == null) {
             return null;
         }
-        if (oldValue.isExpired()) {
-        	LOGGER.debug("Removed in expire: {}.", oldValue.getValue());
-            removedCounter.incrementAndGet();
-        	synchronized (expirationHandlerLock) {
-        		if(expirationHandler != null) {
-        			expirationHandler.expired(oldValue.getValue());
-        		}
-			}
+        removed(oldValue);
+        if (oldValue.isOutdated()) {
+            expired(oldValue);
             return null;
         }
-        return oldValue.getValue();
+        return oldValue.value;
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public boolean remove(final Object key, final Object value) {
-        final CacheMap<K, ExpiringObject> segment = segment(key);
-        final ExpiringObject oldValue;
-        boolean removed = false;
-        synchronized (segment) {
-            oldValue = segment.get(key);
-            if (oldValue != null && oldValue.equals(value) && !oldValue.isExpired()) {
-                removed = segment.remove(key) != null;
+        while (true) {
+            final Node oldValue = map.get(key);
+            if (oldValue == null || expire(oldValue) || !oldValue.value.equals(value)) {
+                return false;
+            }
+            if (map.remove(key, oldValue)) {
+                removed(oldValue);
+                return true;
             }
         }
-        if (oldValue != null) {
-            expire(segment, (K) key, oldValue);
-        }
-        return removed;
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public boolean containsKey(final Object key) {
-        final CacheMap<K, ExpiringObject> segment = segment(key);
-        final ExpiringObject oldValue;
-        synchronized (segment) {
-            oldValue = segment.get(key);
-        }
-        if (oldValue != null) {
-            if (!expire(segment, (K) key, oldValue)) {
-                return true;
-            }
-        }
-        return false;
+        final Node oldValue = map.get(key);
+        return oldValue != null && !expire(oldValue);
     }
 
     @Override
     public boolean containsValue(final Object value) {
-        for (final CacheMap<K, ExpiringObject> segment : segments) {
-            synchronized (segment) {
-                expireSegment(segment);
-                if (segment.containsValue(value)) {
-                    return true;
-                }
+        for (final Node node : map.values()) {
+            if (!expire(node) && node.value.equals(value)) {
+                return true;
             }
         }
         return false;
     }
 
+    /**
+     * @return The number of entries, including the ones that expired within the last tick
+     */
     @Override
     public int size() {
-        int size = 0;
-        for (final CacheMap<K, ExpiringObject> segment : segments) {
-            synchronized (segment) {
-                expireSegment(segment);
-                size += segment.size();
-            }
-        }
-        return size;
+        return map.size();
     }
 
     @Override
     public boolean isEmpty() {
-        for (final CacheMap<K, ExpiringObject> segment : segments) {
-            synchronized (segment) {
-                expireSegment(segment);
-                if (!segment.isEmpty()) {
-                    return false;
-                }
-            }
-        }
-        return true;
+        return map.isEmpty();
     }
 
     @Override
     public void clear() {
-        for (final CacheMap<K, ExpiringObject> segment : segments) {
-            synchronized (segment) {
-            	expireSegment(segment);
-                segment.clear();
+        for (final Node node : map.values()) {
+            if (map.remove(node.key, node)) {
+                removed(node);
+                if (node.isOutdated()) {
+                    expired(node);
+                }
             }
         }
     }
@@ -329,11 +339,10 @@ public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
     @Override
     public int hashCode() {
         int hashCode = 0;
-        for (final CacheMap<K, ExpiringObject> segment : segments) {
-            synchronized (segment) {
-                expireSegment(segment);
+        for (final Node node : map.values()) {
+            if (!expire(node)) {
                 // as seen in AbstractMap
-                hashCode += segment.hashCode();
+                hashCode += node.key.hashCode() ^ node.value.hashCode();
             }
         }
         return hashCode;
@@ -342,10 +351,9 @@ public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
     @Override
     public Set<K> keySet() {
         final Set<K> retVal = new HashSet<K>();
-        for (final CacheMap<K, ExpiringObject> segment : segments) {
-            synchronized (segment) {
-                expireSegment(segment);
-                retVal.addAll(segment.keySet());
+        for (final Node node : map.values()) {
+            if (!expire(node)) {
+                retVal.add(node.key);
             }
         }
         return retVal;
@@ -358,53 +366,18 @@ public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
         }
     }
 
+    /**
+     * @return A copy of the values, which cannot be modified
+     */
     @Override
     public Collection<V> values() {
-        final Collection<V> retVal = new ArrayList<V>() {
-            private static final long serialVersionUID = 3769009451779243542L;
-
-			@Override
-        	public Iterator<V> iterator() {
-        		final Iterator<V> orig = super.iterator();
-        		return new Iterator<V>() {
-					@Override
-                    public boolean hasNext() {
-	                    return orig.hasNext();
-                    }
-
-					@Override
-                    public V next() {
-	                    return orig.next();
-                    }
-
-					@Override
-                    public void remove() {
-						throw new UnsupportedOperationException("Cannot remove from values.");
-                    }
-				};
-        	}
-        };
-        for (final CacheMap<K, ExpiringObject> segment : segments) {
-            synchronized (segment) {
-                final Iterator<ExpiringObject> iterator = segment.values().iterator();
-                while (iterator.hasNext()) {
-                    final ExpiringObject expiringObject = iterator.next();
-                    if (expiringObject.isExpired()) {
-                        iterator.remove();
-                        LOGGER.debug("Remove in entry set: {}.", expiringObject.getValue());
-                        removedCounter.incrementAndGet();
-                        synchronized (expirationHandlerLock) {
-                        	if(expirationHandler != null) {
-                        		expirationHandler.expired(expiringObject.getValue());
-                        	}
-            			}
-                    } else {
-                        retVal.add(expiringObject.getValue());
-                    }
-                }
+        final List<V> retVal = new ArrayList<V>();
+        for (final Node node : map.values()) {
+            if (!expire(node)) {
+                retVal.add(node.value);
             }
         }
-        return retVal;
+        return Collections.unmodifiableList(retVal);
     }
 
     @Override
@@ -418,7 +391,7 @@ public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
         	    return new Iterator<Map.Entry<K,V>>() {
 
         	    	private K currentKey = null;
-        	    	
+
 					@Override
                     public boolean hasNext() {
 	                    return orig.hasNext();
@@ -441,39 +414,9 @@ public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
 				};
         	}
         };
-        for (final CacheMap<K, ExpiringObject> segment : segments) {
-            synchronized (segment) {
-                final Iterator<Map.Entry<K, ExpiringObject>> iterator = segment.entrySet().iterator();
-                while (iterator.hasNext()) {
-                    final Map.Entry<K, ExpiringObject> entry = iterator.next();
-                    if (entry.getValue().isExpired()) {
-                        iterator.remove();
-                        LOGGER.debug("Removed in entry set: {}.", entry.getValue().getValue());
-                        removedCounter.incrementAndGet();
-                        synchronized (expirationHandlerLock) {
-                        	if(expirationHandler != null) {
-                        		expirationHandler.expired(entry.getValue().getValue());
-                        	}
-            			}
-                    } else {
-                        retVal.add(new Map.Entry<K, V>() {
-                            @Override
-                            public K getKey() {
-                                return entry.getKey();
-                            }
-
-                            @Override
-                            public V getValue() {
-                                return entry.getValue().getValue();
-                            }
-
-                            @Override
-                            public V setValue(final V value) {
-                                throw new UnsupportedOperationException("not supported");
-                            }
-                        });
-                    }
-                }
+        for (final Node node : map.values()) {
+            if (!expire(node)) {
+                retVal.add(new AbstractMap.SimpleImmutableEntry<K, V>(node.key, node.value));
             }
         }
         return retVal;
@@ -481,69 +424,55 @@ public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
 
     @Override
     public boolean replace(final K key, final V oldValue, final V newValue) {
-        final ExpiringObject oldValue2 = new ExpiringObject(oldValue, 0L);
-        final ExpiringObject newValue2 = new ExpiringObject(newValue, System.currentTimeMillis());
-        final CacheMap<K, ExpiringObject> segment = segment(key);
-        final ExpiringObject oldValue3;
-        boolean replaced = false;
-        synchronized (segment) {
-            oldValue3 = segment.get(key);
-            if (oldValue3 != null && !oldValue3.isExpired() && oldValue2.getValue().equals(oldValue3.getValue())) {
-                segment.put(key, newValue2);
-                replaced = true;
+        while (true) {
+            final Node oldValue2 = map.get(key);
+            if (oldValue2 == null || expire(oldValue2) || !oldValue.equals(oldValue2.value)) {
+                return false;
+            }
+            final Node newValue2 = new Node(key, newValue);
+            if (map.replace(key, oldValue2, newValue2)) {
+                added(newValue2);
+                removed(oldValue2);
+                return true;
             }
         }
-        if (oldValue3 != null) {
-            expire(segment, key, oldValue3);
-        }
-        return replaced;
     }
 
     @Override
     public V replace(final K key, final V value) {
-        final ExpiringObject newValue = new ExpiringObject(value, System.currentTimeMillis());
-        final CacheMap<K, ExpiringObject> segment = segment(key);
-        final ExpiringObject oldValue;
-        synchronized (segment) {
-            oldValue = segment.get(key);
-            if (oldValue != null && !oldValue.isExpired()) {
-                segment.put(key, newValue);
+        while (true) {
+            final Node oldValue = map.get(key);
+            if (oldValue == null || expire(oldValue)) {
+                return null;
+            }
+            final Node newValue = new Node(key, value);
+            if (map.replace(key, oldValue, newValue)) {
+                added(newValue);
+                removed(oldValue);
+                return oldValue.value;
             }
         }
-        if (oldValue == null) {
-            return null;
-        }
-        if (expire(segment, key, oldValue)) {
-            return null;
-        }
-        return oldValue.getValue();
     }
 
     /**
-     * Expires a key in a segment. If a key value pair is expired, it will get removed.
-     * 
-     * @param segment
-     *            The segment
-     * @param key
-     *            The key
-     * @param value
-     *            The value
+     * @return The number of expired objects
+     */
+    public int expiredCounter() {
+        return removedCounter.get();
+    }
+
+    /**
+     * Removes an entry if it is expired.
+     *
+     * @param node
+     *            The entry
      * @return True if expired, otherwise false.
      */
-    private boolean expire(final CacheMap<K, ExpiringObject> segment, final K key, final ExpiringObject value) {
-        if (value.isExpired()) {
-            synchronized (segment) {
-                final ExpiringObject tmp = segment.get(key);
-                if (tmp != null && tmp.equals(value)) {
-                    segment.remove(key);
-                    LOGGER.debug("Removed in expire: {}.", value.getValue());
-                    removedCounter.incrementAndGet();
-                    synchronized (expirationHandlerLock) {
-                    	if(expirationHandler != null) {
-                    		expirationHandler.expired(tmp.getValue());
-                    	}
-        			}
-                }
+    private boolean expire(final Node node) {
+        if (node.isOutdated()) {
+            if (map.remove(node.key, node)) {
+                removed(node);
+                expired(node);
             }
             return true;
         }
@@ -551,89 +480,249 @@ public class ConcurrentCacheMap<K, V> implements ConcurrentMap<K, V> {
     }
 
     /**
-     * Fast expiration. Since the ExpiringObject is ordered the for loop can break early if a object is not expired.
-     * 
-     * @param segment
-     *            The segment
+     * Called once for every entry that was removed because it expired.
      */
-    private void expireSegment(final CacheMap<K, ExpiringObject> segment) {
-        final Iterator<ExpiringObject> iterator = segment.values().iterator();
-        while (iterator.hasNext()) {
-            final ExpiringObject expiringObject = iterator.next();
-            if (expiringObject.isExpired()) {
-                iterator.remove();
-                LOGGER.debug("Remove in expire segment: {}.", expiringObject.getValue());
-                removedCounter.incrementAndGet();
-                synchronized (expirationHandlerLock) {
-                	if(expirationHandler != null) {
-                		expirationHandler.expired(expiringObject.getValue());
-                	}
+    private void expired(final Node node) {
+        LOGGER.debug("Removed in expire: {}.", node.value);
+        removedCounter.incrementAndGet();
+        if (expirationHandler == null) {
+            return;
+        }
+        // queue before counting, so every counted value is in the queue
+        expiredValues.add(node.value);
+        if (expiredPending.getAndIncrement() != 0) {
+            // the running drain picks it up
+            return;
+        }
+        try {
+            handlerExecutor.execute(expiredDrain);
+        } catch (RejectedExecutionException e) {
+            LOGGER.warn("expiration handler executor rejected the handler, call it here", e);
+            expiredDrain.run();
+        }
+    }
+
+    /**
+     * Called once for every entry that was put in the map.
+     */
+    private void added(final Node node) {
+        offerClock(node);
+        Expiration.TIMER_WHEEL.schedule(node, timeToLiveMillis);
+        evict();
+    }
+
+    /**
+     * Called once for every entry that was removed from the map while it is
+     * still in the clock.
+     */
+    private void removed(final Node node) {
+        node.retire();
+        if (removedInClock.incrementAndGet() > Math.max(map.size(), 64) && evicting.compareAndSet(false, true)) {
+            // entries that are removed without eviction would pile up in the clock
+            try {
+                int left = removedInClock.getAndSet(0) + map.size();
+                Node next;
+                while (left-- > 0 && (next = pollClock()) != null) {
+                    if (!next.retired) {
+                        offerClock(next);
+                    }
                 }
-            } else {
-                break;
+            } finally {
+                evicting.set(false);
             }
         }
     }
 
     /**
-     * @return The number of expired objects
+     * Evicts entries with the CLOCK algorithm until the map has no more than
+     * maxEntries. A referenced entry is moved to the end of the clock, but only
+     * as often as there are entries, so a steady stream of reads cannot keep
+     * this loop busy. One thread at a time evicts, the others return, but
+     * check again once it is done.
      */
-    public int expiredCounter() {
-        return removedCounter.get();
+    private void evict() {
+        while (map.size() > maxEntries && evicting.compareAndSet(false, true)) {
+            try {
+                if (!evictLocked()) {
+                    // a racing put has not linked its entry yet, it evicts itself
+                    return;
+                }
+            } finally {
+                evicting.set(false);
+            }
+        }
+    }
+
+    private boolean evictLocked() {
+        int secondChances = maxEntries;
+        while (map.size() > maxEntries) {
+            final Node node = pollClock();
+            if (node == null) {
+                return false;
+            }
+            if (node.retired) {
+                removedInClock.decrementAndGet();
+                continue;
+            }
+            if (node.referenced && secondChances-- > 0) {
+                node.referenced = false;
+                offerClock(node);
+                continue;
+            }
+            if (map.remove(node.key, node)) {
+                node.retire();
+                LOGGER.debug("Evicted: {}.", node.value);
+                if (node.isOutdated()) {
+                    expired(node);
+                }
+            }
+        }
+        return true;
+    }
+
+    private void offerClock(final Node node) {
+        node.nextInClock = null;
+        final Node previous = clockTail.getAndSet(node);
+        previous.nextInClock = node;
+    }
+
+    /**
+     * Polls the oldest node of the clock. Only the thread that holds evicting
+     * calls this method.
+     *
+     * @return The node or null if the clock is empty or the last node is not
+     *         linked yet
+     */
+    private Node pollClock() {
+        Node head = clockHead;
+        Node next = head.nextInClock;
+        if (head == clockStub) {
+            if (next == null) {
+                return null;
+            }
+            clockHead = next;
+            head = next;
+            next = next.nextInClock;
+        }
+        if (next != null) {
+            clockHead = next;
+            return head;
+        }
+        if (head != clockTail.get()) {
+            return null;
+        }
+        // the stub keeps the queue linked once the last node is taken
+        offerClock(clockStub);
+        next = head.nextInClock;
+        if (next != null) {
+            clockHead = next;
+            return head;
+        }
+        return null;
+    }
+
+    /**
+     * The timer that expires the entries of all maps.
+     */
+    private static final class Expiration implements Runnable {
+        private static final TimerWheel TIMER_WHEEL = new TimerWheel(TICK_MILLIS, WHEEL_SIZE);
+        private static final Thread THREAD = new Thread(new Expiration(), "ConcurrentCacheMap-expiration");
+
+        static {
+            THREAD.setDaemon(true);
+            THREAD.start();
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    Thread.sleep(TICK_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                TIMER_WHEEL.advance(System.currentTimeMillis());
+            }
+        }
     }
 
     /**
-     * An object that also holds expiration information.
+     * An entry that also holds expiration and eviction information. It is its
+     * own timeout and its own link in the clock.
      */
-    private class ExpiringObject {
+    private final class Node extends TimerWheel.Timeout {
+        private final K key;
+
         private final V value;
 
-        private final long lastAccessTime;
+        private volatile long expirationMillis;
+
+        private volatile boolean referenced = false;
+
+        private volatile boolean retired = false;
+
+        private volatile Node nextInClock;
+
+        /**
+         * Creates the stub of the clock.
+         */
+        Node() {
+            this.key = null;
+            this.value = null;
+        }
 
         /**
-         * Creates a new expiring object with the given time of access.
-         * 
+         * Creates a new entry that expires after the time to live.
+         *
+         * @param key
+         *            The key of this entry
          * @param value
          *            The value that is wrapped in this instance
-         * @param lastAccessTimeMillis
-         *            The time of access in milliseconds.
          */
-        ExpiringObject(final V value, final long lastAccessTimeMillis) {
+        Node(final K key, final V value) {
             if (value == null) {
                 throw new IllegalArgumentException("An expiring object cannot be null.");
             }
+            this.key = key;
             this.value = value;
-            this.lastAccessTime = lastAccessTimeMillis;
+            this.expirationMillis = System.currentTimeMillis() + timeToLiveMillis;
         }
 
         /**
          * @return If entry is expired
          */
-        public boolean isExpired() {
-            return System.currentTimeMillis() >= lastAccessTime + 
-            		(TimeUnit.MILLISECONDS.convert(timeToLiveSeconds, TimeUnit.SECONDS));
+        boolean isOutdated() {
+            return System.currentTimeMillis() >= expirationMillis;
         }
 
-        /**
-         * @return The wrapped value
-         */
-        public V getValue() {
-            return value;
+        void reference() {
+            // avoid writing the cache line if it is already set
+            if (!referenced) {
+                referenced = true;
+            }
         }
 
-        @Override
-        public boolean equals(final Object obj) {
-            if (!(obj instanceof ConcurrentCacheMap.ExpiringObject)) {
-                return false;
-            }
-            @SuppressWarnings("unchecked")
-            final ExpiringObject exp = (ExpiringObject) obj;
-            return value.equals(exp.value);
+        void retire() {
+            retired = true;
+            cancel();
         }
 
+        /**
+         * Runs on the expiration thread once the timeout of this entry is due.
+         */
         @Override
-        public int hashCode() {
-            return value.hashCode();
+        protected void run() {
+            if (retired) {
+                return;
+            }
+            final long remaining = expirationMillis - System.currentTimeMillis();
+            if (remaining > 0) {
+                // refreshed by putIfAbsent
+                Expiration.TIMER_WHEEL.schedule(this, remaining);
+            } else if (map.remove(key, this)) {
+                removed(this);
+                expired(this);
+            }
         }
     }
 }
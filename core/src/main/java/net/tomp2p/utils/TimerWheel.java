@@ -0,0 +1,324 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.tomp2p.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A hashed timing wheel without its own thread. Timeouts can be scheduled and
+ * cancelled from any thread in O(1), while the wheel is advanced by exactly one
+ * thread at a time, e.g. by an event loop that calls {@link #advance(long)}
+ * after each select. A timeout fires in the first call to {@link #advance(long)}
+ * at or after its deadline, rounded up to the next tick.
+ * <p>
+ * A {@link Timeout} links itself into the wheel, thus scheduling allocates
+ * nothing but the timeout. A class that is scheduled often, such as an entry
+ * of a cache, can extend the timeout and schedule itself with
+ * {@link #schedule(Timeout, long)}, so it does not allocate at all.
+ * </p>
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class TimerWheel {
+
+	private static final Logger LOG = LoggerFactory.getLogger(TimerWheel.class);
+
+	private static final int STATE_INIT = 0;
+	private static final int STATE_CANCELLED = 1;
+	private static final int STATE_EXPIRED = 2;
+	// created by a subclass and not scheduled yet
+	private static final int STATE_NEW = 3;
+
+	private static final AtomicIntegerFieldUpdater<Timeout> STATE = AtomicIntegerFieldUpdater.newUpdater(
+			Timeout.class, "state");
+
+	private final long tickMillis;
+	private final Bucket[] wheel;
+	private final int mask;
+	// a stack of the timeouts that are not in a bucket yet, linked by their next field
+	private final AtomicReference<Timeout> newTimeouts = new AtomicReference<Timeout>();
+	private final AtomicInteger pending = new AtomicInteger();
+
+	private final long startMillis;
+	// only accessed by the advancing thread
+	private long tick = 0;
+
+	/**
+	 * Creates a wheel with the given tick duration and number of buckets.
+	 *
+	 * @param tickMillis
+	 *            The duration of one tick, this is the resolution of the wheel
+	 * @param wheelSize
+	 *            The number of buckets, rounded up to the next power of two
+	 */
+	public TimerWheel(final long tickMillis, final int wheelSize) {
+		if (tickMillis <= 0) {
+			throw new IllegalArgumentException("tick must be positive");
+		}
+		if (wheelSize <= 0 || wheelSize > (1 << 30)) {
+			throw new IllegalArgumentException("wheel size out of range: " + wheelSize);
+		}
+		int size = 1;
+		while (size < wheelSize) {
+			size <<= 1;
+		}
+		this.tickMillis = tickMillis;
+		this.wheel = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new Bucket();
+		}
+		this.mask = size - 1;
+		this.startMillis = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return The resolution of this wheel
+	 */
+	public long tickMillis() {
+		return tickMillis;
+	}
+
+	/**
+	 * @return The number of timeouts that are neither expired nor cancelled
+	 */
+	public int pending() {
+		return pending.get();
+	}
+
+	/**
+	 * Schedules a task. This method is thread-safe.
+	 *
+	 * @param task
+	 *            The task to run once the timeout expires. It runs on the
+	 *            thread that advances the wheel, thus it should not block.
+	 * @param delayMillis
+	 *            The delay after which the task should run
+	 * @return The timeout, which can be cancelled
+	 */
+	public Timeout schedule(final Runnable task, final long delayMillis) {
+		final Timeout timeout = new Timeout(this, task);
+		pending.incrementAndGet();
+		push(timeout, delayMillis);
+		return timeout;
+	}
+
+	/**
+	 * Schedules a timeout that is created by a subclass, or schedules it again
+	 * once it expired, e.g. from its own {@link Timeout#run()}. This method is
+	 * thread-safe.
+	 *
+	 * @param timeout
+	 *            The timeout, which runs on the thread that advances the wheel
+	 * @param delayMillis
+	 *            The delay after which the timeout should run
+	 * @throws IllegalStateException
+	 *             If the timeout is pending or cancelled
+	 */
+	public void schedule(final Timeout timeout, final long delayMillis) {
+		// set before the timeout can be cancelled
+		timeout.timerWheel = this;
+		pending.incrementAndGet();
+		if (!STATE.compareAndSet(timeout, STATE_NEW, STATE_INIT)
+				&& !STATE.compareAndSet(timeout, STATE_EXPIRED, STATE_INIT)) {
+			pending.decrementAndGet();
+			throw new IllegalStateException("timeout is pending or cancelled");
+		}
+		push(timeout, delayMillis);
+	}
+
+	private void push(final Timeout timeout, final long delayMillis) {
+		timeout.deadlineMillis = System.currentTimeMillis() + Math.max(0, delayMillis);
+		Timeout head;
+		do {
+			head = newTimeouts.get();
+			timeout.next = head;
+		} while (!newTimeouts.compareAndSet(head, timeout));
+	}
+
+	/**
+	 * Advances the wheel up to the provided time and runs all expired tasks.
+	 * This method must not be called concurrently.
+	 *
+	 * @param nowMillis
+	 *            The current time
+	 * @return The number of tasks that expired
+	 */
+	public int advance(final long nowMillis) {
+		transferNewTimeouts();
+		final long targetTick = (nowMillis - startMillis) / tickMillis;
+		int expired = 0;
+		while (tick <= targetTick) {
+			expired += wheel[(int) (tick & mask)].expire(tick, this);
+			tick++;
+			// timeouts that were scheduled while expiring end up in the current
+			// or a later tick
+			transferNewTimeouts();
+		}
+		return expired;
+	}
+
+	private void transferNewTimeouts() {
+		Timeout timeout = newTimeouts.getAndSet(null);
+		while (timeout != null) {
+			final Timeout next = timeout.next;
+			timeout.next = null;
+			transfer(timeout);
+			timeout = next;
+		}
+	}
+
+	private void transfer(final Timeout timeout) {
+		if (timeout.state == STATE_CANCELLED) {
+			return;
+		}
+		// round up, a timeout never fires early
+		long deadlineTick = (timeout.deadlineMillis - startMillis + tickMillis - 1) / tickMillis;
+		if (deadlineTick < tick) {
+			// already overdue, fire in the current tick
+			deadlineTick = tick;
+		}
+		timeout.deadlineTick = deadlineTick;
+		wheel[(int) (deadlineTick & mask)].add(timeout);
+	}
+
+	/**
+	 * A scheduled task that can be cancelled. A subclass overrides
+	 * {@link #run()} instead of passing a task.
+	 */
+	public static class Timeout {
+		private final Runnable task;
+		private volatile int state;
+		private volatile TimerWheel timerWheel;
+		private volatile long deadlineMillis;
+		// only accessed by the advancing thread once the timeout is transferred
+		private long deadlineTick;
+		private Timeout next;
+		private Timeout prev;
+
+		private Timeout(final TimerWheel timerWheel, final Runnable task) {
+			this.task = task;
+			this.timerWheel = timerWheel;
+			this.state = STATE_INIT;
+		}
+
+		/**
+		 * Creates a timeout that is scheduled with
+		 * {@link TimerWheel#schedule(Timeout, long)}.
+		 */
+		protected Timeout() {
+			this.task = null;
+			this.state = STATE_NEW;
+		}
+
+		/**
+		 * Runs on the thread that advances the wheel once this timeout expired.
+		 */
+		protected void run() {
+			task.run();
+		}
+
+		/**
+		 * Cancels this timeout. The entry is removed lazily from its bucket.
+		 *
+		 * @return True if the timeout was cancelled, false if it already
+		 *         expired, was cancelled before or was never scheduled
+		 */
+		public boolean cancel() {
+			if (STATE.compareAndSet(this, STATE_INIT, STATE_CANCELLED)) {
+				timerWheel.pending.decrementAndGet();
+				return true;
+			}
+			return false;
+		}
+
+		public boolean isCancelled() {
+			return state == STATE_CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state == STATE_EXPIRED;
+		}
+
+		public long deadlineMillis() {
+			return deadlineMillis;
+		}
+	}
+
+	/**
+	 * A doubly linked list of timeouts, only accessed by the advancing thread.
+	 */
+	private static final class Bucket {
+		private Timeout head;
+		private Timeout tail;
+
+		private void add(final Timeout timeout) {
+			if (head == null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+
+		private int expire(final long currentTick, final TimerWheel timerWheel) {
+			int expired = 0;
+			Timeout timeout = head;
+			while (timeout != null) {
+				final Timeout next = timeout.next;
+				if (timeout.state == STATE_CANCELLED) {
+					remove(timeout);
+				} else if (timeout.deadlineTick <= currentTick) {
+					remove(timeout);
+					if (STATE.compareAndSet(timeout, STATE_INIT, STATE_EXPIRED)) {
+						timerWheel.pending.decrementAndGet();
+						expired++;
+						try {
+							// may schedule this timeout again, it is not linked anymore
+							timeout.run();
+						} catch (Throwable t) {
+							LOG.warn("timeout task threw an exception", t);
+						}
+					}
+				}
+				// otherwise the timeout is in a later round
+				timeout = next;
+			}
+			return expired;
+		}
+
+		private void remove(final Timeout timeout) {
+			if (timeout.prev != null) {
+				timeout.prev.next = timeout.next;
+			} else {
+				head = timeout.next;
+			}
+			if (timeout.next != null) {
+				timeout.next.prev = timeout.prev;
+			} else {
+				tail = timeout.prev;
+			}
+			timeout.next = null;
+			timeout.prev = null;
+		}
+	}
+}
@@ -288,7 +288,7 @@ public class Utils {
         return obj;
     }
     
-    public static synchronized Object decodeJavaObject(List<ByteBuffer> buffers) throws ClassNotFoundException, IOException {
+    public static Object decodeJavaObject(List<ByteBuffer> buffers) throws ClassNotFoundException, IOException {
     	int count = buffers.size();
         Vector<InputStream> is = new Vector<InputStream>(count);
         for (ByteBuffer byteBuffer : buffers) {
@@ -0,0 +1,62 @@
+package net.tomp2p.connection;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestDispatchExecutor {
+
+	@Test
+	public void testInline() {
+		DispatchExecutor executor = new DispatchExecutor(0, 16);
+		final Thread caller = Thread.currentThread();
+		final List<Thread> ran = new ArrayList<Thread>();
+		Assert.assertTrue(executor.execute(new InetSocketAddress(4000), new Runnable() {
+			@Override
+			public void run() {
+				ran.add(Thread.currentThread());
+			}
+		}));
+		Assert.assertEquals(Collections.singletonList(caller), ran);
+		executor.shutdown();
+	}
+
+	@Test
+	public void testOrderPerSender() throws InterruptedException {
+		DispatchExecutor executor = new DispatchExecutor(4, 1024);
+		final int senders = 8;
+		final int packets = 100;
+		final List<List<Integer>> received = new ArrayList<List<Integer>>();
+		for (int i = 0; i < senders; i++) {
+			received.add(Collections.synchronizedList(new ArrayList<Integer>()));
+		}
+		final CountDownLatch latch = new CountDownLatch(senders * packets);
+		for (int j = 0; j < packets; j++) {
+			for (int i = 0; i < senders; i++) {
+				final int sender = i;
+				final int packet = j;
+				Assert.assertTrue(executor.execute(new InetSocketAddress(4000 + i), new Runnable() {
+					@Override
+					public void run() {
+						received.get(sender).add(packet);
+						latch.countDown();
+					}
+				}));
+			}
+		}
+		Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+		for (List<Integer> list : received) {
+			Assert.assertEquals(packets, list.size());
+			for (int j = 0; j < packets; j++) {
+				Assert.assertEquals(j, list.get(j).intValue());
+			}
+		}
+		executor.shutdown();
+	}
+}
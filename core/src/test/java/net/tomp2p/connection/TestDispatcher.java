@@ -0,0 +1,108 @@
+package net.tomp2p.connection;
+
+import java.util.Map;
+
+import net.sctp4nat.core.SctpChannelFacade;
+import net.tomp2p.message.Message;
+import net.tomp2p.message.Message.Type;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.rpc.DispatchHandler;
+import net.tomp2p.rpc.RPC;
+
+import org.jdeferred.Promise;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestDispatcher {
+
+	private static final Number160 SELF = new Number160(1);
+	private static final Number160 OTHER = new Number160(2);
+
+	@Test
+	public void testRegisterAndRemove() {
+		Dispatcher dispatcher = dispatcher();
+		DispatchHandler handler = handler(dispatcher);
+		dispatcher.registerIoHandler(SELF, SELF, handler, RPC.Commands.PING.getNr(), RPC.Commands.PUT.getNr());
+		Assert.assertSame(handler, dispatcher.searchHandler(SELF, SELF, RPC.Commands.PING.getNr()));
+		Assert.assertSame(handler, dispatcher.searchHandler(SELF, SELF, RPC.Commands.PUT.getNr()));
+		Assert.assertNull(dispatcher.searchHandler(SELF, SELF, RPC.Commands.GET.getNr()));
+		Assert.assertTrue(dispatcher.responsibleFor(SELF));
+
+		// a later handler replaces the earlier one for its commands only
+		DispatchHandler handler2 = handler(dispatcher);
+		dispatcher.registerIoHandler(SELF, SELF, handler2, RPC.Commands.PUT.getNr());
+		Assert.assertSame(handler, dispatcher.searchHandler(SELF, SELF, RPC.Commands.PING.getNr()));
+		Assert.assertSame(handler2, dispatcher.searchHandler(SELF, SELF, RPC.Commands.PUT.getNr()));
+
+		dispatcher.removeIoHandler(SELF, SELF);
+		Assert.assertNull(dispatcher.searchHandler(SELF, SELF, RPC.Commands.PING.getNr()));
+		Assert.assertFalse(dispatcher.responsibleFor(SELF));
+	}
+
+	@Test
+	public void testOnBehalfOf() throws Exception {
+		Dispatcher dispatcher = dispatcher();
+		DispatchHandler own = handler(dispatcher);
+		DispatchHandler relayed = handler(dispatcher);
+		dispatcher.registerIoHandler(SELF, SELF, own, RPC.Commands.PUT.getNr());
+		dispatcher.registerIoHandler(SELF, OTHER, relayed, RPC.Commands.PUT.getNr());
+
+		Assert.assertSame(own, dispatcher.associatedHandler(request(SELF, RPC.Commands.PUT.getNr())));
+		// a peer without its own handlers is served on its behalf
+		Assert.assertSame(relayed, dispatcher.associatedHandler(request(OTHER, RPC.Commands.PUT.getNr())));
+		Assert.assertNull(dispatcher.associatedHandler(request(new Number160(3), RPC.Commands.PUT.getNr())));
+		Assert.assertTrue(dispatcher.isPrimaryTarget(SELF));
+		Assert.assertFalse(dispatcher.isPrimaryTarget(OTHER));
+
+		// removing all handlers of a peer removes the ones on behalf of others
+		dispatcher.removeIoHandler(SELF);
+		Assert.assertNull(dispatcher.associatedHandler(request(OTHER, RPC.Commands.PUT.getNr())));
+	}
+
+	@Test
+	public void testCommandBytes() throws Exception {
+		Dispatcher dispatcher = dispatcher();
+		DispatchHandler handler = handler(dispatcher);
+		dispatcher.registerIoHandler(SELF, SELF, handler, -1, 200, 127);
+
+		// a command above 127 is found by its unsigned and by its signed value
+		Assert.assertSame(handler, dispatcher.searchHandler(SELF, SELF, 255));
+		Assert.assertSame(handler, dispatcher.searchHandler(SELF, SELF, -56));
+		Assert.assertSame(handler, dispatcher.associatedHandler(request(SELF, (byte) 200)));
+		Assert.assertSame(handler, dispatcher.associatedHandler(request(SELF, (byte) -1)));
+		Assert.assertNull(dispatcher.searchHandler(SELF, SELF, 128));
+
+		// the commands are returned as they were registered
+		Map<Integer, DispatchHandler> handlers = dispatcher.searchHandler(SELF, SELF);
+		Assert.assertEquals(3, handlers.size());
+		Assert.assertSame(handler, handlers.get(-1));
+		Assert.assertSame(handler, handlers.get(200));
+		Assert.assertSame(handler, handlers.get(127));
+		Assert.assertEquals(1, dispatcher.searchHandler(200).size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidCommand() {
+		Dispatcher dispatcher = dispatcher();
+		dispatcher.registerIoHandler(SELF, SELF, handler(dispatcher), 256);
+	}
+
+	private static Dispatcher dispatcher() {
+		PeerBean peerBean = new PeerBean().serverPeerAddress(PeerAddress.create(SELF));
+		return new Dispatcher(1, peerBean, new ChannelServerConfiguration());
+	}
+
+	private static DispatchHandler handler(Dispatcher dispatcher) {
+		return new DispatchHandler(dispatcher.peerBean(), null) {
+			@Override
+			public void handleResponse(Responder responder, Message message, boolean sign,
+					Promise<SctpChannelFacade, Exception, Void> p, ChannelSender sender) {
+			}
+		};
+	}
+
+	private static Message request(Number160 recipient, byte command) {
+		return new Message().type(Type.REQUEST_1).command(command).recipient(PeerAddress.create(recipient));
+	}
+}
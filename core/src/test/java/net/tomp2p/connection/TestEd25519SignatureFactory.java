@@ -0,0 +1,80 @@
+package net.tomp2p.connection;
+
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import net.tomp2p.message.DataMap;
+import net.tomp2p.message.Ed25519SignatureCodec;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestEd25519SignatureFactory {
+
+	private Ed25519SignatureFactory factory;
+	private KeyPair keyPair;
+
+	@Before
+	public void setup() {
+		factory = new Ed25519SignatureFactory();
+		try {
+			keyPair = factory.generateKeyPair();
+		} catch (NoSuchAlgorithmException e) {
+			// requires JDK 15 or a provider for Ed25519
+			Assume.assumeNoException(e);
+		}
+	}
+
+	@Test
+	public void testSignVerify() throws Exception {
+		Data data = new Data(new byte[] { 1, 2, 3 }).signNow(keyPair, factory);
+		Assert.assertEquals(Ed25519SignatureCodec.SIGNATURE_SIZE, data.signature().encode().length);
+		Assert.assertEquals(0, factory.cachedVerifications());
+		Assert.assertTrue(data.verify(keyPair.getPublic(), factory));
+		Assert.assertEquals(1, factory.cachedVerifications());
+		// a replica is not verified again
+		Assert.assertTrue(data.verify(keyPair.getPublic(), factory));
+		Assert.assertEquals(1, factory.cachedVerifications());
+
+		// a valid signature of other data does not hit the cache
+		Data other = new Data(new byte[] { 1, 2, 4 });
+		other.signature(data.signature());
+		Assert.assertFalse(other.verify(keyPair.getPublic(), factory));
+		Assert.assertEquals(1, factory.cachedVerifications());
+
+		KeyPair keyPair2 = factory.generateKeyPair();
+		Assert.assertFalse(data.verify(keyPair2.getPublic(), factory));
+	}
+
+	@Test
+	public void testVerifyDataMap() throws Exception {
+		KeyPair keyPair2 = factory.generateKeyPair();
+		NavigableMap<Number640, Data> map = new TreeMap<Number640, Data>();
+		for (int i = 0; i < 10; i++) {
+			map.put(key(i), new Data(new byte[] { (byte) i })
+					.signNow(i % 2 == 0 ? keyPair : keyPair2, factory));
+		}
+		// unsigned entries are skipped
+		map.put(key(10), new Data(new byte[] { 10 }));
+		Data tampered = new Data(new byte[] { 11 });
+		tampered.signature(map.get(key(0)).signature());
+		tampered.signed(true);
+		map.put(key(11), tampered);
+
+		List<Number640> failed = new DataMap(map).verify(keyPair.getPublic(), factory);
+		Assert.assertEquals(1, failed.size());
+		Assert.assertEquals(key(11), failed.get(0));
+	}
+
+	private static Number640 key(int i) {
+		return new Number640(new Number160(i), Number160.ZERO, Number160.ZERO, Number160.ZERO);
+	}
+}
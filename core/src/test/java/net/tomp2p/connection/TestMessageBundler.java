@@ -0,0 +1,143 @@
+package net.tomp2p.connection;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestMessageBundler {
+
+	@Test
+	public void testUnbundle() throws Exception {
+		ByteBuf bundle = Unpooled.buffer();
+		bundle.writeByte(MessageBundler.BUNDLE_MARKER);
+		bundle.writeShort(3);
+		bundle.writeBytes(new byte[] { 1, 2, 3 });
+		bundle.writeShort(1);
+		bundle.writeByte(4);
+		final List<Integer> sizes = new ArrayList<Integer>();
+		int nr = MessageBundler.unbundle(bundle, new MessageBundler.MessageHandler() {
+			@Override
+			public void handle(ByteBuf message) {
+				sizes.add(message.readableBytes());
+			}
+		});
+		Assert.assertEquals(2, nr);
+		Assert.assertEquals(3, (int) sizes.get(0));
+		Assert.assertEquals(1, (int) sizes.get(1));
+	}
+
+	@Test
+	public void testSendConcurrent() throws Exception {
+		sendConcurrent(new MessageBundler(1400, UnpooledByteBufAllocator.DEFAULT));
+	}
+
+	@Test
+	public void testSendHandOff() throws Exception {
+		// every thread sends one datagram and hands the rest of the queue off
+		DispatchExecutor handoff = new DispatchExecutor(2, 10000);
+		sendConcurrent(new MessageBundler(1400, UnpooledByteBufAllocator.DEFAULT, handoff, 1));
+		handoff.shutdown();
+	}
+
+	@Test
+	public void testFailure() throws Exception {
+		final DatagramChannel sender = DatagramChannel.open();
+		sender.close();
+		final InetSocketAddress remote = new InetSocketAddress(InetAddress.getLoopbackAddress(), 1);
+		final MessageBundler messageBundler = new MessageBundler(1400, UnpooledByteBufAllocator.DEFAULT);
+		final AtomicInteger failed = new AtomicInteger();
+		final MessageBundler.FailureListener listener = new MessageBundler.FailureListener() {
+			@Override
+			public void failed(IOException e) {
+				failed.incrementAndGet();
+			}
+		};
+		for (int i = 0; i < 3; i++) {
+			ByteBuf message = Unpooled.buffer();
+			message.writeInt(i);
+			messageBundler.send(sender, remote, message, listener);
+		}
+		Assert.assertEquals(3, failed.get());
+	}
+
+	private static void sendConcurrent(final MessageBundler messageBundler) throws Exception {
+		final int threads = 4;
+		final int messages = 200;
+		final DatagramChannel receiver = DatagramChannel.open();
+		receiver.socket().setReceiveBufferSize(2 * 1024 * 1024);
+		receiver.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		final InetSocketAddress remote = (InetSocketAddress) receiver.getLocalAddress();
+		final DatagramChannel sender = DatagramChannel.open();
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Thread> senders = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			final int offset = i * messages;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int j = 0; j < messages; j++) {
+							ByteBuf message = Unpooled.buffer();
+							message.writeByte(0);
+							message.writeInt(offset + j);
+							messageBundler.send(sender, remote, message);
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			});
+			thread.start();
+			senders.add(thread);
+		}
+		start.countDown();
+
+		final Set<Integer> received = Collections.synchronizedSet(new HashSet<Integer>());
+		int datagrams = 0;
+		final ByteBuffer buffer = ByteBuffer.allocate(ChannelTransceiver.MAX_PACKET_SIZE);
+		while (received.size() < threads * messages) {
+			buffer.clear();
+			receiver.receive(buffer);
+			buffer.flip();
+			datagrams++;
+			ByteBuf buf = Unpooled.wrappedBuffer(buffer);
+			if (buf.getByte(0) == MessageBundler.BUNDLE_MARKER) {
+				MessageBundler.unbundle(buf, new MessageBundler.MessageHandler() {
+					@Override
+					public void handle(ByteBuf message) {
+						message.skipBytes(1);
+						received.add(message.readInt());
+					}
+				});
+			} else {
+				buf.skipBytes(1);
+				received.add(buf.readInt());
+			}
+		}
+		for (Thread thread : senders) {
+			thread.join();
+		}
+		Assert.assertEquals(threads * messages, received.size());
+		Assert.assertTrue(datagrams <= threads * messages);
+		sender.close();
+		receiver.close();
+	}
+}
@@ -0,0 +1,132 @@
+package net.tomp2p.connection;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestMessageFragmenter {
+
+	@Test
+	public void testFragmentReassemble() throws Exception {
+		byte[] payload = new byte[200 * 1024];
+		new Random(42).nextBytes(payload);
+
+		List<ByteBuf> fragments = fragment(payload, 1400);
+		Assert.assertEquals((payload.length + 1390) / 1391, fragments.size());
+		// reordered fragments are reassembled as well
+		Collections.reverse(fragments);
+
+		MessageFragmenter messageFragmenter = new MessageFragmenter(UnpooledByteBufAllocator.DEFAULT, 1024 * 1024,
+				16 * 1024 * 1024, 5000);
+		InetSocketAddress remote = new InetSocketAddress(4000);
+		ByteBuf message = null;
+		for (int i = 0; i < fragments.size(); i++) {
+			ByteBuf fragment = fragments.get(i);
+			message = messageFragmenter.received(remote, fragment);
+			fragment.release();
+			if (i < fragments.size() - 1) {
+				Assert.assertNull(message);
+				Assert.assertEquals(1, messageFragmenter.pending());
+			}
+		}
+		Assert.assertNotNull(message);
+		byte[] result = new byte[message.readableBytes()];
+		message.readBytes(result);
+		message.release();
+		Assert.assertArrayEquals(payload, result);
+		Assert.assertEquals(0, messageFragmenter.pending());
+		Assert.assertEquals(0, messageFragmenter.reservedBytes());
+	}
+
+	@Test
+	public void testLimits() throws Exception {
+		byte[] payload = new byte[10 * 1024];
+		List<ByteBuf> fragments = fragment(payload, 1400);
+		InetSocketAddress remote = new InetSocketAddress(4000);
+
+		// too large
+		MessageFragmenter messageFragmenter = new MessageFragmenter(UnpooledByteBufAllocator.DEFAULT, 4096,
+				16 * 1024 * 1024, 5000);
+		for (ByteBuf fragment : fragments) {
+			Assert.assertNull(messageFragmenter.received(remote, fragment.duplicate()));
+		}
+		Assert.assertEquals(0, messageFragmenter.reservedBytes());
+
+		// timeout
+		messageFragmenter = new MessageFragmenter(UnpooledByteBufAllocator.DEFAULT, 1024 * 1024, 16 * 1024 * 1024, 0);
+		Assert.assertNull(messageFragmenter.received(remote, fragments.get(0).duplicate()));
+		Assert.assertEquals(1, messageFragmenter.pending());
+		Thread.sleep(5);
+		Assert.assertEquals(1, messageFragmenter.expire());
+		Assert.assertEquals(0, messageFragmenter.pending());
+		Assert.assertEquals(0, messageFragmenter.reservedBytes());
+		for (ByteBuf fragment : fragments) {
+			fragment.release();
+		}
+	}
+
+	@Test
+	public void testForgedHeader() {
+		InetSocketAddress remote = new InetSocketAddress(4000);
+		MessageFragmenter messageFragmenter = new MessageFragmenter(UnpooledByteBufAllocator.DEFAULT, 4096,
+				16 * 1024 * 1024, 2, 5000);
+
+		// more fragments than the largest message needs
+		Assert.assertNull(messageFragmenter.received(remote, forged(1, MessageFragmenter.MAX_FRAGMENTS)));
+		Assert.assertEquals(0, messageFragmenter.pending());
+
+		// the bookkeeping is charged, the number of messages is limited
+		int count = (4096 + MessageFragmenter.MIN_PAYLOAD - 1) / MessageFragmenter.MIN_PAYLOAD;
+		Assert.assertNull(messageFragmenter.received(remote, forged(1, count)));
+		Assert.assertTrue(messageFragmenter.reservedBytes() > 1);
+		Assert.assertNull(messageFragmenter.received(remote, forged(2, count)));
+		Assert.assertNull(messageFragmenter.received(remote, forged(3, count)));
+		Assert.assertEquals(2, messageFragmenter.pending());
+
+		messageFragmenter.shutdown();
+		Assert.assertEquals(0, messageFragmenter.pending());
+		Assert.assertEquals(0, messageFragmenter.reservedBytes());
+	}
+
+	private static ByteBuf forged(int messageId, int count) {
+		ByteBuf fragment = Unpooled.buffer();
+		fragment.writeByte(MessageFragmenter.FRAGMENT_MARKER);
+		fragment.writeInt(messageId);
+		fragment.writeShort(0);
+		fragment.writeShort(count);
+		fragment.writeByte(1);
+		return fragment;
+	}
+
+	private static List<ByteBuf> fragment(byte[] payload, int mtu) throws Exception {
+		DatagramChannel receiver = DatagramChannel.open();
+		receiver.socket().setReceiveBufferSize(2 * 1024 * 1024);
+		receiver.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		DatagramChannel sender = DatagramChannel.open();
+		int nr = MessageFragmenter.send(sender, (InetSocketAddress) receiver.getLocalAddress(), 1,
+				Unpooled.wrappedBuffer(payload), mtu, UnpooledByteBufAllocator.DEFAULT);
+		List<ByteBuf> fragments = new ArrayList<ByteBuf>(nr);
+		for (int i = 0; i < nr; i++) {
+			ByteBuffer buffer = ByteBuffer.allocate(ChannelTransceiver.MAX_PACKET_SIZE);
+			receiver.receive(buffer);
+			buffer.flip();
+			Assert.assertTrue(buffer.remaining() <= mtu);
+			fragments.add(Unpooled.wrappedBuffer(buffer));
+		}
+		sender.close();
+		receiver.close();
+		return fragments;
+	}
+}
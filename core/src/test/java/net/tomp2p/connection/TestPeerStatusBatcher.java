@@ -0,0 +1,128 @@
+package net.tomp2p.connection;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.tomp2p.connection.PeerException.AbortCause;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerStatusListener;
+import net.tomp2p.peers.RTT;
+import net.tomp2p.utils.Utils2;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestPeerStatusBatcher {
+
+	@Test
+	public void testCoalesce() throws UnknownHostException {
+		PeerBean peerBean = new PeerBean();
+		RecordingListener listener = new RecordingListener();
+		peerBean.addPeerStatusListener(listener);
+		PeerStatusBatcher batcher = new PeerStatusBatcher(peerBean);
+		peerBean.peerStatusBatcher(batcher);
+
+		PeerAddress peer1 = Utils2.createAddress(1);
+		PeerAddress peer2 = Utils2.createAddress(2);
+		PeerAddress peer3 = Utils2.createAddress(3);
+		PeerAddress referrer = Utils2.createAddress(4);
+
+		for (int i = 0; i < 10; i++) {
+			peerBean.notifyPeerFound(peer1, null, null);
+		}
+		// third hand information does not replace first hand information
+		peerBean.notifyPeerFound(peer1, referrer, null);
+		// failed replaces found
+		peerBean.notifyPeerFound(peer2, null, null);
+		peerBean.notifyPeerFailed(peer2, new PeerException(AbortCause.SHUTDOWN, "shutdown"));
+		// third hand information does not revive a failed peer
+		peerBean.notifyPeerFailed(peer3, new PeerException(AbortCause.SHUTDOWN, "shutdown"));
+		peerBean.notifyPeerFound(peer3, referrer, null);
+
+		Assert.assertTrue(listener.found.isEmpty());
+		Assert.assertEquals(3, batcher.pending());
+		Assert.assertEquals(3, batcher.flush());
+		Assert.assertEquals(0, batcher.pending());
+
+		Assert.assertEquals(1, listener.found.size());
+		Assert.assertEquals(peer1, listener.found.get(0));
+		Assert.assertNull(listener.referrers.get(0));
+		Assert.assertEquals(2, listener.failed.size());
+		Assert.assertTrue(listener.failed.contains(peer2));
+		Assert.assertTrue(listener.failed.contains(peer3));
+	}
+
+	@Test
+	public void testFoundAfterFailed() throws UnknownHostException {
+		PeerBean peerBean = new PeerBean();
+		RecordingListener listener = new RecordingListener();
+		peerBean.addPeerStatusListener(listener);
+		PeerStatusBatcher batcher = new PeerStatusBatcher(peerBean);
+		peerBean.peerStatusBatcher(batcher);
+
+		PeerAddress peer1 = Utils2.createAddress(1);
+		peerBean.notifyPeerFailed(peer1, new PeerException(AbortCause.TIMEOUT, "timeout"));
+		peerBean.notifyPeerFound(peer1, null, null);
+		batcher.shutdown();
+
+		Assert.assertEquals(1, listener.found.size());
+		Assert.assertTrue(listener.failed.isEmpty());
+	}
+
+	@Test
+	public void testFailuresAndSamples() throws UnknownHostException {
+		PeerBean peerBean = new PeerBean();
+		RecordingListener listener = new RecordingListener();
+		peerBean.addPeerStatusListener(listener);
+		PeerStatusBatcher batcher = new PeerStatusBatcher(peerBean);
+		peerBean.peerStatusBatcher(batcher);
+
+		PeerAddress peer1 = Utils2.createAddress(1);
+		PeerAddress peer2 = Utils2.createAddress(2);
+		// every timeout counts towards the offline count
+		for (int i = 0; i < 3; i++) {
+			peerBean.notifyPeerFailed(peer1, new PeerException(AbortCause.TIMEOUT, "timeout"));
+		}
+		// every round-trip time is applied in order, a found without one is merged
+		peerBean.notifyPeerFound(peer2, null, new RTT(10, true));
+		peerBean.notifyPeerFound(peer2, null, null);
+		peerBean.notifyPeerFound(peer2, null, new RTT(20, true));
+		peerBean.notifyPeerFound(peer2, null, new RTT(30, false));
+		Assert.assertEquals(2, batcher.flush());
+
+		Assert.assertEquals(3, listener.failed.size());
+		Assert.assertEquals(3, listener.found.size());
+		Assert.assertEquals(10, listener.rtts.get(0).getRtt());
+		Assert.assertEquals(20, listener.rtts.get(1).getRtt());
+		Assert.assertEquals(30, listener.rtts.get(2).getRtt());
+
+		// a forced failure after timeouts removes the peer once
+		listener.failed.clear();
+		peerBean.notifyPeerFailed(peer1, new PeerException(AbortCause.TIMEOUT, "timeout"));
+		peerBean.notifyPeerFailed(peer1, new PeerException(AbortCause.SHUTDOWN, "shutdown"));
+		batcher.flush();
+		Assert.assertEquals(1, listener.failed.size());
+	}
+
+	private static class RecordingListener implements PeerStatusListener {
+		private final List<PeerAddress> found = new ArrayList<PeerAddress>();
+		private final List<PeerAddress> referrers = new ArrayList<PeerAddress>();
+		private final List<PeerAddress> failed = new ArrayList<PeerAddress>();
+		private final List<RTT> rtts = new ArrayList<RTT>();
+
+		@Override
+		public boolean peerFailed(PeerAddress remotePeer, PeerException exception) {
+			failed.add(remotePeer);
+			return true;
+		}
+
+		@Override
+		public boolean peerFound(PeerAddress remotePeer, PeerAddress referrer, RTT roundTripTime) {
+			found.add(remotePeer);
+			referrers.add(referrer);
+			rtts.add(roundTripTime);
+			return true;
+		}
+	}
+}
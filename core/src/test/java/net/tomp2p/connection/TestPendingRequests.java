@@ -0,0 +1,71 @@
+package net.tomp2p.connection;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.tomp2p.futures.FutureDone;
+import net.tomp2p.message.Message;
+import net.tomp2p.message.MessageID;
+import net.tomp2p.peers.Number160;
+
+public class TestPendingRequests {
+
+	@Test
+	public void testTimeoutPerRequest() throws InterruptedException {
+		PendingRequests pendingRequests = new PendingRequests(10, true);
+		FutureDone<Message> shortFuture = new FutureDone<Message>();
+		FutureDone<Message> longFuture = new FutureDone<Message>();
+		MessageID shortId = messageId(1);
+		MessageID longId = messageId(2);
+		pendingRequests.put(shortId, shortFuture, 50);
+		pendingRequests.put(longId, longFuture, 10000);
+
+		shortFuture.awaitUninterruptibly(2000);
+		Assert.assertTrue(shortFuture.isFailed());
+		Assert.assertFalse(longFuture.isCompleted());
+		Assert.assertEquals(1, pendingRequests.size());
+
+		Assert.assertSame(longFuture, pendingRequests.remove(longId));
+		Assert.assertNull(pendingRequests.remove(shortId));
+		Assert.assertEquals(0, pendingRequests.timerWheel().pending());
+		pendingRequests.shutdown();
+	}
+
+	@Test
+	public void testShutdown() {
+		PendingRequests pendingRequests = new PendingRequests(10, true);
+		FutureDone<Message> future = new FutureDone<Message>();
+		pendingRequests.put(messageId(1), future, 10000);
+		pendingRequests.shutdown();
+		Assert.assertTrue(future.isFailed());
+	}
+
+	@Test
+	public void testLimit() {
+		PendingRequests pendingRequests = new PendingRequests(10, true, 2);
+		FutureDone<Message> future3 = new FutureDone<Message>();
+		Assert.assertTrue(pendingRequests.put(messageId(1), new FutureDone<Message>(), 10000));
+		Assert.assertTrue(pendingRequests.put(messageId(2), new FutureDone<Message>(), 10000));
+		Assert.assertFalse(pendingRequests.put(messageId(3), future3, 10000));
+		Assert.assertTrue(future3.isFailed());
+		Assert.assertEquals(2, pendingRequests.size());
+
+		// a response makes room again
+		Assert.assertNotNull(pendingRequests.remove(messageId(1)));
+		Assert.assertTrue(pendingRequests.put(messageId(3), new FutureDone<Message>(), 10000));
+		pendingRequests.shutdown();
+	}
+
+	@Test
+	public void testPutAfterShutdown() {
+		PendingRequests pendingRequests = new PendingRequests(10, true);
+		pendingRequests.shutdown();
+		FutureDone<Message> future = new FutureDone<Message>();
+		Assert.assertFalse(pendingRequests.put(messageId(1), future, 10000));
+		Assert.assertTrue(future.isFailed());
+	}
+
+	private static MessageID messageId(int id) {
+		return new MessageID(id, new Number160(id));
+	}
+}
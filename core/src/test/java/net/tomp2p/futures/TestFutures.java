@@ -19,12 +19,16 @@ package net.tomp2p.futures;
 import java.util.HashSet;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import net.tomp2p.peers.Number160;
 
+import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TestRule;
@@ -167,4 +171,42 @@ public class TestFutures {
         e.submit(r);
         return futureTest;
     }
+
+    @Test
+    public void testListenerExecutor() throws Exception {
+        final AtomicReference<Thread> listenerThread = new AtomicReference<Thread>();
+        final FutureDone<Void> futureDone = new FutureDone<Void>().listenerExecutor(e);
+        futureDone.addListener(new BaseFutureAdapter<FutureDone<Void>>() {
+            @Override
+            public void operationComplete(final FutureDone<Void> future) throws Exception {
+                listenerThread.set(Thread.currentThread());
+            }
+        });
+        futureDone.done();
+        futureDone.awaitListeners();
+        Assert.assertNotNull(listenerThread.get());
+        Assert.assertNotSame(Thread.currentThread(), listenerThread.get());
+    }
+
+    @Test
+    public void testCompletableFuture() throws Exception {
+        FutureDone<String> futureDone = new FutureDone<String>();
+        CompletableFuture<FutureDone<String>> completableFuture = futureDone.toCompletableFuture();
+        futureDone.done("test");
+        Assert.assertEquals("test", completableFuture.get().object());
+
+        futureDone = new FutureDone<String>();
+        completableFuture = futureDone.toCompletableFuture();
+        futureDone.failed("failed");
+        try {
+            completableFuture.get();
+            Assert.fail();
+        } catch (ExecutionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof FutureFailedException);
+        }
+
+        FutureDone<Integer> adapted = Futures.whenComplete(CompletableFuture.completedFuture(5));
+        Assert.assertTrue(adapted.isSuccess());
+        Assert.assertEquals(5, (int) adapted.object());
+    }
 }
@@ -0,0 +1,159 @@
+package net.tomp2p.p2p;
+
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.Random;
+
+import net.tomp2p.Utils2;
+import net.tomp2p.futures.FutureRouting;
+import net.tomp2p.message.Message.Type;
+import net.tomp2p.p2p.builder.RoutingBuilder;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerMap;
+import net.tomp2p.peers.PeerMapConfiguration;
+import net.tomp2p.peers.PeerStatistic;
+import net.tomp2p.peers.RTT;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestDistributedRouting {
+
+	@Test
+	public void testProximityQueue() throws UnknownHostException {
+		PeerMap peerMap = new PeerMap(new PeerMapConfiguration(new Number160(0x100)));
+		RoutingBuilder routingBuilder = new RoutingBuilder();
+		routingBuilder.locationKey(Number160.ZERO);
+		routingBuilder.proximityRouting(true);
+		NavigableSet<PeerStatistic> queueToAsk = DistributedRouting.createQueueToAsk(peerMap, routingBuilder);
+
+		// 0x2 and 0x3 are in the bucket of bit 1, 0x10 to 0x13 in the bucket of bit 4
+		queueToAsk.add(statistic(0x2, -1));
+		queueToAsk.add(statistic(0x3, 100));
+		queueToAsk.add(statistic(0x10, 50));
+		queueToAsk.add(statistic(0x11, -1));
+		queueToAsk.add(statistic(0x12, 20));
+		queueToAsk.add(statistic(0x13, 5));
+
+		// the closer bucket first, even if its peers are slower, then the lowest RTT within a bucket and the peers
+		// without RTT last
+		int[] expected = { 0x3, 0x2, 0x13, 0x12, 0x10, 0x11 };
+		Iterator<PeerStatistic> iterator = queueToAsk.iterator();
+		for (int id : expected) {
+			Assert.assertEquals(new Number160(id), iterator.next().peerAddress().peerId());
+		}
+		Assert.assertFalse(iterator.hasNext());
+
+		// without proximity routing, the XOR distance decides
+		routingBuilder.proximityRouting(false);
+		queueToAsk = DistributedRouting.createQueueToAsk(peerMap, routingBuilder);
+		queueToAsk.add(statistic(0x13, 5));
+		queueToAsk.add(statistic(0x10, 50));
+		Assert.assertEquals(new Number160(0x10), queueToAsk.first().peerAddress().peerId());
+	}
+
+	@Test
+	public void testRouting() throws Exception {
+		Peer master = null;
+		try {
+			Peer[] peers = Utils2.createNodes(20, new Random(42), 4001);
+			master = peers[0];
+			// all peers but the master know each other, the master only knows peer 1
+			Utils2.perfectRouting(Arrays.copyOfRange(peers, 1, peers.length));
+			master.peerBean().peerMap().peerFound(peers[1].peerAddress(), null, null);
+
+			Number160 key = peers[10].peerID();
+			FutureRouting futureRouting = master.distributedRouting().route(routingBuilder(key), Type.REQUEST_1);
+			futureRouting.awaitUninterruptibly();
+			Assert.assertTrue(futureRouting.isSuccess());
+			// the master learned the target from the reply of peer 1 and asked it
+			Assert.assertEquals(peers[10].peerAddress(), futureRouting.potentialHits().first());
+			Assert.assertTrue(futureRouting.routingPath().contains(peers[1].peerAddress()));
+			Assert.assertTrue(futureRouting.routingPath().contains(peers[10].peerAddress()));
+		} finally {
+			if (master != null) {
+				master.shutdown().await();
+			}
+		}
+	}
+
+	@Test
+	public void testHedgedRouting() throws Exception {
+		Peer master = null;
+		try {
+			Peer[] peers = Utils2.createNodes(10, new Random(43), 4001);
+			master = peers[0];
+			Utils2.perfectRouting(Arrays.copyOfRange(peers, 1, peers.length));
+			// nobody listens on the port of the silent peer, the master expects a reply within 5 ms
+			PeerAddress silent = Utils2.createAddress(new Number160(0x1234), "127.0.0.1", 4999);
+			master.peerBean().peerMap().peerFound(silent, null, new RTT(5, true));
+			master.peerBean().peerMap().peerFound(peers[1].peerAddress(), null, null);
+
+			RoutingBuilder routingBuilder = routingBuilder(silent.peerId());
+			routingBuilder.hedgeRequests(true);
+			routingBuilder.adaptiveParallel(true);
+			routingBuilder.requestTimeoutMillis(5000);
+			long start = System.currentTimeMillis();
+			FutureRouting futureRouting = master.distributedRouting().route(routingBuilder, Type.REQUEST_1);
+			futureRouting.awaitUninterruptibly();
+			Assert.assertTrue(futureRouting.isSuccess());
+			// peer 1 was asked after 5 ms, the routing did not wait for the timeout of the silent peer
+			Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+			Assert.assertTrue(futureRouting.potentialHits().contains(peers[1].peerAddress()));
+			Assert.assertFalse(futureRouting.potentialHits().contains(silent));
+		} finally {
+			if (master != null) {
+				master.shutdown().await();
+			}
+		}
+	}
+
+	@Test
+	public void testAdaptiveRouting() throws Exception {
+		Peer master = null;
+		try {
+			Peer[] peers = Utils2.createNodes(20, new Random(44), 4001);
+			master = peers[0];
+			Utils2.perfectRouting(Arrays.copyOfRange(peers, 1, peers.length));
+			PeerAddress silent = Utils2.createAddress(new Number160(0x1234), "127.0.0.1", 4999);
+			master.peerBean().peerMap().peerFound(silent, null, new RTT(5, true));
+			master.peerBean().peerMap().peerFound(peers[1].peerAddress(), null, null);
+
+			// the silent peer is slow and then fails, which widens, the routing still reaches the target
+			Number160 key = peers[10].peerID();
+			RoutingBuilder routingBuilder = routingBuilder(key);
+			routingBuilder.adaptiveParallel(true);
+			routingBuilder.requestTimeoutMillis(1000);
+			FutureRouting futureRouting = master.distributedRouting().route(routingBuilder, Type.REQUEST_1);
+			futureRouting.awaitUninterruptibly();
+			Assert.assertTrue(futureRouting.isSuccess());
+			Assert.assertEquals(peers[10].peerAddress(), futureRouting.potentialHits().first());
+		} finally {
+			if (master != null) {
+				master.shutdown().await();
+			}
+		}
+	}
+
+	static RoutingBuilder routingBuilder(Number160 key) {
+		RoutingBuilder routingBuilder = new RoutingBuilder();
+		routingBuilder.locationKey(key);
+		routingBuilder.maxDirectHits(Integer.MAX_VALUE);
+		routingBuilder.setMaxNoNewInfo(5);
+		routingBuilder.maxFailures(3);
+		routingBuilder.maxSuccess(20);
+		routingBuilder.parallel(3);
+		return routingBuilder;
+	}
+
+	private static PeerStatistic statistic(int id, long rtt) throws UnknownHostException {
+		PeerStatistic peerStatistic = Utils2.createStatistic(id);
+		if (rtt >= 0) {
+			peerStatistic.addRTT(new RTT(rtt, true));
+		}
+		return peerStatistic;
+	}
+}
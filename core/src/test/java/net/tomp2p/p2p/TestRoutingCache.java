@@ -0,0 +1,174 @@
+package net.tomp2p.p2p;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Random;
+
+import net.tomp2p.Utils2;
+import net.tomp2p.connection.PeerException;
+import net.tomp2p.connection.PeerException.AbortCause;
+import net.tomp2p.futures.FutureRouting;
+import net.tomp2p.message.Message.Type;
+import net.tomp2p.p2p.builder.RoutingBuilder;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerStatistic;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestRoutingCache {
+
+	@Test
+	public void testPutGet() throws UnknownHostException {
+		RoutingCache routingCache = new RoutingCache();
+		Number160 key = new Number160(1);
+		Assert.assertNull(routingCache.get(key));
+
+		List<PeerAddress> peers = new ArrayList<PeerAddress>();
+		peers.add(Utils2.createAddress(8));
+		peers.add(Utils2.createAddress(3));
+		peers.add(Utils2.createAddress(2));
+		routingCache.put(key, peers);
+
+		NavigableSet<PeerAddress> cached = routingCache.get(key);
+		Assert.assertEquals(3, cached.size());
+		// closest first
+		Assert.assertEquals(new Number160(3), cached.first().peerId());
+		Assert.assertEquals(new Number160(8), cached.last().peerId());
+		// the caller gets its own copy
+		cached.clear();
+		Assert.assertEquals(3, routingCache.get(key).size());
+	}
+
+	@Test
+	public void testInvalidateOnRemove() throws UnknownHostException {
+		RoutingCache routingCache = new RoutingCache();
+		Number160 key1 = new Number160(1);
+		Number160 key2 = new Number160(100);
+		PeerAddress removed = Utils2.createAddress(2);
+
+		List<PeerAddress> peers1 = new ArrayList<PeerAddress>();
+		peers1.add(removed);
+		peers1.add(Utils2.createAddress(3));
+		routingCache.put(key1, peers1);
+		List<PeerAddress> peers2 = new ArrayList<PeerAddress>();
+		peers2.add(Utils2.createAddress(101));
+		routingCache.put(key2, peers2);
+
+		routingCache.peerRemoved(removed, new PeerStatistic(removed));
+		Assert.assertNull(routingCache.get(key1));
+		Assert.assertNotNull(routingCache.get(key2));
+	}
+
+	@Test
+	public void testIndex() throws UnknownHostException {
+		RoutingCache routingCache = new RoutingCache();
+		Number160 key = new Number160(1);
+		PeerAddress stays = Utils2.createAddress(2);
+		PeerAddress replaced = Utils2.createAddress(3);
+
+		List<PeerAddress> peers1 = new ArrayList<PeerAddress>();
+		peers1.add(stays);
+		peers1.add(replaced);
+		routingCache.put(key, peers1);
+		Assert.assertEquals(2, routingCache.indexSize());
+
+		// a newer result without the replaced peer
+		List<PeerAddress> peers2 = new ArrayList<PeerAddress>();
+		peers2.add(stays);
+		routingCache.put(key, peers2);
+		Assert.assertEquals(1, routingCache.indexSize());
+		routingCache.peerRemoved(replaced, new PeerStatistic(replaced));
+		Assert.assertNotNull(routingCache.get(key));
+
+		routingCache.peerRemoved(stays, new PeerStatistic(stays));
+		Assert.assertNull(routingCache.get(key));
+		Assert.assertEquals(0, routingCache.indexSize());
+
+		routingCache.put(key, peers1);
+		routingCache.invalidate(key);
+		Assert.assertEquals(0, routingCache.indexSize());
+	}
+
+	@Test
+	public void testConcurrentIndex() throws Exception {
+		final RoutingCache routingCache = new RoutingCache();
+		final PeerAddress shared = Utils2.createAddress(2);
+		final List<PeerAddress> peers = new ArrayList<PeerAddress>();
+		peers.add(shared);
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			final Number160 key = new Number160(100 + i);
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 10000; j++) {
+						routingCache.put(key, peers);
+						routingCache.invalidate(key);
+					}
+					routingCache.put(key, peers);
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		// a key that was added while another thread emptied the set of the
+		// peer must still be found
+		routingCache.peerRemoved(shared, new PeerStatistic(shared));
+		for (int i = 0; i < threads.length; i++) {
+			Assert.assertNull(routingCache.get(new Number160(100 + i)));
+		}
+		Assert.assertEquals(0, routingCache.indexSize());
+	}
+
+	@Test
+	public void testCachedRouting() throws Exception {
+		Peer master = null;
+		try {
+			Peer[] peers = Utils2.createNodes(20, new Random(45), 4001);
+			master = peers[0];
+			Utils2.perfectRouting(peers);
+			// as the peer builder does it
+			RoutingCache routingCache = new RoutingCache();
+			master.distributedRouting().routingCache(routingCache);
+			master.peerBean().peerMap().addPeerMapChangeListener(routingCache);
+
+			Number160 key = peers[10].peerID();
+			FutureRouting futureRouting = route(master, key);
+			Assert.assertFalse(futureRouting.routingPath().isEmpty());
+			Assert.assertNotNull(routingCache.get(key));
+
+			// the second routing is answered from the cache without asking anyone
+			FutureRouting cached = route(master, key);
+			Assert.assertTrue(cached.routingPath().isEmpty());
+			Assert.assertEquals(futureRouting.potentialHits(), cached.potentialHits());
+
+			// the target goes offline, its entry is invalidated
+			master.peerBean().peerMap().peerFailed(peers[10].peerAddress(),
+					new PeerException(AbortCause.SHUTDOWN, "shutdown"));
+			Assert.assertNull(routingCache.get(key));
+			FutureRouting rerouted = route(master, key);
+			Assert.assertFalse(rerouted.routingPath().isEmpty());
+			Assert.assertNotNull(routingCache.get(key));
+		} finally {
+			if (master != null) {
+				master.shutdown().await();
+			}
+		}
+	}
+
+	private static FutureRouting route(Peer master, Number160 key) {
+		RoutingBuilder routingBuilder = TestDistributedRouting.routingBuilder(key);
+		routingBuilder.cachedRouting(true);
+		FutureRouting futureRouting = master.distributedRouting().route(routingBuilder, Type.REQUEST_1);
+		// the result is cached in a listener
+		futureRouting.awaitListenersUninterruptibly();
+		Assert.assertTrue(futureRouting.isSuccess());
+		return futureRouting;
+	}
+}
@@ -0,0 +1,59 @@
+package net.tomp2p.p2p;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import net.tomp2p.Utils2;
+import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.futures.FutureRouting;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerMap;
+import net.tomp2p.peers.PeerStatistic;
+import net.tomp2p.rpc.DigestInfo;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestRoutingMechanism {
+
+	@Test
+	public void testAdaptiveParallel() throws UnknownHostException {
+		Number160 key = new Number160(1);
+		RoutingMechanism routingMechanism = new RoutingMechanism(new AtomicReferenceArray<FutureResponse>(3),
+				new FutureRouting(), null);
+		routingMechanism.queueToAsk(new TreeSet<PeerStatistic>(PeerMap.createXORStatisticComparator(key)));
+		routingMechanism.alreadyAsked(new TreeSet<PeerAddress>(PeerMap.createXORAddressComparator(key)));
+		routingMechanism.directHits(new TreeMap<PeerAddress, DigestInfo>(PeerMap.createXORAddressComparator(key)));
+		routingMechanism.maxDirectHits(Integer.MAX_VALUE);
+		routingMechanism.maxFailures(Integer.MAX_VALUE);
+		routingMechanism.maxNoNewInfo(Integer.MAX_VALUE);
+		routingMechanism.maxSuccess(Integer.MAX_VALUE);
+		Assert.assertEquals(3, routingMechanism.currentParallel());
+
+		routingMechanism.adaptiveParallel(true);
+		Assert.assertEquals(1, routingMechanism.currentParallel());
+		// a failure widens
+		routingMechanism.evaluateFailed();
+		Assert.assertEquals(2, routingMechanism.currentParallel());
+		// no new information widens
+		PeerAddress remote = Utils2.createAddress(100);
+		routingMechanism.evaluateSuccess(remote, new DigestInfo(), new ArrayList<PeerStatistic>(), false, key);
+		Assert.assertEquals(3, routingMechanism.currentParallel());
+		// never more than parallel
+		routingMechanism.slowResponse();
+		Assert.assertEquals(3, routingMechanism.currentParallel());
+		// closer peers narrow
+		List<PeerStatistic> closer = new ArrayList<PeerStatistic>();
+		closer.add(new PeerStatistic(Utils2.createAddress(2)));
+		routingMechanism.evaluateSuccess(remote, new DigestInfo(), closer, false, key);
+		Assert.assertEquals(2, routingMechanism.currentParallel());
+		// a slow response widens
+		routingMechanism.slowResponse();
+		Assert.assertEquals(3, routingMechanism.currentParallel());
+	}
+}
@@ -16,6 +16,10 @@
 
 package net.tomp2p.peers;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.math.BigInteger;
 import java.util.Random;
 import java.util.concurrent.ConcurrentSkipListSet;
@@ -293,4 +297,34 @@ public class TestNumber160 {
         n2 = new Number160(Long.MAX_VALUE);
         Assert.assertEquals("0x7FFFFFFFFFFFFFFF".toLowerCase(), n2.toString());
     }
+
+    @Test
+    public void testXorWithoutAllocation() {
+        Random rnd = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            Number160 n1 = new Number160(rnd);
+            Number160 n2 = new Number160(rnd);
+            Number160 n3 = new Number160(rnd);
+            Assert.assertEquals(n1.xor(n2).bitLength(), n1.xorBitLength(n2));
+            Assert.assertEquals(n1.xor(n2).compareTo(n1.xor(n3)), n1.compareXor(n2, n3));
+            Assert.assertEquals(n1, Number160.createPacked(n1.hi(), n1.mid(), n1.lo()));
+        }
+        Assert.assertEquals(0, Number160.ZERO.xorBitLength(Number160.ZERO));
+        Assert.assertEquals(Number160.BITS, Number160.ZERO.xorBitLength(Number160.MAX_VALUE));
+    }
+
+    @Test
+    public void testSerialize() throws Exception {
+        Number640 n1 = new Number640(new Random(42));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(n1);
+        oos.close();
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        Number640 n2 = (Number640) ois.readObject();
+        Assert.assertEquals(n1, n2);
+        Assert.assertEquals(n1.locationKey(), n2.locationKey());
+        Assert.assertEquals(n1.versionKey(), n2.versionKey());
+        Assert.assertEquals(0, n1.compareTo(n2));
+    }
 }
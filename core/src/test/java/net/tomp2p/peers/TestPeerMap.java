@@ -22,6 +22,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NavigableSet;
 import java.util.Random;
 import java.util.SortedSet;
@@ -540,4 +541,138 @@ public class TestPeerMap {
             }
         }
     }
+
+    @Test
+    public void testNeighbors() throws UnknownHostException {
+        Random rnd = new Random(42);
+        PeerMapConfiguration conf = new PeerMapConfiguration(ID);
+        conf.setFixedVerifiedBagSizes(10).setFixedOverflowBagSizes(10);
+        conf.offlineCount(1000).offlineTimeout(100);
+        conf.addMapPeerFilter(new DefaultPeerFilter()).maintenance(new DefaultMaintenance(0, new int[] {}));
+        final PeerMap peerMap = new PeerMap(conf);
+        final PeerMap exactPeerMap = new PeerMap(conf.setExactNeighbors(true));
+        for (int i = 0; i < 500; i++) {
+            PeerAddress peerAddress = Utils2.createPeerAddress(new Number160(rnd));
+            peerMap.peerFound(peerAddress, null, null);
+            exactPeerMap.peerFound(peerAddress, null, null);
+        }
+        for (int j = 0; j < 100; j++) {
+            Number160 key = new Number160(rnd);
+            int nr = 1 + rnd.nextInt(20);
+            // at least nr peers, as whole bags are returned
+            Collection<PeerStatistic> atLeast = peerMap.neighbors(key, nr);
+            Assert.assertTrue(atLeast.size() >= nr);
+            // the same order as closePeers, but no bags are added once there are enough peers
+            Iterator<PeerStatistic> iterator = peerMap.closePeers(key, nr).iterator();
+            for (PeerStatistic peerStatistic : atLeast) {
+                Assert.assertEquals(iterator.next(), peerStatistic);
+            }
+            Assert.assertEquals(nr, exactPeerMap.neighbors(key, nr).size());
+        }
+    }
+
+    @Test
+    public void testClosestPeers() throws UnknownHostException {
+        Random rnd = new Random(42);
+        PeerMapConfiguration conf = new PeerMapConfiguration(ID);
+        conf.setFixedVerifiedBagSizes(10).setFixedOverflowBagSizes(10);
+        conf.offlineCount(1000).offlineTimeout(100);
+        conf.addMapPeerFilter(new DefaultPeerFilter()).maintenance(new DefaultMaintenance(0, new int[] {}));
+        final PeerMap peerMap = new PeerMap(conf);
+        for (int i = 0; i < 500; i++) {
+            peerMap.peerFound(Utils2.createPeerAddress(new Number160(rnd)), null, null);
+        }
+        List<PeerAddress> all = peerMap.all();
+        for (int j = 0; j < 1000; j++) {
+            Number160 key = j == 0 ? ID : new Number160(rnd);
+            int nr = 1 + rnd.nextInt(40);
+            TreeSet<PeerAddress> expected = new TreeSet<PeerAddress>(PeerMap.createXORAddressComparator(key));
+            expected.addAll(all);
+            List<PeerStatistic> closest = peerMap.closestPeers(key, nr);
+            Assert.assertEquals(Math.min(nr, all.size()), closest.size());
+            Iterator<PeerAddress> iterator = expected.iterator();
+            for (PeerStatistic peerStatistic : closest) {
+                Assert.assertEquals(iterator.next(), peerStatistic.peerAddress());
+            }
+        }
+    }
+
+    @Test
+    public void testSnapshot() throws UnknownHostException {
+        PeerMapConfiguration conf = new PeerMapConfiguration(ID);
+        conf.setFixedVerifiedBagSizes(10).setFixedOverflowBagSizes(10);
+        conf.offlineCount(1000).offlineTimeout(100);
+        conf.addMapPeerFilter(new DefaultPeerFilter()).maintenance(new DefaultMaintenance(0, new int[] {}));
+        final PeerMap peerMap = new PeerMap(conf);
+        PeerMapSnapshot before = peerMap.snapshot();
+        PeerAddress peer1 = Utils2.createAddress(2);
+        PeerAddress peer2 = Utils2.createAddress(3);
+        peerMap.peerFound(peer1, null, null);
+        peerMap.peerFound(peer2, null, null);
+        PeerMapSnapshot after = peerMap.snapshot();
+        Assert.assertEquals(0, before.size());
+        Assert.assertEquals(2, after.size());
+        Assert.assertTrue(after.version() > before.version());
+        Assert.assertTrue(peerMap.contains(peer1));
+
+        peerMap.peerFailed(peer1, new PeerException(AbortCause.SHUTDOWN, "shutdown"));
+        Assert.assertFalse(peerMap.contains(peer1));
+        Assert.assertEquals(1, peerMap.size());
+        // an older snapshot does not change
+        Assert.assertEquals(2, after.size());
+        Assert.assertNotNull(after.get(PeerMap.classMember(ID, peer1.peerId()), peer1.peerId()));
+    }
+
+    @Test
+    public void testSnapshotConcurrentWriters() throws Exception {
+        PeerMapConfiguration conf = new PeerMapConfiguration(ID);
+        conf.setFixedVerifiedBagSizes(10).setFixedOverflowBagSizes(10);
+        conf.offlineCount(1000).offlineTimeout(100);
+        conf.addMapPeerFilter(new DefaultPeerFilter()).maintenance(new DefaultMaintenance(0, new int[] {}));
+        final PeerMap peerMap = new PeerMap(conf);
+        PeerMapSnapshot before = peerMap.snapshot();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = 2 + t * 100;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = offset; i < offset + 100; i++) {
+                        try {
+                            peerMap.peerFound(Utils2.createAddress(i), null, null);
+                        } catch (UnknownHostException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // the writers published every change, at most one snapshot per insert
+        PeerMapSnapshot after = peerMap.snapshot();
+        int verified = 0;
+        for (Map<Number160, PeerStatistic> bag : peerMap.peerMapVerified()) {
+            verified += bag.size();
+        }
+        Assert.assertEquals(verified, after.size());
+        Assert.assertTrue(after.version() > before.version());
+        Assert.assertTrue(after.version() - before.version() <= after.size());
+        // no change, no new snapshot
+        Assert.assertSame(after, peerMap.snapshot());
+    }
+
+    @Test
+    public void testPercentileRTT() throws UnknownHostException {
+        PeerStatistic peerStatistic = new PeerStatistic(Utils2.createAddress(2));
+        Assert.assertEquals(-1, peerStatistic.getPercentileRTT(95));
+        for (long rtt : new long[] { 40, 10, 30, 20, 200 }) {
+            peerStatistic.addRTT(new RTT(rtt, true));
+        }
+        Assert.assertEquals(200, peerStatistic.getPercentileRTT(95));
+        Assert.assertEquals(30, peerStatistic.getPercentileRTT(50));
+        Assert.assertEquals(10, peerStatistic.getPercentileRTT(1));
+    }
 }
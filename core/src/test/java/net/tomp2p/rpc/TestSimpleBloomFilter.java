@@ -0,0 +1,55 @@
+package net.tomp2p.rpc;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import net.tomp2p.peers.Number160;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestSimpleBloomFilter {
+
+	@Test
+	public void testBlocked() {
+		Random rnd = new Random(42);
+		SimpleBloomFilter<Number160> bloomFilter = new SimpleBloomFilter<Number160>(0.01, 10000, true);
+		List<Number160> added = new ArrayList<Number160>();
+		for (int i = 0; i < 10000; i++) {
+			Number160 key = new Number160(rnd);
+			added.add(key);
+			bloomFilter.add(key);
+		}
+		Assert.assertTrue(bloomFilter.containsAll(added));
+		int falsePositives = 0;
+		for (int i = 0; i < 10000; i++) {
+			if (bloomFilter.contains(new Number160(rnd))) {
+				falsePositives++;
+			}
+		}
+		// 1% expected, a bit more for the blocked mode
+		Assert.assertTrue("false positives: " + falsePositives, falsePositives < 200);
+	}
+
+	@Test
+	public void testBlockedEncodeDecode() {
+		SimpleBloomFilter<Number160> bloomFilter = new SimpleBloomFilter<Number160>(0.01, 100, true);
+		for (int i = 0; i < 100; i++) {
+			bloomFilter.add(new Number160(i));
+		}
+		ByteBuf buf = Unpooled.buffer();
+		bloomFilter.encode(buf);
+		SimpleBloomFilter<Number160> decoded = new SimpleBloomFilter<Number160>(buf);
+		Assert.assertTrue(decoded.isBlocked());
+		Assert.assertEquals(100, decoded.expectedElements());
+		Assert.assertEquals(bloomFilter, decoded);
+		for (int i = 0; i < 100; i++) {
+			Assert.assertTrue(decoded.contains(new Number160(i)));
+		}
+		Assert.assertFalse(new SimpleBloomFilter<Number160>(0.01, 100).isBlocked());
+	}
+}
@@ -0,0 +1,138 @@
+package net.tomp2p.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import net.tomp2p.peers.Number160;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestBinaryObjectSerializer {
+
+	private enum Color {
+		RED, GREEN
+	}
+
+	private static class Base {
+		private long id;
+	}
+
+	private static class Entry extends Base {
+		private int count;
+		private boolean flag;
+		private double score;
+		private char letter;
+		private String name;
+		private Number160 key;
+		private Color color;
+		private List<Object> tags;
+		private transient String cached;
+
+		private Entry() {
+		}
+	}
+
+	private static class Node {
+		private Node next;
+	}
+
+	@Test
+	public void testBuiltIn() throws Exception {
+		BinaryObjectSerializer serializer = new BinaryObjectSerializer();
+		Assert.assertNull(roundTrip(serializer, null));
+		Assert.assertEquals("test \u00e4", roundTrip(serializer, "test \u00e4"));
+		Assert.assertEquals(Integer.MIN_VALUE, roundTrip(serializer, Integer.MIN_VALUE));
+		Assert.assertEquals(-1L, roundTrip(serializer, -1L));
+		Assert.assertEquals(Long.MAX_VALUE, roundTrip(serializer, Long.MAX_VALUE));
+		Assert.assertEquals((short) -3, roundTrip(serializer, (short) -3));
+		Assert.assertEquals('x', roundTrip(serializer, 'x'));
+		Assert.assertEquals(1.5f, roundTrip(serializer, 1.5f));
+		Assert.assertEquals(Boolean.FALSE, roundTrip(serializer, false));
+		Assert.assertEquals(new Number160(42), roundTrip(serializer, new Number160(42)));
+		Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, (byte[]) roundTrip(serializer, new byte[] { 1, 2, 3 }));
+
+		Map<Object, Object> map = new HashMap<Object, Object>();
+		List<Object> list = new ArrayList<Object>();
+		list.add(1);
+		list.add(null);
+		list.add("two");
+		Set<Object> set = new HashSet<Object>();
+		set.add(3L);
+		map.put("list", list);
+		map.put(set.size(), set);
+		Assert.assertEquals(map, roundTrip(serializer, map));
+		// not built in, written with Java serialization
+		Map<String, Integer> treeMap = new TreeMap<String, Integer>();
+		treeMap.put("a", 1);
+		Assert.assertEquals(treeMap, roundTrip(serializer, treeMap));
+	}
+
+	@Test
+	public void testRegistered() throws Exception {
+		BinaryObjectSerializer serializer = new BinaryObjectSerializer().register(Entry.class).register(Color.class);
+		Entry entry = new Entry();
+		entry.id = -7;
+		entry.count = 300;
+		entry.flag = true;
+		entry.score = 0.25;
+		entry.letter = 'q';
+		entry.name = "entry";
+		entry.key = Number160.ONE;
+		entry.color = Color.GREEN;
+		entry.tags = new ArrayList<Object>();
+		entry.tags.add("tag");
+		entry.cached = "not written";
+
+		Data data = new Data(entry, serializer);
+		// the class name is not written
+		Assert.assertTrue(data.length() < 64);
+		Entry decoded = (Entry) data.object(serializer);
+		Assert.assertEquals(-7, decoded.id);
+		Assert.assertEquals(300, decoded.count);
+		Assert.assertTrue(decoded.flag);
+		Assert.assertEquals(0.25, decoded.score, 0);
+		Assert.assertEquals('q', decoded.letter);
+		Assert.assertEquals("entry", decoded.name);
+		Assert.assertEquals(Number160.ONE, decoded.key);
+		Assert.assertEquals(Color.GREEN, decoded.color);
+		Assert.assertEquals(entry.tags, decoded.tags);
+		Assert.assertNull(decoded.cached);
+	}
+
+	@Test
+	public void testJavaCompatibility() throws Exception {
+		BinaryObjectSerializer serializer = new BinaryObjectSerializer();
+		Data data = new Data("old");
+		Assert.assertEquals("old", data.object(serializer));
+	}
+
+	@Test(expected = IOException.class)
+	public void testCycle() throws Exception {
+		BinaryObjectSerializer serializer = new BinaryObjectSerializer().register(Node.class);
+		Node node = new Node();
+		node.next = node;
+		serializer.encode(node);
+	}
+
+	@Test(expected = ClassNotFoundException.class)
+	public void testUnregistered() throws Exception {
+		byte[] encoded = new BinaryObjectSerializer().register(Node.class).encode(new Node());
+		new Data(encoded).object(new BinaryObjectSerializer());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDuplicateId() {
+		new BinaryObjectSerializer().register(Node.class, 1).register(Entry.class, 1);
+	}
+
+	private static Object roundTrip(BinaryObjectSerializer serializer, Object object) throws Exception {
+		return new Data(object, serializer).object(serializer);
+	}
+}
@@ -0,0 +1,102 @@
+package net.tomp2p.utils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestConcurrentCacheMap {
+
+	@Test
+	public void testExpirationHandler() throws InterruptedException {
+		final CountDownLatch latch = new CountDownLatch(1);
+		final AtomicReference<Thread> thread = new AtomicReference<Thread>();
+		ConcurrentCacheMap<String, String> test = new ConcurrentCacheMap<String, String>(1, 1024);
+		test.expirationHandler(new ExpirationHandler<String>() {
+			@Override
+			public void expired(String oldValue) {
+				thread.set(Thread.currentThread());
+				latch.countDown();
+			}
+		});
+		test.put("hallo0", "test0");
+		// expired without accessing the map
+		Assert.assertTrue(latch.await(2, TimeUnit.SECONDS));
+		Assert.assertNotSame(Thread.currentThread(), thread.get());
+		Assert.assertEquals("ConcurrentCacheMap-handler", thread.get().getName());
+		Assert.assertEquals(0, test.size());
+		Assert.assertEquals(1, test.expiredCounter());
+	}
+
+	@Test
+	public void testSlowExpirationHandler() throws InterruptedException {
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		ConcurrentCacheMap<String, String> slow = new ConcurrentCacheMap<String, String>(1, 1024);
+		slow.expirationHandler(new ExpirationHandler<String>() {
+			@Override
+			public void expired(String oldValue) {
+				blocked.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		final CountDownLatch latch = new CountDownLatch(1);
+		ConcurrentCacheMap<String, String> other = new ConcurrentCacheMap<String, String>(1, 1024);
+		other.expirationHandler(new ExpirationHandler<String>() {
+			@Override
+			public void expired(String oldValue) {
+				latch.countDown();
+			}
+		});
+		try {
+			slow.put("slow", "test0");
+			Assert.assertTrue(blocked.await(2, TimeUnit.SECONDS));
+			// the blocked handler neither delays the removal nor the handler of another map
+			other.put("other", "test1");
+			Assert.assertTrue(latch.await(2, TimeUnit.SECONDS));
+			Assert.assertEquals(0, other.size());
+			Assert.assertEquals(0, slow.size());
+		} finally {
+			release.countDown();
+		}
+	}
+
+	@Test
+	public void testEviction() {
+		ConcurrentCacheMap<Integer, Integer> test = new ConcurrentCacheMap<Integer, Integer>(60, 100);
+		for (int i = 0; i < 100; i++) {
+			test.put(i, i);
+		}
+		// referenced entries get a second chance
+		for (int i = 0; i < 10; i++) {
+			Assert.assertEquals(i, (int) test.get(i));
+		}
+		for (int i = 100; i < 150; i++) {
+			test.put(i, i);
+		}
+		Assert.assertEquals(100, test.size());
+		for (int i = 0; i < 10; i++) {
+			Assert.assertTrue(test.containsKey(i));
+		}
+		Assert.assertFalse(test.containsKey(10));
+		Assert.assertTrue(test.containsKey(149));
+	}
+
+	@Test
+	public void testRemoveReplace() {
+		ConcurrentCacheMap<String, String> test = new ConcurrentCacheMap<String, String>(60, 1024);
+		Assert.assertNull(test.putIfAbsent("a", "1"));
+		Assert.assertEquals("1", test.putIfAbsent("a", "2"));
+		Assert.assertFalse(test.replace("a", "2", "3"));
+		Assert.assertTrue(test.replace("a", "1", "3"));
+		Assert.assertFalse(test.remove("a", "1"));
+		Assert.assertTrue(test.remove("a", "3"));
+		Assert.assertTrue(test.isEmpty());
+	}
+}
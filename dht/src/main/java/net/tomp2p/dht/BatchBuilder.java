@@ -0,0 +1,97 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.dht;
+
+import java.util.Collection;
+import java.util.NavigableMap;
+
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+
+/**
+ * Gets or puts many keys at once. The keys may have different location keys.
+ * A routing is done for each location key, then the keys are grouped by the
+ * responsible peers, so that each peer gets one message with all its keys.
+ *
+ * @author Thomas Bocek
+ */
+public class BatchBuilder extends DHTBuilder<BatchBuilder> {
+
+    private final static FutureBatch FUTURE_SHUTDOWN = new FutureBatch(null)
+            .failed("batch builder - peer is shutting down");
+
+    private Collection<Number640> keys;
+
+    private NavigableMap<Number640, Data> dataMap;
+
+    public BatchBuilder(PeerDHT peer) {
+        super(peer, null);
+        self(this);
+    }
+
+    /**
+     * @return The keys to get or null for a put
+     */
+    public Collection<Number640> keys() {
+        return keys;
+    }
+
+    /**
+     * @param keys
+     *            The keys to get
+     * @return This class
+     */
+    public BatchBuilder keys(final Collection<Number640> keys) {
+        this.keys = keys;
+        return this;
+    }
+
+    /**
+     * @return The data to put or null for a get
+     */
+    public NavigableMap<Number640, Data> dataMap() {
+        return dataMap;
+    }
+
+    /**
+     * @param dataMap
+     *            The data to put
+     * @return This class
+     */
+    public BatchBuilder dataMap(final NavigableMap<Number640, Data> dataMap) {
+        this.dataMap = dataMap;
+        return this;
+    }
+
+    /**
+     * @return True if this batch stores data, false if it reads data
+     */
+    public boolean isPut() {
+        return dataMap != null;
+    }
+
+    public FutureBatch start() {
+        if (peer.peer().isShutdown()) {
+            return FUTURE_SHUTDOWN;
+        }
+        if ((keys == null) == (dataMap == null)) {
+            throw new IllegalArgumentException("either keys or a data map needs to be set");
+        }
+        preBuild("batch-builder");
+        return peer.distributedHashTable().batch(this, new FutureBatch(this));
+    }
+}
@@ -65,6 +65,7 @@ public abstract class DHTBuilder<K extends DHTBuilder<K>> extends DefaultConnect
     // private boolean signMessage = false;
     private KeyPair keyPair = null;
     private boolean streaming = false;
+    private boolean cachedRouting = false;
     // private boolean forceUDP = false;
     // private boolean forceTCP = false;
     
@@ -266,6 +267,36 @@ public abstract class DHTBuilder<K extends DHTBuilder<K>> extends DefaultConnect
         return self;
     }
     
+    /**
+     * @return True if a cached routing result for the location key should be used
+     */
+    public boolean isCachedRouting() {
+        return cachedRouting;
+    }
+
+    /**
+     * Set cached routing. If set to true and the peer has a routing cache, a recent routing result for the same
+     * location key replaces the routing for puts and starts the routing with the cached peers for gets.
+     * 
+     * @param cachedRouting
+     *            True if a cached routing result should be used
+     * @return This class
+     */
+    public K cachedRouting(final boolean cachedRouting) {
+        this.cachedRouting = cachedRouting;
+        return self;
+    }
+
+    /**
+     * Set cached routing to true. See {@link #cachedRouting(boolean)}
+     * 
+     * @return This class
+     */
+    public K cachedRouting() {
+        this.cachedRouting = true;
+        return self;
+    }
+
     public K addPeerMapFilter(PeerMapFilter peerMapFilter) {
     	if(peerMapFilters == null) {
     		//most likely we have 1-2 filters
@@ -323,6 +354,10 @@ public abstract class DHTBuilder<K extends DHTBuilder<K>> extends DefaultConnect
         routingBuilder.maxDirectHits(routingConfiguration.maxDirectHits());
         routingBuilder.maxFailures(routingConfiguration.maxFailures());
         routingBuilder.maxSuccess(routingConfiguration.maxSuccess());
+        routingBuilder.proximityRouting(routingConfiguration.isProximityRouting());
+        routingBuilder.hedgeRequests(routingConfiguration.isHedgeRequests());
+        routingBuilder.adaptiveParallel(routingConfiguration.isAdaptiveParallel());
+        routingBuilder.cachedRouting(isCachedRouting());
         return routingBuilder;
     }
 
@@ -17,11 +17,14 @@ package net.tomp2p.dht;
 
 import io.netty.buffer.ByteBuf;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.NavigableSet;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReferenceArray;
@@ -32,9 +35,12 @@ import net.tomp2p.futures.BaseFutureAdapter;
 import net.tomp2p.futures.FutureChannelCreator;
 import net.tomp2p.futures.FutureDone;
 import net.tomp2p.futures.FutureForkJoin;
+import net.tomp2p.futures.FutureLateJoin;
 import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.futures.FutureRouting;
+import net.tomp2p.message.DataMap;
 import net.tomp2p.message.KeyMap640Keys;
+import net.tomp2p.message.KeyMapByte;
 import net.tomp2p.message.Message.Type;
 import net.tomp2p.p2p.DistributedRouting;
 import net.tomp2p.p2p.RequestP2PConfiguration;
@@ -549,6 +555,143 @@ public class DistributedHashTable {
         return futureRemove;
     }
 
+    /**
+     * Gets or puts many keys at once. A routing is started for every distinct location key, then the keys are
+     * assigned to the closest peers of their routing and every peer gets one message with all its keys.
+     *
+     * @param builder
+     *            The batch builder with the keys or data
+     * @param futureBatch
+     *            The future that collects the results of each peer
+     * @return The future batch
+     */
+    public FutureBatch batch(final BatchBuilder builder, final FutureBatch futureBatch) {
+        builder.futureChannelCreator().addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+            @Override
+            public void operationComplete(final FutureChannelCreator future) throws Exception {
+                if (future.isSuccess()) {
+                    final Map<Number160, Collection<Number640>> byLocation = groupByLocation(builder.isPut() ? builder
+                            .dataMap().keySet() : builder.keys());
+                    if (byLocation.isEmpty()) {
+                        futureBatch.done();
+                        return;
+                    }
+                    // FutureLateJoin does not tell which routing belongs to which location key
+                    final Map<Number160, FutureRouting> routings = new HashMap<Number160, FutureRouting>(
+                            byLocation.size());
+                    final FutureLateJoin<FutureRouting> futureLateJoin = new FutureLateJoin<FutureRouting>(
+                            byLocation.size());
+                    for (final Number160 locationKey : byLocation.keySet()) {
+                        final RoutingBuilder routingBuilder = builder.createBuilder(
+                                builder.requestP2PConfiguration(), builder.routingConfiguration());
+                        routingBuilder.locationKey(locationKey);
+                        routingBuilder.domainKey(builder.domainKey());
+                        routingBuilder.peerMapFilters(builder.peerMapFilters());
+                        routingBuilder.postRoutingFilters(builder.postRoutingFilters());
+                        final FutureRouting futureRouting = routing.route(routingBuilder, Type.REQUEST_1,
+                                future.channelCreator());
+                        routings.put(locationKey, futureRouting);
+                        futureLateJoin.add(futureRouting);
+                    }
+                    futureLateJoin.addListener(new BaseFutureAdapter<FutureLateJoin<FutureRouting>>() {
+                        @Override
+                        public void operationComplete(final FutureLateJoin<FutureRouting> futureLateJoin)
+                                throws Exception {
+                            final Map<PeerAddress, Collection<Number640>> byPeer = new HashMap<PeerAddress, Collection<Number640>>();
+                            final int min = builder.requestP2PConfiguration().minimumResults();
+                            for (final Map.Entry<Number160, Collection<Number640>> entry : byLocation.entrySet()) {
+                                final FutureRouting futureRouting = routings.get(entry.getKey());
+                                if (!futureRouting.isSuccess() || futureRouting.potentialHits().isEmpty()) {
+                                    logger.debug("routing for batch failed {}", futureRouting.failedReason());
+                                    futureBatch.failedKeys(entry.getValue());
+                                    continue;
+                                }
+                                int counter = 0;
+                                for (final PeerAddress peerAddress : futureRouting.potentialHits()) {
+                                    if (counter++ >= min) {
+                                        break;
+                                    }
+                                    Collection<Number640> keys = byPeer.get(peerAddress);
+                                    if (keys == null) {
+                                        keys = new ArrayList<Number640>();
+                                        byPeer.put(peerAddress, keys);
+                                    }
+                                    keys.addAll(entry.getValue());
+                                }
+                            }
+                            if (byPeer.isEmpty()) {
+                                futureBatch.done();
+                                return;
+                            }
+                            final AtomicInteger pending = new AtomicInteger(byPeer.size());
+                            for (final Map.Entry<PeerAddress, Collection<Number640>> entry : byPeer.entrySet()) {
+                                final Collection<Number640> keys = entry.getValue();
+                                final FutureResponse futureResponse;
+                                final NavigableMap<Number640, Data> dataMap;
+                                if (builder.isPut()) {
+                                    dataMap = new TreeMap<Number640, Data>();
+                                    for (final Number640 key : keys) {
+                                        dataMap.put(key, builder.dataMap().get(key));
+                                    }
+                                    futureResponse = storeRCP.putBatch(entry.getKey(), dataMap, builder,
+                                            future.channelCreator());
+                                } else {
+                                    dataMap = null;
+                                    futureResponse = storeRCP.getBatch(entry.getKey(), keys, builder,
+                                            future.channelCreator());
+                                }
+                                futureBatch.addRequests(futureResponse);
+                                futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+                                    @Override
+                                    public void operationComplete(final FutureResponse futureResponse)
+                                            throws Exception {
+                                        if (futureResponse.isSuccess()) {
+                                            if (dataMap != null) {
+                                                final KeyMapByte keyMapByte = futureResponse.responseMessage()
+                                                        .keyMapByte(0);
+                                                futureBatch.storedData(dataMap,
+                                                        keyMapByte == null ? Collections.<Number640, Byte> emptyMap()
+                                                                : keyMapByte.keysMap());
+                                            } else {
+                                                final DataMap result = futureResponse.responseMessage().dataMap(0);
+                                                futureBatch.receivedData(keys,
+                                                        result == null ? Collections.<Number640, Data> emptyMap()
+                                                                : result.dataMap());
+                                            }
+                                        } else {
+                                            logger.debug("batch request failed {}", futureResponse.failedReason());
+                                            futureBatch.failedKeys(keys);
+                                        }
+                                        if (pending.decrementAndGet() == 0) {
+                                            futureBatch.done();
+                                        }
+                                    }
+                                });
+                            }
+                        }
+                    });
+                    futureBatch.addFutureDHTReleaseListener(future.channelCreator());
+                } else {
+                    futureBatch.failed(future);
+                }
+            }
+        });
+        return futureBatch;
+    }
+
+    private static Map<Number160, Collection<Number640>> groupByLocation(final Collection<Number640> keys) {
+        final Map<Number160, Collection<Number640>> byLocation = new HashMap<Number160, Collection<Number640>>();
+        for (final Number640 key : keys) {
+            Collection<Number640> group = byLocation.get(key.locationKey());
+            if (group == null) {
+                group = new ArrayList<Number640>();
+                byLocation.put(key.locationKey(), group);
+            }
+            group.add(key);
+        }
+        return byLocation;
+    }
+
     /**
      * Creates RPCs and executes them parallel.
      * 
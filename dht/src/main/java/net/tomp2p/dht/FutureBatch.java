@@ -0,0 +1,201 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.dht;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import net.tomp2p.dht.StorageLayer.PutStatus;
+import net.tomp2p.futures.BaseFuture;
+import net.tomp2p.futures.FutureProgres;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+
+/**
+ * The future of a batch get or put. The results of each peer are reported with
+ * {@link #progres()} as soon as the peer replies, and are collected in
+ * {@link #data()} and {@link #status()}. The future finishes when all peers
+ * replied or failed. It fails if at least one key could not be read or stored
+ * on any peer, the results of the other keys are available nevertheless.
+ *
+ * @author Thomas Bocek
+ */
+public class FutureBatch extends FutureDHT<FutureBatch> {
+
+    private static final byte OK = (byte) PutStatus.OK.ordinal();
+    private static final byte NOT_FOUND = (byte) PutStatus.NOT_FOUND.ordinal();
+    private static final byte FAILED = (byte) PutStatus.FAILED.ordinal();
+
+    private final NavigableMap<Number640, Data> data = new TreeMap<Number640, Data>();
+    private final NavigableMap<Number640, Byte> status = new TreeMap<Number640, Byte>();
+    private final FutureProgres<Map<Number640, Data>> first = new FutureProgres<Map<Number640, Data>>();
+    // the results of the peers are added to the stream one after the other, guarded by progresLock
+    private final Object progresLock = new Object();
+    private FutureProgres<Map<Number640, Data>> current = first;
+
+    /**
+     * @param builder
+     *            The builder of this batch
+     */
+    public FutureBatch(final BatchBuilder builder) {
+        super(builder);
+        self(this);
+    }
+
+    /**
+     * Adds the reply of a peer to a batch get. The requested keys that are not
+     * in the reply are not found on this peer.
+     *
+     * @param requested
+     *            The keys that were requested from this peer
+     * @param found
+     *            The data the peer returned
+     */
+    void receivedData(final Collection<Number640> requested, final Map<Number640, Data> found) {
+        objectSerializer(found.values());
+        synchronized (lock) {
+            for (final Number640 key : requested) {
+                merge(key, found.containsKey(key) ? OK : NOT_FOUND);
+            }
+            data.putAll(found);
+        }
+        progres(found, false);
+    }
+
+    /**
+     * Adds the reply of a peer to a batch put.
+     *
+     * @param stored
+     *            The data that was sent to this peer
+     * @param result
+     *            The status of each key as reported by the peer
+     */
+    void storedData(final Map<Number640, Data> stored, final Map<Number640, Byte> result) {
+        final Map<Number640, Data> ok = new TreeMap<Number640, Data>();
+        synchronized (lock) {
+            for (final Map.Entry<Number640, Data> entry : stored.entrySet()) {
+                final Byte keyStatus = result.get(entry.getKey());
+                merge(entry.getKey(), keyStatus == null ? FAILED : keyStatus);
+                if (keyStatus != null && keyStatus == OK) {
+                    ok.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        progres(ok, false);
+    }
+
+    /**
+     * Marks keys as failed, either because the routing failed or because the
+     * request to the peer failed.
+     *
+     * @param keys
+     *            The failed keys
+     */
+    void failedKeys(final Collection<Number640> keys) {
+        synchronized (lock) {
+            for (final Number640 key : keys) {
+                merge(key, FAILED);
+            }
+        }
+    }
+
+    private void merge(final Number640 key, final byte keyStatus) {
+        final Byte old = status.get(key);
+        if (old == null || rank(keyStatus) < rank(old)) {
+            status.put(key, keyStatus);
+        }
+    }
+
+    /**
+     * The status of a key does not depend on the order of the replies: OK wins, as one peer that has the data or
+     * stored it is enough. An answer of a peer, such as NOT_FOUND, wins over FAILED, which means that no peer
+     * answered. Other answers win by their order in {@link PutStatus}.
+     */
+    private static int rank(final byte keyStatus) {
+        if (keyStatus == OK) {
+            return -1;
+        }
+        if (keyStatus == FAILED) {
+            return Integer.MAX_VALUE;
+        }
+        return keyStatus;
+    }
+
+    /**
+     * Adds the result of a peer to the stream. The next result is added to the future that this result returned, so
+     * the stream stays one chain even if peers reply at the same time.
+     */
+    private void progres(final Map<Number640, Data> result, final boolean last) {
+        synchronized (progresLock) {
+            if (current != null) {
+                current = current.progres(result, last);
+            }
+        }
+    }
+
+    /**
+     * Finishes this future after all peers replied or failed.
+     */
+    void done() {
+        synchronized (lock) {
+            if (!completedAndNotify()) {
+                return;
+            }
+            int failed = 0;
+            for (final Byte keyStatus : status.values()) {
+                if (keyStatus == FAILED) {
+                    failed++;
+                }
+            }
+            this.type = failed == 0 ? BaseFuture.FutureType.OK : BaseFuture.FutureType.FAILED;
+            this.reason = failed == 0 ? "batch done" : failed + " of " + status.size() + " keys failed";
+        }
+        progres(Collections.<Number640, Data> emptyMap(), true);
+        notifyListeners();
+    }
+
+    /**
+     * @return The first result of the stream of peer results. Each
+     *         {@link FutureProgres} contains the data one peer returned or
+     *         stored, the last one is empty.
+     */
+    public FutureProgres<Map<Number640, Data>> progres() {
+        return first;
+    }
+
+    /**
+     * @return The data of a batch get that was found so far
+     */
+    public NavigableMap<Number640, Data> data() {
+        synchronized (lock) {
+            return new TreeMap<Number640, Data>(data);
+        }
+    }
+
+    /**
+     * @return The status of each key so far, see {@link PutStatus}. A key is
+     *         OK if at least one peer returned or stored it.
+     */
+    public NavigableMap<Number640, Byte> status() {
+        synchronized (lock) {
+            return new TreeMap<Number640, Byte>(status);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package net.tomp2p.dht;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
@@ -12,6 +13,8 @@ import net.tomp2p.futures.FutureDone;
 import net.tomp2p.futures.FutureForkJoin;
 import net.tomp2p.futures.FutureResponse;
 import net.tomp2p.futures.FutureRouting;
+import net.tomp2p.storage.Data;
+import net.tomp2p.storage.ObjectSerializer;
 
 public abstract class FutureDHT<K extends BaseFuture> extends BaseFutureImpl<K> {
 
@@ -38,6 +41,25 @@ public abstract class FutureDHT<K extends BaseFuture> extends BaseFutureImpl<K>
         return builder;
     }
 
+    /**
+     * Sets the serializer of this peer on received data, so that {@link Data#object()} decodes the objects that the
+     * builders of this peer encoded.
+     * 
+     * @param received
+     *            The data received from other peers
+     */
+    protected void objectSerializer(final Collection<Data> received) {
+        if (builder == null) {
+            return;
+        }
+        final ObjectSerializer objectSerializer = builder.peer.peer().peerBean().objectSerializer();
+        for (final Data data : received) {
+            if (data != null) {
+                data.objectSerializer(objectSerializer);
+            }
+        }
+    }
+
     /**
      * Returns back those futures that are still running. If 6 storage futures are started at the same time and 5 of
      * them finish, and we specified that we are fine if 5 finishes, then futureDHT returns success. However, the future
@@ -15,6 +15,7 @@
  */
 package net.tomp2p.dht;
 
+import java.io.IOException;
 import java.util.Map;
 
 import net.tomp2p.dht.StorageLayer.PutStatus;
@@ -81,6 +82,9 @@ public class FutureGet extends FutureDHT<FutureGet> {
      * @param futuresCompleted 
      */
     public void receivedData(final Map<PeerAddress, Map<Number640, Data>> rawData, final Map<PeerAddress, DigestResult> rawDigest, Map<PeerAddress, Byte> rawStatus, FutureDone<Void> futuresCompleted) {
+        for (final Map<Number640, Data> received : rawData.values()) {
+            objectSerializer(received.values());
+        }
         synchronized (lock) {
             if (!completedAndNotify()) {
                 return;
@@ -162,6 +166,19 @@ public class FutureGet extends FutureDHT<FutureGet> {
         return dataMap.values().iterator().next();
     }
 
+    /**
+     * @return The object of the first data object from get() after evaluation, decoded with the serializer of this
+     *         peer, or null if nothing was found
+     * @throws ClassNotFoundException
+     *             If the class of the object is not known
+     * @throws IOException
+     *             If the object cannot be decoded
+     */
+    public Object object() throws ClassNotFoundException, IOException {
+        final Data data = data();
+        return data == null ? null : data.object();
+    }
+
     /**
      * Checks if the minimum of expected results have been reached. This flag is also used for determining the success
      * or failure of this future for put and send_direct.
@@ -119,6 +119,9 @@ public class FutureRemove extends FutureDHT<FutureRemove> {
      * @param futuresCompleted 
      */
     public void receivedData(final Map<PeerAddress, Map<Number640, Data>> rawData, FutureDone<Void> futuresCompleted) {
+        for (final Map<Number640, Data> received : rawData.values()) {
+            objectSerializer(received.values());
+        }
         synchronized (lock) {
             if (!completedAndNotify()) {
                 return;
@@ -1,12 +1,17 @@
 package net.tomp2p.dht;
 
+import java.util.Collection;
+import java.util.NavigableMap;
+
 import net.tomp2p.connection.PeerBean;
 import net.tomp2p.futures.BaseFuture;
 import net.tomp2p.futures.FutureDone;
 import net.tomp2p.p2p.Peer;
 import net.tomp2p.p2p.Shutdown;
 import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
 import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.storage.Data;
 
 public class PeerDHT {
 
@@ -65,6 +70,30 @@ public class PeerDHT {
 		return new RemoveBuilder(this, locationKey);
 	}
 
+	/**
+	 * Gets many keys at once. The keys may have different location keys, each
+	 * responsible peer gets one message with all its keys.
+	 * 
+	 * @param keys
+	 *            The keys to get
+	 * @return The batch builder that allows to set options
+	 */
+	public BatchBuilder getBatch(Collection<Number640> keys) {
+		return new BatchBuilder(this).keys(keys);
+	}
+
+	/**
+	 * Puts many values at once. The keys may have different location keys,
+	 * each responsible peer gets one message with all its values.
+	 * 
+	 * @param dataMap
+	 *            The data to store
+	 * @return The batch builder that allows to set options
+	 */
+	public BatchBuilder putBatch(NavigableMap<Number640, Data> dataMap) {
+		return new BatchBuilder(this).dataMap(dataMap);
+	}
+
 	/**
 	 * The send method works as follows:
 	 * 
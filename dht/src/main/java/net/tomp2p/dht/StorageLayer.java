@@ -78,8 +78,8 @@ public class StorageLayer implements DigestStorage {
 	// anyone
 	final private Collection<Number160> removedDomains = new HashSet<Number160>();
 
-	final private RangeLock<Number640> rangeLock = new RangeLock<Number640>();
-	final private RangeLock<Number640> responsibilityLock = new RangeLock<Number640>();
+	final private StripedRangeLock rangeLock = new StripedRangeLock();
+	final private StripedRangeLock responsibilityLock = new StripedRangeLock();
 	
 	final private Storage backend;
 	final int maxVersions;
@@ -142,38 +142,54 @@ public class StorageLayer implements DigestStorage {
 		return removedDomains.contains(domain);
 	}
 	
-	private RangeLock<Number640>.Range lock(Number640 min, Number640 max) { 
-		return rangeLock.lock(min, max);
+	private StripedRangeLock.Range lock(Number640 min, Number640 max) { 
+		return rangeLock.writeLock(min, max);
 	}
 	
-	private RangeLock<Number640>.Range lock(Number640 number640) { 
-		return rangeLock.lock(number640, number640);
+	private StripedRangeLock.Range lock(Number640 number640) { 
+		return rangeLock.writeLock(number640, number640);
 	}
 	
-	private RangeLock<Number640>.Range lock(Number480 number480) { 
-		return rangeLock.lock(new Number640(number480, Number160.ZERO), new Number640(number480, Number160.MAX_VALUE));
-	}
-	
-	private RangeLock<Number640>.Range lock(Number320 number320) { 
-		return rangeLock.lock(
-				new Number640(number320, Number160.ZERO, Number160.ZERO), 
-				new Number640(number320, Number160.MAX_VALUE, Number160.MAX_VALUE));
+	private StripedRangeLock.Range lock(Number160 number160) { 
+		return rangeLock.writeLock(
+				new Number640(number160, Number160.ZERO, Number160.ZERO, Number160.ZERO), 
+				new Number640(number160, Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE));
 	}
 	
-	private RangeLock<Number640>.Range lock(Number160 number160) { 
-		return rangeLock.lock(
+	private StripedRangeLock.Range lockResponsibility(Number160 number160) { 
+		return responsibilityLock.writeLock(
 				new Number640(number160, Number160.ZERO, Number160.ZERO, Number160.ZERO), 
 				new Number640(number160, Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE));
 	}
 	
-	private RangeLock<Number640>.Range lockResponsibility(Number160 number160) { 
-		return responsibilityLock.lock(
+	// read locks, only for methods that do not modify the backend
+	
+	private StripedRangeLock.Range readLock(Number640 min, Number640 max) { 
+		return rangeLock.readLock(min, max);
+	}
+	
+	private StripedRangeLock.Range readLock(Number640 number640) { 
+		return rangeLock.readLock(number640, number640);
+	}
+	
+	private StripedRangeLock.Range readLock(Number480 number480) { 
+		return rangeLock.readLock(new Number640(number480, Number160.ZERO), new Number640(number480, Number160.MAX_VALUE));
+	}
+	
+	private StripedRangeLock.Range readLock(Number320 number320) { 
+		return rangeLock.readLock(
+				new Number640(number320, Number160.ZERO, Number160.ZERO), 
+				new Number640(number320, Number160.MAX_VALUE, Number160.MAX_VALUE));
+	}
+	
+	private StripedRangeLock.Range readLockResponsibility(Number160 number160) { 
+		return responsibilityLock.readLock(
 				new Number640(number160, Number160.ZERO, Number160.ZERO, Number160.ZERO), 
 				new Number640(number160, Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE));
 	}
 	
-	private RangeLock<Number640>.Range lock() { 
-		return rangeLock.lock(
+	private StripedRangeLock.Range readLock() { 
+		return rangeLock.readLock(
 				new Number640(Number160.ZERO, Number160.ZERO, Number160.ZERO, Number160.ZERO), 
 				new Number640(Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE));
 	}
@@ -187,7 +203,7 @@ public class StorageLayer implements DigestStorage {
 		final Number640 max = dataMap.lastKey();
 		final Map<Number640, Enum<?>> retVal = new HashMap<Number640, Enum<?>>();
 		final HashSet<Number480> keysToCheck = new HashSet<Number480>();
-		final RangeLock<Number640>.Range lock = lock(min, max);
+		final StripedRangeLock.Range lock = lock(min, max);
 		try {
 			for(Map.Entry<Number640, Data> entry: dataMap.entrySet()) {
 				Number640 key = entry.getKey();
@@ -308,7 +324,7 @@ public class StorageLayer implements DigestStorage {
 	}
 
 	public Pair<Data, Enum<?>> remove(Number640 key, PublicKey publicKey, boolean returnData) {
-		RangeLock<Number640>.Range lock = lock(key);
+		StripedRangeLock.Range lock = lock(key);
 		try {
 			if (!canClaimDomain(key.locationAndDomainKey(), publicKey)) {
 				return new Pair<Data, Enum<?>>(null, PutStatus.FAILED_SECURITY);
@@ -332,7 +348,7 @@ public class StorageLayer implements DigestStorage {
 	}
 
 	public Data get(Number640 key) {
-		RangeLock<Number640>.Range lock = lock(key);
+		StripedRangeLock.Range lock = readLock(key);
 		try {
 			Data tmp = getInternal(key);
 			return tmp == null? null:tmp.duplicate();
@@ -351,7 +367,7 @@ public class StorageLayer implements DigestStorage {
 	}
 
 	public NavigableMap<Number640, Data> get(Number640 from, Number640 to, int limit, boolean ascending) {
-		RangeLock<Number640>.Range lock = rangeLock.lock(from, to);
+		StripedRangeLock.Range lock = readLock(from, to);
 		try {
 			NavigableMap<Number640, Data> tmp = backend.subMap(from, to);
 			tmp = filterCopy(tmp, limit, ascending);
@@ -362,7 +378,7 @@ public class StorageLayer implements DigestStorage {
 	}
 
 	public NavigableMap<Number640, Data> getLatestVersion(Number640 key) {
-		RangeLock<Number640>.Range lock = lock(key.locationAndDomainAndContentKey());
+		StripedRangeLock.Range lock = readLock(key.locationAndDomainAndContentKey());
 		try {
 			NavigableMap<Number640, Data> tmp = backend.subMap(key.minVersionKey(), key.maxVersionKey());
 			tmp = filterCopyOrig(tmp, -1, true, true);
@@ -451,7 +467,7 @@ public class StorageLayer implements DigestStorage {
 	}
 
 	public NavigableMap<Number640, Data> get() {
-		RangeLock<Number640>.Range lock = lock();
+		StripedRangeLock.Range lock = readLock();
 		try {
 			return filterCopy(backend.map(), -1, true);
 		} finally {
@@ -460,7 +476,7 @@ public class StorageLayer implements DigestStorage {
 	}
 
 	public boolean contains(Number640 key) {
-		RangeLock<Number640>.Range lock = lock(key);
+		StripedRangeLock.Range lock = readLock(key);
 		try {
 			return backend.contains(key);
 		} finally {
@@ -471,7 +487,7 @@ public class StorageLayer implements DigestStorage {
 	public NavigableMap<Number640, Data> get(Number640 from, Number640 to, SimpleBloomFilter<Number160> contentKeyBloomFilter,
 	        SimpleBloomFilter<Number160> versionKeyBloomFilter, SimpleBloomFilter<Number160> contentBloomFilter, 
 	        int limit, boolean ascending, boolean isBloomFilterAnd) {
-		RangeLock<Number640>.Range lock = rangeLock.lock(from, to);
+		StripedRangeLock.Range lock = readLock(from, to);
 		try {
 			NavigableMap<Number640, Data> tmp = backend.subMap(from, to);
 			tmp = filterCopy(tmp, limit, ascending);
@@ -522,7 +538,7 @@ public class StorageLayer implements DigestStorage {
 	}
 
 	public NavigableMap<Number640, Data> removeReturnData(Number640 from, Number640 to, PublicKey publicKey) {
-		RangeLock<Number640>.Range lock = rangeLock.lock(from, to);
+		StripedRangeLock.Range lock = lock(from, to);
 		try {
 			Map<Number640, Data> tmp = backend.subMap(from, to);
 			NavigableMap<Number640, Data> result = new TreeMap<Number640, Data>();
@@ -550,7 +566,7 @@ public class StorageLayer implements DigestStorage {
 	}
 
 	public SortedMap<Number640, Byte> removeReturnStatus(Number640 from, Number640 to, PublicKey publicKey) {
-		RangeLock<Number640>.Range lock = rangeLock.lock(from, to);
+		StripedRangeLock.Range lock = lock(from, to);
 		try {
 			Map<Number640, Data> tmp = backend.subMap(from, to);
 			SortedMap<Number640, Byte> result = new TreeMap<Number640, Byte>();
@@ -571,7 +587,7 @@ public class StorageLayer implements DigestStorage {
 		long time = System.currentTimeMillis();
 		Collection<Number640> toRemove = backend.subMapTimeout(time);
 		for (Number640 key : toRemove) {
-			RangeLock<Number640>.Range lock = lock(key);
+			StripedRangeLock.Range lock = lock(key);
 			try {
 				Data oldData = backend.remove(key, false);
 				if(oldData != null) {
@@ -581,7 +597,7 @@ public class StorageLayer implements DigestStorage {
 				// remove responsibility if we don't have any data stored under
 				// locationkey
 				Number160 locationKey = key.locationKey();
-				RangeLock<Number640>.Range lockResp= lockResponsibility(locationKey);
+				StripedRangeLock.Range lockResp= lockResponsibility(locationKey);
 				try {
 					if (isEmpty(locationKey)) {
 						backend.removeResponsibility(locationKey);
@@ -608,7 +624,7 @@ public class StorageLayer implements DigestStorage {
 	@Override
     public DigestInfo digest(Number640 from, Number640 to, int limit, boolean ascending) {
 		DigestInfo digestInfo = new DigestInfo();
-		RangeLock<Number640>.Range lock = rangeLock.lock(from, to);
+		StripedRangeLock.Range lock = readLock(from, to);
 		try {
 			NavigableMap<Number640, Data> tmp = backend.subMap(from, to);
 			tmp = filterCopyOrig(tmp, limit, ascending, true);
@@ -630,7 +646,7 @@ public class StorageLayer implements DigestStorage {
     public DigestInfo digest(Number320 locationAndDomainKey, SimpleBloomFilter<Number160> keyBloomFilter,
 	        SimpleBloomFilter<Number160> contentKeyBloomFilter, int limit, boolean ascending, boolean isBloomFilterAnd) {
 		DigestInfo digestInfo = new DigestInfo();
-		RangeLock<Number640>.Range lock = lock(locationAndDomainKey);
+		StripedRangeLock.Range lock = readLock(locationAndDomainKey);
 		try {
 			Number640 from = new Number640(locationAndDomainKey, Number160.ZERO, Number160.ZERO);
 			Number640 to = new Number640(locationAndDomainKey, Number160.MAX_VALUE, Number160.MAX_VALUE);
@@ -668,7 +684,7 @@ public class StorageLayer implements DigestStorage {
     public DigestInfo digest(Collection<Number640> number640s) {
 		DigestInfo digestInfo = new DigestInfo();
 		for (Number640 number640 : number640s) {
-			RangeLock<Number640>.Range lock = lock(number640);
+			StripedRangeLock.Range lock = readLock(number640);
 			try {
 				if (backend.contains(number640)) {
 					Data data = getInternal(number640);
@@ -788,12 +804,12 @@ public class StorageLayer implements DigestStorage {
 		return key.equals(Utils.makeSHAHash(publicKey.getEncoded()));
 	}
 
-	public RangeLock<Number640> rangeLock() {
+	public StripedRangeLock rangeLock() {
 		return rangeLock;
 	}
 
 	public Collection<Number160> findContentForResponsiblePeerID(Number160 peerID) {
-		RangeLock<Number640>.Range lockResp = lockResponsibility(peerID);
+		StripedRangeLock.Range lockResp = readLockResponsibility(peerID);
 		try {
 			Collection<Number160> contentIDs = backend.findContentForResponsiblePeerID(peerID);
 			return contentIDs == null ? Collections.<Number160> emptyList() : contentIDs;
@@ -803,7 +819,7 @@ public class StorageLayer implements DigestStorage {
 	}
 	
 	public Number160 findPeerIDsForResponsibleContent(Number160 locationKey) {
-		RangeLock<Number640>.Range lockResp = lockResponsibility(locationKey);
+		StripedRangeLock.Range lockResp = readLockResponsibility(locationKey);
 		try {
 			return backend.findPeerIDsForResponsibleContent(locationKey);
 		} finally {
@@ -812,8 +828,8 @@ public class StorageLayer implements DigestStorage {
 	}
 	
 	public boolean updateResponsibilities(Number160 locationKey, Number160 peerId) {
-		RangeLock<Number640>.Range lockResp1 = lockResponsibility(peerId);
-		RangeLock<Number640>.Range lockResp2 = lockResponsibility(locationKey);
+		StripedRangeLock.Range lockResp1 = lockResponsibility(peerId);
+		StripedRangeLock.Range lockResp2 = lockResponsibility(locationKey);
         try {
             return backend.updateResponsibilities(locationKey, peerId);
         } finally {
@@ -823,10 +839,10 @@ public class StorageLayer implements DigestStorage {
 	}
 	
 	public void removeResponsibility(Number160 locationKey, boolean keepData) {
-		RangeLock<Number640>.Range lockResp = lockResponsibility(locationKey);
+		StripedRangeLock.Range lockResp = lockResponsibility(locationKey);
 		try {
 			if (!keepData) {
-				RangeLock<Number640>.Range lock = lock(locationKey);
+				StripedRangeLock.Range lock = lock(locationKey);
 				try {
 					final NavigableMap<Number640, Data> removed = backend.remove(
 						new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO),
@@ -867,7 +883,7 @@ public class StorageLayer implements DigestStorage {
 	}
 
 	public Enum<?> updateMeta(PublicKey publicKey, Number640 key, Data newData) {
-		RangeLock<Number640>.Range lock = lock(key);
+		StripedRangeLock.Range lock = lock(key);
 		try {
 			if (!securityEntryCheck(key.locationAndDomainAndContentKey(), publicKey, newData.publicKey(),
 			        newData.isProtectedEntry())) {
@@ -910,7 +926,7 @@ public class StorageLayer implements DigestStorage {
     }
 
 	public Enum<?> putConfirm(PublicKey publicKey, Number640 key, Data newData) {
-		RangeLock<Number640>.Range lock = lock(key);
+		StripedRangeLock.Range lock = lock(key);
 		try {
 			if (!securityEntryCheck(key.locationAndDomainAndContentKey(), publicKey, newData.publicKey(),
 					newData.isProtectedEntry())) {
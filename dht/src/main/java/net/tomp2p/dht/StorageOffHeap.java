@@ -0,0 +1,384 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.dht;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.SignatureException;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.tomp2p.connection.SignatureFactory;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A storage that keeps the values in direct memory, outside of the Java heap.
+ * Only the ordered index of keys and small entry objects stay on the heap. The
+ * values are encoded as in {@link StorageDisk} (header, payload, signature) and
+ * written into large direct slabs with a bump allocator.
+ * <p>
+ * A slab is never written again once it is full, thus a {@link Data} returned
+ * by {@link #get(Number640)} can use a slice of the slab as its payload without
+ * copying it to the heap. The encoder then copies the payload straight from
+ * the slab into the packet buffer. A slab is freed by the garbage collector as
+ * soon as neither an entry nor a returned data object references it. Slabs
+ * that are mostly empty are compacted by moving the remaining entries to the
+ * current slab.
+ * </p>
+ * Timeouts, protection and responsibilities are small and stay on the heap as
+ * in {@link StorageMemory}.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class StorageOffHeap extends StorageMemory {
+
+	private static final Logger LOG = LoggerFactory.getLogger(StorageOffHeap.class);
+
+	public static final int DEFAULT_SLAB_SIZE = 4 * 1024 * 1024;
+
+	// compact if less than half of the allocated direct memory is in use
+	private static final double COMPACT_RATIO = 0.5;
+
+	private final NavigableMap<Number640, Entry> index = new ConcurrentSkipListMap<Number640, Entry>();
+	private final SignatureFactory signatureFactory;
+	private final int slabSize;
+
+	private final Object allocationLock = new Object();
+	// guarded by allocationLock
+	private Slab current;
+
+	private final AtomicLong allocatedBytes = new AtomicLong();
+	private final AtomicLong liveBytes = new AtomicLong();
+	private final AtomicBoolean compacting = new AtomicBoolean();
+	// no automatic compaction below this allocation, see compactIfNeeded()
+	private final AtomicLong compactThreshold = new AtomicLong();
+	private final AtomicLong compactions = new AtomicLong();
+
+	public StorageOffHeap(SignatureFactory signatureFactory) {
+		this(signatureFactory, DEFAULT_STORAGE_CHECK_INTERVAL, DEFAULT_SLAB_SIZE);
+	}
+
+	/**
+	 * @param signatureFactory
+	 *            The signature factory to encode and decode public keys and
+	 *            signatures of the stored data
+	 * @param storageCheckIntervalMillis
+	 *            The interval for the expiration check
+	 * @param slabSize
+	 *            The size of one slab of direct memory. Values larger than a
+	 *            quarter of this size get their own slab.
+	 */
+	public StorageOffHeap(SignatureFactory signatureFactory, int storageCheckIntervalMillis, int slabSize) {
+		super(storageCheckIntervalMillis);
+		this.signatureFactory = signatureFactory;
+		this.slabSize = slabSize;
+	}
+
+	// Core
+	@Override
+	public Data put(Number640 key, Data value) {
+		final ByteBuf encoded = PooledByteBufAllocator.DEFAULT.directBuffer();
+		final Entry entry;
+		try {
+			// the valid from time is not part of the encoded data
+			encoded.writeLong(value.validFromMillis());
+			value.encodeHeader(encoded, signatureFactory);
+			value.encodeBuffer(encoded);
+			value.encodeDone(encoded, signatureFactory);
+			entry = allocate(encoded.readableBytes());
+			entry.write(encoded);
+		} catch (InvalidKeyException e) {
+			throw new IllegalArgumentException("data could not be encoded", e);
+		} catch (SignatureException e) {
+			throw new IllegalArgumentException("data could not be encoded", e);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("data could not be encoded", e);
+		} finally {
+			encoded.release();
+		}
+		final Entry old = index.put(key, entry);
+		if (old == null) {
+			compactIfNeeded();
+			return null;
+		}
+		free(old);
+		compactIfNeeded();
+		return decode(old);
+	}
+
+	@Override
+	public Data get(Number640 key) {
+		final Entry entry = index.get(key);
+		return entry == null ? null : decode(entry);
+	}
+
+	@Override
+	public boolean contains(Number640 key) {
+		return index.containsKey(key);
+	}
+
+	@Override
+	public int contains(Number640 fromKey, Number640 toKey) {
+		return index.subMap(fromKey, true, toKey, true).size();
+	}
+
+	@Override
+	public Data remove(Number640 key, boolean returnData) {
+		final Entry entry = index.remove(key);
+		if (entry == null) {
+			return null;
+		}
+		free(entry);
+		return returnData ? decode(entry) : null;
+	}
+
+	@Override
+	public NavigableMap<Number640, Data> remove(Number640 fromKey, Number640 toKey) {
+		final NavigableMap<Number640, Entry> tmp = index.subMap(fromKey, true, toKey, true);
+		final NavigableMap<Number640, Data> retVal = new TreeMap<Number640, Data>();
+		for (Map.Entry<Number640, Entry> entry : tmp.entrySet()) {
+			if (index.remove(entry.getKey(), entry.getValue())) {
+				free(entry.getValue());
+				retVal.put(entry.getKey(), decode(entry.getValue()));
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Unlike {@link StorageMemory}, this is a copy and not a view. The payloads
+	 * are not copied.
+	 */
+	@Override
+	public NavigableMap<Number640, Data> subMap(Number640 fromKey, Number640 toKey) {
+		return decode(index.subMap(fromKey, true, toKey, true));
+	}
+
+	/**
+	 * Unlike {@link StorageMemory}, this is a copy and not a view. The payloads
+	 * are not copied.
+	 */
+	@Override
+	public NavigableMap<Number640, Data> map() {
+		return decode(index);
+	}
+
+	// Misc
+	@Override
+	public void close() {
+		// the slabs are freed once the returned data objects are gone
+		index.clear();
+		synchronized (allocationLock) {
+			current = null;
+		}
+		allocatedBytes.set(0);
+		liveBytes.set(0);
+		compactThreshold.set(0);
+		super.close();
+	}
+
+	/**
+	 * @return The direct memory in bytes that is referenced by this storage,
+	 *         including the unused space in the slabs
+	 */
+	public long allocatedBytes() {
+		return allocatedBytes.get();
+	}
+
+	/**
+	 * @return The direct memory in bytes that is used by stored values
+	 */
+	public long liveBytes() {
+		return liveBytes.get();
+	}
+
+	/**
+	 * Moves the entries of slabs that are less than half full to the current
+	 * slab, so that the sparse slabs can be freed. Entries that are changed
+	 * concurrently are skipped.
+	 */
+	public void compact() {
+		for (Map.Entry<Number640, Entry> mapEntry : index.entrySet()) {
+			final Entry entry = mapEntry.getValue();
+			final Slab slab = entry.slab;
+			if (slab.dedicated || slab == currentSlab() || slab.live.get() >= slab.capacity * COMPACT_RATIO) {
+				continue;
+			}
+			final Entry moved = allocate(entry.length);
+			moved.write(entry.slice());
+			if (index.replace(mapEntry.getKey(), entry, moved)) {
+				free(entry);
+			} else {
+				free(moved);
+			}
+		}
+	}
+
+	/**
+	 * Called on every put. A compaction may not free anything, e.g. if the
+	 * full slabs are just over half full and the current slab is nearly empty.
+	 * Thus, after a compaction the next one waits until another slab has been
+	 * allocated, otherwise every put would scan the whole index.
+	 */
+	private void compactIfNeeded() {
+		final long allocated = allocatedBytes.get();
+		if (allocated > 2L * slabSize && allocated >= compactThreshold.get()
+				&& liveBytes.get() < allocated * COMPACT_RATIO && compacting.compareAndSet(false, true)) {
+			try {
+				LOG.debug("compacting off-heap storage, {} of {} bytes in use", liveBytes.get(), allocated);
+				compactions.incrementAndGet();
+				compact();
+			} finally {
+				compactThreshold.set(allocatedBytes.get() + slabSize);
+				compacting.set(false);
+			}
+		}
+	}
+
+	/**
+	 * @return The number of compactions triggered by puts
+	 */
+	long compactions() {
+		return compactions.get();
+	}
+
+	private Slab currentSlab() {
+		synchronized (allocationLock) {
+			return current;
+		}
+	}
+
+	private Entry allocate(final int length) {
+		liveBytes.addAndGet(length);
+		if (length > slabSize / 4) {
+			// large values get their own slab, it is freed with the entry
+			final Slab slab = new Slab(length, true);
+			allocatedBytes.addAndGet(length);
+			slab.live.addAndGet(length);
+			return new Entry(slab, 0, length);
+		}
+		synchronized (allocationLock) {
+			if (current == null || current.position + length > current.capacity) {
+				if (current != null && current.live.get() == 0) {
+					release(current);
+				}
+				current = new Slab(slabSize, false);
+				allocatedBytes.addAndGet(slabSize);
+			}
+			final Entry entry = new Entry(current, current.position, length);
+			current.position += length;
+			current.live.addAndGet(length);
+			return entry;
+		}
+	}
+
+	private void free(final Entry entry) {
+		liveBytes.addAndGet(-entry.length);
+		final Slab slab = entry.slab;
+		if (slab.live.addAndGet(-entry.length) == 0) {
+			synchronized (allocationLock) {
+				// the current slab is never reset, returned data may still
+				// reference it. It is accounted for when it is retired.
+				if (slab == current) {
+					return;
+				}
+			}
+			// no entry references this slab anymore
+			release(slab);
+		}
+	}
+
+	private void release(final Slab slab) {
+		if (slab.released.compareAndSet(false, true)) {
+			allocatedBytes.addAndGet(-slab.capacity);
+		}
+	}
+
+	private Data decode(final Entry entry) {
+		final ByteBuf buf = entry.slice();
+		final long validFromMillis = buf.readLong();
+		return Data.decodeSlice(buf, signatureFactory).validFromMillis(validFromMillis);
+	}
+
+	private NavigableMap<Number640, Data> decode(final NavigableMap<Number640, Entry> entries) {
+		final NavigableMap<Number640, Data> retVal = new TreeMap<Number640, Data>();
+		for (Map.Entry<Number640, Entry> entry : entries.entrySet()) {
+			retVal.put(entry.getKey(), decode(entry.getValue()));
+		}
+		return retVal;
+	}
+
+	private static final class Slab {
+		private final ByteBuffer buffer;
+		private final int capacity;
+		private final boolean dedicated;
+		private final AtomicInteger live = new AtomicInteger();
+		private final AtomicBoolean released = new AtomicBoolean();
+		// guarded by allocationLock
+		private int position;
+
+		private Slab(final int capacity, final boolean dedicated) {
+			this.buffer = ByteBuffer.allocateDirect(capacity);
+			this.capacity = capacity;
+			this.dedicated = dedicated;
+		}
+	}
+
+	/**
+	 * The location of an encoded value in a slab.
+	 */
+	private static final class Entry {
+		private final Slab slab;
+		private final int offset;
+		private final int length;
+
+		private Entry(final Slab slab, final int offset, final int length) {
+			this.slab = slab;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		private void write(final ByteBuf buf) {
+			final ByteBuffer dst = slab.buffer.duplicate();
+			dst.position(offset);
+			dst.limit(offset + length);
+			buf.getBytes(buf.readerIndex(), dst);
+		}
+
+		private ByteBuf slice() {
+			final ByteBuffer src = slab.buffer.duplicate();
+			src.position(offset);
+			src.limit(offset + length);
+			return Unpooled.wrappedBuffer(src.slice().asReadOnlyBuffer());
+		}
+	}
+}
@@ -17,12 +17,15 @@
 package net.tomp2p.dht;
 
 import java.io.IOException;
+import java.security.InvalidKeyException;
 import java.security.PublicKey;
+import java.security.SignatureException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.Random;
@@ -36,7 +39,10 @@ import net.tomp2p.connection.PeerConnection;
 import net.tomp2p.connection.RequestHandler;
 import net.tomp2p.connection.Responder;
 import net.tomp2p.dht.StorageLayer.PutStatus;
+import net.tomp2p.futures.BaseFuture.FutureType;
 import net.tomp2p.futures.FutureResponse;
+import net.tomp2p.futures.FutureSuccessEvaluator;
+import net.tomp2p.futures.FutureSuccessEvaluatorCommunication;
 import net.tomp2p.message.DataMap;
 import net.tomp2p.message.KeyCollection;
 import net.tomp2p.message.KeyMap640Keys;
@@ -48,11 +54,13 @@ import net.tomp2p.peers.Number320;
 import net.tomp2p.peers.Number640;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.rpc.BloomfilterFactory;
+import net.tomp2p.rpc.DefaultBloomfilterFactory;
 import net.tomp2p.rpc.DigestInfo;
 import net.tomp2p.rpc.DispatchHandler;
 import net.tomp2p.rpc.RPC;
 import net.tomp2p.rpc.SimpleBloomFilter;
 import net.tomp2p.storage.Data;
+import net.tomp2p.utils.ConcurrentCacheMap;
 import net.tomp2p.utils.Pair;
 import net.tomp2p.utils.Utils;
 
@@ -72,9 +80,19 @@ public class StorageRPC extends DispatchHandler {
 	
     private static final Logger LOG = LoggerFactory.getLogger(StorageRPC.class);
     private static final Random RND = new Random();
+    // for requesters that do not know the blocked mode
+    private static final BloomfilterFactory CLASSIC_FACTORY = new DefaultBloomfilterFactory();
+    private static final FutureSuccessEvaluator COMMUNICATION = new FutureSuccessEvaluatorCommunication();
+    // a peer may be replaced by an older version, thus its support is forgotten after a while
+    private static final int BLOCKED_PEERS_TIME_TO_LIVE_SECONDS = 600;
+    private static final int BLOCKED_PEERS_MAX_ENTRIES = 1024;
 
     private final BloomfilterFactory factory;
     private final StorageLayer storageLayer;
+    // the peers that sent a storage message with the blocked bloom filter option
+    private final ConcurrentCacheMap<Number160, Boolean> blockedPeers = new ConcurrentCacheMap<Number160, Boolean>(
+            BLOCKED_PEERS_TIME_TO_LIVE_SECONDS, BLOCKED_PEERS_MAX_ENTRIES);
+    private final FutureSuccessEvaluator blockedModeEvaluator = new BlockedModeEvaluator(null);
     private ReplicationListener replicationListener = null;
 
     /**
@@ -113,6 +131,25 @@ public class StorageRPC extends DispatchHandler {
     	return replicationListener;
     }
 
+    /**
+     * Creates a request that announces that this peer understands bloom filters in the blocked mode.
+     */
+    @Override
+    public Message createMessage(final PeerAddress recipient, final byte name, final Type type) {
+        return super.createMessage(recipient, name, type).blockedBloomFilter(true);
+    }
+
+    /**
+     * @param remotePeer
+     *            The remote peer
+     * @return True if the remote peer sent a storage request or reply with the blocked bloom filter option, so a
+     *         blocked bloom filter can be sent to it to exclude entries
+     */
+    public boolean isBlockedBloomFilterSupported(final PeerAddress remotePeer) {
+        return remotePeer.peerId().equals(peerBean().serverPeerAddress().peerId())
+                || blockedPeers.containsKey(remotePeer.peerId());
+    }
+
     /**
      * Stores data on a remote peer. Overwrites data if the data already exists. This is an RPC.
      * 
@@ -237,7 +274,7 @@ public class StorageRPC extends DispatchHandler {
 
         message.setDataMap(dataMap);
 
-        final FutureResponse futureResponse = new FutureResponse(message);
+        final FutureResponse futureResponse = new FutureResponse(message, blockedModeEvaluator);
         final RequestHandler request = new RequestHandler(futureResponse,
                 peerBean(), connectionBean(), putBuilder);
 
@@ -287,7 +324,7 @@ public class StorageRPC extends DispatchHandler {
         	message.setDataMap(dataMap);
         }
 
-        final FutureResponse futureResponse = new FutureResponse(message);
+        final FutureResponse futureResponse = new FutureResponse(message, blockedModeEvaluator);
         final RequestHandler request = new RequestHandler(futureResponse,
                 peerBean(), connectionBean(), putBuilder);
 
@@ -320,7 +357,7 @@ public class StorageRPC extends DispatchHandler {
 
 		message.setDataMap(dataMap);
 
-		final FutureResponse futureResponse = new FutureResponse(message);
+		final FutureResponse futureResponse = new FutureResponse(message, blockedModeEvaluator);
 		final RequestHandler request = new RequestHandler(futureResponse,
 				peerBean(), connectionBean(), putBuilder);
 
@@ -401,7 +438,7 @@ public class StorageRPC extends DispatchHandler {
         message.setDataMap(new DataMap(addBuilder.locationKey(), addBuilder.domainKey(), addBuilder
                 .versionKey(), dataMap));
 
-        final FutureResponse futureResponse = new FutureResponse(message);
+        final FutureResponse futureResponse = new FutureResponse(message, blockedModeEvaluator);
         final RequestHandler request = new RequestHandler(futureResponse,
                 peerBean(), connectionBean(), addBuilder);
         if (!addBuilder.isForceUDP()) {
@@ -462,6 +499,12 @@ public class StorageRPC extends DispatchHandler {
                         .domainKey(), getBuilder.versionKey(), getBuilder.contentKeys()));
             } else {
                 message.intValue(getBuilder.returnNr());
+                if (!getBuilder.isBloomFilterAnd() && !isBlockedBloomFilterSupported(remotePeer)
+                        && (isBlocked(getBuilder.keyBloomFilter()) || isBlocked(getBuilder.contentBloomFilter()))) {
+                    // the reply may be a bloom filter, thus the excluded entries cannot be removed here
+                    return new FutureResponse(message).failed(
+                            "The remote peer is not known to support blocked bloom filters, use a classic filter");
+                }
                 if (getBuilder.keyBloomFilter() != null || getBuilder.contentBloomFilter() != null) {
                     if (getBuilder.keyBloomFilter() != null) {
                         message.bloomFilter(getBuilder.keyBloomFilter());
@@ -475,7 +518,7 @@ public class StorageRPC extends DispatchHandler {
             message.keyCollection(new KeyCollection(getBuilder.keys()));
         }
 
-        final FutureResponse futureResponse = new FutureResponse(message);
+        final FutureResponse futureResponse = new FutureResponse(message, blockedModeEvaluator);
         final RequestHandler request = new RequestHandler(futureResponse,
                 peerBean(), connectionBean(), getBuilder);
         if (!getBuilder.isForceUDP()) {
@@ -503,6 +546,7 @@ public class StorageRPC extends DispatchHandler {
             message.publicKeyAndSign(getBuilder.keyPair());
         }
 
+        boolean excludeLocally = false;
         if (getBuilder.to() != null && getBuilder.from() != null) {
             final Collection<Number640> keys = new ArrayList<Number640>(2);
             keys.add(getBuilder.from());
@@ -521,9 +565,17 @@ public class StorageRPC extends DispatchHandler {
                 message.keyCollection(new KeyCollection(getBuilder.locationKey(), getBuilder
                         .domainKey(), getBuilder.versionKey(), getBuilder.contentKeys()));
             } else {
+                // an older peer would exclude everything with a blocked filter, send it an empty one and
+                // exclude the entries when the reply arrives, the storage layer limits before it excludes as well
+                excludeLocally = !getBuilder.isBloomFilterAnd() && !isBlockedBloomFilterSupported(remotePeer)
+                        && (isBlocked(getBuilder.contentKeyBloomFilter())
+                                || isBlocked(getBuilder.versionKeyBloomFilter())
+                                || isBlocked(getBuilder.contentBloomFilter()));
                 message.intValue(getBuilder.returnNr());
-               
-                if (getBuilder.contentKeyBloomFilter() != null) {
+
+                if (excludeLocally && isBlocked(getBuilder.contentKeyBloomFilter())) {
+                    message.bloomFilter(EMPTY_FILTER);
+                } else if (getBuilder.contentKeyBloomFilter() != null) {
                      message.bloomFilter(getBuilder.contentKeyBloomFilter());
                 } else {
                 	if(getBuilder.isBloomFilterAnd()) {
@@ -533,7 +585,9 @@ public class StorageRPC extends DispatchHandler {
                 	}
                 }
                 
-                if (getBuilder.versionKeyBloomFilter() != null) {
+                if (excludeLocally && isBlocked(getBuilder.versionKeyBloomFilter())) {
+                    message.bloomFilter(EMPTY_FILTER);
+                } else if (getBuilder.versionKeyBloomFilter() != null) {
                     message.bloomFilter(getBuilder.versionKeyBloomFilter());
                 } else {
                 	if(getBuilder.isBloomFilterAnd()) {
@@ -543,7 +597,9 @@ public class StorageRPC extends DispatchHandler {
                 	}
                 }
                 
-                if (getBuilder.contentBloomFilter() != null) {
+                if (excludeLocally && isBlocked(getBuilder.contentBloomFilter())) {
+                    message.bloomFilter(EMPTY_FILTER);
+                } else if (getBuilder.contentBloomFilter() != null) {
                     message.bloomFilter(getBuilder.contentBloomFilter());
                 } else {
                 	if(getBuilder.isBloomFilterAnd()) {
@@ -557,7 +613,8 @@ public class StorageRPC extends DispatchHandler {
             message.keyCollection(new KeyCollection(getBuilder.keys()));
         }
 
-        final FutureResponse futureResponse = new FutureResponse(message);
+        final FutureResponse futureResponse = new FutureResponse(message,
+                excludeLocally ? new BlockedModeEvaluator(getBuilder) : blockedModeEvaluator);
         final RequestHandler request = new RequestHandler(futureResponse,
                 peerBean(), connectionBean(), getBuilder);
         if (!getBuilder.isForceUDP()) {
@@ -567,6 +624,115 @@ public class StorageRPC extends DispatchHandler {
         }
     }
 
+    private static boolean isBlocked(final SimpleBloomFilter<Number160> filter) {
+        return filter != null && filter.isBlocked();
+    }
+
+    /**
+     * Removes the entries of a get reply that the exclusion filters contain, as the remote peer would have done it.
+     */
+    private static void exclude(final NavigableMap<Number640, Data> dataMap, final GetBuilder getBuilder) {
+        for (final Iterator<Map.Entry<Number640, Data>> iterator = dataMap.entrySet().iterator(); iterator.hasNext();) {
+            final Map.Entry<Number640, Data> entry = iterator.next();
+            if (contains(getBuilder.contentKeyBloomFilter(), entry.getKey().contentKey())
+                    || contains(getBuilder.versionKeyBloomFilter(), entry.getKey().versionKey())
+                    || contains(getBuilder.contentBloomFilter(), entry.getValue().hash())) {
+                entry.getValue().release();
+                iterator.remove();
+            }
+        }
+    }
+
+    private static boolean contains(final SimpleBloomFilter<Number160> filter, final Number160 key) {
+        return filter != null && filter.contains(key);
+    }
+
+    /**
+     * Evaluates a reply like {@link FutureSuccessEvaluatorCommunication} and remembers if the remote peer
+     * understands blocked bloom filters. For a get whose blocked exclusion filters were not sent, it removes the
+     * excluded entries before the future completes.
+     */
+    private class BlockedModeEvaluator implements FutureSuccessEvaluator {
+        private final GetBuilder excludeLocally;
+
+        private BlockedModeEvaluator(final GetBuilder excludeLocally) {
+            this.excludeLocally = excludeLocally;
+        }
+
+        @Override
+        public FutureType evaluate(final Message requestMessage, final Message responseMessage) {
+            if (responseMessage.isBlockedBloomFilter()) {
+                blockedPeers.put(responseMessage.sender().peerId(), Boolean.TRUE);
+            }
+            if (excludeLocally != null && responseMessage.dataMap(0) != null) {
+                exclude(responseMessage.dataMap(0).dataMap(), excludeLocally);
+            }
+            return COMMUNICATION.evaluate(requestMessage, responseMessage);
+        }
+    }
+
+    /**
+     * Gets many keys, possibly with different location keys, in one message. This is an RPC.
+     * 
+     * @param remotePeer
+     *            The remote peer that is responsible for the keys
+     * @param keys
+     *            The keys to get
+     * @param batchBuilder
+     *            The builder with the connection and signing options
+     * @param channelCreator
+     *            The channel creator
+     * @return FutureResponse that contains the data that was found
+     */
+    public FutureResponse getBatch(final PeerAddress remotePeer, final Collection<Number640> keys,
+            final BatchBuilder batchBuilder, final ChannelClient channelCreator) {
+        final Message message = createMessage(remotePeer, RPC.Commands.GET.getNr(), Type.REQUEST_1);
+        if (batchBuilder.isSign()) {
+            message.publicKeyAndSign(batchBuilder.keyPair());
+        }
+        // a key collection without return number is a collection get
+        message.keyCollection(new KeyCollection(keys));
+        final FutureResponse futureResponse = new FutureResponse(message, blockedModeEvaluator);
+        final RequestHandler request = new RequestHandler(futureResponse,
+                peerBean(), connectionBean(), batchBuilder);
+        if (!batchBuilder.isForceUDP()) {
+            return request.sendTCP(channelCreator);
+        } else {
+            return request.sendUDP(channelCreator);
+        }
+    }
+
+    /**
+     * Stores many values, possibly with different location keys, in one message. This is an RPC.
+     * 
+     * @param remotePeer
+     *            The remote peer that is responsible for the keys
+     * @param dataMap
+     *            The data to store
+     * @param batchBuilder
+     *            The builder with the connection and signing options
+     * @param channelCreator
+     *            The channel creator
+     * @return FutureResponse that stores which keys have been stored
+     */
+    public FutureResponse putBatch(final PeerAddress remotePeer, final NavigableMap<Number640, Data> dataMap,
+            final BatchBuilder batchBuilder, final ChannelClient channelCreator) {
+        final Type type = batchBuilder.isProtectDomain() ? Type.REQUEST_2 : Type.REQUEST_1;
+        final Message message = createMessage(remotePeer, RPC.Commands.PUT.getNr(), type);
+        if (batchBuilder.isSign()) {
+            message.publicKeyAndSign(batchBuilder.keyPair());
+        }
+        message.setDataMap(new DataMap(dataMap));
+        final FutureResponse futureResponse = new FutureResponse(message, blockedModeEvaluator);
+        final RequestHandler request = new RequestHandler(futureResponse,
+                peerBean(), connectionBean(), batchBuilder);
+        if (!batchBuilder.isForceUDP()) {
+            return request.sendTCP(channelCreator);
+        } else {
+            return request.sendUDP(channelCreator);
+        }
+    }
+
 	public FutureResponse getLatest(final PeerAddress remotePeer, final GetBuilder getBuilder,
 			final ChannelClient channelCreator, final RPC.Commands command) {
 		final Type type = Type.REQUEST_1;
@@ -580,7 +746,7 @@ public class StorageRPC extends DispatchHandler {
 		message.key(getBuilder.domainKey());
 		message.key(getBuilder.contentKey());
 
-		final FutureResponse futureResponse = new FutureResponse(message);
+		final FutureResponse futureResponse = new FutureResponse(message, blockedModeEvaluator);
 		final RequestHandler request = new RequestHandler(futureResponse,
 				peerBean(), connectionBean(), getBuilder);
 		if (!getBuilder.isForceUDP()) {
@@ -643,7 +809,7 @@ public class StorageRPC extends DispatchHandler {
             message.keyCollection(new KeyCollection(removeBuilder.keys()));
         }
 
-        final FutureResponse futureResponse = new FutureResponse(message);
+        final FutureResponse futureResponse = new FutureResponse(message, blockedModeEvaluator);
 
         final RequestHandler request = new RequestHandler(futureResponse,
                 peerBean(), connectionBean(), removeBuilder);
@@ -658,7 +824,10 @@ public class StorageRPC extends DispatchHandler {
     public void handleResponse(final Message message, PeerConnection peerConnection, final boolean sign,
             Responder responder) throws Exception {
 
-    	final Message responseMessage = createResponseMessage(message, Type.OK);
+    	final Message responseMessage = createResponseMessage(message, Type.OK).blockedBloomFilter(true);
+        if (message.isBlockedBloomFilter()) {
+            blockedPeers.put(message.sender().peerId(), Boolean.TRUE);
+        }
 
         //switch/case does not work here out of the box, need to convert byte back to enum, not sure if that's worth it.
         if (message.command() == RPC.Commands.ADD.getNr()) {
@@ -755,9 +924,10 @@ public class StorageRPC extends DispatchHandler {
         final DataMap toStore = message.dataMap(0);
         final int dataSize = toStore.size();
         final Map<Number640, Byte> result = new HashMap<Number640, Byte>(dataSize);
+        final NavigableMap<Number640, Data> verified = verified(message, toStore, result);
         
         Map<Number640, Enum<?>> storeRes = 
-        		storageLayer.putAll(toStore.dataMap(), publicKey, putIfAbsent, protectDomain, message.isSendSelf());
+        		storageLayer.putAll(verified, publicKey, putIfAbsent, protectDomain, message.isSendSelf());
         
         Set<Number160> affectedKeys = new HashSet<Number160>();
         for (Map.Entry<Number640, Enum<?>> entry : storeRes.entrySet()) {
@@ -813,7 +983,7 @@ public class StorageRPC extends DispatchHandler {
         // the data and we don't need to transfer data to the closest (sender)
         // peer.
 
-        for (Map.Entry<Number640, Data> entry : dataMap.dataMap().entrySet()) {
+        for (Map.Entry<Number640, Data> entry : verified(message, dataMap, result).entrySet()) {
             Enum<?> status = doAdd(protectDomain, entry, publicKey, list, storageLayer, peerBean().serverPeerAddress(), message.isSendSelf());
             result.put(entry.getKey(), (byte) status.ordinal());
 
@@ -829,6 +999,56 @@ public class StorageRPC extends DispatchHandler {
         return responseMessage;
     }
 
+    /**
+     * Verifies the signatures of all signed entries of a message in one pass. Entries with a missing or invalid
+     * signature are released and reported as {@link PutStatus#FAILED_SECURITY}. Messages that a peer sends to
+     * itself are not verified, as they never went through the decoder.
+     * 
+     * @return The entries that may be stored
+     */
+    private NavigableMap<Number640, Data> verified(final Message message, final DataMap toStore,
+            final Map<Number640, Byte> result) {
+        final NavigableMap<Number640, Data> dataMap = toStore.dataMap();
+        if (message.isSendSelf()) {
+            return dataMap;
+        }
+        final List<Number640> failed;
+        try {
+            failed = new DataMap(dataMap).verify(message.publicKey(0), connectionBean().channelServer()
+                    .channelServerConfiguration().signatureFactory());
+        } catch (InvalidKeyException e) {
+            LOG.warn("could not verify the signatures of {}", message, e);
+            return reject(dataMap, result);
+        } catch (SignatureException e) {
+            LOG.warn("could not verify the signatures of {}", message, e);
+            return reject(dataMap, result);
+        }
+        if (failed.isEmpty()) {
+            return dataMap;
+        }
+        final NavigableMap<Number640, Data> verified = new TreeMap<Number640, Data>(dataMap);
+        for (final Number640 key : failed) {
+            LOG.debug("invalid signature for {} from {}", key, message.sender());
+            verified.remove(key).release();
+            result.put(key, (byte) PutStatus.FAILED_SECURITY.ordinal());
+        }
+        return verified;
+    }
+
+    private static NavigableMap<Number640, Data> reject(final NavigableMap<Number640, Data> dataMap,
+            final Map<Number640, Byte> result) {
+        final NavigableMap<Number640, Data> unsigned = new TreeMap<Number640, Data>();
+        for (final Map.Entry<Number640, Data> entry : dataMap.entrySet()) {
+            if (entry.getValue() != null && entry.getValue().isSigned()) {
+                entry.getValue().release();
+                result.put(entry.getKey(), (byte) PutStatus.FAILED_SECURITY.ordinal());
+            } else {
+                unsigned.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return unsigned;
+    }
+
     private static Enum<?> doAdd(final boolean protectDomain, final Map.Entry<Number640, Data> entry,
             final PublicKey publicKey, final boolean list, final StorageLayer storageLayer, final PeerAddress serverPeerAddress, final boolean sendSelf) {
 
@@ -938,6 +1158,7 @@ public class StorageRPC extends DispatchHandler {
         final boolean isReturnBloomfilter = message.command() == RPC.Commands.DIGEST_BLOOMFILTER.getNr();
         final boolean isReturnAllBloomfilter = message.command() == RPC.Commands.DIGEST_ALL_BLOOMFILTER.getNr();
         final boolean isReturnMetaValues = message.command() == RPC.Commands.DIGEST_META_VALUES.getNr();
+        final BloomfilterFactory replyFactory = replyFactory(message);
         if(isReturnMetaValues || isReturnAllBloomfilter) {
         	final NavigableMap<Number640, Data> result = doGet(locationKey, domainKey, contentKeys, contentKeyBloomFilter,
                     versionBloomFilter, contentBloomFilter, limit, ascending, isRange, isCollection, isBloomFilterAnd);
@@ -945,9 +1166,9 @@ public class StorageRPC extends DispatchHandler {
         		DataMap dataMap = new DataMap(result, true);
         		responseMessage.setDataMap(dataMap);
         	} else {
-        		SimpleBloomFilter<Number160> sbfContentKey = factory.createContentKeyBloomFilter();
-                SimpleBloomFilter<Number160> sbfVersion = factory.createVersionKeyBloomFilter();
-                SimpleBloomFilter<Number160> sbfContent = factory.createContentBloomFilter();
+        		SimpleBloomFilter<Number160> sbfContentKey = replyFactory.createContentKeyBloomFilter();
+                SimpleBloomFilter<Number160> sbfVersion = replyFactory.createVersionKeyBloomFilter();
+                SimpleBloomFilter<Number160> sbfContent = replyFactory.createContentBloomFilter();
                 
                 for (Map.Entry<Number640, Data> entry : result.entrySet()) {
                 	sbfContentKey.add(entry.getKey().contentKey());
@@ -962,8 +1183,8 @@ public class StorageRPC extends DispatchHandler {
         	final DigestInfo digestInfo = doDigest(locationKey, domainKey, contentKeys, contentKeyBloomFilter,
         			versionBloomFilter, limit, ascending, isRange, isCollection, isBloomFilterAnd);
         	if (isReturnBloomfilter) {
-        		SimpleBloomFilter<Number160> sbfContentKey = factory.createContentKeyBloomFilter();
-                SimpleBloomFilter<Number160> sbfVersion = factory.createVersionKeyBloomFilter();
+        		SimpleBloomFilter<Number160> sbfContentKey = replyFactory.createContentKeyBloomFilter();
+                SimpleBloomFilter<Number160> sbfVersion = replyFactory.createVersionKeyBloomFilter();
                 
                 for (Number640 key : digestInfo.mapDigests().keySet()) {
                 	sbfContentKey.add(key.contentKey());
@@ -980,6 +1201,19 @@ public class StorageRPC extends DispatchHandler {
 
     }
 
+    /**
+     * The requester compares the returned bloom filters with its keys. A requester that does not know the
+     * blocked mode would find all of them, thus the filters are only blocked if the request had the blocked bloom
+     * filter option.
+     */
+    private BloomfilterFactory replyFactory(final Message message) {
+        if (factory instanceof DefaultBloomfilterFactory && ((DefaultBloomfilterFactory) factory).isBlocked()
+                && !message.isBlockedBloomFilter()) {
+            return CLASSIC_FACTORY;
+        }
+        return factory;
+    }
+
 	private DigestInfo doDigest(
             final Number160 locationKey, final Number160 domainKey, final KeyCollection contentKeys,
             final SimpleBloomFilter<Number160> contentKeyBloomFilter,
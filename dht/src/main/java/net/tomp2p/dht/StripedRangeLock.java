@@ -0,0 +1,262 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.dht;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.tomp2p.peers.Number640;
+
+/**
+ * A read/write lock on ranges of {@link Number640} keys. Unlike
+ * {@link RangeLock}, there is no single monitor for all ranges:
+ * <ul>
+ * <li>A range within one location key only touches the stripe of this
+ * location key. Ranges over several location keys take all stripes in
+ * ascending order, thus they cannot deadlock among each other.</li>
+ * <li>Read ranges do not block each other, only a write range blocks an
+ * overlapping range of another thread.</li>
+ * <li>An unlock only wakes the waiters whose range conflicts with the released
+ * range.</li>
+ * </ul>
+ * As with {@link RangeLock}, a thread never blocks on its own ranges. The
+ * stripe mutex is only held to check and update the few ranges of one stripe,
+ * never while waiting.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public final class StripedRangeLock {
+
+	public static final int DEFAULT_STRIPES = 64;
+
+	private final Stripe[] stripes;
+	private final int mask;
+
+	public StripedRangeLock() {
+		this(DEFAULT_STRIPES);
+	}
+
+	/**
+	 * @param nrStripes
+	 *            The number of stripes, rounded up to the next power of two
+	 */
+	public StripedRangeLock(final int nrStripes) {
+		if (nrStripes <= 0 || nrStripes > (1 << 16)) {
+			throw new IllegalArgumentException("number of stripes out of range: " + nrStripes);
+		}
+		int size = 1;
+		while (size < nrStripes) {
+			size <<= 1;
+		}
+		this.stripes = new Stripe[size];
+		for (int i = 0; i < size; i++) {
+			stripes[i] = new Stripe();
+		}
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Locks a range for reading, blocks while another thread holds an
+	 * overlapping write range.
+	 */
+	public Range readLock(final Number640 fromKey, final Number640 toKey) {
+		return lock(fromKey, toKey, false, true);
+	}
+
+	/**
+	 * Locks a range for writing, blocks while another thread holds any
+	 * overlapping range.
+	 */
+	public Range writeLock(final Number640 fromKey, final Number640 toKey) {
+		return lock(fromKey, toKey, true, true);
+	}
+
+	/**
+	 * @return The range or null if it cannot be locked without blocking
+	 */
+	public Range tryReadLock(final Number640 fromKey, final Number640 toKey) {
+		return lock(fromKey, toKey, false, false);
+	}
+
+	/**
+	 * @return The range or null if it cannot be locked without blocking
+	 */
+	public Range tryWriteLock(final Number640 fromKey, final Number640 toKey) {
+		return lock(fromKey, toKey, true, false);
+	}
+
+	private Range lock(final Number640 fromKey, final Number640 toKey, final boolean exclusive, final boolean wait) {
+		final int first;
+		final int last;
+		if (fromKey.sameLocationKey(toKey)) {
+			first = last = stripe(fromKey);
+		} else {
+			first = 0;
+			last = mask;
+		}
+		final Range range = new Range(this, fromKey, toKey, exclusive, first, last);
+		for (int i = first; i <= last; i++) {
+			if (!stripes[i].acquire(range, wait)) {
+				for (int j = first; j < i; j++) {
+					stripes[j].release(range);
+				}
+				return null;
+			}
+		}
+		return range;
+	}
+
+	private void unlock(final Range range) {
+		for (int i = range.first; i <= range.last; i++) {
+			stripes[i].release(range);
+		}
+	}
+
+	private int stripe(final Number640 key) {
+		final int hashCode = key.locationKeyHashCode();
+		return (hashCode ^ (hashCode >>> 16)) & mask;
+	}
+
+	/**
+	 * @return The number of ranges that are currently locked
+	 */
+	public int size() {
+		int size = 0;
+		for (int i = 0; i < stripes.length; i++) {
+			size += stripes[i].size(i);
+		}
+		return size;
+	}
+
+	/**
+	 * A locked range, unlock it in a finally block.
+	 */
+	public static final class Range {
+		private final StripedRangeLock ref;
+		private final Number640 fromKey;
+		private final Number640 toKey;
+		private final boolean exclusive;
+		private final Thread owner;
+		private final int first;
+		private final int last;
+
+		private Range(final StripedRangeLock ref, final Number640 fromKey, final Number640 toKey,
+				final boolean exclusive, final int first, final int last) {
+			this.ref = ref;
+			this.fromKey = fromKey;
+			this.toKey = toKey;
+			this.exclusive = exclusive;
+			this.owner = Thread.currentThread();
+			this.first = first;
+			this.last = last;
+		}
+
+		public void unlock() {
+			ref.unlock(this);
+		}
+
+		private boolean conflicts(final Range other) {
+			return owner != other.owner && (exclusive || other.exclusive) && fromKey.compareTo(other.toKey) <= 0
+					&& other.fromKey.compareTo(toKey) <= 0;
+		}
+	}
+
+	private static final class Waiter {
+		private final Range range;
+		private final Condition condition;
+
+		private Waiter(final Range range, final Condition condition) {
+			this.range = range;
+			this.condition = condition;
+		}
+	}
+
+	private static final class Stripe {
+		private final ReentrantLock lock = new ReentrantLock();
+		private final List<Range> holders = new ArrayList<Range>(4);
+		private final List<Waiter> waiters = new ArrayList<Waiter>(2);
+
+		private boolean acquire(final Range range, final boolean wait) {
+			lock.lock();
+			try {
+				if (conflicts(range)) {
+					if (!wait) {
+						return false;
+					}
+					final Waiter waiter = new Waiter(range, lock.newCondition());
+					waiters.add(waiter);
+					try {
+						do {
+							// StorageLayer cannot handle a failed lock, so we
+							// keep waiting and only preserve the interrupt flag
+							waiter.condition.awaitUninterruptibly();
+						} while (conflicts(range));
+					} finally {
+						waiters.remove(waiter);
+					}
+				}
+				holders.add(range);
+				return true;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void release(final Range range) {
+			lock.lock();
+			try {
+				// ranges are compared by identity
+				holders.remove(range);
+				for (final Waiter waiter : waiters) {
+					if (waiter.range.conflicts(range)) {
+						waiter.condition.signal();
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private boolean conflicts(final Range range) {
+			for (final Range holder : holders) {
+				if (holder.conflicts(range)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private int size(final int index) {
+			lock.lock();
+			try {
+				int size = 0;
+				for (final Range holder : holders) {
+					// count ranges over several stripes only once
+					if (holder.first == index) {
+						size++;
+					}
+				}
+				return size;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+}
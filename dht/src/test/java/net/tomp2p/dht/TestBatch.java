@@ -0,0 +1,161 @@
+package net.tomp2p.dht;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import net.tomp2p.dht.StorageLayer.PutStatus;
+import net.tomp2p.futures.FutureProgres;
+import net.tomp2p.p2p.RequestP2PConfiguration;
+import net.tomp2p.p2p.RoutingConfiguration;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.peers.PeerAddress;
+import net.tomp2p.peers.PeerMap;
+import net.tomp2p.storage.Data;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestBatch {
+	final private static Random rnd = new Random(42L);
+
+	private static final byte OK = (byte) PutStatus.OK.ordinal();
+	private static final byte NOT_FOUND = (byte) PutStatus.NOT_FOUND.ordinal();
+	private static final byte FAILED = (byte) PutStatus.FAILED.ordinal();
+
+	@Test
+	public void testBatch() throws Exception {
+		PeerDHT master = null;
+		try {
+			PeerDHT[] peers = UtilsDHT2.createNodes(100, rnd, 4001);
+			master = peers[0];
+			UtilsDHT2.perfectRouting(peers);
+			RoutingConfiguration rc = new RoutingConfiguration(2, 10, 2);
+			RequestP2PConfiguration pc = new RequestP2PConfiguration(2, 5, 0);
+
+			// three location keys with two content keys each
+			NavigableMap<Number640, Data> dataMap = new TreeMap<Number640, Data>();
+			List<Number160> locationKeys = new ArrayList<Number160>();
+			for (int i = 0; i < 3; i++) {
+				Number160 locationKey = new Number160(rnd);
+				locationKeys.add(locationKey);
+				for (int j = 0; j < 2; j++) {
+					dataMap.put(new Number640(locationKey, Number160.ZERO, new Number160(j), Number160.ZERO),
+					        new Data("batch " + i + " " + j));
+				}
+			}
+
+			FutureBatch futurePut = peers[10].putBatch(dataMap).requestP2PConfiguration(pc).routingConfiguration(rc)
+			        .start();
+			futurePut.awaitUninterruptibly();
+			Assert.assertTrue(futurePut.failedReason(), futurePut.isSuccess());
+
+			// every peer gets one message with all its keys
+			Set<PeerAddress> closest = new HashSet<PeerAddress>();
+			Map<Number160, Collection<PeerDHT>> replicas = new HashMap<Number160, Collection<PeerDHT>>();
+			for (Number160 locationKey : locationKeys) {
+				TreeMap<PeerAddress, PeerDHT> sorted = new TreeMap<PeerAddress, PeerDHT>(
+				        PeerMap.createXORAddressComparator(locationKey));
+				for (PeerDHT peer : peers) {
+					sorted.put(peer.peerAddress(), peer);
+				}
+				Collection<PeerDHT> replica = new ArrayList<PeerDHT>();
+				for (int i = 0; i < pc.minimumResults(); i++) {
+					Map.Entry<PeerAddress, PeerDHT> entry = sorted.pollFirstEntry();
+					closest.add(entry.getKey());
+					replica.add(entry.getValue());
+				}
+				replicas.put(locationKey, replica);
+			}
+			Assert.assertEquals(closest.size(), futurePut.requests().size());
+			for (Map.Entry<Number640, Data> entry : dataMap.entrySet()) {
+				Assert.assertEquals(OK, (byte) futurePut.status().get(entry.getKey()));
+				for (PeerDHT replica : replicas.get(entry.getKey().locationKey())) {
+					Assert.assertTrue(replica.storageLayer().contains(entry.getKey()));
+				}
+			}
+
+			// the progress stream has one result per peer and an empty last one
+			Set<Number640> streamed = new TreeSet<Number640>();
+			int results = 0;
+			FutureProgres<Map<Number640, Data>> progres = futurePut.progres();
+			while (progres != null) {
+				progres.awaitUninterruptibly();
+				if (progres.next() == null) {
+					Assert.assertTrue(progres.object().isEmpty());
+				} else {
+					results++;
+					streamed.addAll(progres.object().keySet());
+				}
+				progres = progres.next();
+			}
+			Assert.assertEquals(closest.size(), results);
+			Assert.assertEquals(dataMap.keySet(), streamed);
+
+			// get the stored keys and one that does not exist
+			List<Number640> keys = new ArrayList<Number640>(dataMap.keySet());
+			Number640 missing = new Number640(locationKeys.get(0), Number160.ZERO, new Number160(99), Number160.ZERO);
+			keys.add(missing);
+			FutureBatch futureGet = peers[20].getBatch(keys).requestP2PConfiguration(pc).routingConfiguration(rc)
+			        .start();
+			futureGet.awaitUninterruptibly();
+			Assert.assertTrue(futureGet.failedReason(), futureGet.isSuccess());
+			Assert.assertEquals(dataMap, futureGet.data());
+			Assert.assertEquals(NOT_FOUND, (byte) futureGet.status().get(missing));
+		} finally {
+			if (master != null) {
+				master.shutdown().await();
+			}
+		}
+	}
+
+	@Test
+	public void testPartlyFailed() {
+		Number640 found = new Number640(Number160.ONE, Number160.ZERO, Number160.ONE, Number160.ZERO);
+		Number640 notFound = new Number640(Number160.ONE, Number160.ZERO, new Number160(2), Number160.ZERO);
+		Number640 failed = new Number640(new Number160(3), Number160.ZERO, Number160.ONE, Number160.ZERO);
+		Collection<Number640> requested = new ArrayList<Number640>();
+		requested.add(found);
+		requested.add(notFound);
+		Map<Number640, Data> reply = new TreeMap<Number640, Data>();
+		reply.put(found, new Data(new byte[] { 1 }));
+
+		FutureBatch futureBatch = new FutureBatch(null);
+		// one peer fails for the first two keys, the other replies
+		Collection<Number640> failedPeer = new ArrayList<Number640>(requested);
+		futureBatch.failedKeys(failedPeer);
+		futureBatch.receivedData(requested, reply);
+		futureBatch.failedKeys(Collections.singletonList(failed));
+		futureBatch.done();
+
+		Assert.assertTrue(futureBatch.isFailed());
+		Assert.assertEquals(1, futureBatch.data().size());
+		Assert.assertEquals(OK, (byte) futureBatch.status().get(found));
+		Assert.assertEquals(NOT_FOUND, (byte) futureBatch.status().get(notFound));
+		Assert.assertEquals(FAILED, (byte) futureBatch.status().get(failed));
+
+		// the same replies in the other order
+		FutureBatch reversed = new FutureBatch(null);
+		reversed.failedKeys(Collections.singletonList(failed));
+		reversed.receivedData(requested, reply);
+		reversed.failedKeys(failedPeer);
+		reversed.done();
+		Assert.assertEquals(futureBatch.status(), reversed.status());
+
+		// the stream has the reply and the empty last result
+		FutureProgres<Map<Number640, Data>> progres = futureBatch.progres();
+		Assert.assertEquals(reply, progres.object());
+		Assert.assertTrue(progres.next().object().isEmpty());
+		Assert.assertNull(progres.next().next());
+	}
+}
@@ -58,6 +58,7 @@ import net.tomp2p.peers.PeerStatistic;
 import net.tomp2p.rpc.DigestResult;
 import net.tomp2p.rpc.ObjectDataReply;
 import net.tomp2p.rpc.RawDataReply;
+import net.tomp2p.storage.BinaryObjectSerializer;
 import net.tomp2p.storage.Data;
 import net.tomp2p.utils.Utils;
 
@@ -289,6 +290,28 @@ public class TestDHT {
 		}
 	}
 
+	@Test
+	public void testPutGetSerializer() throws Exception {
+		PeerDHT master = null;
+		try {
+			master = new PeerBuilderDHT(new PeerBuilder(new Number160(rnd)).ports(4001)
+					.objectSerializer(new BinaryObjectSerializer()).start()).start();
+			FuturePut fdht = master.put(Number160.ONE).object("hallo").start();
+			fdht.awaitUninterruptibly();
+			Assert.assertEquals(true, fdht.isSuccess());
+			FutureGet fdht2 = master.get(Number160.ONE).start();
+			fdht2.awaitUninterruptibly();
+			Assert.assertEquals(true, fdht2.isSuccess());
+			// decoded with the serializer of the peer, not with Java serialization
+			Assert.assertEquals("hallo", fdht2.object());
+			Assert.assertEquals("hallo", fdht2.data().object());
+		} finally {
+			if (master != null) {
+				master.shutdown().await();
+			}
+		}
+	}
+
 	@Test
 	public void testPutTimeout() throws Exception {
 		PeerDHT master = null;
@@ -10,6 +10,7 @@ import java.security.SignatureException;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.Random;
+import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.crypto.Cipher;
@@ -705,6 +706,39 @@ public class TestSecurity {
 		}
 	}
 
+	@Test
+	public void testInvalidSignature() throws IOException, NoSuchAlgorithmException, InvalidKeyException,
+			SignatureException {
+		KeyPair keyPair1 = keyGen.generateKeyPair();
+		KeyPair keyPair2 = keyGen.generateKeyPair();
+
+		PeerDHT p1 = null, p2 = null;
+		try {
+			p1 = new PeerBuilderDHT(new PeerBuilder(Number160.createHash(1)).ports(4838).keyPair(keyPair1).start()).start();
+			p2 = new PeerBuilderDHT(new PeerBuilder(Number160.createHash(2)).ports(4839).keyPair(keyPair2).start()).start();
+
+			p2.peer().bootstrap().peerAddress(p1.peerAddress()).start().awaitUninterruptibly();
+			p1.peer().bootstrap().peerAddress(p2.peerAddress()).start().awaitUninterruptibly();
+
+			Number160 locationKey = Number160.createHash("key1");
+			Number640 valid = new Number640(locationKey, Number160.ZERO, Number160.ONE, Number160.ZERO);
+			Number640 forged = new Number640(locationKey, Number160.ZERO, new Number160(2), Number160.ZERO);
+			// signed with the first key, but claims to be signed by the second
+			Data data = new Data("test1").signNow(keyPair1, factory);
+			Data data2 = new Data("test2").signNow(keyPair1, factory).publicKey(keyPair2.getPublic());
+			NavigableMap<Number640, Data> dataMap = new TreeMap<Number640, Data>();
+			dataMap.put(valid, data);
+			dataMap.put(forged, data2);
+			p1.put(locationKey).dataMap(dataMap).start().awaitUninterruptibly();
+
+			Assert.assertTrue(p2.storageLayer().contains(valid));
+			Assert.assertFalse(p2.storageLayer().contains(forged));
+		} finally {
+			p1.shutdown().awaitUninterruptibly();
+			p2.shutdown().awaitUninterruptibly();
+		}
+	}
+
 	@Test
 	public void testTTLUpdate() throws IOException, ClassNotFoundException, NoSuchAlgorithmException, InterruptedException,
 			InvalidKeyException, SignatureException {
@@ -744,6 +744,65 @@ public class TestStorageDHT {
         }
     }
 
+    @Test
+    public void testBlockedExclusionFilter() throws Exception {
+        PeerDHT sender = null;
+        PeerDHT recv1 = null;
+        ChannelClient cc = null;
+        try {
+            sender = new PeerBuilderDHT(new PeerBuilder(new Number160("0x50")).p2pId(55).ports(2424).start()).storage(new StorageMemory()).start();
+            recv1 = new PeerBuilderDHT(new PeerBuilder(new Number160("0x20")).p2pId(55).ports(8088).start()).storage(new StorageMemory()).start();
+            StorageRPC smmSender = sender.storeRPC();
+            // store without a storage message, so the sender does not know the receiver yet
+            Number160 locationKey = new Number160(33);
+            Number160 domainKey = Number160.createHash("test");
+            for (int i : new int[] { 77, 88, 99 }) {
+                recv1.storageLayer().put(new Number640(locationKey, domainKey, new Number160(i), Number160.ZERO),
+                        new Data(new byte[] { (byte) i }), null, false, false, false);
+            }
+
+            FutureChannelCreator fcc = sender.peer().connectionBean().reservation().create(0, 1);
+            fcc.awaitUninterruptibly();
+            cc = fcc.channelCreator();
+
+            SimpleBloomFilter<Number160> sbf = new SimpleBloomFilter<Number160>(0.01d, 100, true);
+            sbf.add(new Number160(77));
+            GetBuilder getBuilder = new GetBuilder(recv1, locationKey);
+            getBuilder.domainKey(domainKey);
+            getBuilder.contentKeyBloomFilter(sbf);
+            getBuilder.bloomFilterAnd(false);
+            getBuilder.versionKey(Number160.ZERO);
+
+            // the blocked filter is not sent, the entry is excluded when the reply arrives
+            Assert.assertFalse(smmSender.isBlockedBloomFilterSupported(recv1.peerAddress()));
+            FutureResponse fr = smmSender.get(recv1.peerAddress(), getBuilder, cc);
+            fr.awaitUninterruptibly();
+            Assert.assertEquals(true, fr.isSuccess());
+            Map<Number640, Data> stored = fr.responseMessage().dataMap(0).dataMap();
+            Assert.assertEquals(2, stored.size());
+            Assert.assertFalse(stored.containsKey(new Number640(locationKey, domainKey, new Number160(77), Number160.ZERO)));
+            fr.release();
+
+            // the reply announced the blocked mode, the filter is now sent as it is
+            Assert.assertTrue(smmSender.isBlockedBloomFilterSupported(recv1.peerAddress()));
+            fr = smmSender.get(recv1.peerAddress(), getBuilder, cc);
+            fr.awaitUninterruptibly();
+            Assert.assertEquals(true, fr.isSuccess());
+            Assert.assertEquals(2, fr.responseMessage().dataMap(0).dataMap().size());
+            fr.release();
+        } finally {
+            if (cc != null) {
+                cc.shutdown().awaitListenersUninterruptibly();
+            }
+            if (sender != null) {
+                sender.shutdown().await();
+            }
+            if (recv1 != null) {
+                recv1.shutdown().await();
+            }
+        }
+    }
+
     @Test
     public void testBloomFilterDigest() throws Exception {
         StorageMemory storeSender = new StorageMemory();
@@ -0,0 +1,111 @@
+package net.tomp2p.dht;
+
+import java.io.IOException;
+import java.util.NavigableMap;
+
+import net.tomp2p.connection.DSASignatureFactory;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Runs all storage tests with the off-heap storage.
+ */
+public class TestStorageOffHeap extends TestStorage {
+
+	@Override
+	public Storage createStorage() throws IOException {
+		return new StorageOffHeap(new DSASignatureFactory());
+	}
+
+	@Test
+	public void testPutGetRemove() throws Exception {
+		StorageOffHeap storage = new StorageOffHeap(new DSASignatureFactory());
+		Number640 key = new Number640(new Number160(1), new Number160(2), new Number160(3), Number160.ZERO);
+		Data data = new Data("test1").ttlSeconds(10).validFromMillis(1234);
+		Assert.assertNull(storage.put(key, data));
+
+		Data stored = storage.get(key);
+		Assert.assertEquals(data, stored);
+		Assert.assertEquals(1234, stored.validFromMillis());
+		Assert.assertEquals("test1", stored.object());
+		Assert.assertTrue(stored.buffer().isDirect());
+
+		Data old = storage.put(key, new Data("test2"));
+		Assert.assertEquals("test1", old.object());
+		Assert.assertEquals("test2", storage.get(key).object());
+		// the old data is still readable after the overwrite
+		Assert.assertEquals("test1", stored.object());
+
+		Assert.assertEquals("test2", storage.remove(key, true).object());
+		Assert.assertNull(storage.get(key));
+		Assert.assertEquals(0, storage.liveBytes());
+		storage.close();
+	}
+
+	@Test
+	public void testCompact() throws Exception {
+		StorageOffHeap storage = new StorageOffHeap(new DSASignatureFactory(),
+				StorageMemory.DEFAULT_STORAGE_CHECK_INTERVAL, 4096);
+		byte[] value = new byte[100];
+		for (int i = 0; i < 1000; i++) {
+			storage.put(key(i), new Data(value));
+		}
+		Data kept = storage.get(key(0));
+		for (int i = 0; i < 1000; i++) {
+			if (i % 10 != 0) {
+				storage.remove(key(i), false);
+			}
+		}
+		storage.compact();
+		Assert.assertTrue(storage.allocatedBytes() < 1000 * 100);
+		NavigableMap<Number640, Data> map = storage.map();
+		Assert.assertEquals(100, map.size());
+		for (Data data : map.values()) {
+			Assert.assertArrayEquals(value, data.toBytes());
+		}
+		// data returned before the compaction is still valid
+		Assert.assertArrayEquals(value, kept.toBytes());
+		storage.close();
+	}
+
+	@Test
+	public void testCompactBackOff() throws Exception {
+		final int slabSize = 4096;
+		StorageOffHeap storage = new StorageOffHeap(new DSASignatureFactory(),
+				StorageMemory.DEFAULT_STORAGE_CHECK_INTERVAL, slabSize);
+		byte[] value = new byte[100];
+		storage.put(key(0), new Data(value));
+		final int entrySize = (int) storage.liveBytes();
+		final int perSlab = slabSize / entrySize;
+		// three full slabs and one entry in the current slab
+		for (int i = 1; i <= 3 * perSlab; i++) {
+			storage.put(key(i), new Data(value));
+		}
+		// the full slabs stay just over half full, so a compaction moves
+		// nothing, but less than half of the allocated memory is in use
+		final int keep = perSlab / 2 + 1;
+		for (int slab = 0; slab < 3; slab++) {
+			for (int i = keep; i < perSlab; i++) {
+				storage.remove(key(slab * perSlab + i), false);
+			}
+		}
+		Assert.assertTrue(storage.liveBytes() < storage.allocatedBytes() / 2);
+		Assert.assertEquals(0, storage.compactions());
+
+		for (int i = 0; i < 5; i++) {
+			storage.put(key(1000 + i), new Data(value));
+		}
+		// only the first put compacts, the others wait for a new slab
+		Assert.assertEquals(1, storage.compactions());
+		Assert.assertEquals(4L * slabSize, storage.allocatedBytes());
+		storage.close();
+	}
+
+	private static Number640 key(int nr) {
+		return new Number640(new Number160(1), Number160.ZERO, new Number160(nr), Number160.ZERO);
+	}
+}
@@ -0,0 +1,122 @@
+package net.tomp2p.dht;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestStripedRangeLock {
+
+	private static final Number160 LOCATION1 = new Number160("0x6469ac84a89748bb67b923c833ed0c778a17aea3");
+	private static final Number160 LOCATION2 = new Number160("0x9120580e94f134cb7c9f27cd1e43dbc82980e152");
+
+	@Test
+	public void testReadersDoNotBlock() throws InterruptedException {
+		final StripedRangeLock r = new StripedRangeLock();
+		final StripedRangeLock.Range lock1 = r.readLock(key(LOCATION1, 1), key(LOCATION1, 5));
+		final StripedRangeLock.Range lock2 = otherThread(new Task() {
+			@Override
+			public StripedRangeLock.Range run() {
+				return r.tryReadLock(key(LOCATION1, 2), key(LOCATION1, 3));
+			}
+		});
+		Assert.assertNotNull(lock2);
+		Assert.assertEquals(2, r.size());
+		lock2.unlock();
+		lock1.unlock();
+		Assert.assertEquals(0, r.size());
+	}
+
+	@Test
+	public void testWriterBlocksOverlapping() throws InterruptedException {
+		final StripedRangeLock r = new StripedRangeLock();
+		final StripedRangeLock.Range lock1 = r.writeLock(key(LOCATION1, 1), key(LOCATION1, 5));
+		Assert.assertNull(otherThread(new Task() {
+			@Override
+			public StripedRangeLock.Range run() {
+				return r.tryReadLock(key(LOCATION1, 5), key(LOCATION1, 6));
+			}
+		}));
+		// not overlapping and another location
+		Assert.assertNotNull(otherThread(new Task() {
+			@Override
+			public StripedRangeLock.Range run() {
+				return r.tryWriteLock(key(LOCATION1, 6), key(LOCATION1, 7));
+			}
+		}));
+		Assert.assertNotNull(otherThread(new Task() {
+			@Override
+			public StripedRangeLock.Range run() {
+				return r.tryWriteLock(key(LOCATION2, 1), key(LOCATION2, 5));
+			}
+		}));
+		// the same thread does not block on its own range
+		final StripedRangeLock.Range lock2 = r.tryWriteLock(key(LOCATION1, 2), key(LOCATION1, 3));
+		Assert.assertNotNull(lock2);
+		lock2.unlock();
+		lock1.unlock();
+	}
+
+	@Test
+	public void testRangeOverLocations() throws InterruptedException {
+		final StripedRangeLock r = new StripedRangeLock();
+		final StripedRangeLock.Range lock1 = r.readLock(key(LOCATION2, 1), key(LOCATION2, 1));
+		Assert.assertNull(otherThread(new Task() {
+			@Override
+			public StripedRangeLock.Range run() {
+				return r.tryWriteLock(key(Number160.ZERO, 0), key(Number160.MAX_VALUE, 0));
+			}
+		}));
+		// a failed range does not leave anything behind
+		Assert.assertEquals(1, r.size());
+		lock1.unlock();
+		final StripedRangeLock.Range lock2 = r.writeLock(key(Number160.ZERO, 0), key(Number160.MAX_VALUE, 0));
+		Assert.assertEquals(1, r.size());
+		lock2.unlock();
+		Assert.assertEquals(0, r.size());
+	}
+
+	@Test
+	public void testWakeUp() throws InterruptedException {
+		final StripedRangeLock r = new StripedRangeLock();
+		final StripedRangeLock.Range lock1 = r.writeLock(key(LOCATION1, 1), key(LOCATION1, 5));
+		final CountDownLatch locked = new CountDownLatch(1);
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				r.readLock(key(LOCATION1, 3), key(LOCATION1, 3)).unlock();
+				locked.countDown();
+			}
+		}).start();
+		Assert.assertFalse(locked.await(100, TimeUnit.MILLISECONDS));
+		lock1.unlock();
+		Assert.assertTrue(locked.await(5, TimeUnit.SECONDS));
+		Assert.assertEquals(0, r.size());
+	}
+
+	private static Number640 key(final Number160 locationKey, final int contentKey) {
+		return new Number640(locationKey, Number160.ZERO, new Number160(contentKey), Number160.ZERO);
+	}
+
+	private interface Task {
+		StripedRangeLock.Range run();
+	}
+
+	private static StripedRangeLock.Range otherThread(final Task task) throws InterruptedException {
+		final AtomicReference<StripedRangeLock.Range> result = new AtomicReference<StripedRangeLock.Range>();
+		final Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				result.set(task.run());
+			}
+		});
+		thread.start();
+		thread.join();
+		return result.get();
+	}
+}
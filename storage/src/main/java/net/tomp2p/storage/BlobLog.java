@@ -0,0 +1,370 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.tomp2p.storage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.tomp2p.peers.Number160;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only log for large values, split into memory-mapped segment files.
+ * A value is identified by its hash and written only once, no matter how often
+ * MapDB serializes the node that references it. A read returns a buffer that
+ * wraps the mapped region, thus nothing is copied to the heap.
+ * <p>
+ * A record is stored as [int length][20 bytes hash][value]. A length of 0
+ * marks the end of a segment. On startup, the index is rebuilt by scanning the
+ * segments.
+ * </p>
+ * Values are never removed one by one. Instead, {@link #mark()} starts a new
+ * epoch, every {@link #get(Number160)}, {@link #retain(Number160)} and
+ * {@link #put(Number160, ByteBuf)} marks the value as alive, and
+ * {@link #sweep()} drops all values that were not marked and rewrites segments
+ * that are less than half alive. The caller reads all values that are
+ * referenced between mark and sweep.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class BlobLog {
+
+	private static final Logger LOG = LoggerFactory.getLogger(BlobLog.class);
+
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	private static final String PREFIX = "blob-";
+	private static final String SUFFIX = ".log";
+	private static final int RECORD_HEADER_SIZE = 4 + Number160.BYTE_ARRAY_SIZE;
+	private static final double COMPACT_RATIO = 0.5;
+
+	private final File path;
+	private final int segmentSize;
+
+	// all fields below are guarded by this
+	private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+	private final Map<Number160, Record> index = new HashMap<Number160, Record>();
+	private Segment current;
+	private int epoch = 0;
+	private boolean closed = false;
+
+	/**
+	 * Opens the log in the given directory and rebuilds the index from the
+	 * existing segments.
+	 *
+	 * @param path
+	 *            The directory of the segment files
+	 * @param segmentSize
+	 *            The size of a segment file. Larger values get their own
+	 *            segment.
+	 */
+	public BlobLog(final File path, final int segmentSize) throws IOException {
+		this.path = path;
+		this.segmentSize = segmentSize;
+		final File[] files = path.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(final File file) {
+				return file.isFile() && file.getName().startsWith(PREFIX) && file.getName().endsWith(SUFFIX);
+			}
+		});
+		if (files != null) {
+			Arrays.sort(files);
+			for (final File file : files) {
+				final String name = file.getName();
+				final int id = Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+				final Segment segment = new Segment(id, file, (int) file.length());
+				segments.put(id, segment);
+				scan(segment);
+			}
+		}
+		if (!segments.isEmpty()) {
+			current = segments.lastEntry().getValue();
+		}
+	}
+
+	private void scan(final Segment segment) {
+		final MappedByteBuffer buffer = segment.buffer;
+		int position = 0;
+		while (position + RECORD_HEADER_SIZE <= segment.capacity) {
+			final int length = buffer.getInt(position);
+			if (length <= 0 || position + RECORD_HEADER_SIZE + length > segment.capacity) {
+				// end of segment or a torn write
+				break;
+			}
+			final byte[] me = new byte[Number160.BYTE_ARRAY_SIZE];
+			final ByteBuffer hash = buffer.duplicate();
+			hash.position(position + 4);
+			hash.get(me);
+			final Record record = new Record(segment, position, length);
+			final Record old = index.put(new Number160(me), record);
+			if (old != null) {
+				// written again after a compaction, keep the newer copy
+				old.segment.live -= old.size();
+			}
+			segment.live += record.size();
+			position += record.size();
+		}
+		segment.position = position;
+	}
+
+	/**
+	 * Appends a value if there is no value with this hash yet.
+	 *
+	 * @param hash
+	 *            The hash of the value
+	 * @param value
+	 *            The encoded value, its readable bytes are stored
+	 */
+	public synchronized void put(final Number160 hash, final ByteBuf value) throws IOException {
+		checkOpen();
+		final Record existing = index.get(hash);
+		if (existing != null) {
+			existing.epoch = epoch;
+			return;
+		}
+		append(hash, value);
+	}
+
+	/**
+	 * @return A read-only buffer that wraps the mapped value, it stays valid
+	 *         even after a compaction
+	 * @throws IOException
+	 *             If there is no value with this hash
+	 */
+	public synchronized ByteBuf get(final Number160 hash) throws IOException {
+		checkOpen();
+		final Record record = index.get(hash);
+		if (record == null) {
+			throw new IOException("no value in blob log for hash " + hash);
+		}
+		record.epoch = epoch;
+		return Unpooled.wrappedBuffer(record.slice());
+	}
+
+	/**
+	 * Marks a value as alive without reading it.
+	 *
+	 * @return True if there is a value with this hash
+	 */
+	public synchronized boolean retain(final Number160 hash) {
+		final Record record = index.get(hash);
+		if (record == null) {
+			return false;
+		}
+		record.epoch = epoch;
+		return true;
+	}
+
+	/**
+	 * @return The number of values in the log
+	 */
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/**
+	 * @return The number of segment files
+	 */
+	public synchronized int segments() {
+		return segments.size();
+	}
+
+	/**
+	 * Starts a new epoch. Values that are not read or written until the next
+	 * {@link #sweep()} are removed.
+	 */
+	public synchronized void mark() {
+		epoch++;
+	}
+
+	/**
+	 * Removes the values that were not used since {@link #mark()}, moves the
+	 * values of sparse segments to the current segment and deletes the empty
+	 * segment files.
+	 */
+	public synchronized void sweep() throws IOException {
+		checkOpen();
+		for (final Iterator<Record> iterator = index.values().iterator(); iterator.hasNext();) {
+			final Record record = iterator.next();
+			if (record.epoch != epoch) {
+				record.segment.live -= record.size();
+				iterator.remove();
+			}
+		}
+		final List<Segment> sparse = new ArrayList<Segment>();
+		for (final Segment segment : segments.values()) {
+			if (segment != current && segment.live < segment.capacity * COMPACT_RATIO) {
+				sparse.add(segment);
+			}
+		}
+		if (sparse.isEmpty()) {
+			return;
+		}
+		for (final Map.Entry<Number160, Record> entry : index.entrySet()) {
+			final Record record = entry.getValue();
+			if (sparse.contains(record.segment)) {
+				final ByteBuf value = Unpooled.wrappedBuffer(record.slice());
+				record.segment.live -= record.size();
+				append(entry.getKey(), value);
+			}
+		}
+		force();
+		for (final Segment segment : sparse) {
+			segments.remove(segment.id);
+			segment.close();
+			// readers that still hold a slice keep the mapping alive
+			if (!segment.file.delete()) {
+				LOG.warn("could not delete blob segment {}", segment.file);
+			}
+		}
+	}
+
+	/**
+	 * Writes the mapped segments to disk.
+	 */
+	public synchronized void force() {
+		for (final Segment segment : segments.values()) {
+			segment.buffer.force();
+		}
+	}
+
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		force();
+		for (final Segment segment : segments.values()) {
+			segment.close();
+		}
+		segments.clear();
+		index.clear();
+		current = null;
+	}
+
+	private void append(final Number160 hash, final ByteBuf value) throws IOException {
+		final int length = value.readableBytes();
+		final int size = RECORD_HEADER_SIZE + length;
+		final Segment segment;
+		if (size > segmentSize) {
+			// a large value gets its own segment, the current one stays
+			segment = newSegment(size);
+		} else {
+			// keep space for the end marker
+			if (current == null || current.position + size + 4 > current.capacity) {
+				current = newSegment(segmentSize);
+			}
+			segment = current;
+		}
+		final ByteBuffer dst = segment.buffer.duplicate();
+		dst.position(segment.position + 4);
+		dst.put(hash.toByteArray());
+		value.getBytes(value.readerIndex(), dst);
+		// the length is written last, a torn record is not found on restart
+		segment.buffer.putInt(segment.position, length);
+		final Record record = new Record(segment, segment.position, length);
+		record.epoch = epoch;
+		index.put(hash, record);
+		segment.position += size;
+		segment.live += size;
+	}
+
+	private Segment newSegment(final int capacity) throws IOException {
+		final int id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+		final File file = new File(path, String.format("%s%08d%s", PREFIX, id, SUFFIX));
+		final Segment segment = new Segment(id, file, capacity);
+		segments.put(id, segment);
+		return segment;
+	}
+
+	private void checkOpen() throws IOException {
+		if (closed) {
+			throw new IOException("blob log is closed");
+		}
+	}
+
+	private static final class Segment {
+		private final int id;
+		private final File file;
+		private final int capacity;
+		private final RandomAccessFile raf;
+		private final MappedByteBuffer buffer;
+		private int position;
+		private long live;
+
+		private Segment(final int id, final File file, final int capacity) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.capacity = capacity;
+			this.raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(capacity);
+				// the mapping stays valid after the channel is closed
+				this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+			} catch (IOException e) {
+				raf.close();
+				throw e;
+			}
+		}
+
+		private void close() throws IOException {
+			raf.close();
+		}
+	}
+
+	private static final class Record {
+		private final Segment segment;
+		private final int offset;
+		private final int length;
+		private int epoch;
+
+		private Record(final Segment segment, final int offset, final int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		private int size() {
+			return RECORD_HEADER_SIZE + length;
+		}
+
+		private ByteBuffer slice() {
+			final ByteBuffer src = segment.buffer.duplicate();
+			src.position(offset + RECORD_HEADER_SIZE);
+			src.limit(offset + RECORD_HEADER_SIZE + length);
+			return src.slice().asReadOnlyBuffer();
+		}
+	}
+}
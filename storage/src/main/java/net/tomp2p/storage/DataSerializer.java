@@ -15,6 +15,8 @@ import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.security.InvalidKeyException;
 import java.security.SignatureException;
+import java.util.HashMap;
+import java.util.Map;
 
 import net.tomp2p.connection.SignatureFactory;
 import net.tomp2p.peers.Number160;
@@ -25,22 +27,96 @@ public class DataSerializer implements Serializer<Data>, Serializable {
 
     private static final long serialVersionUID = 1428836065493792295L;
     //TODO: test the performance impact
-    private static final int MAX_SIZE = 10 * 1024;
+    static final int MAX_SIZE = 10 * 1024;
+    
+    // MapDB stores this serializer in its catalog and may use a deserialized
+    // copy, thus all copies for the same blob directory share one log
+    private static final Map<File, SharedBlobLog> BLOB_LOGS = new HashMap<File, SharedBlobLog>();
     
     final private File path;
+    final private File blobPath;
     final private SignatureFactory signatureFactory;
     
-    public DataSerializer(File path, SignatureFactory signatureFactory) {
+    private static final class SharedBlobLog {
+    	private BlobLog blobLog;
+    	private int references;
+    }
+    
+    /**
+     * @param path
+     *            The directory of the storage
+     * @param name
+     *            The name of the data map, each map has its own blob log, so
+     *            a compaction only sees the values of one map
+     * @param signatureFactory
+     *            The factory to encode and decode signatures and public keys
+     */
+    public DataSerializer(File path, String name, SignatureFactory signatureFactory) {
     	this.path = path;
+    	this.blobPath = new File(path, "blobs_" + name).getAbsoluteFile();
     	this.signatureFactory = signatureFactory;
     }
+    
+    /**
+     * Registers a user of the blob log. The log is closed once every user
+     * called {@link #close()}.
+     */
+    public void open() {
+    	synchronized (BLOB_LOGS) {
+    		SharedBlobLog shared = BLOB_LOGS.get(blobPath);
+    		if (shared == null) {
+    			shared = new SharedBlobLog();
+    			BLOB_LOGS.put(blobPath, shared);
+    		}
+    		shared.references++;
+    	}
+    }
+    
+    /**
+     * @return The log for large values of this map, opened on first use
+     * @throws IOException
+     *             If the log cannot be opened or is closed
+     */
+    public BlobLog blobLog() throws IOException {
+    	synchronized (BLOB_LOGS) {
+    		final SharedBlobLog shared = BLOB_LOGS.get(blobPath);
+    		if (shared == null) {
+    			throw new IOException("blob log is closed: " + blobPath);
+    		}
+    		if (shared.blobLog == null) {
+    			if (!blobPath.isDirectory() && !blobPath.mkdirs()) {
+    				throw new IOException("cannot create " + blobPath);
+    			}
+    			shared.blobLog = new BlobLog(blobPath, BlobLog.DEFAULT_SEGMENT_SIZE);
+    		}
+    		return shared.blobLog;
+    	}
+    }
+    
+    /**
+     * Releases the blob log, it is closed if this was the last user.
+     */
+    public void close() throws IOException {
+    	final BlobLog blobLog;
+    	synchronized (BLOB_LOGS) {
+    		final SharedBlobLog shared = BLOB_LOGS.get(blobPath);
+    		if (shared == null || --shared.references > 0) {
+    			return;
+    		}
+    		BLOB_LOGS.remove(blobPath);
+    		blobLog = shared.blobLog;
+    	}
+    	if (blobLog != null) {
+    		blobLog.close();
+    	}
+    }
 
 	@Override
 	public void serialize(DataOutput out, Data value) throws IOException {
 		if (value.length() > MAX_SIZE) {
-			// header, 1 means stored on disk in a file
-			out.writeByte(1);
-			serializeFile(out, value);
+			// header, 2 means stored on disk in the blob log
+			out.writeByte(2);
+			serializeBlobLog(out, value);
 		} else {
 			// header, 0 means stored on disk with MapDB
 			out.writeByte(0);
@@ -69,46 +145,31 @@ public class DataSerializer implements Serializer<Data>, Serializable {
 	    }
     }
 
-	private void serializeFile(DataOutput out, Data value) throws IOException, FileNotFoundException {
-	    Number160 hash = value.hash();
-	    // store file name
-	    out.write(hash.toByteArray());
-	    // store as external file, create path
-	    RandomAccessFile file = null;
-	    FileChannel rwChannel = null;
-	    ByteBuf acb = null;
-	    try {
-	    	file = new RandomAccessFile(new File(path, hash.toString()), "rw");
-	    	rwChannel = file.getChannel();
-	    	acb = Unpooled.buffer();
-	    	// store data to disk
-	    	// header first
-	    	value.encodeHeader(acb, signatureFactory);
-	    	rwChannel.write(acb.nioBuffers());
-	    	// next data - no need to copy to another buffer, just take the
-	    	// data from memory
-	    	rwChannel.write(value.toByteBuffers());
-	    	// rest
-	    	try {
-	    		value.encodeDone(acb, signatureFactory);
-	    		rwChannel.write(acb.nioBuffers());
-	    	} catch (InvalidKeyException e) {
-	    		throw new IOException(e);
-	    	} catch (SignatureException e) {
-	    		throw new IOException(e);
-	    	}
-	    } finally {
-	    	if (acb!=null) {
-	    		acb.release();
-	    	}
-	    	if (rwChannel != null) {
-	    		rwChannel.close();
-	    	}
-	    	if (file != null) {
-	    		file.close();
-	    	}
-	    }
-    }
+	/**
+	 * The header and the signature change, e.g. with a confirmed put or an
+	 * update of the meta data, and are written inline each time. Only the
+	 * payload goes to the blob log, where it is stored once per hash.
+	 */
+	private void serializeBlobLog(DataOutput out, Data value) throws IOException {
+		ByteBuf acb = Unpooled.buffer();
+		value.encodeHeader(acb, signatureFactory);
+		write(out, acb.nioBuffers());
+		acb.skipBytes(acb.writerIndex());
+		// the hash covers the payload only, the log knows where it is
+		final Number160 hash = value.hash();
+		out.write(hash.toByteArray());
+		// MapDB serializes a node each time it changes, the payload is
+		// appended only if there is none with this hash yet
+		blobLog().put(hash, value.buffer());
+		try {
+			value.encodeDone(acb, signatureFactory);
+			write(out, acb.nioBuffers());
+		} catch (InvalidKeyException e) {
+			throw new IOException(e);
+		} catch (SignatureException e) {
+			throw new IOException(e);
+		}
+	}
 
 	private void write(DataOutput out, ByteBuffer[] nioBuffers) throws IOException {
 		final int length = nioBuffers.length; 
@@ -127,7 +188,9 @@ public class DataSerializer implements Serializer<Data>, Serializable {
 	@Override
     public Data deserialize(DataInput in, int available) throws IOException {
 	    int header = in.readByte();
-	    if(header == 1) {
+	    if(header == 2) {
+	    	return deserializeBlobLog(in);
+	    } else if(header == 1) {
 	    	return deserializeFile(in);
 	    } else if(header == 0) {
 	    	return deserializeMapDB(in);
@@ -163,6 +226,34 @@ public class DataSerializer implements Serializer<Data>, Serializable {
 	    return data;
     }
 
+	private Data deserializeBlobLog(DataInput in) throws IOException {
+	    ByteBuf header = Unpooled.buffer();
+	    Data data = null;
+	    while(data == null) {
+	    	header.writeByte(in.readByte());
+	    	data = Data.decodeHeader(header, signatureFactory);
+	    }
+	    header.readerIndex(0);
+	    byte[] me = new byte[Number160.BYTE_ARRAY_SIZE];
+	    in.readFully(me);
+	    // the payload is a slice of the mapped segment, no copy
+	    ByteBuf payload = blobLog().get(new Number160(me));
+	    if(payload.readableBytes() != data.length()) {
+	    	throw new IOException("unexpected payload length in blob log: " + payload.readableBytes());
+	    }
+	    ByteBuf signature = Unpooled.EMPTY_BUFFER;
+	    if(data.isSigned()) {
+	    	me = new byte[signatureFactory.signatureSize()];
+	    	in.readFully(me);
+	    	signature = Unpooled.wrappedBuffer(me);
+	    }
+	    try {
+	    	return Data.decodeSlice(Unpooled.wrappedBuffer(header, payload, signature), signatureFactory);
+	    } catch (IllegalArgumentException e) {
+	    	throw new IOException(e);
+	    }
+    }
+
 	private Data deserializeFile(DataInput in) throws IOException, FileNotFoundException {
 	    byte[] me = new byte[Number160.BYTE_ARRAY_SIZE];
 	    in.readFully(me);
@@ -17,6 +17,7 @@
 package net.tomp2p.storage;
 
 import java.io.File;
+import java.io.IOException;
 import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -29,9 +30,14 @@ import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import net.tomp2p.connection.SignatureFactory;
 import net.tomp2p.dht.Storage;
+import net.tomp2p.futures.FutureDone;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.Number320;
 import net.tomp2p.peers.Number480;
@@ -39,8 +45,19 @@ import net.tomp2p.peers.Number640;
 
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * A storage backed by MapDB. By default, every mutation is committed right
+ * away. With a commit interval or a commit threshold, the mutations are
+ * coalesced and committed together, either after the interval or as soon as
+ * the threshold of uncommitted mutations is reached. Use {@link #durable()} to
+ * wait until the mutations so far are on disk.
+ */
 public class StorageDisk implements Storage {
+	private static final Logger LOG = LoggerFactory.getLogger(StorageDisk.class);
+
     // Core
     final private NavigableMap<Number640, Data> dataMap;
     // Maintenance
@@ -54,13 +71,44 @@ public class StorageDisk implements Storage {
     final private Map<Number160, Set<Number160>> responsibilityMapRev;
     
     final private DB db;
+    final private DataSerializer dataSerializer;
     
     final private int storageCheckIntervalMillis;
     
+    // Group commit
+    final private int commitThreshold;
+    final private ScheduledExecutorService committer;
+    final private Object commitLock = new Object();
+    // guarded by commitLock
+    private int uncommitted = 0;
+    // guarded by commitLock
+    private FutureDone<Void> pendingCommit = new FutureDone<Void>();
+    // guarded by commitLock, the commit that is running or done
+    private FutureDone<Void> lastCommit = FutureDone.SUCCESS;
+    
     //for full control
     public StorageDisk(DB db, Number160 peerId, File path, SignatureFactory signatureFactory, int storageCheckIntervalMillis) {
+    	this(db, peerId, path, signatureFactory, storageCheckIntervalMillis, 0, 1);
+    }
+    
+    /**
+     * Creates a storage that commits the mutations in groups.
+     * 
+     * @param commitIntervalMillis
+     *            The maximum time a mutation stays uncommitted, 0 to only
+     *            commit on the threshold
+     * @param commitThreshold
+     *            The number of uncommitted mutations that triggers a commit, 1
+     *            to commit every mutation right away
+     */
+    public StorageDisk(DB db, Number160 peerId, File path, SignatureFactory signatureFactory, int storageCheckIntervalMillis, 
+    		int commitIntervalMillis, int commitThreshold) {
+    	if (commitIntervalMillis < 0 || commitThreshold < 1) {
+    		throw new IllegalArgumentException("commit interval cannot be negative and threshold must be at least 1");
+    	}
     	this.db = db;
-    	DataSerializer dataSerializer = new DataSerializer(path, signatureFactory);
+    	this.dataSerializer = new DataSerializer(path, "dataMap_" + peerId.toString(), signatureFactory);
+    	dataSerializer.open();
     	this.dataMap = db.createTreeMap("dataMap_" + peerId.toString()).valueSerializer(dataSerializer).makeOrGet();
     	this.timeoutMap = db.createTreeMap("timeoutMap_" + peerId.toString()).makeOrGet();
     	this.timeoutMapRev = db.createTreeMap("timeoutMapRev_" + peerId.toString()).makeOrGet();
@@ -69,6 +117,29 @@ public class StorageDisk implements Storage {
     	this.responsibilityMap = db.createTreeMap("responsibilityMap_" + peerId.toString()).makeOrGet();
     	this.responsibilityMapRev = db.createTreeMap("responsibilityMapRev_" + peerId.toString()).makeOrGet();
     	this.storageCheckIntervalMillis = storageCheckIntervalMillis;
+    	this.commitThreshold = commitThreshold;
+    	if (commitIntervalMillis > 0) {
+    		this.committer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    			@Override
+    			public Thread newThread(final Runnable runnable) {
+    				final Thread thread = new Thread(runnable, "TomP2P group commit");
+    				thread.setDaemon(true);
+    				return thread;
+    			}
+    		});
+    		committer.scheduleWithFixedDelay(new Runnable() {
+    			@Override
+    			public void run() {
+    				try {
+    					flush();
+    				} catch (RuntimeException e) {
+    					LOG.error("group commit failed", e);
+    				}
+    			}
+    		}, commitIntervalMillis, commitIntervalMillis, TimeUnit.MILLISECONDS);
+    	} else {
+    		this.committer = null;
+    	}
     }
     
     //set parameter to a reasonable default
@@ -80,7 +151,7 @@ public class StorageDisk implements Storage {
     @Override
     public Data put(Number640 key, Data value) {
 		Data oldData = dataMap.put(key, value);
-		db.commit();
+		commit();
         return oldData;
     }
     
@@ -103,7 +174,7 @@ public class StorageDisk implements Storage {
     @Override
     public Data remove(Number640 key, boolean returnData) {
     	Data retVal = dataMap.remove(key);
-		db.commit();
+		commit();
 		return retVal;
     }
     
@@ -116,7 +187,7 @@ public class StorageDisk implements Storage {
         }
 		
         tmp.clear();
-        db.commit();
+        commit();
         return retVal;
     }
     
@@ -135,11 +206,10 @@ public class StorageDisk implements Storage {
 	public void addTimeout(Number640 key, long expiration) {
 		Long oldExpiration = timeoutMap.put(key, expiration);
 		putIfAbsent2(expiration, key);
-		if (oldExpiration == null) {
-			return;
+		if (oldExpiration != null) {
+			removeRevTimeout(key, oldExpiration);
 		}
-		removeRevTimeout(key, oldExpiration);
-		db.commit();
+		commit();
 	}
  	
  	private void putIfAbsent2(long expiration, Number640 key) {
@@ -158,7 +228,7 @@ public class StorageDisk implements Storage {
             return;
         }
         removeRevTimeout(key, expiration);
-        db.commit();
+        commit();
     }
  	
  	private void removeRevTimeout(Number640 key, Long expiration) {
@@ -216,7 +286,7 @@ public class StorageDisk implements Storage {
 		}
 		contentIDs.add(locationKey);
 		responsibilityMapRev.put(peerId, contentIDs);
-		db.commit();
+		commit();
 		return hasChanged;
     }
 
@@ -226,7 +296,7 @@ public class StorageDisk implements Storage {
     	if(peerId != null) {
     		removeRevResponsibility(peerId, locationKey);
     	}
-    	db.commit();
+    	commit();
     }
 	
 	private void removeRevResponsibility(Number160 peerId, Number160 locationKey) {
@@ -241,10 +311,95 @@ public class StorageDisk implements Storage {
         }
     }
 	
+	// Group commit
+	private void commit() {
+		final boolean now;
+		synchronized (commitLock) {
+			now = ++uncommitted >= commitThreshold;
+		}
+		if (now) {
+			flush();
+		}
+	}
+	
+	/**
+	 * Commits all mutations so far.
+	 * 
+	 * @return The future that is done once the mutations are on disk, or
+	 *         failed if the commit failed
+	 */
+	public FutureDone<Void> flush() {
+		final FutureDone<Void> future;
+		synchronized (commitLock) {
+			if (uncommitted == 0) {
+				return lastCommit;
+			}
+			future = pendingCommit;
+			lastCommit = future;
+			pendingCommit = new FutureDone<Void>();
+			uncommitted = 0;
+		}
+		// mutations after the swap may be part of this commit as well, their
+		// future is done with the next commit
+		try {
+			// large values are in the blob log, which is not part of MapDB
+			dataSerializer.blobLog().force();
+			db.commit();
+		} catch (IOException e) {
+			future.failed(e);
+			throw new IllegalStateException(e);
+		} catch (RuntimeException e) {
+			future.failed(e);
+			throw e;
+		}
+		return future.done();
+	}
+	
+	/**
+	 * @return The future that is done once all mutations so far are
+	 *         committed, without triggering a commit
+	 */
+	public FutureDone<Void> durable() {
+		synchronized (commitLock) {
+			return uncommitted == 0 ? lastCommit : pendingCommit;
+		}
+	}
+	
+	// Blob log
+	/**
+	 * Removes the large values that are no longer referenced from the blob
+	 * log. All values are read once to find the referenced ones.
+	 */
+	public void compact() throws IOException {
+		final BlobLog blobLog = dataSerializer.blobLog();
+		blobLog.mark();
+		for (final Data data : dataMap.values()) {
+			// MapDB may return a cached value, so mark it explicitly
+			if (data.length() > DataSerializer.MAX_SIZE) {
+				blobLog.retain(data.hash());
+			}
+		}
+		blobLog.sweep();
+	}
+	
 	// Misc
 	@Override
     public void close() {
-	    db.close();	    
+		if (committer != null) {
+			committer.shutdown();
+			try {
+				committer.awaitTermination(storageCheckIntervalMillis, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		flush();
+	    db.close();
+	    try {
+	    	dataSerializer.close();
+	    } catch (IOException e) {
+	    	LOG.warn("could not close the blob log", e);
+	    }
     }
 	
 	// Protection Domain
@@ -0,0 +1,94 @@
+package net.tomp2p.storage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import net.tomp2p.peers.Number160;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestBlobLog {
+	private File dir;
+
+	@Before
+	public void before() throws IOException {
+		dir = Files.createTempDirectory("tomp2p").toFile();
+	}
+
+	@After
+	public void after() {
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void testPutGetReopen() throws IOException {
+		BlobLog blobLog = new BlobLog(dir, 1024);
+		for (int i = 0; i < 20; i++) {
+			blobLog.put(new Number160(i), value(i, 100));
+		}
+		// larger than a segment
+		blobLog.put(new Number160(100), value(100, 2000));
+		Assert.assertEquals(21, blobLog.size());
+		Assert.assertEquals(value(5, 100), blobLog.get(new Number160(5)));
+		blobLog.close();
+
+		blobLog = new BlobLog(dir, 1024);
+		Assert.assertEquals(21, blobLog.size());
+		for (int i = 0; i < 20; i++) {
+			Assert.assertEquals(value(i, 100), blobLog.get(new Number160(i)));
+		}
+		Assert.assertEquals(value(100, 2000), blobLog.get(new Number160(100)));
+		blobLog.close();
+	}
+
+	@Test
+	public void testSweep() throws IOException {
+		BlobLog blobLog = new BlobLog(dir, 1024);
+		for (int i = 0; i < 20; i++) {
+			blobLog.put(new Number160(i), value(i, 100));
+		}
+		int segments = blobLog.segments();
+		ByteBuf kept = blobLog.get(new Number160(0));
+		blobLog.mark();
+		blobLog.retain(new Number160(0));
+		blobLog.retain(new Number160(19));
+		blobLog.sweep();
+		Assert.assertEquals(2, blobLog.size());
+		Assert.assertTrue(blobLog.segments() < segments);
+		Assert.assertFalse(blobLog.retain(new Number160(1)));
+		Assert.assertEquals(value(0, 100), blobLog.get(new Number160(0)));
+		Assert.assertEquals(value(19, 100), blobLog.get(new Number160(19)));
+		// a buffer from before the sweep is still readable
+		Assert.assertEquals(value(0, 100), kept);
+		blobLog.close();
+
+		// dead records of the current segment are found again on restart,
+		// the next sweep removes them
+		blobLog = new BlobLog(dir, 1024);
+		blobLog.mark();
+		blobLog.retain(new Number160(0));
+		blobLog.retain(new Number160(19));
+		blobLog.sweep();
+		Assert.assertEquals(2, blobLog.size());
+		Assert.assertEquals(value(0, 100), blobLog.get(new Number160(0)));
+		blobLog.close();
+	}
+
+	private static ByteBuf value(int nr, int length) {
+		ByteBuf buf = Unpooled.buffer(length);
+		for (int i = 0; i < length; i++) {
+			buf.writeByte(nr + i);
+		}
+		return buf;
+	}
+}
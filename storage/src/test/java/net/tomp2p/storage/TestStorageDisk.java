@@ -7,10 +7,14 @@ import java.nio.file.Files;
 
 import net.tomp2p.connection.DSASignatureFactory;
 import net.tomp2p.dht.Storage;
+import net.tomp2p.futures.FutureDone;
 import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
 
 import org.junit.After;
+import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Test;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
 
@@ -23,6 +27,79 @@ public class TestStorageDisk extends TestStorage {
 		return new StorageDisk(db, locationKey, DIR, new DSASignatureFactory(), 60 * 1000);
 	}
 
+	@Test
+	public void testGroupCommit() throws IOException {
+		DB db = DBMaker.newFileDB(new File(DIR, "tomp2p")).transactionDisable().closeOnJvmShutdown().cacheDisable().make();
+		StorageDisk storage = new StorageDisk(db, locationKey, DIR, new DSASignatureFactory(), 60 * 1000, 100, 3);
+		Number640 key1 = new Number640(locationKey, Number160.ZERO, new Number160(1), Number160.ZERO);
+		Number640 key2 = new Number640(locationKey, Number160.ZERO, new Number160(2), Number160.ZERO);
+		storage.put(key1, new Data("test1"));
+		FutureDone<Void> durable = storage.durable();
+		Assert.assertFalse(durable.isCompleted());
+		storage.put(key2, new Data("test2"));
+		storage.addTimeout(key1, 1000);
+		// the threshold of 3 mutations triggers the commit
+		Assert.assertTrue(durable.isSuccess());
+		storage.removeTimeout(key1);
+		durable = storage.durable();
+		// the interval commits the rest
+		durable.awaitUninterruptibly(5000);
+		Assert.assertTrue(durable.isSuccess());
+		Assert.assertTrue(storage.durable().isSuccess());
+		storage.close();
+	}
+
+	@Test
+	public void testLargeValueHeader() throws IOException {
+		DB db = DBMaker.newFileDB(new File(DIR, "tomp2p")).transactionDisable().closeOnJvmShutdown().cacheDisable().make();
+		StorageDisk storage = new StorageDisk(db, locationKey, DIR, new DSASignatureFactory(), 60 * 1000);
+		Number640 key1 = new Number640(locationKey, Number160.ZERO, new Number160(1), Number160.ZERO);
+		Number640 key2 = new Number640(locationKey, Number160.ZERO, new Number160(2), Number160.ZERO);
+		byte[] value = new byte[DataSerializer.MAX_SIZE + 1];
+		value[0] = 42;
+		storage.put(key1, new Data(value).prepareFlag());
+		// same payload, other meta data
+		storage.put(key2, new Data(value).ttlSeconds(100));
+		Assert.assertTrue(storage.get(key1).hasPrepareFlag());
+		Assert.assertFalse(storage.get(key2).hasPrepareFlag());
+		Assert.assertEquals(100, storage.get(key2).ttlSeconds());
+
+		// a confirmed put only changes the header
+		storage.put(key1, new Data(value));
+		Data data = storage.get(key1);
+		Assert.assertFalse(data.hasPrepareFlag());
+		Assert.assertArrayEquals(value, data.toBytes());
+		storage.close();
+	}
+
+	@Test
+	public void testCompactSharedPath() throws IOException {
+		// two peers with their own database in the same directory
+		DB db1 = DBMaker.newFileDB(new File(DIR, "tomp2p1")).transactionDisable().closeOnJvmShutdown().cacheDisable().make();
+		DB db2 = DBMaker.newFileDB(new File(DIR, "tomp2p2")).transactionDisable().closeOnJvmShutdown().cacheDisable().make();
+		Number160 peerId2 = new Number160(11);
+		StorageDisk storage1 = new StorageDisk(db1, locationKey, DIR, new DSASignatureFactory(), 60 * 1000);
+		StorageDisk storage2 = new StorageDisk(db2, peerId2, DIR, new DSASignatureFactory(), 60 * 1000);
+		Number640 key1 = new Number640(locationKey, Number160.ZERO, new Number160(1), Number160.ZERO);
+		Number640 key2 = new Number640(peerId2, Number160.ZERO, new Number160(2), Number160.ZERO);
+		byte[] value1 = new byte[DataSerializer.MAX_SIZE + 1];
+		byte[] value2 = new byte[DataSerializer.MAX_SIZE + 1];
+		value2[0] = 1;
+		storage1.put(key1, new Data(value1));
+		storage2.put(key2, new Data(value2));
+
+		// the compaction of one storage does not see the values of the other
+		storage1.compact();
+		Assert.assertArrayEquals(value2, storage2.get(key2).toBytes());
+		storage2.compact();
+		Assert.assertArrayEquals(value1, storage1.get(key1).toBytes());
+		// closing one storage does not close the log of the other
+		storage1.close();
+		storage2.put(key2, new Data(value1));
+		Assert.assertArrayEquals(value1, storage2.get(key2).toBytes());
+		storage2.close();
+	}
+
 	@Before
 	public void befor() throws IOException {
 		DIR =  Files.createTempDirectory("tomp2p").toFile();
@@ -30,14 +107,21 @@ public class TestStorageDisk extends TestStorage {
 
 	@After
 	public void after() {
-		DIR.listFiles(new FileFilter() {
+		delete(DIR);
+	}
+
+	private static void delete(File dir) {
+		// the blob logs are in sub directories
+		dir.listFiles(new FileFilter() {
 			@Override
 			public boolean accept(File pathname) {
 				if (pathname.isFile())
 					pathname.delete();
+				else if (pathname.isDirectory())
+					delete(pathname);
 				return false;
 			}
 		});
-		DIR.delete();
+		dir.delete();
 	}
 }
\ No newline at end of file
@@ -145,6 +145,9 @@ public abstract class TrackerBuilder<K extends TrackerBuilder<K>> extends Defaul
         routingBuilder.maxDirectHits(routingConfiguration.maxDirectHits());
         routingBuilder.maxFailures(routingConfiguration.maxFailures());
         routingBuilder.maxSuccess(routingConfiguration.maxSuccess());
+        routingBuilder.proximityRouting(routingConfiguration.isProximityRouting());
+        routingBuilder.hedgeRequests(routingConfiguration.isHedgeRequests());
+        routingBuilder.adaptiveParallel(routingConfiguration.isAdaptiveParallel());
         return routingBuilder;
     }
 